@@ -0,0 +1,85 @@
+package fr.ramiere.benchmark;
+
+import fr.ramiere.MearsurementParser;
+import fr.ramiere.Measurement;
+import fr.ramiere.MeasurementBatch;
+import fr.ramiere.MeasurementDictionary;
+import fr.ramiere.MeasurementSink;
+import fr.ramiere.MutableMeasurement;
+import fr.ramiere.TagSetCache;
+import fr.ramiere.parser.JsonCollectdParser;
+import fr.ramiere.parser.StreamingJsonCollectdParser;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@org.openjdk.jmh.annotations.Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonCollectdParserBenchmark {
+
+    @Param({"gauge", "if_octets", "load", "meta_heavy"})
+    public String shape;
+
+    @Param({"tree", "streaming", "streaming_interned"})
+    public String implementation;
+
+    private MearsurementParser parser;
+    private String json;
+    private byte[] batch;
+    private MeasurementBatch columns;
+
+    @Setup
+    public void setup() {
+        switch (implementation) {
+            case "tree":
+                parser = new JsonCollectdParser();
+                break;
+            case "streaming_interned":
+                parser = new StreamingJsonCollectdParser(new TagSetCache());
+                break;
+            default:
+                parser = new StreamingJsonCollectdParser();
+                break;
+        }
+        json = Payloads.collectd(shape);
+        batch = Payloads.bytes(Payloads.collectdArray(shape, 100));
+        columns = new MeasurementBatch(new MeasurementDictionary());
+    }
+
+    @Benchmark
+    public List<Measurement> toValuesString() throws IOException {
+        return parser.toValues(json);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(100)
+    public List<Measurement> toValuesWriteHttpBatch() throws IOException {
+        return parser.toValues(batch, 0, batch.length);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(100)
+    public MeasurementBatch toBatchWriteHttpBatch() throws IOException {
+        columns.clear();
+        parser.toBatch(batch, 0, batch.length, columns);
+        return columns;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(100)
+    public int pushWriteHttpBatch(final Blackhole blackhole) throws IOException {
+        return parser.push(batch, 0, batch.length, new MeasurementSink() {
+            @Override
+            public void accept(MutableMeasurement measurement) {
+                blackhole.consume(measurement.getValue());
+            }
+        });
+    }
+}
@@ -0,0 +1,41 @@
+package fr.ramiere.benchmark;
+
+import fr.ramiere.Measurement;
+import fr.ramiere.parser.JsonMeasurementParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@org.openjdk.jmh.annotations.Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonMeasurementParserBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int size;
+
+    private final JsonMeasurementParser parser = new JsonMeasurementParser();
+    private String json;
+    private byte[] bytes;
+
+    @Setup
+    public void setup() {
+        json = Payloads.measurementArray(size);
+        bytes = Payloads.bytes(json);
+    }
+
+    @Benchmark
+    public List<Measurement> toValuesString() throws IOException {
+        return parser.toValues(json);
+    }
+
+    @Benchmark
+    public List<Measurement> toValuesBytes() throws IOException {
+        return parser.toValues(bytes, 0, bytes.length);
+    }
+}
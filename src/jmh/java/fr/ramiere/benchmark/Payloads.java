@@ -0,0 +1,75 @@
+package fr.ramiere.benchmark;
+
+import java.nio.charset.StandardCharsets;
+
+final class Payloads {
+
+    private Payloads() {
+    }
+
+    static String collectd(String shape) {
+        switch (shape) {
+            case "gauge":
+                return valueList("[253870080]", "[\"gauge\"]", "[\"value\"]", "memory", "", "memory", "used",
+                        "\"tsdb_tag_typeInstance\":\"category1\",\"tsdb_metric\":\"sys.memory\",\"tsdb_tag_add_unit\":\"bytes\",\"tsdb_tag_add_collector\":\"collectd\"");
+            case "if_octets":
+                return valueList("[1520235,2239128]", "[\"derive\",\"derive\"]", "[\"rx\",\"tx\"]", "interface", "eth0", "if_octets", "",
+                        "\"tsdb_tag_pluginInstance\":\"interface\",\"tsdb_metric\":\"sys.network\",\"tsdb_tag_dsname\":\"direction\",\"tsdb_tag_add_unit\":\"bytes\",\"tsdb_tag_add_collector\":\"collectd\"");
+            case "load":
+                return valueList("[0.35,0.24,0.18]", "[\"gauge\",\"gauge\",\"gauge\"]", "[\"shortterm\",\"midterm\",\"longterm\"]", "load", "", "load", "",
+                        "\"tsdb_metric\":\"sys.load\",\"tsdb_tag_dsname\":\"period\",\"tsdb_tag_add_collector\":\"collectd\"");
+            case "meta_heavy":
+                StringBuilder meta = new StringBuilder("\"tsdb_tag_plugin\":\"\",\"tsdb_tag_pluginInstance\":\"\",\"tsdb_tag_type\":\"\",\"tsdb_tag_typeInstance\":\"category2\",\"tsdb_prefix\":\"sys.network\",\"tsdb_metric\":\"sys.network\"");
+                for (int i = 0; i < 24; i++) {
+                    meta.append(",\"tsdb_tag_add_label").append(i).append("\":\"value").append(i).append('"');
+                }
+                meta.append(",\"tsdb_tag_add_collector\":\"collectd\"");
+                return valueList("[0]", "[\"gauge\"]", "[\"value\"]", "tcpconns", "all", "tcp_connections", "SYN_RECV", meta.toString());
+            default:
+                throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+    }
+
+    /**
+     * Value list of {@code shape} from its own host, one series per host.
+     */
+    static String collectd(String shape, int host) {
+        return collectd(shape).replace("macvlii00970", "macvlii" + host);
+    }
+
+    static String collectdArray(String shape, int size) {
+        String valueList = collectd(shape);
+        StringBuilder ret = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            ret.append(i == 0 ? "" : ",").append(valueList);
+        }
+        return ret.append(']').toString();
+    }
+
+    static String measurementArray(int size) {
+        StringBuilder ret = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            ret.append(i == 0 ? "" : ",")
+                    .append("{\"measurement\":\"badge\",\"tags\":{\"collector\":\"vrops\",\"color\":\"GREEN\",\"entityType\":\"VirtualMachine\",\"fqdn\":\"macvlid")
+                    .append(i % 500)
+                    .append(".xmp.net.intra\",\"type\":\"EFFICIENCY\"},\"time\":")
+                    .append(1457432331641L + i)
+                    .append(",\"value\":")
+                    .append(i % 100)
+                    .append('}');
+        }
+        return ret.append(']').toString();
+    }
+
+    static byte[] bytes(String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String valueList(String values, String dstypes, String dsnames, String plugin, String pluginInstance, String type, String typeInstance, String meta) {
+        return "{\"values\":" + values + ",\"dstypes\":" + dstypes + ",\"dsnames\":" + dsnames
+                + ",\"time\":1457444699.028,\"interval\":10.000,\"host\":\"macvlii00970.xmp.net.intra\""
+                + ",\"plugin\":\"" + plugin + "\",\"plugin_instance\":\"" + pluginInstance + "\""
+                + ",\"type\":\"" + type + "\",\"type_instance\":\"" + typeInstance + "\""
+                + ",\"meta\":{" + meta + "}}";
+    }
+}
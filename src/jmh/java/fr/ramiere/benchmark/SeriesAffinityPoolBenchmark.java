@@ -0,0 +1,76 @@
+package fr.ramiere.benchmark;
+
+import fr.ramiere.MearsurementParser;
+import fr.ramiere.Measurement;
+import fr.ramiere.MeasurementDictionary;
+import fr.ramiere.parser.StreamingJsonCollectdParser;
+import fr.ramiere.stage.RateEngine;
+import fr.ramiere.stage.SeriesAffinityPool;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the series affinity pool by number of workers, to see how parsing scales with cores once every series
+ * is bound to a shard: 1000 value lists of 250 hosts per invocation, posted one by one or as write_http arrays of 100
+ * that the pool splits before routing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@org.openjdk.jmh.annotations.Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SeriesAffinityPoolBenchmark {
+    private static final int VALUE_LISTS = 1000;
+    private static final int HOSTS = 250;
+
+    @Param({"1", "2", "4", "8"})
+    public int workers;
+
+    @Param({"single", "array"})
+    public String payload;
+
+    private SeriesAffinityPool pool;
+    private byte[][] payloads;
+
+    @Setup
+    public void setup() {
+        pool = new SeriesAffinityPool(workers, new SeriesAffinityPool.ParserFactory() {
+            @Override
+            public MearsurementParser create(int shard) {
+                return new StreamingJsonCollectdParser(new MeasurementDictionary(), new RateEngine());
+            }
+        }, new SeriesAffinityPool.ShardHandler() {
+            @Override
+            public void onMeasurements(int shard, List<Measurement> measurements) {
+            }
+        });
+        int perPayload = "array".equals(payload) ? 100 : 1;
+        payloads = new byte[VALUE_LISTS / perPayload][];
+        for (int i = 0; i < payloads.length; i++) {
+            StringBuilder json = new StringBuilder(perPayload > 1 ? "[" : "");
+            for (int j = 0; j < perPayload; j++) {
+                json.append(j == 0 ? "" : ",").append(Payloads.collectd("if_octets", (i * perPayload + j) % HOSTS));
+            }
+            payloads[i] = Payloads.bytes(json.append(perPayload > 1 ? "]" : "").toString());
+        }
+        pool.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUE_LISTS)
+    public long submit() throws InterruptedException {
+        for (byte[] data : payloads) {
+            pool.submit(data, 0, data.length);
+        }
+        pool.awaitIdle(1, TimeUnit.MINUTES);
+        return pool.measurements();
+    }
+}
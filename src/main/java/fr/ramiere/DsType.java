@@ -0,0 +1,24 @@
+package fr.ramiere;
+
+public enum DsType {
+    GAUGE, COUNTER, DERIVE, ABSOLUTE;
+
+    /**
+     * Unknown data source types are read as gauges, so their values go through untouched.
+     */
+    public static DsType of(String dsType) {
+        if (dsType == null) {
+            return GAUGE;
+        }
+        switch (dsType) {
+            case "counter":
+                return COUNTER;
+            case "derive":
+                return DERIVE;
+            case "absolute":
+                return ABSOLUTE;
+            default:
+                return GAUGE;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package fr.ramiere;
+
+/**
+ * Thrown by parsers for a record they cannot turn into measurements.
+ */
+public class InvalidMeasurementException extends IllegalArgumentException {
+    private final RejectReason reason;
+    private final String field;
+
+    public InvalidMeasurementException(String message, RejectReason reason, String field) {
+        super(field == null ? message + ": " + reason : message + ": " + reason + " " + field);
+        this.reason = reason;
+        this.field = field;
+    }
+
+    public RejectReason getReason() {
+        return reason;
+    }
+
+    /**
+     * @return the offending field, null when the reason is not about a single field
+     */
+    public String getField() {
+        return field;
+    }
+}
@@ -3,6 +3,8 @@ package fr.ramiere;
 import com.fasterxml.jackson.databind.JsonNode;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 public interface MearsurementParser {
@@ -13,4 +15,48 @@ public interface MearsurementParser {
     List<Measurement> toValues(String json) throws IOException;
 
     List<Measurement> toValues(JsonNode node);
+
+    /**
+     * Reads every record of the payload: a single object, a top-level array of objects, or newline-delimited records.
+     */
+    List<Measurement> toValues(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Same as {@link #toValues(byte[], int, int)} on the remaining bytes, the buffer position is left untouched.
+     */
+    List<Measurement> toValues(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Same as {@link #toValues(byte[], int, int)} on the whole stream, the stream is not closed.
+     */
+    List<Measurement> toValues(InputStream in) throws IOException;
+
+    /**
+     * Appends every record of the payload to {@code batch}; on failure the batch is left as it was before the call.
+     */
+    void toBatch(byte[] data, int offset, int length, MeasurementBatch batch) throws IOException;
+
+    /**
+     * Exception-free counterpart of {@link #toValues(String)}: an invalid record gives a rejected result instead of an
+     * {@link IllegalArgumentException}, malformed JSON included.
+     */
+    ParseResult parse(String json) throws IOException;
+
+    /**
+     * Exception-free counterpart of {@link #toValues(JsonNode)}.
+     */
+    ParseResult parse(JsonNode node);
+
+    /**
+     * Exception-free counterpart of {@link #toValues(byte[], int, int)}: reading stops at the first invalid record.
+     */
+    ParseResult parse(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Pushes every point of the payload to {@code sink} through a single reused {@link MutableMeasurement}, instead of
+     * building a list. Points of the records read before an invalid one have already been pushed when it throws.
+     *
+     * @return the number of points pushed
+     */
+    int push(byte[] data, int offset, int length, MeasurementSink sink) throws IOException;
 }
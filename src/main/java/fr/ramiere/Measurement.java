@@ -23,6 +23,29 @@ public class Measurement {
         this.tags = Collections.EMPTY_MAP;
     }
 
+    public String getName() {
+        return name;
+    }
+
+    public double getTime() {
+        return time;
+    }
+
+    public double getValue() {
+        return value;
+    }
+
+    public Map<String, String> getTags() {
+        return tags;
+    }
+
+    /**
+     * Id of the interned {@link TagSet} of this measurement, {@link TagSet#NO_ID} when the tags were not interned.
+     */
+    public int getTagSetId() {
+        return tags instanceof TagSet ? ((TagSet) tags).id() : TagSet.NO_ID;
+    }
+
     @Override
     public String toString() {
         return name + " " + time + " " + value + " " + tags;
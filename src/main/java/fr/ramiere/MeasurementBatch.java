@@ -0,0 +1,178 @@
+package fr.ramiere;
+
+import java.util.Arrays;
+
+/**
+ * Columnar, reusable alternative to {@code List<Measurement>}: one primitive array per column, names and tag sets stored
+ * as ids of a shared {@link MeasurementDictionary}. The generation of each tag set is kept next to its id, so that
+ * {@link #tags(int)} gives null rather than another series once the id was recycled by the {@link TagSetCache}. Not
+ * thread-safe, {@link #clear()} keeps the arrays for the next batch.
+ */
+public class MeasurementBatch {
+    private final MeasurementDictionary dictionary;
+    private double[] values;
+    private long[] times;
+    private int[] nameIds;
+    private int[] tagSetIds;
+    private int[] tagSetGenerations;
+    private long[] intervals;
+    private int size;
+
+    public MeasurementBatch(MeasurementDictionary dictionary) {
+        this(dictionary, 1024);
+    }
+
+    public MeasurementBatch(MeasurementDictionary dictionary, int initialCapacity) {
+        this.dictionary = dictionary;
+        this.values = new double[initialCapacity];
+        this.times = new long[initialCapacity];
+        this.nameIds = new int[initialCapacity];
+        this.tagSetIds = new int[initialCapacity];
+        this.tagSetGenerations = new int[initialCapacity];
+        this.intervals = new long[initialCapacity];
+    }
+
+    public void add(int nameId, long time, double value, int tagSetId) {
+        add(nameId, time, value, tagSetId, 0);
+    }
+
+    /**
+     * @param tagSetId id of a tag set interned by the dictionary, resolved right away to record its generation
+     * @param interval reporting interval of the series in milliseconds, 0 when unknown
+     */
+    public void add(int nameId, long time, double value, int tagSetId, long interval) {
+        TagSet tags = dictionary.tagSet(tagSetId);
+        add(nameId, time, value, tagSetId, tags == null ? -1 : tags.generation(), interval);
+    }
+
+    /**
+     * @param tags tag set interned by the dictionary
+     */
+    public void add(int nameId, long time, double value, TagSet tags, long interval) {
+        add(nameId, time, value, tags.id(), tags.generation(), interval);
+    }
+
+    /**
+     * Appends a copy of row {@code index} of {@code from}, a batch on the same dictionary, evicted tag set included.
+     */
+    public void addRow(MeasurementBatch from, int index) {
+        add(from.nameIds[index], from.times[index], from.values[index], from.tagSetIds[index], from.tagSetGenerations[index], from.intervals[index]);
+    }
+
+    private void add(int nameId, long time, double value, int tagSetId, int generation, long interval) {
+        if (size == values.length) {
+            grow();
+        }
+        nameIds[size] = nameId;
+        times[size] = time;
+        values[size] = value;
+        tagSetIds[size] = tagSetId;
+        tagSetGenerations[size] = generation;
+        intervals[size] = interval;
+        size++;
+    }
+
+    public void add(Measurement measurement) {
+        add(dictionary.nameId(measurement.getName()), Math.round(measurement.getTime()), measurement.getValue(), dictionary.tagSets().intern(measurement.getTags()), 0);
+    }
+
+    private void grow() {
+        int capacity = Math.max(16, values.length * 2);
+        values = Arrays.copyOf(values, capacity);
+        times = Arrays.copyOf(times, capacity);
+        nameIds = Arrays.copyOf(nameIds, capacity);
+        tagSetIds = Arrays.copyOf(tagSetIds, capacity);
+        tagSetGenerations = Arrays.copyOf(tagSetGenerations, capacity);
+        intervals = Arrays.copyOf(intervals, capacity);
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void truncate(int newSize) {
+        if (newSize < 0 || newSize > size) {
+            throw new IndexOutOfBoundsException("size " + size + ", truncate to " + newSize);
+        }
+        size = newSize;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public MeasurementDictionary dictionary() {
+        return dictionary;
+    }
+
+    public double value(int index) {
+        return values[index];
+    }
+
+    public long time(int index) {
+        return times[index];
+    }
+
+    public int nameId(int index) {
+        return nameIds[index];
+    }
+
+    public int tagSetId(int index) {
+        return tagSetIds[index];
+    }
+
+    /**
+     * Overwrites row {@code to} with row {@code from}, used with {@link #truncate(int)} to compact a batch in place.
+     */
+    public void copyRow(int from, int to) {
+        nameIds[to] = nameIds[from];
+        times[to] = times[from];
+        values[to] = values[from];
+        tagSetIds[to] = tagSetIds[from];
+        tagSetGenerations[to] = tagSetGenerations[from];
+        intervals[to] = intervals[from];
+    }
+
+    public long interval(int index) {
+        return intervals[index];
+    }
+
+    public String name(int index) {
+        return dictionary.name(nameIds[index]);
+    }
+
+    /**
+     * @return the tag set of the row, null once it has been evicted from the dictionary, even if its id was reused
+     */
+    public TagSet tags(int index) {
+        TagSet tags = dictionary.tagSet(tagSetIds[index]);
+        return tags != null && tags.generation() == tagSetGenerations[index] ? tags : null;
+    }
+
+    public Measurement toMeasurement(int index) {
+        return new Measurement(name(index), times[index], values[index], tags(index));
+    }
+
+    /**
+     * Backing arrays, valid up to {@link #size()} and until the next {@link #add}.
+     */
+    public double[] values() {
+        return values;
+    }
+
+    public long[] times() {
+        return times;
+    }
+
+    public int[] nameIds() {
+        return nameIds;
+    }
+
+    public int[] tagSetIds() {
+        return tagSetIds;
+    }
+
+    public long[] intervals() {
+        return intervals;
+    }
+}
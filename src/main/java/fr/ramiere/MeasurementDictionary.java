@@ -0,0 +1,74 @@
+package fr.ramiere;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shared, thread-safe name and tag set dictionary behind {@link MeasurementBatch} ids. Name ids are never evicted,
+ * tag set ids follow the eviction and recycling of the underlying {@link TagSetCache}.
+ */
+public class MeasurementDictionary {
+    private final TagSetCache tagSets;
+    private final ConcurrentHashMap<String, Integer> nameIds = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[64];
+    private int nameCount;
+
+    public MeasurementDictionary() {
+        this(new TagSetCache());
+    }
+
+    public MeasurementDictionary(TagSetCache tagSets) {
+        this.tagSets = tagSets;
+    }
+
+    public int nameId(String name) {
+        Integer id = nameIds.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = nameIds.get(name);
+            if (id == null) {
+                id = nameCount++;
+                String[] current = names;
+                if (id >= current.length) {
+                    current = Arrays.copyOf(current, current.length * 2);
+                }
+                current[id] = name;
+                names = current;
+                nameIds.put(name, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * @return the id of {@code name}, -1 when it never got one
+     */
+    public int findNameId(String name) {
+        Integer id = nameIds.get(name);
+        return id != null ? id : -1;
+    }
+
+    public String name(int id) {
+        String[] current = names;
+        return id >= 0 && id < current.length ? current[id] : null;
+    }
+
+    public int tagSetId(Map<String, String> tags) {
+        return tagSets.intern(tags).id();
+    }
+
+    public int tagSetId(Map<String, String> tags, String extraKey, String extraValue) {
+        return tagSets.intern(tags, extraKey, extraValue).id();
+    }
+
+    public TagSet tagSet(int id) {
+        return tagSets.get(id);
+    }
+
+    public TagSetCache tagSets() {
+        return tagSets;
+    }
+}
@@ -0,0 +1,13 @@
+package fr.ramiere;
+
+import java.io.IOException;
+
+/**
+ * Receives the points of {@link MearsurementParser#push} one at a time, in payload order.
+ */
+public interface MeasurementSink {
+    /**
+     * @param measurement reused for the next point, copy what must outlive the call
+     */
+    void accept(MutableMeasurement measurement) throws IOException;
+}
@@ -0,0 +1,55 @@
+package fr.ramiere;
+
+import java.util.Map;
+
+/**
+ * Flyweight handed to a {@link MeasurementSink}: parsers refill the same instance for every point, so a sink must copy
+ * what it keeps, e.g. with {@link #toMeasurement()}. The tags map is never modified once handed over and may be kept.
+ */
+public final class MutableMeasurement {
+    private String name;
+    private double time;
+    private double value;
+    private Map<String, String> tags;
+
+    public MutableMeasurement set(String name, double time, double value, Map<String, String> tags) {
+        this.name = name;
+        this.time = time;
+        this.value = value;
+        this.tags = tags;
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return milliseconds since the epoch, as {@link Measurement#getTime()}
+     */
+    public double getTime() {
+        return time;
+    }
+
+    public double getValue() {
+        return value;
+    }
+
+    public Map<String, String> getTags() {
+        return tags;
+    }
+
+    public Measurement toMeasurement() {
+        return new Measurement(name, time, value, tags);
+    }
+
+    @Override
+    public String toString() {
+        return "MutableMeasurement{" +
+                "name='" + name + '\'' +
+                ", time=" + time +
+                ", value=" + value +
+                ", tags=" + tags +
+                '}';
+    }
+}
@@ -0,0 +1,48 @@
+package fr.ramiere;
+
+import java.util.List;
+
+/**
+ * Outcome of {@link MearsurementParser}'s exception-free {@code parse} methods: either the measurements of the payload
+ * or the {@link Rejection} of its first invalid record. Rejected results are shared and allocate nothing.
+ */
+public final class ParseResult {
+    private final List<Measurement> measurements;
+    private final Rejection rejection;
+
+    ParseResult(List<Measurement> measurements, Rejection rejection) {
+        this.measurements = measurements;
+        this.rejection = rejection;
+    }
+
+    public static ParseResult of(List<Measurement> measurements) {
+        return new ParseResult(measurements, null);
+    }
+
+    public static ParseResult rejected(Rejection rejection) {
+        return rejection.result();
+    }
+
+    public boolean isValid() {
+        return rejection == null;
+    }
+
+    /**
+     * @return the measurements of a valid payload, null when rejected
+     */
+    public List<Measurement> getMeasurements() {
+        return measurements;
+    }
+
+    /**
+     * @return why the payload was rejected, null when valid
+     */
+    public Rejection getRejection() {
+        return rejection;
+    }
+
+    @Override
+    public String toString() {
+        return isValid() ? measurements.toString() : "rejected: " + rejection;
+    }
+}
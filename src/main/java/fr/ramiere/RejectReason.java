@@ -0,0 +1,44 @@
+package fr.ramiere;
+
+/**
+ * Why a record was rejected, the offending field is reported next to it when there is one.
+ */
+public enum RejectReason {
+    /**
+     * The payload is not well-formed JSON.
+     */
+    MALFORMED_JSON,
+    /**
+     * The binary payload is truncated or a part of it does not have the expected size.
+     */
+    MALFORMED_PACKET,
+    /**
+     * No registered parser recognizes the payload.
+     */
+    UNKNOWN_FORMAT,
+    /**
+     * The record is not a JSON object.
+     */
+    NOT_AN_OBJECT,
+    /**
+     * A required field is missing or does not have the expected type, e.g. a missing {@code meta} or a non-numeric
+     * {@code time}.
+     */
+    INVALID_FIELD,
+    /**
+     * {@code meta.tsdb_tag_add_collector} is not {@code "collectd"}.
+     */
+    NOT_COLLECTD,
+    /**
+     * There are more {@code values} than {@code dsnames}.
+     */
+    MISSING_DSNAME,
+    /**
+     * A {@code tsdb_tag_add_*} meta value is not a string.
+     */
+    INVALID_TAG,
+    /**
+     * Rejected without a known reason, e.g. {@code accept} returned false.
+     */
+    UNKNOWN
+}
@@ -0,0 +1,86 @@
+package fr.ramiere;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Immutable (reason, field) pair telling why a payload was rejected. Instances are shared: {@link #of} hands out the
+ * same instance for the same pair, so rejecting a record allocates nothing once its pair has been seen. Fields must
+ * come from a fixed set, e.g. the parsers' field constants, never from the payload.
+ */
+public final class Rejection {
+    private static final ConcurrentMap<String, Rejection>[] BY_FIELD = newCache();
+    private static final Rejection[] WITHOUT_FIELD = new Rejection[RejectReason.values().length];
+
+    static {
+        for (RejectReason reason : RejectReason.values()) {
+            BY_FIELD[reason.ordinal()] = new ConcurrentHashMap<>();
+            WITHOUT_FIELD[reason.ordinal()] = new Rejection(reason, null);
+        }
+    }
+
+    private final RejectReason reason;
+    private final String field;
+    private final ParseResult result;
+
+    private Rejection(RejectReason reason, String field) {
+        this.reason = reason;
+        this.field = field;
+        this.result = new ParseResult(null, this);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConcurrentMap<String, Rejection>[] newCache() {
+        return new ConcurrentMap[RejectReason.values().length];
+    }
+
+    public static Rejection of(RejectReason reason) {
+        return WITHOUT_FIELD[reason.ordinal()];
+    }
+
+    public static Rejection of(RejectReason reason, String field) {
+        if (field == null) {
+            return of(reason);
+        }
+        ConcurrentMap<String, Rejection> cache = BY_FIELD[reason.ordinal()];
+        Rejection rejection = cache.get(field);
+        if (rejection == null) {
+            Rejection created = new Rejection(reason, field);
+            rejection = cache.putIfAbsent(field, created);
+            if (rejection == null) {
+                rejection = created;
+            }
+        }
+        return rejection;
+    }
+
+    public RejectReason getReason() {
+        return reason;
+    }
+
+    /**
+     * @return the offending field, null when the reason is not about a single field
+     */
+    public String getField() {
+        return field;
+    }
+
+    /**
+     * @return the shared result holding this rejection
+     */
+    public ParseResult result() {
+        return result;
+    }
+
+    /**
+     * For callers of the throwing API, builds a new exception carrying this rejection.
+     */
+    public InvalidMeasurementException exception(String message) {
+        return new InvalidMeasurementException(message, reason, field);
+    }
+
+    @Override
+    public String toString() {
+        return field == null ? reason.toString() : reason + " " + field;
+    }
+}
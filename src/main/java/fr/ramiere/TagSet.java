@@ -0,0 +1,204 @@
+package fr.ramiere;
+
+import java.util.*;
+
+public final class TagSet extends AbstractMap<String, String> {
+    public static final int NO_ID = -1;
+    public static final TagSet EMPTY = new TagSet(new String[0], new String[0], NO_ID);
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final String[] keys;
+    private final String[] values;
+    private final int hash;
+    private final long contentHash;
+    private final int id;
+    private final int generation;
+
+    private TagSet(String[] keys, String[] values, int id) {
+        this.keys = keys;
+        this.values = values;
+        this.id = id;
+        this.generation = 0;
+        int h = 0;
+        long content = 0;
+        for (int i = 0; i < keys.length; i++) {
+            h += keys[i].hashCode() ^ (values[i] == null ? 0 : values[i].hashCode());
+            // the key, then a separator that no char equals, then the value or a distinct marker for null
+            long entry = fnv(FNV_OFFSET, keys[i]) ^ 0x10000L;
+            content += mix(values[i] == null ? entry * FNV_PRIME : fnv(entry * FNV_PRIME, values[i]));
+        }
+        this.hash = h;
+        this.contentHash = content;
+    }
+
+    private TagSet(TagSet tags, int id, int generation) {
+        this.keys = tags.keys;
+        this.values = tags.values;
+        this.hash = tags.hash;
+        this.contentHash = tags.contentHash;
+        this.id = id;
+        this.generation = generation;
+    }
+
+    public static TagSet of(Map<String, String> tags) {
+        return of(tags, null, null);
+    }
+
+    public static TagSet of(Map<String, String> tags, String extraKey, String extraValue) {
+        if (tags instanceof TagSet && extraKey == null) {
+            return (TagSet) tags;
+        }
+        int size = tags.size() + (extraKey != null && !tags.containsKey(extraKey) ? 1 : 0);
+        String[] keys = new String[size];
+        String[] values = new String[size];
+        int count = 0;
+        for (Entry<String, String> entry : tags.entrySet()) {
+            if (extraKey == null || !extraKey.equals(entry.getKey())) {
+                count = insert(keys, values, count, entry.getKey(), entry.getValue());
+            }
+        }
+        if (extraKey != null) {
+            insert(keys, values, count, extraKey, extraValue);
+        }
+        return new TagSet(keys, values, NO_ID);
+    }
+
+    private static int insert(String[] keys, String[] values, int count, String key, String value) {
+        int i = count;
+        while (i > 0 && keys[i - 1].compareTo(key) > 0) {
+            keys[i] = keys[i - 1];
+            values[i] = values[i - 1];
+            i--;
+        }
+        keys[i] = key;
+        values[i] = value;
+        return count + 1;
+    }
+
+    TagSet withId(int id, int generation) {
+        return new TagSet(this, id, generation);
+    }
+
+    /**
+     * Dense id handed out by the {@link TagSetCache} that interned this tag set, {@link #NO_ID} otherwise. The id only
+     * names this tag set while it is cached, it is recycled after eviction.
+     */
+    public int id() {
+        return id;
+    }
+
+    /**
+     * Number of the interning that handed out {@link #id()}, different every time an evicted id is reused, so that a
+     * holder of an id can tell whether it still names this tag set.
+     */
+    int generation() {
+        return generation;
+    }
+
+    /**
+     * 64 bit hash of the characters of every key and value, independent of their order, of the JVM and of interning:
+     * a stable key for per-series state where {@link #id()} is not. Distinct tag sets collide with a probability of
+     * about {@code n^2 / 2^65} among {@code n} series, under one in a billion for a million series; state that must
+     * never mix two series compares the tag sets on a hit.
+     */
+    public long contentHash() {
+        return contentHash;
+    }
+
+    private static long fnv(long hash, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            hash = (hash ^ text.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static long mix(long key) {
+        key = (key ^ (key >>> 33)) * 0xFF51AFD7ED558CCDL;
+        key = (key ^ (key >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return key ^ (key >>> 33);
+    }
+
+    public String key(int index) {
+        return keys[index];
+    }
+
+    public String value(int index) {
+        return values[index];
+    }
+
+    @Override
+    public int size() {
+        return keys.length;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public String get(Object key) {
+        int index = indexOf(key);
+        return index < 0 ? null : values[index];
+    }
+
+    private int indexOf(Object key) {
+        if (!(key instanceof String)) {
+            return -1;
+        }
+        return Arrays.binarySearch(keys, key);
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<Entry<String, String>>() {
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new Iterator<Entry<String, String>>() {
+                    private int index;
+
+                    @Override
+                    public boolean hasNext() {
+                        return index < keys.length;
+                    }
+
+                    @Override
+                    public Entry<String, String> next() {
+                        if (index >= keys.length) {
+                            throw new NoSuchElementException();
+                        }
+                        Entry<String, String> entry = new SimpleImmutableEntry<>(keys[index], values[index]);
+                        index++;
+                        return entry;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return keys.length;
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o instanceof TagSet) {
+            TagSet that = (TagSet) o;
+            return hash == that.hash && Arrays.equals(keys, that.keys) && Arrays.equals(values, that.values);
+        }
+        return super.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
@@ -0,0 +1,129 @@
+package fr.ramiere;
+
+import org.apache.commons.collections4.map.AbstractLinkedMap;
+import org.apache.commons.collections4.map.LRUMap;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Bounded, thread-safe interning of tag sets: equal tag maps resolve to one shared {@link TagSet} carrying a dense id.
+ * Least recently used tag sets are evicted once the cache is full and their ids are recycled, oldest first, so that ids
+ * stay below {@code maxSize} plus a few in flight. An id therefore names a tag set only while it is cached: every
+ * interning also hands out a new generation, which {@link MeasurementBatch} keeps next to the id to tell a reused id
+ * from the one it stored. Key long-lived per-series state on {@link TagSet#contentHash()}, never on ids.
+ */
+public class TagSetCache {
+    public static final int DEFAULT_MAX_SIZE = 100000;
+    private static final int SEGMENTS = 16;
+
+    private final LRUMap<TagSet, TagSet>[] segments;
+    private final int maxSize;
+    private final int[] freeIds;
+    private int freeHead;
+    private int freeCount;
+    private int nextId;
+    private int generation;
+    private volatile TagSet[] byId = new TagSet[1024];
+
+    public TagSetCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    @SuppressWarnings("unchecked")
+    public TagSetCache(int maxSize) {
+        if (maxSize < SEGMENTS) {
+            throw new IllegalArgumentException("maxSize must be at least " + SEGMENTS);
+        }
+        this.maxSize = maxSize;
+        this.freeIds = new int[maxSize + SEGMENTS];
+        segments = new LRUMap[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new LRUMap<TagSet, TagSet>(maxSize / SEGMENTS) {
+                @Override
+                protected boolean removeLRU(AbstractLinkedMap.LinkEntry<TagSet, TagSet> entry) {
+                    forget(entry.getValue().id());
+                    return true;
+                }
+            };
+        }
+    }
+
+    public TagSet intern(Map<String, String> tags) {
+        if (tags instanceof TagSet) {
+            TagSet tagSet = (TagSet) tags;
+            if (tagSet.id() != TagSet.NO_ID && get(tagSet.id()) == tagSet) {
+                return tagSet;
+            }
+        }
+        return intern(TagSet.of(tags));
+    }
+
+    public TagSet intern(Map<String, String> tags, String extraKey, String extraValue) {
+        return intern(TagSet.of(tags, extraKey, extraValue));
+    }
+
+    private TagSet intern(TagSet candidate) {
+        int hash = candidate.hashCode();
+        LRUMap<TagSet, TagSet> segment = segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+        synchronized (segment) {
+            TagSet canonical = segment.get(candidate);
+            if (canonical == null) {
+                canonical = remember(candidate);
+                segment.put(canonical, canonical);
+            }
+            return canonical;
+        }
+    }
+
+    /**
+     * Tag set currently interned under {@code id}, null once it has been evicted and until the id is reused.
+     */
+    public TagSet get(int id) {
+        TagSet[] tagSets = byId;
+        return id >= 0 && id < tagSets.length ? tagSets[id] : null;
+    }
+
+    /**
+     * Fresh ids are handed out until {@code maxSize}, then evicted ids are reused in eviction order, which leaves the
+     * longest possible time to consumers still holding an old id.
+     */
+    private synchronized TagSet remember(TagSet candidate) {
+        int id;
+        if (freeCount > 0 && nextId >= maxSize) {
+            id = freeIds[freeHead];
+            freeHead = (freeHead + 1) % freeIds.length;
+            freeCount--;
+        } else {
+            id = nextId++;
+        }
+        TagSet tagSet = candidate.withId(id, ++generation);
+        TagSet[] tagSets = byId;
+        if (id >= tagSets.length) {
+            tagSets = Arrays.copyOf(tagSets, Math.max(id + 1, tagSets.length * 2));
+        }
+        tagSets[id] = tagSet;
+        byId = tagSets;
+        return tagSet;
+    }
+
+    private synchronized void forget(int id) {
+        TagSet[] tagSets = byId;
+        tagSets[id] = null;
+        byId = tagSets;
+        if (freeCount < freeIds.length) {
+            freeIds[(freeHead + freeCount) % freeIds.length] = id;
+            freeCount++;
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (LRUMap<TagSet, TagSet> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,152 @@
+package fr.ramiere.encoder;
+
+import fr.ramiere.Measurement;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes a batch of measurements in a compact binary form, read back by {@link BinaryBatchReader}. Names, tag keys
+ * and tag values are written once per batch in a string table, tag sets and series once in their own tables; each
+ * point then takes the index of its series, its time as a delta-of-delta and its value as a Gorilla XOR against the
+ * previous point of the same series, so that a steady series costs a few bits per point. Points keep their order.
+ * <p>
+ * Times are delta encoded as whole milliseconds when every time of the batch is one, as the parsers give, and XOR
+ * encoded like values otherwise, so that the round trip is always exact. Encoders keep their tables between
+ * batches to save allocations: use one per thread.
+ */
+public class BinaryBatchEncoder {
+    static final byte MAGIC = 'M';
+    static final byte VERSION = 1;
+    static final int FLAG_INTEGRAL_TIMES = 1;
+
+    private final BitWriter out = new BitWriter();
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final List<String> stringTable = new ArrayList<>();
+    private final Map<Map<String, String>, Integer> tagSets = new HashMap<>();
+    private final List<Map<String, String>> tagSetTable = new ArrayList<>();
+    private final Map<Long, Integer> series = new HashMap<>();
+    private final List<Long> seriesTable = new ArrayList<>();
+    private int[] seriesOf = new int[256];
+
+    public byte[] encode(List<Measurement> measurements) {
+        try {
+            return write(measurements);
+        } finally {
+            strings.clear();
+            stringTable.clear();
+            tagSets.clear();
+            tagSetTable.clear();
+            series.clear();
+            seriesTable.clear();
+            out.reset();
+        }
+    }
+
+    private byte[] write(List<Measurement> measurements) {
+        int size = measurements.size();
+        if (seriesOf.length < size) {
+            seriesOf = new int[Math.max(size, seriesOf.length * 2)];
+        }
+        boolean integralTimes = true;
+        for (int i = 0; i < size; i++) {
+            Measurement measurement = measurements.get(i);
+            seriesOf[i] = seriesIndex(measurement.getName(), tags(measurement));
+            integralTimes &= isIntegral(measurement.getTime());
+        }
+
+        out.writeBits(MAGIC, 8);
+        out.writeBits(VERSION, 8);
+        out.writeBits(integralTimes ? FLAG_INTEGRAL_TIMES : 0, 8);
+        out.writeVarint(size);
+        out.writeVarint(stringTable.size());
+        for (String string : stringTable) {
+            out.writeString(string);
+        }
+        out.writeVarint(tagSetTable.size());
+        for (Map<String, String> tags : tagSetTable) {
+            out.writeVarint(tags.size());
+            for (Map.Entry<String, String> tag : tags.entrySet()) {
+                out.writeVarint(strings.get(tag.getKey()));
+                out.writeVarint(strings.get(tag.getValue()));
+            }
+        }
+        out.writeVarint(seriesTable.size());
+        for (long key : seriesTable) {
+            out.writeVarint(key >>> 32);
+            out.writeVarint(key & 0xffffffffL);
+        }
+
+        int seriesBits = bitsFor(seriesTable.size());
+        DeltaOfDeltaChannel[] times = integralTimes ? new DeltaOfDeltaChannel[seriesTable.size()] : null;
+        XorChannel[] timeBits = integralTimes ? null : new XorChannel[seriesTable.size()];
+        XorChannel[] values = new XorChannel[seriesTable.size()];
+        for (int i = 0; i < size; i++) {
+            Measurement measurement = measurements.get(i);
+            int index = seriesOf[i];
+            out.writeBits(index, seriesBits);
+            if (values[index] == null) {
+                values[index] = new XorChannel();
+                if (integralTimes) {
+                    times[index] = new DeltaOfDeltaChannel();
+                } else {
+                    timeBits[index] = new XorChannel();
+                }
+            }
+            if (integralTimes) {
+                times[index].write(out, (long) measurement.getTime());
+            } else {
+                timeBits[index].write(out, Double.doubleToRawLongBits(measurement.getTime()));
+            }
+            values[index].write(out, Double.doubleToRawLongBits(measurement.getValue()));
+        }
+        return out.toByteArray();
+    }
+
+    private static Map<String, String> tags(Measurement measurement) {
+        Map<String, String> tags = measurement.getTags();
+        return tags == null ? Collections.<String, String>emptyMap() : tags;
+    }
+
+    private int seriesIndex(String name, Map<String, String> tags) {
+        Integer tagSet = tagSets.get(tags);
+        if (tagSet == null) {
+            for (Map.Entry<String, String> tag : tags.entrySet()) {
+                string(tag.getKey());
+                string(tag.getValue());
+            }
+            tagSet = tagSetTable.size();
+            tagSets.put(tags, tagSet);
+            tagSetTable.add(tags);
+        }
+        long key = ((long) string(name) << 32) | tagSet;
+        Integer index = series.get(key);
+        if (index == null) {
+            index = seriesTable.size();
+            series.put(key, index);
+            seriesTable.add(key);
+        }
+        return index;
+    }
+
+    private int string(String value) {
+        Integer index = strings.get(value);
+        if (index == null) {
+            index = stringTable.size();
+            strings.put(value, index);
+            stringTable.add(value);
+        }
+        return index;
+    }
+
+    static boolean isIntegral(double time) {
+        return Double.doubleToRawLongBits((double) (long) time) == Double.doubleToRawLongBits(time);
+    }
+
+    static int bitsFor(int count) {
+        return count <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(count - 1);
+    }
+}
@@ -0,0 +1,136 @@
+package fr.ramiere.encoder;
+
+import fr.ramiere.Measurement;
+import fr.ramiere.MeasurementSink;
+import fr.ramiere.MutableMeasurement;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cursor over a batch written by {@link BinaryBatchEncoder}. Only the string, tag set and series tables are decoded
+ * up front; points are decoded one {@link #next()} at a time straight from the buffer, heap or direct, which is
+ * neither copied nor moved. Points of the same series share their tags map.
+ */
+public final class BinaryBatchReader {
+    private final BitReader in;
+    private final int size;
+    private final boolean integralTimes;
+    private final String[] names;
+    private final Map<String, String>[] tags;
+    private final int seriesBits;
+    private final DeltaOfDeltaChannel[] times;
+    private final XorChannel[] timeBits;
+    private final XorChannel[] values;
+    private int read;
+    private int series;
+    private double time;
+    private double value;
+
+    @SuppressWarnings("unchecked")
+    public BinaryBatchReader(ByteBuffer buffer) {
+        in = new BitReader(buffer, buffer.position());
+        if (in.readBits(8) != BinaryBatchEncoder.MAGIC || in.readBits(8) != BinaryBatchEncoder.VERSION) {
+            throw new IllegalArgumentException("Not a binary measurement batch");
+        }
+        integralTimes = (in.readBits(8) & BinaryBatchEncoder.FLAG_INTEGRAL_TIMES) != 0;
+        size = (int) in.readVarint();
+        String[] strings = new String[(int) in.readVarint()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = in.readString();
+        }
+        Map<String, String>[] tagSets = new Map[(int) in.readVarint()];
+        for (int i = 0; i < tagSets.length; i++) {
+            int entries = (int) in.readVarint();
+            tagSets[i] = new HashMap<>(entries * 2);
+            for (int j = 0; j < entries; j++) {
+                tagSets[i].put(strings[(int) in.readVarint()], strings[(int) in.readVarint()]);
+            }
+        }
+        int seriesCount = (int) in.readVarint();
+        names = new String[seriesCount];
+        tags = new Map[seriesCount];
+        for (int i = 0; i < seriesCount; i++) {
+            names[i] = strings[(int) in.readVarint()];
+            tags[i] = tagSets[(int) in.readVarint()];
+        }
+        seriesBits = BinaryBatchEncoder.bitsFor(seriesCount);
+        times = integralTimes ? new DeltaOfDeltaChannel[seriesCount] : null;
+        timeBits = integralTimes ? null : new XorChannel[seriesCount];
+        values = new XorChannel[seriesCount];
+    }
+
+    /**
+     * @return the number of points of the batch
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Moves to the next point.
+     *
+     * @return false when every point was read
+     */
+    public boolean next() {
+        if (read == size) {
+            return false;
+        }
+        series = (int) in.readBits(seriesBits);
+        if (values[series] == null) {
+            values[series] = new XorChannel();
+            if (integralTimes) {
+                times[series] = new DeltaOfDeltaChannel();
+            } else {
+                timeBits[series] = new XorChannel();
+            }
+        }
+        time = integralTimes ? times[series].read(in) : Double.longBitsToDouble(timeBits[series].read(in));
+        value = Double.longBitsToDouble(values[series].read(in));
+        read++;
+        return true;
+    }
+
+    public String name() {
+        return names[series];
+    }
+
+    public Map<String, String> tags() {
+        return tags[series];
+    }
+
+    public double time() {
+        return time;
+    }
+
+    public double value() {
+        return value;
+    }
+
+    public static List<Measurement> decode(ByteBuffer buffer) {
+        BinaryBatchReader reader = new BinaryBatchReader(buffer);
+        List<Measurement> measurements = new ArrayList<>(reader.size());
+        while (reader.next()) {
+            measurements.add(new Measurement(reader.name(), reader.time(), reader.value(), reader.tags()));
+        }
+        return measurements;
+    }
+
+    /**
+     * Pushes every point to {@code sink} through a single reused {@link MutableMeasurement}.
+     *
+     * @return the number of points pushed
+     */
+    public static int decode(ByteBuffer buffer, MeasurementSink sink) throws IOException {
+        BinaryBatchReader reader = new BinaryBatchReader(buffer);
+        MutableMeasurement flyweight = new MutableMeasurement();
+        while (reader.next()) {
+            sink.accept(flyweight.set(reader.name(), reader.time(), reader.value(), reader.tags()));
+        }
+        return reader.size();
+    }
+}
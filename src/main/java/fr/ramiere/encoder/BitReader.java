@@ -0,0 +1,84 @@
+package fr.ramiere.encoder;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the bit fields of a {@link BitWriter} straight from a buffer, heap or direct, without copying it.
+ */
+final class BitReader {
+    private final ByteBuffer buffer;
+    private final int limit;
+    private int position;
+    private int bitsLeft;
+    private int current;
+
+    /**
+     * Reads from {@code offset} up to the limit of {@code buffer}, whose position is left untouched.
+     */
+    BitReader(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.limit = buffer.limit();
+        this.position = offset;
+    }
+
+    boolean readBit() {
+        return readBits(1) != 0;
+    }
+
+    /**
+     * @param count number of bits, between 0 and 64
+     */
+    long readBits(int count) {
+        long value = 0;
+        while (count > 0) {
+            if (bitsLeft == 0) {
+                if (position >= limit) {
+                    throw new BufferUnderflowException();
+                }
+                current = buffer.get(position++) & 0xFF;
+                bitsLeft = 8;
+            }
+            int taken = Math.min(count, bitsLeft);
+            bitsLeft -= taken;
+            value = (value << taken) | ((current >>> bitsLeft) & ((1 << taken) - 1));
+            count -= taken;
+        }
+        return value;
+    }
+
+    long readVarint() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            long b = readBits(8);
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * Reads a varint length followed by that many bytes of UTF-8, starting on a byte boundary.
+     */
+    String readString() {
+        int length = (int) readVarint();
+        if (length > limit - position) {
+            throw new BufferUnderflowException();
+        }
+        String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + position, length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = buffer.get(position + i);
+            }
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        position += length;
+        return value;
+    }
+}
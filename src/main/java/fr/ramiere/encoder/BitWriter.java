@@ -0,0 +1,90 @@
+package fr.ramiere.encoder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Appends bit fields, most significant bit first, to a growable byte array.
+ */
+final class BitWriter {
+    private byte[] bytes = new byte[256];
+    private int size;
+    private long pending;
+    private int pendingBits;
+
+    void reset() {
+        size = 0;
+        pending = 0;
+        pendingBits = 0;
+    }
+
+    void writeBit(boolean bit) {
+        writeBits(bit ? 1 : 0, 1);
+    }
+
+    /**
+     * Writes the {@code count} low bits of {@code value}, {@code count} between 0 and 64.
+     */
+    void writeBits(long value, int count) {
+        if (count > 32) {
+            writeBits(value >>> 32, count - 32);
+            writeBits(value, 32);
+            return;
+        }
+        if (count == 0) {
+            return;
+        }
+        pending = (pending << count) | (value & ((1L << count) - 1));
+        pendingBits += count;
+        while (pendingBits >= 8) {
+            pendingBits -= 8;
+            writeByte((int) (pending >>> pendingBits));
+        }
+        pending &= (1L << pendingBits) - 1;
+    }
+
+    /**
+     * Pads the last byte with zeros, so that the next write starts on a byte boundary.
+     */
+    void align() {
+        if (pendingBits > 0) {
+            writeBits(0, 8 - pendingBits);
+        }
+    }
+
+    void writeVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            writeBits((value & 0x7F) | 0x80, 8);
+            value >>>= 7;
+        }
+        writeBits(value, 8);
+    }
+
+    /**
+     * Writes a varint length followed by the UTF-8 bytes of {@code value}, on a byte boundary.
+     */
+    void writeString(String value) {
+        align();
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(utf8.length);
+        for (byte b : utf8) {
+            writeByte(b);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    byte[] toByteArray() {
+        align();
+        return Arrays.copyOf(bytes, size);
+    }
+
+    private void writeByte(int value) {
+        if (size == bytes.length) {
+            bytes = Arrays.copyOf(bytes, size * 2);
+        }
+        bytes[size++] = (byte) value;
+    }
+}
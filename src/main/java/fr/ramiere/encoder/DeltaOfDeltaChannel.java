@@ -0,0 +1,83 @@
+package fr.ramiere.encoder;
+
+/**
+ * Delta-of-delta encoding of the successive timestamps of one series: the first one raw, then the change of the gap
+ * between points, zigzag encoded behind a prefix telling its size. A series reporting at a steady interval costs one
+ * bit per point.
+ */
+final class DeltaOfDeltaChannel {
+    private boolean started;
+    private long previous;
+    private long delta;
+
+    void write(BitWriter out, long time) {
+        if (!started) {
+            out.writeBits(time, 64);
+            started = true;
+            previous = time;
+            return;
+        }
+        long newDelta = time - previous;
+        long zigzag = zigzag(newDelta - delta);
+        previous = time;
+        delta = newDelta;
+        if (zigzag == 0) {
+            out.writeBit(false);
+        } else if (zigzag >>> 7 == 0) {
+            out.writeBits(0b10, 2);
+            out.writeBits(zigzag, 7);
+        } else if (zigzag >>> 9 == 0) {
+            out.writeBits(0b110, 3);
+            out.writeBits(zigzag, 9);
+        } else if (zigzag >>> 12 == 0) {
+            out.writeBits(0b1110, 4);
+            out.writeBits(zigzag, 12);
+        } else if (zigzag >>> 32 == 0) {
+            out.writeBits(0b11110, 5);
+            out.writeBits(zigzag, 32);
+        } else {
+            out.writeBits(0b11111, 5);
+            out.writeBits(zigzag, 64);
+        }
+    }
+
+    long read(BitReader in) {
+        if (!started) {
+            started = true;
+            previous = in.readBits(64);
+            return previous;
+        }
+        int ones = 0;
+        while (ones < 5 && in.readBit()) {
+            ones++;
+        }
+        long zigzag;
+        switch (ones) {
+            case 0:
+                zigzag = 0;
+                break;
+            case 1:
+                zigzag = in.readBits(7);
+                break;
+            case 2:
+                zigzag = in.readBits(9);
+                break;
+            case 3:
+                zigzag = in.readBits(12);
+                break;
+            case 4:
+                zigzag = in.readBits(32);
+                break;
+            default:
+                zigzag = in.readBits(64);
+                break;
+        }
+        delta += (zigzag >>> 1) ^ -(zigzag & 1);
+        previous += delta;
+        return previous;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+}
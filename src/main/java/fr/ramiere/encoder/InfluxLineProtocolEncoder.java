@@ -0,0 +1,80 @@
+package fr.ramiere.encoder;
+
+import fr.ramiere.TagSet;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code name,tag=value value=1.5 1457435801786000000}: commas, spaces and equal signs are escaped, tags with an empty
+ * key or value are skipped since InfluxDB rejects them, non-finite values are not written.
+ */
+public class InfluxLineProtocolEncoder extends MeasurementEncoder {
+    private final TimeUnit precision;
+    private final String field;
+
+    public InfluxLineProtocolEncoder() {
+        this(TimeUnit.NANOSECONDS, "value");
+    }
+
+    public InfluxLineProtocolEncoder(TimeUnit precision, String field) {
+        this.precision = precision;
+        this.field = field;
+    }
+
+    @Override
+    protected boolean write(String name, long timeMillis, double value, Map<String, String> tags) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return false;
+        }
+        writeEscaped(name, false);
+        if (tags instanceof TagSet) {
+            TagSet tagSet = (TagSet) tags;
+            for (int i = 0; i < tagSet.size(); i++) {
+                writeTag(tagSet.key(i), tagSet.value(i));
+            }
+        } else {
+            for (Map.Entry<String, String> tag : tags.entrySet()) {
+                writeTag(tag.getKey(), tag.getValue());
+            }
+        }
+        writeByte(' ');
+        writeEscaped(field, true);
+        writeByte('=');
+        writeDouble(value);
+        writeByte(' ');
+        writeLong(precision.convert(timeMillis, TimeUnit.MILLISECONDS));
+        writeByte('\n');
+        return true;
+    }
+
+    private void writeTag(String key, String value) {
+        if (key == null || key.isEmpty() || value == null || value.isEmpty()) {
+            return;
+        }
+        writeByte(',');
+        writeEscaped(key, true);
+        writeByte('=');
+        writeEscaped(value, true);
+    }
+
+    private void writeEscaped(String text, boolean escapeEquals) {
+        for (int i = 0; i < text.length(); i++) {
+            int codePoint = codePointAt(text, i);
+            if (codePoint > 0xFFFF) {
+                i++;
+            }
+            switch (codePoint) {
+                case '\n':
+                case '\r':
+                case '\t':
+                    codePoint = ' ';
+                    break;
+            }
+            if (codePoint == ',' || codePoint == ' ' || (escapeEquals && codePoint == '=')) {
+                writeByte('\\');
+            }
+            writeCodePoint(codePoint);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package fr.ramiere.encoder;
+
+import fr.ramiere.Measurement;
+import fr.ramiere.MeasurementBatch;
+import fr.ramiere.MutableMeasurement;
+import fr.ramiere.TagSet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Encodes measurements as text lines into a reusable scratch array, then copies the line to the target buffer or stream,
+ * so no String or StringBuilder is created per point. Encoders keep that scratch array: use one per thread.
+ * <p>
+ * {@code encode} returns false when the format cannot represent the point (e.g. NaN for InfluxDB and OpenTSDB), nothing
+ * is written then. Writing to a {@link ByteBuffer} without enough room throws {@link BufferOverflowException} and leaves
+ * the buffer untouched.
+ */
+public abstract class MeasurementEncoder {
+    private static final double[] POWERS_OF_TEN = {1, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9};
+    private static final byte[] LONG_MIN = "-9223372036854775808".getBytes();
+    static final int FRACTION_DIGITS = 9;
+
+    private byte[] scratch = new byte[256];
+    private int position;
+
+    protected abstract boolean write(String name, long timeMillis, double value, Map<String, String> tags);
+
+    public boolean encode(Measurement measurement, ByteBuffer out) {
+        return encode(measurement.getName(), Math.round(measurement.getTime()), measurement.getValue(), measurement.getTags(), out);
+    }
+
+    public boolean encode(Measurement measurement, OutputStream out) throws IOException {
+        return encode(measurement.getName(), Math.round(measurement.getTime()), measurement.getValue(), measurement.getTags(), out);
+    }
+
+    public boolean encode(MutableMeasurement measurement, ByteBuffer out) {
+        return encode(measurement.getName(), Math.round(measurement.getTime()), measurement.getValue(), measurement.getTags(), out);
+    }
+
+    public boolean encode(MutableMeasurement measurement, OutputStream out) throws IOException {
+        return encode(measurement.getName(), Math.round(measurement.getTime()), measurement.getValue(), measurement.getTags(), out);
+    }
+
+    public boolean encode(MeasurementBatch batch, int index, ByteBuffer out) {
+        return encode(batch.name(index), batch.time(index), batch.value(index), tags(batch, index), out);
+    }
+
+    public boolean encode(MeasurementBatch batch, int index, OutputStream out) throws IOException {
+        return encode(batch.name(index), batch.time(index), batch.value(index), tags(batch, index), out);
+    }
+
+    public int encode(MeasurementBatch batch, OutputStream out) throws IOException {
+        int written = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            if (encode(batch, i, out)) {
+                written++;
+            }
+        }
+        return written;
+    }
+
+    private static Map<String, String> tags(MeasurementBatch batch, int index) {
+        TagSet tags = batch.tags(index);
+        return tags == null ? TagSet.EMPTY : tags;
+    }
+
+    private boolean encode(String name, long timeMillis, double value, Map<String, String> tags, ByteBuffer out) {
+        position = 0;
+        if (!write(name, timeMillis, value, tags)) {
+            return false;
+        }
+        if (out.remaining() < position) {
+            throw new BufferOverflowException();
+        }
+        out.put(scratch, 0, position);
+        return true;
+    }
+
+    private boolean encode(String name, long timeMillis, double value, Map<String, String> tags, OutputStream out) throws IOException {
+        position = 0;
+        if (!write(name, timeMillis, value, tags)) {
+            return false;
+        }
+        out.write(scratch, 0, position);
+        return true;
+    }
+
+    protected final void writeByte(int b) {
+        if (position == scratch.length) {
+            scratch = Arrays.copyOf(scratch, scratch.length * 2);
+        }
+        scratch[position++] = (byte) b;
+    }
+
+    protected final void writeAscii(String ascii) {
+        for (int i = 0; i < ascii.length(); i++) {
+            writeByte(ascii.charAt(i));
+        }
+    }
+
+    protected final void writeCodePoint(int codePoint) {
+        if (codePoint < 0x80) {
+            writeByte(codePoint);
+        } else if (codePoint < 0x800) {
+            writeByte(0xC0 | (codePoint >> 6));
+            writeByte(0x80 | (codePoint & 0x3F));
+        } else if (codePoint < 0x10000) {
+            writeByte(0xE0 | (codePoint >> 12));
+            writeByte(0x80 | ((codePoint >> 6) & 0x3F));
+            writeByte(0x80 | (codePoint & 0x3F));
+        } else {
+            writeByte(0xF0 | (codePoint >> 18));
+            writeByte(0x80 | ((codePoint >> 12) & 0x3F));
+            writeByte(0x80 | ((codePoint >> 6) & 0x3F));
+            writeByte(0x80 | (codePoint & 0x3F));
+        }
+    }
+
+    /**
+     * Returns the code point at {@code index}; surrogate pairs are combined, lone surrogates read as U+FFFD.
+     */
+    protected static int codePointAt(String text, int index) {
+        char c = text.charAt(index);
+        if (Character.isHighSurrogate(c) && index + 1 < text.length() && Character.isLowSurrogate(text.charAt(index + 1))) {
+            return Character.toCodePoint(c, text.charAt(index + 1));
+        }
+        return Character.isSurrogate(c) ? 0xFFFD : c;
+    }
+
+    protected final void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            for (byte b : LONG_MIN) {
+                writeByte(b);
+            }
+            return;
+        }
+        if (value < 0) {
+            writeByte('-');
+            value = -value;
+        }
+        int start = position;
+        do {
+            writeByte((int) ('0' + value % 10));
+            value /= 10;
+        } while (value != 0);
+        for (int i = start, j = position - 1; i < j; i++, j--) {
+            byte tmp = scratch[i];
+            scratch[i] = scratch[j];
+            scratch[j] = tmp;
+        }
+    }
+
+    /**
+     * Writes a finite double that parses back to the same value: as an integer when it is one, with at most
+     * {@link #FRACTION_DIGITS} fraction digits when that is exact, through {@link Double#toString(double)} otherwise.
+     */
+    protected final void writeDouble(double value) {
+        if (value == (long) value && Math.abs(value) < 1e15) {
+            writeLong((long) value);
+            return;
+        }
+        double abs = Math.abs(value);
+        if (abs < 1e9) {
+            for (int digits = 1; digits <= FRACTION_DIGITS; digits++) {
+                double scale = POWERS_OF_TEN[digits];
+                long scaled = Math.round(abs * scale);
+                if (scaled / scale == abs) {
+                    if (value < 0) {
+                        writeByte('-');
+                    }
+                    writeLong(scaled / (long) scale);
+                    writeByte('.');
+                    long fraction = scaled % (long) scale;
+                    for (long divisor = (long) scale / 10; divisor > 0; divisor /= 10) {
+                        writeByte((int) ('0' + fraction / divisor % 10));
+                    }
+                    return;
+                }
+            }
+        }
+        writeAscii(Double.toString(value));
+    }
+}
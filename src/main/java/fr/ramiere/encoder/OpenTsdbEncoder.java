@@ -0,0 +1,89 @@
+package fr.ramiere.encoder;
+
+import fr.ramiere.TagSet;
+
+import java.util.Map;
+
+/**
+ * OpenTSDB telnet {@code put name 1457435801786 1.5 tag=value} lines with millisecond timestamps. Characters OpenTSDB does
+ * not allow in names are replaced by {@code _}, tags with an empty key or value are skipped. Points without any tag and
+ * non-finite values cannot be stored by OpenTSDB and are not written.
+ */
+public class OpenTsdbEncoder extends MeasurementEncoder {
+    private static final String PUT = "put ";
+
+    @Override
+    protected boolean write(String name, long timeMillis, double value, Map<String, String> tags) {
+        if (Double.isNaN(value) || Double.isInfinite(value) || !hasTag(tags)) {
+            return false;
+        }
+        writeAscii(PUT);
+        writeSanitized(name);
+        writeByte(' ');
+        writeLong(timeMillis);
+        writeByte(' ');
+        writeDouble(value);
+        if (tags instanceof TagSet) {
+            TagSet tagSet = (TagSet) tags;
+            for (int i = 0; i < tagSet.size(); i++) {
+                writeTag(tagSet.key(i), tagSet.value(i));
+            }
+        } else {
+            for (Map.Entry<String, String> tag : tags.entrySet()) {
+                writeTag(tag.getKey(), tag.getValue());
+            }
+        }
+        writeByte('\n');
+        return true;
+    }
+
+    private static boolean hasTag(Map<String, String> tags) {
+        if (tags instanceof TagSet) {
+            TagSet tagSet = (TagSet) tags;
+            for (int i = 0; i < tagSet.size(); i++) {
+                if (isTag(tagSet.key(i), tagSet.value(i))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            if (isTag(tag.getKey(), tag.getValue())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isTag(String key, String value) {
+        return key != null && !key.isEmpty() && value != null && !value.isEmpty();
+    }
+
+    private void writeTag(String key, String value) {
+        if (!isTag(key, value)) {
+            return;
+        }
+        writeByte(' ');
+        writeSanitized(key);
+        writeByte('=');
+        writeSanitized(value);
+    }
+
+    private void writeSanitized(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            int codePoint = codePointAt(text, i);
+            if (codePoint > 0xFFFF) {
+                i++;
+            }
+            writeCodePoint(isAllowed(codePoint) ? codePoint : '_');
+        }
+    }
+
+    private static boolean isAllowed(int codePoint) {
+        return (codePoint >= 'a' && codePoint <= 'z')
+                || (codePoint >= 'A' && codePoint <= 'Z')
+                || (codePoint >= '0' && codePoint <= '9')
+                || codePoint == '-' || codePoint == '_' || codePoint == '.' || codePoint == '/'
+                || Character.isLetter(codePoint);
+    }
+}
@@ -0,0 +1,88 @@
+package fr.ramiere.encoder;
+
+import fr.ramiere.TagSet;
+
+import java.util.Map;
+
+/**
+ * Prometheus text exposition {@code name{label="value"} 1.5 1457435801786} lines. Metric and label names are sanitized to
+ * the Prometheus alphabet (e.g. {@code sys.network} becomes {@code sys_network}), label values escape backslash, double
+ * quote and line feed, and NaN and infinities are written as {@code NaN}, {@code +Inf} and {@code -Inf}.
+ */
+public class PrometheusEncoder extends MeasurementEncoder {
+
+    @Override
+    protected boolean write(String name, long timeMillis, double value, Map<String, String> tags) {
+        writeName(name, true);
+        boolean first = true;
+        if (tags instanceof TagSet) {
+            TagSet tagSet = (TagSet) tags;
+            for (int i = 0; i < tagSet.size(); i++) {
+                first = writeLabel(tagSet.key(i), tagSet.value(i), first);
+            }
+        } else {
+            for (Map.Entry<String, String> tag : tags.entrySet()) {
+                first = writeLabel(tag.getKey(), tag.getValue(), first);
+            }
+        }
+        if (!first) {
+            writeByte('}');
+        }
+        writeByte(' ');
+        if (Double.isNaN(value)) {
+            writeAscii("NaN");
+        } else if (Double.isInfinite(value)) {
+            writeAscii(value > 0 ? "+Inf" : "-Inf");
+        } else {
+            writeDouble(value);
+        }
+        writeByte(' ');
+        writeLong(timeMillis);
+        writeByte('\n');
+        return true;
+    }
+
+    private boolean writeLabel(String key, String value, boolean first) {
+        if (key == null || key.isEmpty() || value == null) {
+            return first;
+        }
+        writeByte(first ? '{' : ',');
+        writeName(key, false);
+        writeByte('=');
+        writeByte('"');
+        for (int i = 0; i < value.length(); i++) {
+            int codePoint = codePointAt(value, i);
+            if (codePoint > 0xFFFF) {
+                i++;
+            }
+            switch (codePoint) {
+                case '\\':
+                    writeByte('\\');
+                    writeByte('\\');
+                    break;
+                case '"':
+                    writeByte('\\');
+                    writeByte('"');
+                    break;
+                case '\n':
+                    writeByte('\\');
+                    writeByte('n');
+                    break;
+                default:
+                    writeCodePoint(codePoint);
+                    break;
+            }
+        }
+        writeByte('"');
+        return false;
+    }
+
+    private void writeName(String name, boolean metric) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean allowed = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_'
+                    || (metric && c == ':') || (i > 0 && c >= '0' && c <= '9');
+            writeByte(allowed ? c : '_');
+        }
+    }
+}
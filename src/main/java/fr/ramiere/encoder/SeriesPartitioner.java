@@ -0,0 +1,68 @@
+package fr.ramiere.encoder;
+
+import fr.ramiere.Measurement;
+import fr.ramiere.TagSet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks the Kafka partition of a point from a hash of its series, name and tags, so that every point of a series
+ * lands in the same partition, in order, and batches of one partition compress well. The hash only depends on the
+ * content of the series, not on the order of its tags nor on the JVM.
+ */
+public final class SeriesPartitioner {
+
+    private SeriesPartitioner() {
+    }
+
+    public static long seriesHash(String name, Map<String, String> tags) {
+        long tagsHash = 0;
+        if (tags instanceof TagSet) {
+            tagsHash = ((TagSet) tags).contentHash();
+        } else if (tags != null) {
+            for (Map.Entry<String, String> tag : tags.entrySet()) {
+                tagsHash += mix(((long) tag.getKey().hashCode() << 32) | (tag.getValue().hashCode() & 0xffffffffL));
+            }
+        }
+        return mix(mix(name.hashCode()) * 31 + tagsHash);
+    }
+
+    public static int partition(Measurement measurement, int partitions) {
+        return (int) ((seriesHash(measurement.getName(), measurement.getTags()) >>> 1) % partitions);
+    }
+
+    /**
+     * @return the series hash as an 8 byte big-endian record key
+     */
+    public static byte[] partitionKey(Measurement measurement) {
+        long hash = seriesHash(measurement.getName(), measurement.getTags());
+        byte[] key = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            key[i] = (byte) hash;
+            hash >>>= 8;
+        }
+        return key;
+    }
+
+    /**
+     * @return the points of every partition, in their original order
+     */
+    public static List<List<Measurement>> split(List<Measurement> measurements, int partitions) {
+        List<List<Measurement>> ret = new ArrayList<>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            ret.add(new ArrayList<Measurement>());
+        }
+        for (Measurement measurement : measurements) {
+            ret.get(partition(measurement, partitions)).add(measurement);
+        }
+        return ret;
+    }
+
+    private static long mix(long key) {
+        key = (key ^ (key >>> 33)) * 0xFF51AFD7ED558CCDL;
+        key = (key ^ (key >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return key ^ (key >>> 33);
+    }
+}
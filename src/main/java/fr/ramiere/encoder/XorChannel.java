@@ -0,0 +1,66 @@
+package fr.ramiere.encoder;
+
+/**
+ * Gorilla encoding of the successive 64 bit patterns of one series: the first one raw, then the XOR with the previous
+ * one, as a single {@code 0} bit when it is zero, else as its meaningful bits, inside the window of the previous XOR
+ * when they fit in it, or after a new window of 5 bits of leading zeros and 6 bits of length.
+ */
+final class XorChannel {
+    private static final int MAX_LEADING = 31;
+
+    private boolean started;
+    private long previous;
+    private int leading;
+    private int trailing;
+
+    void write(BitWriter out, long bits) {
+        if (!started) {
+            out.writeBits(bits, 64);
+            started = true;
+            leading = -1;
+            previous = bits;
+            return;
+        }
+        long xor = bits ^ previous;
+        previous = bits;
+        if (xor == 0) {
+            out.writeBit(false);
+            return;
+        }
+        out.writeBit(true);
+        int newLeading = Math.min(Long.numberOfLeadingZeros(xor), MAX_LEADING);
+        int newTrailing = Long.numberOfTrailingZeros(xor);
+        if (leading >= 0 && newLeading >= leading && newTrailing >= trailing) {
+            out.writeBit(false);
+            out.writeBits(xor >>> trailing, 64 - leading - trailing);
+            return;
+        }
+        leading = newLeading;
+        trailing = newTrailing;
+        int meaningful = 64 - leading - trailing;
+        out.writeBit(true);
+        out.writeBits(leading, 5);
+        out.writeBits(meaningful - 1, 6);
+        out.writeBits(xor >>> trailing, meaningful);
+    }
+
+    long read(BitReader in) {
+        if (!started) {
+            started = true;
+            leading = -1;
+            previous = in.readBits(64);
+            return previous;
+        }
+        if (!in.readBit()) {
+            return previous;
+        }
+        if (in.readBit()) {
+            leading = (int) in.readBits(5);
+            trailing = 64 - leading - ((int) in.readBits(6) + 1);
+        } else if (leading < 0) {
+            throw new IllegalArgumentException("XOR window reused before being set");
+        }
+        previous ^= in.readBits(64 - leading - trailing) << trailing;
+        return previous;
+    }
+}
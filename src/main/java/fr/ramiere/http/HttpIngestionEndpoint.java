@@ -0,0 +1,293 @@
+package fr.ramiere.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import fr.ramiere.MearsurementParser;
+import fr.ramiere.Measurement;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Embedded HTTP listener for collectd {@code write_http} with {@code Format "JSON"}, or any POST of records the parser
+ * reads, so that sites without a Kafka producer need no relay. The request body is streamed straight into
+ * {@link MearsurementParser#toValues(InputStream)} and the measurements handed to the sink; give a
+ * {@link fr.ramiere.parser.MeasurementParserRegistry} to accept both collectd and simple measurements on one path.
+ * <p>
+ * Every request runs on its own thread. The build targets Java 1.8, so the default executor is a cached pool of
+ * platform threads; it is looked up by reflection to be a virtual thread per task only when the runtime has them, a
+ * path nothing in the build exercises. At most {@code maxConcurrentRequests} are parsed at once, later ones are
+ * answered {@code 429 Too Many Requests} straight away, and bodies over {@code maxRequestBytes} {@code 413} without
+ * being read further. Answers: {@code 204} once the sink returned, {@code 400} for a payload the parser rejects,
+ * {@code 405} for anything but POST, {@code 503} when the sink throws. Any answer but {@code 204} closes the
+ * connection, since the rest of the body may be left unread.
+ */
+public class HttpIngestionEndpoint implements Closeable {
+    public static final int DEFAULT_MAX_REQUEST_BYTES = 4 * 1024 * 1024;
+    static final int TOO_MANY_REQUESTS = 429;
+    static final String RETRY_AFTER_SECONDS = "1";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final MearsurementParser parser;
+    private final HttpIngestionSink sink;
+    private final int maxRequestBytes;
+    private final Semaphore permits;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong measurements = new AtomicLong();
+    private final AtomicLong rejectedRequests = new AtomicLong();
+    private final AtomicLong oversizedRequests = new AtomicLong();
+    private final AtomicLong throttledRequests = new AtomicLong();
+    private final AtomicLong sinkFailures = new AtomicLong();
+
+    public HttpIngestionEndpoint(InetSocketAddress address, String path, MearsurementParser parser, HttpIngestionSink sink)
+            throws IOException {
+        this(address, path, parser, sink, DEFAULT_MAX_REQUEST_BYTES, 4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    public HttpIngestionEndpoint(InetSocketAddress address, String path, MearsurementParser parser, HttpIngestionSink sink,
+                                 int maxRequestBytes, int maxConcurrentRequests) throws IOException {
+        this(address, path, parser, sink, maxRequestBytes, maxConcurrentRequests, requestExecutor(), true);
+    }
+
+    /**
+     * @param executor runs one task per request, left running by {@link #close()}; e.g. a virtual thread per task
+     *                 executor on runtimes that have one
+     */
+    public HttpIngestionEndpoint(InetSocketAddress address, String path, MearsurementParser parser, HttpIngestionSink sink,
+                                 int maxRequestBytes, int maxConcurrentRequests, ExecutorService executor) throws IOException {
+        this(address, path, parser, sink, maxRequestBytes, maxConcurrentRequests, executor, false);
+    }
+
+    private HttpIngestionEndpoint(InetSocketAddress address, String path, MearsurementParser parser, HttpIngestionSink sink,
+                                  int maxRequestBytes, int maxConcurrentRequests, ExecutorService executor,
+                                  boolean ownsExecutor) throws IOException {
+        if (maxRequestBytes <= 0 || maxConcurrentRequests <= 0) {
+            throw new IllegalArgumentException("limits must be positive");
+        }
+        this.parser = parser;
+        this.sink = sink;
+        this.maxRequestBytes = maxRequestBytes;
+        this.permits = new Semaphore(maxConcurrentRequests);
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.server = HttpServer.create(address, 0);
+        server.createContext(path, new IngestionHandler());
+        server.setExecutor(executor);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * @return the bound address, with the actual port when started on port 0
+     */
+    public InetSocketAddress address() {
+        return server.getAddress();
+    }
+
+    /**
+     * Stops accepting connections and waits up to a second for the requests being handled.
+     */
+    @Override
+    public void close() {
+        server.stop(1);
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    public long requests() {
+        return requests.get();
+    }
+
+    public long measurements() {
+        return measurements.get();
+    }
+
+    public long rejectedRequests() {
+        return rejectedRequests.get();
+    }
+
+    public long oversizedRequests() {
+        return oversizedRequests.get();
+    }
+
+    public long throttledRequests() {
+        return throttledRequests.get();
+    }
+
+    public long sinkFailures() {
+        return sinkFailures.get();
+    }
+
+    private class IngestionHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                requests.incrementAndGet();
+                if (!"POST".equals(exchange.getRequestMethod())) {
+                    exchange.getResponseHeaders().set("Allow", "POST");
+                    respond(exchange, 405);
+                } else if (contentLength(exchange) > maxRequestBytes) {
+                    oversizedRequests.incrementAndGet();
+                    respond(exchange, 413);
+                } else if (!permits.tryAcquire()) {
+                    throttledRequests.incrementAndGet();
+                    exchange.getResponseHeaders().set("Retry-After", RETRY_AFTER_SECONDS);
+                    respond(exchange, TOO_MANY_REQUESTS);
+                } else {
+                    try {
+                        respond(exchange, ingest(exchange));
+                    } finally {
+                        permits.release();
+                    }
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private int ingest(HttpExchange exchange) throws IOException {
+            List<Measurement> values;
+            try (InputStream body = new LimitedInputStream(exchange.getRequestBody(), maxRequestBytes)) {
+                values = parser.toValues(body);
+            } catch (RequestTooLargeException e) {
+                oversizedRequests.incrementAndGet();
+                return 413;
+            } catch (IOException | RuntimeException e) {
+                // a payload cut short by the client ends up here too, its answer is then never read; parsers report
+                // malformed records with all sorts of runtime exceptions, none of them is the server's fault
+                rejectedRequests.incrementAndGet();
+                return 400;
+            }
+            try {
+                sink.write(exchange.getRemoteAddress(), values);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                sinkFailures.incrementAndGet();
+                return 503;
+            } catch (Exception e) {
+                sinkFailures.incrementAndGet();
+                return 503;
+            }
+            measurements.addAndGet(values.size());
+            return 204;
+        }
+    }
+
+    private static long contentLength(HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (header == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(header.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status) throws IOException {
+        if (status != 204) {
+            exchange.getResponseHeaders().set("Connection", "close");
+        }
+        exchange.sendResponseHeaders(status, -1);
+    }
+
+    /**
+     * Fails the read once more than {@code limit} bytes were read, for chunked bodies that announce no length.
+     */
+    static final class LimitedInputStream extends FilterInputStream {
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read >= 0) {
+                consumed(1);
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                consumed(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            consumed(skipped);
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void consumed(long count) throws RequestTooLargeException {
+            remaining -= count;
+            if (remaining < 0) {
+                throw new RequestTooLargeException();
+            }
+        }
+    }
+
+    static final class RequestTooLargeException extends IOException {
+        RequestTooLargeException() {
+            super("Request body too large");
+        }
+    }
+
+    /**
+     * A virtual thread per request when the runtime has them, looked up by reflection so that the endpoint still runs
+     * on older ones, a cached pool of daemon threads otherwise.
+     */
+    static ExecutorService requestExecutor() {
+        try {
+            Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) virtual.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // older runtime, or virtual threads still a preview feature that is not enabled
+            return Executors.newCachedThreadPool(daemonThreads("collectd-http-"));
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicLong count = new AtomicLong();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,14 @@
+package fr.ramiere.http;
+
+import fr.ramiere.Measurement;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+/**
+ * Receives the measurements parsed from one POST. Called concurrently from every request thread; returning normally
+ * acknowledges the request, throwing answers it with a 503 so that collectd keeps the values and posts them again.
+ */
+public interface HttpIngestionSink {
+    void write(InetSocketAddress remote, List<Measurement> measurements) throws Exception;
+}
@@ -0,0 +1,8 @@
+package fr.ramiere.kafka;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.common.TopicPartition;
+
+public interface ConsumerFactory {
+    Consumer<byte[], byte[]> create(TopicPartition partition);
+}
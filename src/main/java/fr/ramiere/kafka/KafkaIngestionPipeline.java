@@ -0,0 +1,309 @@
+package fr.ramiere.kafka;
+
+import fr.ramiere.MearsurementParser;
+import fr.ramiere.Measurement;
+import fr.ramiere.ParseResult;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * consume → parse → emit loop: one consumer thread per partition, a shared pool of parser workers behind a bounded queue,
+ * one sink call per poll and per partition, and offsets committed only once the sink returned. A failing sink is
+ * retried with the same batch, partitions are assigned manually so a long retry never triggers a rebalance. A batch
+ * whose parser worker crashed, e.g. with a {@link StackOverflowError} on deeply nested JSON, is parsed again with every
+ * record isolated, a record throwing even an {@link Error} is then rejected; after {@link #MAX_PARSE_ATTEMPTS} the
+ * partition is given up. Rejected records are counted once their batch parsed. A consumer thread that dies is counted
+ * by {@link #failedPartitions()}, the cause of the last failure is kept in {@link #lastFailure()}.
+ */
+public class KafkaIngestionPipeline implements Closeable {
+    static final long POLL_TIMEOUT_MS = 100;
+    static final long RETRY_BACKOFF_MS = 500;
+    static final int RECORDS_PER_TASK = 64;
+    static final long CLOSE_TIMEOUT_MS = 10000;
+    static final int MAX_PARSE_ATTEMPTS = 3;
+
+    private final ConsumerFactory consumerFactory;
+    private final Collection<TopicPartition> partitions;
+    private final MearsurementParser parser;
+    private final MeasurementBatchSink sink;
+    private final ThreadPoolExecutor workers;
+    private final List<PartitionConsumer> consumers = new ArrayList<>();
+
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong measurements = new AtomicLong();
+    private final AtomicLong rejectedRecords = new AtomicLong();
+    private final AtomicLong sinkFailures = new AtomicLong();
+    private final AtomicLong workerFailures = new AtomicLong();
+    private final AtomicLong failedPartitions = new AtomicLong();
+    private volatile Throwable lastFailure;
+    private volatile boolean running;
+
+    public KafkaIngestionPipeline(ConsumerFactory consumerFactory, Collection<TopicPartition> partitions, MearsurementParser parser, MeasurementBatchSink sink) {
+        this(consumerFactory, partitions, parser, sink, Runtime.getRuntime().availableProcessors(), 1024);
+    }
+
+    public KafkaIngestionPipeline(ConsumerFactory consumerFactory, Collection<TopicPartition> partitions, MearsurementParser parser, MeasurementBatchSink sink, int workerThreads, int queueCapacity) {
+        this.consumerFactory = consumerFactory;
+        this.partitions = new ArrayList<>(partitions);
+        this.parser = parser;
+        this.sink = sink;
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), daemonThreads("collectd-kafka-parser-"), new BlockWhenFull());
+    }
+
+    public synchronized void start() {
+        if (running) {
+            throw new IllegalStateException("Pipeline already started");
+        }
+        running = true;
+        for (TopicPartition partition : partitions) {
+            PartitionConsumer consumer = new PartitionConsumer(partition, consumerFactory.create(partition));
+            consumers.add(consumer);
+            consumer.thread.start();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        running = false;
+        for (PartitionConsumer consumer : consumers) {
+            consumer.consumer.wakeup();
+        }
+        for (PartitionConsumer consumer : consumers) {
+            try {
+                consumer.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        consumers.clear();
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long records() {
+        return records.get();
+    }
+
+    public long measurements() {
+        return measurements.get();
+    }
+
+    public long rejectedRecords() {
+        return rejectedRecords.get();
+    }
+
+    public long sinkFailures() {
+        return sinkFailures.get();
+    }
+
+    /**
+     * Parse tasks that threw instead of rejecting their records, their batch is parsed again record by record.
+     */
+    public long workerFailures() {
+        return workerFailures.get();
+    }
+
+    /**
+     * Consumer threads stopped by an unexpected exception, their partition is no longer consumed.
+     */
+    public long failedPartitions() {
+        return failedPartitions.get();
+    }
+
+    public Throwable lastFailure() {
+        return lastFailure;
+    }
+
+    private class PartitionConsumer implements Runnable {
+        private final TopicPartition partition;
+        private final Consumer<byte[], byte[]> consumer;
+        private final Thread thread;
+
+        PartitionConsumer(TopicPartition partition, Consumer<byte[], byte[]> consumer) {
+            this.partition = partition;
+            this.consumer = consumer;
+            this.thread = new Thread(this, "collectd-kafka-" + partition);
+        }
+
+        @Override
+        public void run() {
+            try {
+                consumer.assign(Collections.singletonList(partition));
+                while (running) {
+                    ConsumerRecords<byte[], byte[]> polled = consumer.poll(POLL_TIMEOUT_MS);
+                    List<ConsumerRecord<byte[], byte[]>> batch = polled.records(partition);
+                    if (!batch.isEmpty()) {
+                        process(batch);
+                    }
+                }
+            } catch (WakeupException e) {
+                if (running) {
+                    lastFailure = e;
+                    failedPartitions.incrementAndGet();
+                    throw e;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException | Error e) {
+                lastFailure = e;
+                failedPartitions.incrementAndGet();
+                throw e;
+            } finally {
+                consumer.close();
+            }
+        }
+
+        private void process(List<ConsumerRecord<byte[], byte[]>> batch) throws InterruptedException {
+            records.addAndGet(batch.size());
+            Parsed parsed;
+            for (int attempt = 1; (parsed = parse(batch, attempt > 1)) == null; attempt++) {
+                if (!running) {
+                    return;
+                }
+                if (attempt == MAX_PARSE_ATTEMPTS) {
+                    throw new IllegalStateException("Giving up " + partition + " after " + attempt + " failed parses", lastFailure);
+                }
+                Thread.sleep(RETRY_BACKOFF_MS);
+            }
+            rejectedRecords.addAndGet(parsed.rejected);
+            List<Measurement> values = parsed.measurements;
+
+            while (!deliver(values)) {
+                if (!running) {
+                    return;
+                }
+                Thread.sleep(RETRY_BACKOFF_MS);
+            }
+            measurements.addAndGet(values.size());
+            long nextOffset = batch.get(batch.size() - 1).offset() + 1;
+            consumer.commitSync(Collections.singletonMap(partition, new OffsetAndMetadata(nextOffset)));
+        }
+
+        /**
+         * @param isolating whether a record throwing an {@link Error} is rejected instead of failing its task
+         * @return the measurements of the batch, null when a worker failed and the batch has to be parsed again
+         */
+        private Parsed parse(List<ConsumerRecord<byte[], byte[]>> batch, boolean isolating) throws InterruptedException {
+            List<Future<Parsed>> tasks = new ArrayList<>(batch.size() / RECORDS_PER_TASK + 1);
+            for (int from = 0; from < batch.size(); from += RECORDS_PER_TASK) {
+                tasks.add(workers.submit(new ParseTask(batch.subList(from, Math.min(batch.size(), from + RECORDS_PER_TASK)), isolating)));
+            }
+            Parsed parsed = new Parsed();
+            for (Future<Parsed> future : tasks) {
+                try {
+                    Parsed task = future.get();
+                    parsed.measurements.addAll(task.measurements);
+                    parsed.rejected += task.rejected;
+                } catch (ExecutionException e) {
+                    lastFailure = e.getCause();
+                    workerFailures.incrementAndGet();
+                    for (Future<Parsed> pending : tasks) {
+                        pending.cancel(false);
+                    }
+                    return null;
+                }
+            }
+            return parsed;
+        }
+
+        private boolean deliver(List<Measurement> values) throws InterruptedException {
+            try {
+                sink.write(partition, values);
+                return true;
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                sinkFailures.incrementAndGet();
+                return false;
+            }
+        }
+    }
+
+    private static final class Parsed {
+        final List<Measurement> measurements = new ArrayList<>();
+        long rejected;
+    }
+
+    private class ParseTask implements Callable<Parsed> {
+        private final List<ConsumerRecord<byte[], byte[]>> records;
+        private final boolean isolating;
+
+        ParseTask(List<ConsumerRecord<byte[], byte[]>> records, boolean isolating) {
+            this.records = records;
+            this.isolating = isolating;
+        }
+
+        @Override
+        public Parsed call() {
+            Parsed ret = new Parsed();
+            for (ConsumerRecord<byte[], byte[]> record : records) {
+                byte[] value = record.value();
+                if (value == null) {
+                    continue;
+                }
+                try {
+                    ParseResult result = parser.parse(value, 0, value.length);
+                    if (result.isValid()) {
+                        ret.measurements.addAll(result.getMeasurements());
+                    } else {
+                        ret.rejected++;
+                    }
+                } catch (Exception e) {
+                    ret.rejected++;
+                } catch (Error e) {
+                    if (!isolating) {
+                        throw e;
+                    }
+                    lastFailure = e;
+                    ret.rejected++;
+                }
+            }
+            return ret;
+        }
+    }
+
+    private static class BlockWhenFull implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Parser pool is shut down");
+            }
+            try {
+                executor.getQueue().put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(e);
+            }
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicLong count = new AtomicLong();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,14 @@
+package fr.ramiere.kafka;
+
+import fr.ramiere.Measurement;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.List;
+
+/**
+ * Receives the measurements parsed from one poll of one partition. Called concurrently from every partition thread;
+ * returning normally confirms delivery and lets the pipeline commit the offsets, throwing makes it retry the same batch.
+ */
+public interface MeasurementBatchSink {
+    void write(TopicPartition partition, List<Measurement> measurements) throws Exception;
+}
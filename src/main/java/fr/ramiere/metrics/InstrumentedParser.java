@@ -0,0 +1,280 @@
+package fr.ramiere.metrics;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import fr.ramiere.InvalidMeasurementException;
+import fr.ramiere.MearsurementParser;
+import fr.ramiere.Measurement;
+import fr.ramiere.MeasurementBatch;
+import fr.ramiere.MeasurementSink;
+import fr.ramiere.ParseResult;
+import fr.ramiere.RejectReason;
+import fr.ramiere.Rejection;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Decorates any {@link MearsurementParser} to feed {@link ParserMetrics}: one message per call, its latency, its size
+ * and the number of measurements it gave, or why it was rejected. Exceptions are counted and rethrown untouched.
+ */
+public class InstrumentedParser implements MearsurementParser {
+    private final MearsurementParser delegate;
+    private final ParserMetrics metrics;
+
+    public InstrumentedParser(MearsurementParser delegate, ParserMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    public ParserMetrics metrics() {
+        return metrics;
+    }
+
+    @Override
+    public boolean accept(String json) throws IOException {
+        long start = System.nanoTime();
+        long size = utf8Length(json);
+        try {
+            return accepted(delegate.accept(json), start, size);
+        } catch (IOException | RuntimeException e) {
+            failed(e, start, size);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean accept(JsonNode node) {
+        long start = System.nanoTime();
+        try {
+            return accepted(delegate.accept(node), start, 0);
+        } catch (RuntimeException e) {
+            failed(e, start, 0);
+            throw e;
+        }
+    }
+
+    private boolean accepted(boolean accepted, long start, long size) {
+        if (accepted) {
+            metrics.accepted(System.nanoTime() - start, size);
+        } else {
+            metrics.rejected(RejectReason.UNKNOWN, null, System.nanoTime() - start, size);
+        }
+        return accepted;
+    }
+
+    @Override
+    public List<Measurement> toValues(String json) throws IOException {
+        long start = System.nanoTime();
+        long size = utf8Length(json);
+        try {
+            return parsed(delegate.toValues(json), start, size);
+        } catch (IOException | RuntimeException e) {
+            failed(e, start, size);
+            throw e;
+        }
+    }
+
+    @Override
+    public List<Measurement> toValues(JsonNode node) {
+        long start = System.nanoTime();
+        try {
+            return parsed(delegate.toValues(node), start, 0);
+        } catch (RuntimeException e) {
+            failed(e, start, 0);
+            throw e;
+        }
+    }
+
+    @Override
+    public List<Measurement> toValues(byte[] data, int offset, int length) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return parsed(delegate.toValues(data, offset, length), start, length);
+        } catch (IOException | RuntimeException e) {
+            failed(e, start, length);
+            throw e;
+        }
+    }
+
+    @Override
+    public List<Measurement> toValues(ByteBuffer buffer) throws IOException {
+        long start = System.nanoTime();
+        int size = buffer.remaining();
+        try {
+            return parsed(delegate.toValues(buffer), start, size);
+        } catch (IOException | RuntimeException e) {
+            failed(e, start, size);
+            throw e;
+        }
+    }
+
+    @Override
+    public List<Measurement> toValues(InputStream in) throws IOException {
+        long start = System.nanoTime();
+        CountingInputStream counting = new CountingInputStream(in);
+        try {
+            return parsed(delegate.toValues(counting), start, counting.count);
+        } catch (IOException | RuntimeException e) {
+            failed(e, start, counting.count);
+            throw e;
+        }
+    }
+
+    @Override
+    public ParseResult parse(String json) throws IOException {
+        long start = System.nanoTime();
+        long size = utf8Length(json);
+        try {
+            return parsed(delegate.parse(json), start, size);
+        } catch (IOException | RuntimeException e) {
+            failed(e, start, size);
+            throw e;
+        }
+    }
+
+    @Override
+    public ParseResult parse(JsonNode node) {
+        long start = System.nanoTime();
+        try {
+            return parsed(delegate.parse(node), start, 0);
+        } catch (RuntimeException e) {
+            failed(e, start, 0);
+            throw e;
+        }
+    }
+
+    @Override
+    public ParseResult parse(byte[] data, int offset, int length) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return parsed(delegate.parse(data, offset, length), start, length);
+        } catch (IOException | RuntimeException e) {
+            failed(e, start, length);
+            throw e;
+        }
+    }
+
+    private ParseResult parsed(ParseResult result, long start, long size) {
+        if (result.isValid()) {
+            metrics.parsed(System.nanoTime() - start, size, result.getMeasurements().size());
+        } else {
+            Rejection rejection = result.getRejection();
+            metrics.rejected(rejection.getReason(), rejection.getField(), System.nanoTime() - start, size);
+        }
+        return result;
+    }
+
+    @Override
+    public int push(byte[] data, int offset, int length, MeasurementSink sink) throws IOException {
+        long start = System.nanoTime();
+        try {
+            int pushed = delegate.push(data, offset, length, sink);
+            metrics.parsed(System.nanoTime() - start, length, pushed);
+            return pushed;
+        } catch (IOException | RuntimeException e) {
+            failed(e, start, length);
+            throw e;
+        }
+    }
+
+    @Override
+    public void toBatch(byte[] data, int offset, int length, MeasurementBatch batch) throws IOException {
+        long start = System.nanoTime();
+        int size = batch.size();
+        try {
+            delegate.toBatch(data, offset, length, batch);
+            metrics.parsed(System.nanoTime() - start, length, batch.size() - size);
+        } catch (IOException | RuntimeException e) {
+            failed(e, start, length);
+            throw e;
+        }
+    }
+
+    private List<Measurement> parsed(List<Measurement> measurements, long start, long size) {
+        metrics.parsed(System.nanoTime() - start, size, measurements.size());
+        return measurements;
+    }
+
+    private void failed(Exception e, long start, long size) {
+        long nanos = System.nanoTime() - start;
+        if (e instanceof InvalidMeasurementException) {
+            InvalidMeasurementException invalid = (InvalidMeasurementException) e;
+            metrics.rejected(invalid.getReason(), invalid.getField(), nanos, size);
+        } else if (e instanceof JsonProcessingException) {
+            metrics.rejected(RejectReason.MALFORMED_JSON, null, nanos, size);
+        } else if (e instanceof IllegalArgumentException) {
+            metrics.rejected(RejectReason.UNKNOWN, null, nanos, size);
+        } else {
+            metrics.failed(nanos, size);
+        }
+    }
+
+    /**
+     * Size of {@code json} once encoded in UTF-8, the way it travelled, computed without encoding it.
+     */
+    static long utf8Length(String json) {
+        long length = json.length();
+        for (int i = 0; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c >= 0x800) {
+                length += 2;
+                if (Character.isHighSurrogate(c) && i + 1 < json.length() && Character.isLowSurrogate(json.charAt(i + 1))) {
+                    i++;
+                }
+            } else if (c >= 0x80) {
+                length++;
+            }
+        }
+        return length;
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+        private long mark;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            super.mark(readlimit);
+            mark = count;
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            super.reset();
+            count = mark;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package fr.ramiere.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear histogram of non-negative longs in the spirit of HdrHistogram: values below 64 are counted exactly, larger
+ * values fall into one of 32 buckets per power of two, so that any recorded value is known within 3%. Buckets and max
+ * are striped like a {@link LongAdder}: each thread records into the stripe picked from its id, so concurrent writers
+ * seldom touch the same cache line, and {@link #snapshot()} adds the stripes up. Recording never allocates; each
+ * stripe costs about 15 KB, there are at most {@value #MAX_STRIPES}.
+ */
+public final class LongHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR = SUB_BUCKETS * 2;
+    static final int BUCKETS = (62 - SUB_BUCKET_BITS) * SUB_BUCKETS + LINEAR;
+    static final int MAX_STRIPES = 8;
+    private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Per stripe, the bucket counts followed by the stripe max.
+     */
+    private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+    private final LongAdder total = new LongAdder();
+
+    public LongHistogram() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS + 1);
+        }
+    }
+
+    static int stripes(int processors) {
+        return Integer.highestOneBit(Math.min(Math.max(processors, 1), MAX_STRIPES) * 2 - 1);
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        AtomicLongArray stripe = stripes[stripe()];
+        stripe.getAndIncrement(index(value));
+        total.add(value);
+        long current = stripe.get(BUCKETS);
+        while (value > current) {
+            if (stripe.compareAndSet(BUCKETS, current, value)) {
+                break;
+            }
+            current = stripe.get(BUCKETS);
+        }
+    }
+
+    private static int stripe() {
+        long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return (int) (id >>> 32) & (STRIPES - 1);
+    }
+
+    static int index(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * @return the highest value counted in bucket {@code index}
+     */
+    static long highestValue(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        long max = 0;
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long added = stripe.get(i);
+                copy[i] += added;
+                count += added;
+            }
+            max = Math.max(max, stripe.get(BUCKETS));
+        }
+        return new Snapshot(copy, count, total.sum(), max);
+    }
+
+    /**
+     * Consistent enough copy of a histogram: buckets are read one at a time while writers go on.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long total;
+        private final long max;
+
+        Snapshot(long[] counts, long count, long total, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.total = total;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) total / count;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the highest value of the bucket holding the requested percentile, capped by the recorded max
+         */
+        public long valueAt(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValue(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package fr.ramiere.metrics;
+
+import fr.ramiere.RejectReason;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe parse counters and histograms fed by {@link InstrumentedParser}: counters are {@link LongAdder}s and
+ * histograms are striped the same way, so recording is a handful of atomic additions concurrent parsing threads seldom
+ * contend on; it never allocates, except the first time a (reason, field) reject pair is seen. Read it with
+ * {@link #snapshot()} or through JMX once {@link #register(String)} is called.
+ */
+public class ParserMetrics implements ParserMetricsMXBean {
+    static final long JMX_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder measurements = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder[] rejects = new LongAdder[RejectReason.values().length];
+    private final ConcurrentMap<String, LongAdder>[] rejectsByField = newFieldCounters();
+    private final LongHistogram latencyNanos = new LongHistogram();
+    private final LongHistogram measurementsPerMessage = new LongHistogram();
+    private ObjectName objectName;
+    private Snapshot jmxPrevious;
+    private Snapshot jmxCurrent;
+
+    public ParserMetrics() {
+        for (int i = 0; i < rejects.length; i++) {
+            rejects[i] = new LongAdder();
+            rejectsByField[i] = new ConcurrentHashMap<>();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConcurrentMap<String, LongAdder>[] newFieldCounters() {
+        return new ConcurrentMap[RejectReason.values().length];
+    }
+
+    /**
+     * A message was parsed into {@code count} measurements.
+     */
+    public void parsed(long nanos, long size, int count) {
+        messages.increment();
+        bytes.add(size);
+        measurements.add(count);
+        latencyNanos.record(nanos);
+        measurementsPerMessage.record(count);
+    }
+
+    /**
+     * A message was validated by {@code accept}, no measurement was produced.
+     */
+    public void accepted(long nanos, long size) {
+        messages.increment();
+        bytes.add(size);
+        latencyNanos.record(nanos);
+    }
+
+    /**
+     * @param field the offending field, may be null
+     */
+    public void rejected(RejectReason reason, String field, long nanos, long size) {
+        messages.increment();
+        bytes.add(size);
+        latencyNanos.record(nanos);
+        rejects[reason.ordinal()].increment();
+        if (field != null) {
+            ConcurrentMap<String, LongAdder> byField = rejectsByField[reason.ordinal()];
+            LongAdder counter = byField.get(field);
+            if (counter == null) {
+                LongAdder created = new LongAdder();
+                counter = byField.putIfAbsent(field, created);
+                if (counter == null) {
+                    counter = created;
+                }
+            }
+            counter.increment();
+        }
+    }
+
+    /**
+     * The message could not be read for another reason than its content, e.g. an I/O error.
+     */
+    public void failed(long nanos, long size) {
+        messages.increment();
+        bytes.add(size);
+        latencyNanos.record(nanos);
+        errors.increment();
+    }
+
+    public Snapshot snapshot() {
+        Map<String, Long> rejectsByReason = new TreeMap<>();
+        long rejected = 0;
+        for (RejectReason reason : RejectReason.values()) {
+            long count = rejects[reason.ordinal()].sum();
+            if (count > 0) {
+                rejectsByReason.put(reason.name(), count);
+                rejected += count;
+            }
+        }
+        Map<String, Long> byField = new TreeMap<>();
+        for (RejectReason reason : RejectReason.values()) {
+            for (Map.Entry<String, LongAdder> entry : rejectsByField[reason.ordinal()].entrySet()) {
+                byField.put(reason + "/" + entry.getKey(), entry.getValue().sum());
+            }
+        }
+        return new Snapshot(System.nanoTime(), messages.sum(), bytes.sum(), measurements.sum(), rejected, errors.sum(),
+                Collections.unmodifiableMap(rejectsByReason), Collections.unmodifiableMap(byField),
+                latencyNanos.snapshot(), measurementsPerMessage.snapshot());
+    }
+
+    /**
+     * Registers these metrics in the platform MBean server under {@code fr.ramiere:type=ParserMetrics,name=<name>}.
+     */
+    public synchronized ObjectName register(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName("fr.ramiere:type=ParserMetrics,name=" + ObjectName.quote(name));
+        server.registerMBean(this, objectName);
+        this.objectName = objectName;
+        return objectName;
+    }
+
+    public synchronized void unregister() throws JMException {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    private synchronized Snapshot jmxSnapshot() {
+        long now = System.nanoTime();
+        if (jmxCurrent == null || now - jmxCurrent.nanoTime >= JMX_REFRESH_NANOS) {
+            jmxPrevious = jmxCurrent;
+            jmxCurrent = snapshot();
+        }
+        return jmxCurrent;
+    }
+
+    private synchronized Snapshot jmxPrevious() {
+        jmxSnapshot();
+        return jmxPrevious;
+    }
+
+    @Override
+    public long getMessages() {
+        return jmxSnapshot().getMessages();
+    }
+
+    @Override
+    public long getBytes() {
+        return jmxSnapshot().getBytes();
+    }
+
+    @Override
+    public long getMeasurements() {
+        return jmxSnapshot().getMeasurements();
+    }
+
+    @Override
+    public long getRejected() {
+        return jmxSnapshot().getRejected();
+    }
+
+    @Override
+    public long getErrors() {
+        return jmxSnapshot().getErrors();
+    }
+
+    @Override
+    public double getMessagesPerSecond() {
+        return jmxSnapshot().messagesPerSecond(jmxPrevious());
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        return jmxSnapshot().bytesPerSecond(jmxPrevious());
+    }
+
+    @Override
+    public double getMeasurementsPerSecond() {
+        return jmxSnapshot().measurementsPerSecond(jmxPrevious());
+    }
+
+    @Override
+    public double getLatencyMeanMicros() {
+        return jmxSnapshot().getLatencyNanos().getMean() / 1000;
+    }
+
+    @Override
+    public double getLatencyP50Micros() {
+        return jmxSnapshot().getLatencyNanos().valueAt(50) / 1000d;
+    }
+
+    @Override
+    public double getLatencyP99Micros() {
+        return jmxSnapshot().getLatencyNanos().valueAt(99) / 1000d;
+    }
+
+    @Override
+    public double getLatencyP999Micros() {
+        return jmxSnapshot().getLatencyNanos().valueAt(99.9) / 1000d;
+    }
+
+    @Override
+    public double getLatencyMaxMicros() {
+        return jmxSnapshot().getLatencyNanos().getMax() / 1000d;
+    }
+
+    @Override
+    public double getMeasurementsPerMessageMean() {
+        return jmxSnapshot().getMeasurementsPerMessage().getMean();
+    }
+
+    @Override
+    public long getMeasurementsPerMessageMax() {
+        return jmxSnapshot().getMeasurementsPerMessage().getMax();
+    }
+
+    @Override
+    public Map<String, Long> getRejects() {
+        return jmxSnapshot().getRejects();
+    }
+
+    @Override
+    public Map<String, Long> getRejectsByField() {
+        return jmxSnapshot().getRejectsByField();
+    }
+
+    /**
+     * Totals at a point in time, rates are computed between two snapshots.
+     */
+    public static final class Snapshot {
+        private final long nanoTime;
+        private final long messages;
+        private final long bytes;
+        private final long measurements;
+        private final long rejected;
+        private final long errors;
+        private final Map<String, Long> rejects;
+        private final Map<String, Long> rejectsByField;
+        private final LongHistogram.Snapshot latencyNanos;
+        private final LongHistogram.Snapshot measurementsPerMessage;
+
+        Snapshot(long nanoTime, long messages, long bytes, long measurements, long rejected, long errors,
+                 Map<String, Long> rejects, Map<String, Long> rejectsByField,
+                 LongHistogram.Snapshot latencyNanos, LongHistogram.Snapshot measurementsPerMessage) {
+            this.nanoTime = nanoTime;
+            this.messages = messages;
+            this.bytes = bytes;
+            this.measurements = measurements;
+            this.rejected = rejected;
+            this.errors = errors;
+            this.rejects = rejects;
+            this.rejectsByField = rejectsByField;
+            this.latencyNanos = latencyNanos;
+            this.measurementsPerMessage = measurementsPerMessage;
+        }
+
+        public long getMessages() {
+            return messages;
+        }
+
+        /**
+         * @return bytes read, the UTF-8 encoded length for {@code String} payloads
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getMeasurements() {
+            return measurements;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return rejected messages keyed by {@link RejectReason} name
+         */
+        public Map<String, Long> getRejects() {
+            return rejects;
+        }
+
+        /**
+         * @return rejected messages keyed by {@code reason/field}, e.g. {@code INVALID_FIELD/time}
+         */
+        public Map<String, Long> getRejectsByField() {
+            return rejectsByField;
+        }
+
+        public LongHistogram.Snapshot getLatencyNanos() {
+            return latencyNanos;
+        }
+
+        public LongHistogram.Snapshot getMeasurementsPerMessage() {
+            return measurementsPerMessage;
+        }
+
+        public double messagesPerSecond(Snapshot previous) {
+            return perSecond(messages, previous == null ? 0 : previous.messages, previous);
+        }
+
+        public double bytesPerSecond(Snapshot previous) {
+            return perSecond(bytes, previous == null ? 0 : previous.bytes, previous);
+        }
+
+        public double measurementsPerSecond(Snapshot previous) {
+            return perSecond(measurements, previous == null ? 0 : previous.measurements, previous);
+        }
+
+        private double perSecond(long current, long before, Snapshot previous) {
+            if (previous == null || nanoTime <= previous.nanoTime) {
+                return 0;
+            }
+            return (current - before) * 1e9 / (nanoTime - previous.nanoTime);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package fr.ramiere.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link ParserMetrics}, values are refreshed at most once per second so that rates cover at least a second.
+ */
+public interface ParserMetricsMXBean {
+    long getMessages();
+
+    long getBytes();
+
+    long getMeasurements();
+
+    long getRejected();
+
+    long getErrors();
+
+    double getMessagesPerSecond();
+
+    double getBytesPerSecond();
+
+    double getMeasurementsPerSecond();
+
+    double getLatencyMeanMicros();
+
+    double getLatencyP50Micros();
+
+    double getLatencyP99Micros();
+
+    double getLatencyP999Micros();
+
+    double getLatencyMaxMicros();
+
+    double getMeasurementsPerMessageMean();
+
+    long getMeasurementsPerMessageMax();
+
+    Map<String, Long> getRejects();
+
+    Map<String, Long> getRejectsByField();
+}
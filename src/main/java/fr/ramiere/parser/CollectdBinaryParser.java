@@ -0,0 +1,420 @@
+package fr.ramiere.parser;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import fr.ramiere.DsType;
+import fr.ramiere.Measurement;
+import fr.ramiere.MearsurementParser;
+import fr.ramiere.MeasurementBatch;
+import fr.ramiere.MeasurementDictionary;
+import fr.ramiere.MeasurementSink;
+import fr.ramiere.MutableMeasurement;
+import fr.ramiere.ParseResult;
+import fr.ramiere.RejectReason;
+import fr.ramiere.Rejection;
+import fr.ramiere.TagSetCache;
+import fr.ramiere.stage.RateEngine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static fr.ramiere.parser.JsonCollectdParser.FIELD_META_TSDB_TAG_ADD_COLLECTOR;
+import static fr.ramiere.parser.JsonCollectdParser.FIELD_META_TSDB_TAG_ADD_COLLECTOR_COLLECTED;
+
+/**
+ * Reads packets of the collectd binary network protocol. Parts set the host, time, plugin, type and interval of the
+ * value lists that follow them, every values part emits one value list with the state reached so far, as collectd's
+ * network plugin does. Several packets may be given back to back, the state then carries over from one to the next.
+ * <p>
+ * The protocol carries neither data source names nor meta data: names are looked up in {@code types.db} by type, a
+ * single value of an unknown type being named {@code value}, and every value list gets the same configured meta, the
+ * one the JSON sender would have added. The measurements are then the ones {@link JsonCollectdParser} gives for the
+ * value list written by collectd's {@code write_http} plugin, times and intervals being rounded to the millisecond
+ * like the JSON writer does. Signatures are skipped without being checked, encrypted packets are rejected.
+ * <p>
+ * There is no JSON here: {@code accept} is false and the JSON entry points reject the input as
+ * {@link RejectReason#UNKNOWN_FORMAT}.
+ */
+public class CollectdBinaryParser implements MearsurementParser {
+    static final String NOT_A_VALID_COLLECTD_PACKET = "Not a valid collectd packet";
+    static final int TYPE_HOST = 0x0000;
+    static final int TYPE_TIME = 0x0001;
+    static final int TYPE_PLUGIN = 0x0002;
+    static final int TYPE_PLUGIN_INSTANCE = 0x0003;
+    static final int TYPE_TYPE = 0x0004;
+    static final int TYPE_TYPE_INSTANCE = 0x0005;
+    static final int TYPE_VALUES = 0x0006;
+    static final int TYPE_INTERVAL = 0x0007;
+    static final int TYPE_TIME_HR = 0x0008;
+    static final int TYPE_INTERVAL_HR = 0x0009;
+    static final int TYPE_ENCRYPTION = 0x0210;
+    static final int DS_TYPE_COUNTER = 0;
+    static final int DS_TYPE_GAUGE = 1;
+    static final int DS_TYPE_DERIVE = 2;
+    static final int DS_TYPE_ABSOLUTE = 3;
+
+    private static final int HEADER_SIZE = 4;
+    private static final double HR_UNITS_PER_SECOND = 1L << 30;
+    private static final Rejection MALFORMED = Rejection.of(RejectReason.MALFORMED_PACKET);
+    private static final Rejection ENCRYPTED = Rejection.of(RejectReason.UNKNOWN_FORMAT, "encryption");
+    private static final Rejection NOT_BINARY = Rejection.of(RejectReason.UNKNOWN_FORMAT);
+
+    private final CollectdTypesDb types;
+    private final String[] metaKeys;
+    private final String[] metaValues;
+    private final TagSetCache tagSets;
+    private final MeasurementDictionary dictionary;
+    private final RateEngine rates;
+    private final MetaTagPlans plans = new MetaTagPlans();
+
+    public CollectdBinaryParser(CollectdTypesDb types) {
+        this(types, Collections.singletonMap(FIELD_META_TSDB_TAG_ADD_COLLECTOR, FIELD_META_TSDB_TAG_ADD_COLLECTOR_COLLECTED));
+    }
+
+    /**
+     * @param meta meta data given to every value list, as the JSON sender would have added it
+     */
+    public CollectdBinaryParser(CollectdTypesDb types, Map<String, String> meta) {
+        this(types, meta, null, null, null);
+    }
+
+    public CollectdBinaryParser(CollectdTypesDb types, Map<String, String> meta, TagSetCache tagSets) {
+        this(types, meta, tagSets, null, null);
+    }
+
+    /**
+     * Turns counter, derive and absolute values into per-second rates, series are keyed by ids of {@code dictionary}.
+     * The engine is not thread-safe, so neither is this parser.
+     */
+    public CollectdBinaryParser(CollectdTypesDb types, Map<String, String> meta, MeasurementDictionary dictionary, RateEngine rates) {
+        this(types, meta, dictionary.tagSets(), dictionary, rates);
+    }
+
+    private CollectdBinaryParser(CollectdTypesDb types, Map<String, String> meta, TagSetCache tagSets,
+                                 MeasurementDictionary dictionary, RateEngine rates) {
+        this.types = types;
+        this.metaKeys = new String[meta.size()];
+        this.metaValues = new String[meta.size()];
+        int i = 0;
+        for (Map.Entry<String, String> entry : meta.entrySet()) {
+            metaKeys[i] = entry.getKey();
+            metaValues[i] = entry.getValue();
+            i++;
+        }
+        this.tagSets = tagSets;
+        this.dictionary = dictionary;
+        this.rates = rates;
+    }
+
+    @Override
+    public boolean accept(String json) {
+        return false;
+    }
+
+    @Override
+    public boolean accept(JsonNode node) {
+        return false;
+    }
+
+    @Override
+    public List<Measurement> toValues(String json) {
+        throw NOT_BINARY.exception(NOT_A_VALID_COLLECTD_PACKET);
+    }
+
+    @Override
+    public List<Measurement> toValues(JsonNode node) {
+        throw NOT_BINARY.exception(NOT_A_VALID_COLLECTD_PACKET);
+    }
+
+    @Override
+    public List<Measurement> toValues(byte[] data, int offset, int length) throws IOException {
+        return toValues(ByteBuffer.wrap(data, offset, length));
+    }
+
+    @Override
+    public List<Measurement> toValues(ByteBuffer buffer) throws IOException {
+        List<Measurement> measurements = new ArrayList<>();
+        check(read(buffer, measurements, MEASUREMENTS));
+        return measurements;
+    }
+
+    @Override
+    public List<Measurement> toValues(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int read;
+        while ((read = in.read(chunk)) >= 0) {
+            out.write(chunk, 0, read);
+        }
+        return toValues(out.toByteArray(), 0, out.size());
+    }
+
+    @Override
+    public void toBatch(byte[] data, int offset, int length, MeasurementBatch batch) throws IOException {
+        int size = batch.size();
+        try {
+            check(read(ByteBuffer.wrap(data, offset, length), batch, BATCH));
+        } catch (IOException | RuntimeException e) {
+            batch.truncate(size);
+            throw e;
+        }
+    }
+
+    @Override
+    public ParseResult parse(String json) {
+        return NOT_BINARY.result();
+    }
+
+    @Override
+    public ParseResult parse(JsonNode node) {
+        return NOT_BINARY.result();
+    }
+
+    @Override
+    public ParseResult parse(byte[] data, int offset, int length) throws IOException {
+        List<Measurement> measurements = new ArrayList<>();
+        Rejection rejection = read(ByteBuffer.wrap(data, offset, length), measurements, CHECKED);
+        return rejection == null ? ParseResult.of(measurements) : rejection.result();
+    }
+
+    @Override
+    public int push(byte[] data, int offset, int length, MeasurementSink sink) throws IOException {
+        SinkHandler handler = new SinkHandler();
+        check(read(ByteBuffer.wrap(data, offset, length), sink, handler));
+        return handler.pushed;
+    }
+
+    private static void check(Rejection rejection) {
+        if (rejection != null) {
+            throw rejection.exception(NOT_A_VALID_COLLECTD_PACKET);
+        }
+    }
+
+    /**
+     * What to do with each value list of the packet.
+     */
+    private interface ValueListHandler<T> {
+        /**
+         * @return why reading must stop, null to go on
+         */
+        Rejection handle(CollectdValueList valueList, T target) throws IOException;
+    }
+
+    private static final ValueListHandler<List<Measurement>> MEASUREMENTS = new ValueListHandler<List<Measurement>>() {
+        @Override
+        public Rejection handle(CollectdValueList valueList, List<Measurement> measurements) {
+            valueList.toMeasurements(measurements);
+            return null;
+        }
+    };
+
+    private static final ValueListHandler<List<Measurement>> CHECKED = new ValueListHandler<List<Measurement>>() {
+        @Override
+        public Rejection handle(CollectdValueList valueList, List<Measurement> measurements) {
+            return valueList.tryMeasurements(measurements);
+        }
+    };
+
+    private static final ValueListHandler<MeasurementBatch> BATCH = new ValueListHandler<MeasurementBatch>() {
+        @Override
+        public Rejection handle(CollectdValueList valueList, MeasurementBatch batch) {
+            valueList.toBatch(batch);
+            return null;
+        }
+    };
+
+    private static class SinkHandler implements ValueListHandler<MeasurementSink> {
+        private final MutableMeasurement flyweight = new MutableMeasurement();
+        int pushed;
+
+        @Override
+        public Rejection handle(CollectdValueList valueList, MeasurementSink sink) throws IOException {
+            pushed += valueList.push(sink, flyweight);
+            return null;
+        }
+    }
+
+    /**
+     * Reads the remaining bytes of {@code buffer} without moving its position nor depending on its byte order: the
+     * protocol is big-endian but for gauge values.
+     *
+     * @return why reading stopped early, null when every part was read
+     */
+    <T> Rejection read(ByteBuffer buffer, T target, ValueListHandler<T> handler) throws IOException {
+        buffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        CollectdValueList valueList = new CollectdValueList(tagSets, dictionary, rates, plans);
+        valueList.pluginInstance = "";
+        valueList.typeInstance = "";
+        valueList.meta = true;
+        for (int i = 0; i < metaKeys.length; i++) {
+            valueList.putMeta(metaKeys[i], metaValues[i], true, false);
+        }
+
+        int position = buffer.position();
+        int limit = buffer.limit();
+        while (limit - position >= HEADER_SIZE) {
+            int type = buffer.getShort(position) & 0xffff;
+            int length = buffer.getShort(position + 2) & 0xffff;
+            if (length < HEADER_SIZE || length > limit - position) {
+                return MALFORMED;
+            }
+            int body = position + HEADER_SIZE;
+            int bodyLength = length - HEADER_SIZE;
+            switch (type) {
+                case TYPE_HOST:
+                case TYPE_PLUGIN:
+                case TYPE_PLUGIN_INSTANCE:
+                case TYPE_TYPE:
+                case TYPE_TYPE_INSTANCE:
+                    String text = string(buffer, body, bodyLength);
+                    if (text == null) {
+                        return MALFORMED;
+                    }
+                    setText(valueList, type, text);
+                    break;
+                case TYPE_TIME:
+                case TYPE_TIME_HR:
+                    if (bodyLength != 8) {
+                        return MALFORMED;
+                    }
+                    valueList.time = seconds(buffer.getLong(body), type == TYPE_TIME_HR);
+                    valueList.timeIsNumeric = true;
+                    break;
+                case TYPE_INTERVAL:
+                case TYPE_INTERVAL_HR:
+                    if (bodyLength != 8) {
+                        return MALFORMED;
+                    }
+                    valueList.intervalSeconds = seconds(buffer.getLong(body), type == TYPE_INTERVAL_HR);
+                    valueList.interval = true;
+                    break;
+                case TYPE_VALUES:
+                    if (!readValues(buffer, body, bodyLength, valueList)) {
+                        return MALFORMED;
+                    }
+                    Rejection rejection = handler.handle(valueList, target);
+                    if (rejection != null) {
+                        return rejection;
+                    }
+                    break;
+                case TYPE_ENCRYPTION:
+                    return ENCRYPTED;
+                default:
+                    break;
+            }
+            position += length;
+        }
+        return position == limit ? null : MALFORMED;
+    }
+
+    private static void setText(CollectdValueList valueList, int type, String text) {
+        switch (type) {
+            case TYPE_HOST:
+                valueList.host = text;
+                break;
+            case TYPE_PLUGIN:
+                valueList.plugin = text;
+                break;
+            case TYPE_PLUGIN_INSTANCE:
+                valueList.pluginInstance = text;
+                break;
+            case TYPE_TYPE:
+                valueList.type = text;
+                break;
+            default:
+                valueList.typeInstance = text;
+                break;
+        }
+    }
+
+    private boolean readValues(ByteBuffer buffer, int body, int bodyLength, CollectdValueList valueList) {
+        if (bodyLength < 2) {
+            return false;
+        }
+        int count = buffer.getShort(body) & 0xffff;
+        if (bodyLength != 2 + count * 9) {
+            return false;
+        }
+        valueList.valueCount = 0;
+        valueList.dsnameCount = 0;
+        valueList.dsTypeCount = 0;
+        valueList.dstypes = true;
+        int values = body + 2 + count;
+        for (int i = 0; i < count; i++) {
+            long bits = buffer.getLong(values + i * 8);
+            switch (buffer.get(body + 2 + i)) {
+                case DS_TYPE_COUNTER:
+                    valueList.addDsType(DsType.COUNTER);
+                    valueList.addValue(unsigned(bits));
+                    break;
+                case DS_TYPE_GAUGE:
+                    valueList.addDsType(DsType.GAUGE);
+                    valueList.addValue(Double.longBitsToDouble(Long.reverseBytes(bits)));
+                    break;
+                case DS_TYPE_DERIVE:
+                    valueList.addDsType(DsType.DERIVE);
+                    valueList.addValue(bits);
+                    break;
+                case DS_TYPE_ABSOLUTE:
+                    valueList.addDsType(DsType.ABSOLUTE);
+                    valueList.addValue(unsigned(bits));
+                    break;
+                default:
+                    return false;
+            }
+        }
+        String[] dsNames = valueList.type == null ? null : types.dsNames(valueList.type);
+        if (dsNames != null && dsNames.length == count) {
+            for (String dsName : dsNames) {
+                valueList.addDsname(dsName);
+            }
+        } else if (count == 1) {
+            valueList.addDsname("value");
+        }
+        return true;
+    }
+
+    /**
+     * @return the null terminated string, null when the terminator is missing
+     */
+    private static String string(ByteBuffer buffer, int body, int bodyLength) {
+        if (bodyLength == 0 || buffer.get(body + bodyLength - 1) != 0) {
+            return null;
+        }
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + body, bodyLength - 1, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[bodyLength - 1];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(body + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the time or interval in seconds, rounded to the millisecond as in collectd's JSON output
+     */
+    static double seconds(long value, boolean highResolution) {
+        if (!highResolution) {
+            return unsigned(value);
+        }
+        return Math.round(unsigned(value) * 1000 / HR_UNITS_PER_SECOND) / 1000.0;
+    }
+
+    /**
+     * @return the unsigned 64 bit value, correctly rounded
+     */
+    static double unsigned(long value) {
+        if (value >= 0) {
+            return value;
+        }
+        return ((value >>> 1) | (value & 1)) * 2.0;
+    }
+}
@@ -0,0 +1,249 @@
+package fr.ramiere.parser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Include and exclude rules on the host, plugin, type, type_instance and meta fields of collectd value lists, checked
+ * by {@link StreamingJsonCollectdParser} as each field is tokenized: the first rule dropping a value list stops its
+ * reading, the rest of the record is skipped without building any string, tag or measurement. Patterns are literals,
+ * or prefixes when they end with {@code *}, compiled to char arrays matched against the token buffer of the parser.
+ * <p>
+ * A value list is dropped when a pattern of an exclude rule matches its field, or when its field matches none of the
+ * include patterns of that field, a missing field included. Include patterns of a field add up into a single rule,
+ * every {@code exclude} call makes its own rule; each rule counts the value lists it dropped. Dropped value lists are
+ * neither measurements nor rejections, they are dropped before being validated; {@code accept} checks validity
+ * alone and ignores the filter.
+ * <p>
+ * The {@code include*} and {@code exclude*} methods are not thread-safe: they grow plain arrays and a {@link HashMap}
+ * without any synchronization. Configure the filter completely before handing it to a parser; from then on checking
+ * only reads them and is safe from any number of threads, the drop counts being {@link LongAdder}s.
+ */
+public class CollectdFilter {
+
+    public enum Field {
+        HOST(JsonCollectdParser.FIELD_HOST),
+        PLUGIN(JsonCollectdParser.FIELD_PLUGIN),
+        TYPE(JsonCollectdParser.FIELD_TYPE),
+        TYPE_INSTANCE(JsonCollectdParser.FIELD_TYPE_INSTANCE);
+
+        private final String field;
+
+        Field(String field) {
+            this.field = field;
+        }
+    }
+
+    private static final Rule[] NO_RULES = new Rule[0];
+
+    private final List<Rule> rules = new ArrayList<>();
+    private final Rule[] includes = new Rule[Field.values().length];
+    private final Rule[][] excludes = new Rule[Field.values().length][];
+    private final Map<String, Rule> metaIncludes = new HashMap<>();
+    private final Map<String, Rule[]> metaExcludes = new HashMap<>();
+
+    public CollectdFilter() {
+        for (Field field : Field.values()) {
+            excludes[field.ordinal()] = NO_RULES;
+        }
+    }
+
+    public CollectdFilter include(Field field, String... patterns) {
+        if (includes[field.ordinal()] == null) {
+            includes[field.ordinal()] = add(new Rule(true, field.field));
+        }
+        includes[field.ordinal()].add(patterns);
+        return this;
+    }
+
+    public CollectdFilter exclude(Field field, String... patterns) {
+        excludes[field.ordinal()] = append(excludes[field.ordinal()], add(new Rule(false, field.field).add(patterns)));
+        return this;
+    }
+
+    /**
+     * Keeps only the value lists whose meta {@code key} matches one of {@code patterns}.
+     */
+    public CollectdFilter includeMeta(String key, String... patterns) {
+        Rule rule = metaIncludes.get(key);
+        if (rule == null) {
+            rule = add(new Rule(true, JsonCollectdParser.FIELD_META + "." + key));
+            metaIncludes.put(key, rule);
+        }
+        rule.add(patterns);
+        return this;
+    }
+
+    public CollectdFilter excludeMeta(String key, String... patterns) {
+        Rule[] rules = metaExcludes.get(key);
+        metaExcludes.put(key, append(rules == null ? NO_RULES : rules, add(new Rule(false, JsonCollectdParser.FIELD_META + "." + key).add(patterns))));
+        return this;
+    }
+
+    /**
+     * @return every rule in the order it was created
+     */
+    public List<Rule> rules() {
+        return Collections.unmodifiableList(rules);
+    }
+
+    /**
+     * @return the number of value lists dropped by any rule
+     */
+    public long dropped() {
+        long dropped = 0;
+        for (Rule rule : rules) {
+            dropped += rule.getDropped();
+        }
+        return dropped;
+    }
+
+    /**
+     * @return whether the value list must be dropped given the text of its {@code field}, counted on the dropping rule
+     */
+    boolean drops(Field field, char[] text, int offset, int length) {
+        return drops(includes[field.ordinal()], excludes[field.ordinal()], text, offset, length);
+    }
+
+    boolean dropsMeta(String key, char[] text, int offset, int length) {
+        Rule[] rules = metaExcludes.get(key);
+        return drops(metaIncludes.get(key), rules == null ? NO_RULES : rules, text, offset, length);
+    }
+
+    /**
+     * Checks the include rules of the fields the value list does not have, once it was read without being dropped.
+     */
+    boolean dropsMissing(CollectdValueList valueList) {
+        if (dropsMissing(Field.HOST, valueList.host) || dropsMissing(Field.PLUGIN, valueList.plugin)
+                || dropsMissing(Field.TYPE, valueList.type) || dropsMissing(Field.TYPE_INSTANCE, valueList.typeInstance)) {
+            return true;
+        }
+        for (Map.Entry<String, Rule> include : metaIncludes.entrySet()) {
+            int index = valueList.metaIndex(include.getKey());
+            if (index < 0 || !valueList.metaIsString[index]) {
+                include.getValue().dropped.increment();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean dropsMissing(Field field, String value) {
+        Rule include = includes[field.ordinal()];
+        if (include != null && value == null) {
+            include.dropped.increment();
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean drops(Rule include, Rule[] excludes, char[] text, int offset, int length) {
+        for (Rule exclude : excludes) {
+            if (exclude.matches(text, offset, length)) {
+                exclude.dropped.increment();
+                return true;
+            }
+        }
+        if (include != null && !include.matches(text, offset, length)) {
+            include.dropped.increment();
+            return true;
+        }
+        return false;
+    }
+
+    private Rule add(Rule rule) {
+        rules.add(rule);
+        return rule;
+    }
+
+    private static Rule[] append(Rule[] rules, Rule rule) {
+        Rule[] ret = new Rule[rules.length + 1];
+        System.arraycopy(rules, 0, ret, 0, rules.length);
+        ret[rules.length] = rule;
+        return ret;
+    }
+
+    public static final class Rule {
+        private final boolean include;
+        private final String field;
+        private final List<String> patterns = new ArrayList<>();
+        private char[][] literals = new char[0][];
+        private boolean[] prefixes = new boolean[0];
+        private final LongAdder dropped = new LongAdder();
+
+        Rule(boolean include, String field) {
+            this.include = include;
+            this.field = field;
+        }
+
+        Rule add(String... added) {
+            int size = literals.length;
+            char[][] grownLiterals = new char[size + added.length][];
+            boolean[] grownPrefixes = new boolean[size + added.length];
+            System.arraycopy(literals, 0, grownLiterals, 0, size);
+            System.arraycopy(prefixes, 0, grownPrefixes, 0, size);
+            for (int i = 0; i < added.length; i++) {
+                String pattern = added[i];
+                boolean prefix = pattern.endsWith("*");
+                grownLiterals[size + i] = (prefix ? pattern.substring(0, pattern.length() - 1) : pattern).toCharArray();
+                grownPrefixes[size + i] = prefix;
+                patterns.add(pattern);
+            }
+            literals = grownLiterals;
+            prefixes = grownPrefixes;
+            return this;
+        }
+
+        boolean matches(char[] text, int offset, int length) {
+            for (int i = 0; i < literals.length; i++) {
+                char[] literal = literals[i];
+                if (literal.length == length || prefixes[i] && literal.length <= length) {
+                    if (regionMatches(literal, text, offset)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private static boolean regionMatches(char[] literal, char[] text, int offset) {
+            for (int i = 0; i < literal.length; i++) {
+                if (literal[i] != text[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public boolean isInclude() {
+            return include;
+        }
+
+        /**
+         * @return the field the rule checks, {@code meta.<key>} for a meta key
+         */
+        public String getField() {
+            return field;
+        }
+
+        public List<String> getPatterns() {
+            return Collections.unmodifiableList(patterns);
+        }
+
+        /**
+         * @return the number of value lists the rule dropped
+         */
+        public long getDropped() {
+            return dropped.sum();
+        }
+
+        @Override
+        public String toString() {
+            return (include ? "include " : "exclude ") + field + "=" + patterns + ": " + getDropped() + " dropped";
+        }
+    }
+}
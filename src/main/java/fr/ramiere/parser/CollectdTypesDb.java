@@ -0,0 +1,66 @@
+package fr.ramiere.parser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Data source names of collectd types, read from a {@code types.db} file. The binary network protocol only carries
+ * the values of a value list, their names have to be looked up here by type.
+ */
+public class CollectdTypesDb {
+    private static final CollectdTypesDb EMPTY = new CollectdTypesDb(Collections.<String, String[]>emptyMap());
+
+    private final Map<String, String[]> dsNames;
+
+    private CollectdTypesDb(Map<String, String[]> dsNames) {
+        this.dsNames = dsNames;
+    }
+
+    public static CollectdTypesDb empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Reads lines such as {@code if_octets rx:DERIVE:0:U, tx:DERIVE:0:U}, blank lines and {@code #} comments are
+     * skipped. The reader is not closed.
+     */
+    public static CollectdTypesDb read(Reader reader) throws IOException {
+        Map<String, String[]> dsNames = new HashMap<>();
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        while ((line = lines.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] typeAndSources = line.split("\\s+", 2);
+            if (typeAndSources.length < 2) {
+                throw new IOException("No data source for type " + typeAndSources[0]);
+            }
+            String[] sources = typeAndSources[1].split(",");
+            String[] names = new String[sources.length];
+            for (int i = 0; i < sources.length; i++) {
+                String source = sources[i].trim();
+                int colon = source.indexOf(':');
+                names[i] = colon < 0 ? source : source.substring(0, colon);
+            }
+            dsNames.put(typeAndSources[0], names);
+        }
+        return new CollectdTypesDb(dsNames);
+    }
+
+    /**
+     * @return the data source names of {@code type}, null when the type is unknown; shared, not to be modified
+     */
+    String[] dsNames(String type) {
+        return dsNames.get(type);
+    }
+
+    public int size() {
+        return dsNames.size();
+    }
+}
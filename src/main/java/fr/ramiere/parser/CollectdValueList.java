@@ -0,0 +1,439 @@
+package fr.ramiere.parser;
+
+import fr.ramiere.DsType;
+import fr.ramiere.Measurement;
+import fr.ramiere.MeasurementBatch;
+import fr.ramiere.MeasurementDictionary;
+import fr.ramiere.MeasurementSink;
+import fr.ramiere.MutableMeasurement;
+import fr.ramiere.RejectReason;
+import fr.ramiere.Rejection;
+import fr.ramiere.TagSet;
+import fr.ramiere.TagSetCache;
+import fr.ramiere.stage.LoadShedder;
+import fr.ramiere.stage.RateEngine;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static fr.ramiere.parser.JsonCollectdParser.*;
+
+class CollectdValueList {
+    static final Rejection NOT_AN_OBJECT = Rejection.of(RejectReason.NOT_AN_OBJECT);
+    static final Rejection NOT_COLLECTD = Rejection.of(RejectReason.NOT_COLLECTD, FIELD_META_TSDB_TAG_ADD_COLLECTOR);
+    static final Rejection MISSING_DSNAME = Rejection.of(RejectReason.MISSING_DSNAME, FIELD_DSNAMES);
+    static final Rejection INVALID_TAG = Rejection.of(RejectReason.INVALID_TAG, FIELD_META);
+
+    private final TagSetCache tagSets;
+    private final MeasurementDictionary dictionary;
+    private final RateEngine rates;
+    private final MetaTagPlans plans;
+    private MetaTagPlan plan;
+
+    double[] values = new double[4];
+    int valueCount = -1;
+    String[] dsnames = new String[4];
+    int dsnameCount = -1;
+    boolean dstypes;
+    DsType[] dsTypes = new DsType[4];
+    int dsTypeCount;
+    boolean interval;
+    double intervalSeconds;
+    boolean timeIsNumeric;
+    double time;
+    String host;
+    String plugin;
+    String pluginInstance;
+    String type;
+    String typeInstance;
+
+    boolean meta;
+    boolean filtered;
+    String rejectedField;
+    String[] metaKeys = new String[8];
+    String[] metaTexts = new String[8];
+    boolean[] metaIsString = new boolean[8];
+    boolean[] metaIsNull = new boolean[8];
+    int metaCount;
+
+    CollectdValueList() {
+        this(null, null, null, new MetaTagPlans());
+    }
+
+    CollectdValueList(TagSetCache tagSets, MeasurementDictionary dictionary, RateEngine rates, MetaTagPlans plans) {
+        this.tagSets = tagSets;
+        this.dictionary = dictionary;
+        this.rates = rates;
+        this.plans = plans;
+    }
+
+    void reset() {
+        valueCount = -1;
+        dsnameCount = -1;
+        dstypes = false;
+        dsTypeCount = 0;
+        interval = false;
+        intervalSeconds = 0;
+        timeIsNumeric = false;
+        time = 0;
+        host = null;
+        plugin = null;
+        pluginInstance = null;
+        type = null;
+        typeInstance = null;
+        meta = false;
+        metaCount = 0;
+        filtered = false;
+    }
+
+    void addValue(double value) {
+        if (valueCount == values.length) {
+            double[] grown = new double[values.length * 2];
+            System.arraycopy(values, 0, grown, 0, valueCount);
+            values = grown;
+        }
+        values[valueCount++] = value;
+    }
+
+    void addDsname(String dsname) {
+        if (dsnameCount == dsnames.length) {
+            String[] grown = new String[dsnames.length * 2];
+            System.arraycopy(dsnames, 0, grown, 0, dsnameCount);
+            dsnames = grown;
+        }
+        dsnames[dsnameCount++] = dsname;
+    }
+
+    void addDsType(DsType dsType) {
+        if (dsTypeCount == dsTypes.length) {
+            DsType[] grown = new DsType[dsTypes.length * 2];
+            System.arraycopy(dsTypes, 0, grown, 0, dsTypeCount);
+            dsTypes = grown;
+        }
+        dsTypes[dsTypeCount++] = dsType;
+    }
+
+    DsType dsType(int index) {
+        return index < dsTypeCount ? dsTypes[index] : DsType.GAUGE;
+    }
+
+    void putMeta(String key, String text, boolean isString, boolean isNull) {
+        int index = metaIndex(key);
+        if (index < 0) {
+            if (metaCount == metaKeys.length) {
+                int size = metaKeys.length * 2;
+                metaKeys = copyOf(metaKeys, size);
+                metaTexts = copyOf(metaTexts, size);
+                boolean[] grownIsString = new boolean[size];
+                System.arraycopy(metaIsString, 0, grownIsString, 0, metaCount);
+                metaIsString = grownIsString;
+                boolean[] grownIsNull = new boolean[size];
+                System.arraycopy(metaIsNull, 0, grownIsNull, 0, metaCount);
+                metaIsNull = grownIsNull;
+            }
+            index = metaCount++;
+            metaKeys[index] = key;
+        }
+        metaTexts[index] = text;
+        metaIsString[index] = isString;
+        metaIsNull[index] = isNull;
+    }
+
+    private static String[] copyOf(String[] array, int size) {
+        String[] grown = new String[size];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    int metaIndex(String key) {
+        for (int i = 0; i < metaCount; i++) {
+            if (metaKeys[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Drops the {@code tsdb_tag_add_*} meta entries but the collector when the shedder sheds the meta tags of this value
+     * list, which then skips their expansion into extra tags; renames such as {@code tsdb_tag_dsname} and
+     * {@code tsdb_metric} are kept, so the value list keeps its name and the tags its series is known by.
+     */
+    void shedMeta(LoadShedder shedder) {
+        int metric = metaIndex(FIELD_META_TSDB_METRIC);
+        if (!shedder.shedsMeta(plugin, metric >= 0 && metaIsString[metric] ? metaTexts[metric] : null)) {
+            return;
+        }
+        int kept = 0;
+        for (int i = 0; i < metaCount; i++) {
+            if (!metaKeys[i].startsWith(FIELD_META_TSDB_TAG_ADD) || FIELD_META_TSDB_TAG_ADD_COLLECTOR.equals(metaKeys[i])) {
+                metaKeys[kept] = metaKeys[i];
+                metaTexts[kept] = metaTexts[i];
+                metaIsString[kept] = metaIsString[i];
+                metaIsNull[kept] = metaIsNull[i];
+                kept++;
+            }
+        }
+        metaCount = kept;
+    }
+
+    /**
+     * @return the plan of the current meta layout, the one of the previous value list when the layout did not change
+     */
+    MetaTagPlan plan() {
+        if (plan == null || !plan.matches(metaKeys, metaCount)) {
+            plan = plans.plan(metaKeys, metaCount);
+        }
+        return plan;
+    }
+
+    /**
+     * @return whether the fields make a collectd value list, whether or not a {@link CollectdFilter} drops it
+     */
+    boolean isValid() {
+        return !invalidField() && isCollectd();
+    }
+
+    /**
+     * @return why the value list cannot be turned into measurements, null when it can; unlike {@link #isValid()} this
+     * also checks that every value has a dsname and that added tags are strings; a value list dropped by a
+     * {@link CollectdFilter} is not rejected, it just gives no measurement
+     */
+    Rejection rejection() {
+        if (filtered) {
+            return null;
+        } else if (invalidField()) {
+            return Rejection.of(RejectReason.INVALID_FIELD, rejectedField);
+        } else if (!isCollectd()) {
+            return NOT_COLLECTD;
+        } else if (valueCount > dsnameCount) {
+            return MISSING_DSNAME;
+        }
+        MetaTagPlan plan = plan();
+        for (int i = 0; i < metaCount; i++) {
+            if (!metaIsString[i] && plan.actions[i] == MetaTagPlan.ADD) {
+                return INVALID_TAG;
+            }
+        }
+        return null;
+    }
+
+    private boolean invalidField() {
+        rejectedField = valueCount < 0 ? FIELD_VALUES
+                : !dstypes ? FIELD_DSTYPES
+                : dsnameCount < 0 ? FIELD_DSNAMES
+                : host == null ? FIELD_HOST
+                : plugin == null ? FIELD_PLUGIN
+                : pluginInstance == null ? FIELD_PLUGIN_INSTANCE
+                : type == null ? FIELD_TYPE
+                : typeInstance == null ? FIELD_TYPE_INSTANCE
+                : !interval ? FIELD_INTERVAL
+                : !timeIsNumeric ? FIELD_TIME
+                : !meta ? FIELD_META
+                : null;
+        return rejectedField != null;
+    }
+
+    private boolean isCollectd() {
+        int collector = plan().collectorIndex;
+        return collector >= 0 && metaIsString[collector] && FIELD_META_TSDB_TAG_ADD_COLLECTOR_COLLECTED.equals(metaTexts[collector]);
+    }
+
+    List<Measurement> toMeasurements() {
+        List<Measurement> ret = new ArrayList<>(Math.max(valueCount, 0));
+        toMeasurements(ret);
+        return ret;
+    }
+
+    void toMeasurements(List<Measurement> measurements) {
+        checkValid();
+        addMeasurements(measurements);
+    }
+
+    /**
+     * Exception-free {@link #toMeasurements(List)}.
+     *
+     * @return why nothing was added, null when the measurements were added
+     */
+    Rejection tryMeasurements(List<Measurement> measurements) {
+        Rejection rejection = rejection();
+        if (rejection == null) {
+            addMeasurements(measurements);
+        }
+        return rejection;
+    }
+
+    private void addMeasurements(List<Measurement> measurements) {
+        if (filtered) {
+            return;
+        }
+        double millis = time * 1000;
+        Map<String, String> tags = tags();
+        String metaDsName = metaDsName();
+        String measurementName = measurementName();
+        int nameId = rates != null ? dictionary.nameId(measurementName) : 0;
+
+        for (int i = 0; i < valueCount; i++) {
+            String dsName = dsnames[i];
+            Map<String, String> valueTags = valueTags(tags, dsTag(metaDsName, dsName), dsName, false);
+            double value = rate(nameId, valueTags, i, millis);
+            if (rates == null || !Double.isNaN(value)) {
+                measurements.add(new Measurement(measurementName, millis, value, valueTags));
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #toMeasurements(List)}, refilling {@code flyweight} for every point instead of allocating one;
+     * values without a dsname tag share the tags map of the value list.
+     *
+     * @return the number of points pushed
+     */
+    int push(MeasurementSink sink, MutableMeasurement flyweight) throws IOException {
+        checkValid();
+        if (filtered) {
+            return 0;
+        }
+        double millis = time * 1000;
+        Map<String, String> tags = tags();
+        String metaDsName = metaDsName();
+        String measurementName = measurementName();
+        int nameId = rates != null ? dictionary.nameId(measurementName) : 0;
+
+        int pushed = 0;
+        for (int i = 0; i < valueCount; i++) {
+            String dsName = dsnames[i];
+            Map<String, String> valueTags = valueTags(tags, dsTag(metaDsName, dsName), dsName, true);
+            double value = rate(nameId, valueTags, i, millis);
+            if (rates == null || !Double.isNaN(value)) {
+                sink.accept(flyweight.set(measurementName, millis, value, valueTags));
+                pushed++;
+            }
+        }
+        return pushed;
+    }
+
+    private Map<String, String> valueTags(Map<String, String> tags, String dsTag, String dsName, boolean share) {
+        if (tagSets != null) {
+            return tagSets.intern(tags, dsTag, dsName);
+        }
+        if (share && dsTag == null) {
+            return tags;
+        }
+        Map<String, String> valueTags = new HashMap<>(tags);
+        if (dsTag != null) {
+            valueTags.put(dsTag, dsName);
+        }
+        return valueTags;
+    }
+
+    /**
+     * @return the value, turned into a rate when a rate engine is set, the engine gives NaN when the point must be dropped
+     */
+    private double rate(int nameId, Map<String, String> valueTags, int index, double millis) {
+        double value = values[index];
+        if (rates == null) {
+            return value;
+        }
+        return rates.rate(RateEngine.seriesKey(nameId, (TagSet) valueTags), dsType(index), Math.round(millis), value);
+    }
+
+    void toBatch(MeasurementBatch batch) {
+        checkValid();
+        if (filtered) {
+            return;
+        }
+        MeasurementDictionary dictionary = batch.dictionary();
+        long millis = Math.round(time * 1000);
+        Map<String, String> tags = tags();
+        String metaDsName = metaDsName();
+        int nameId = dictionary.nameId(measurementName());
+        long intervalMillis = Math.round(intervalSeconds * 1000);
+
+        for (int i = 0; i < valueCount; i++) {
+            String dsName = dsnames[i];
+            TagSet valueTags = dictionary.tagSets().intern(tags, dsTag(metaDsName, dsName), dsName);
+            int tagSetId = valueTags.id();
+            double value = values[i];
+            if (rates != null) {
+                value = rates.rate(RateEngine.seriesKey(nameId, valueTags), dsType(i), millis, value);
+                if (Double.isNaN(value)) {
+                    continue;
+                }
+            }
+            batch.add(nameId, millis, value, tagSetId, intervalMillis);
+        }
+    }
+
+    private void checkValid() {
+        Rejection rejection = rejection();
+        if (rejection != null) {
+            throw rejection.exception(NOT_A_VALID_COLLECTD_METRIC);
+        }
+    }
+
+    private static String dsTag(String metaDsName, String dsName) {
+        if (metaDsName != null) {
+            return metaDsName;
+        } else if (dsName != null && !dsName.equals("value")) {
+            return "dsname";
+        }
+        return null;
+    }
+
+    String metaDsName() {
+        int index = plan().dsNameIndex;
+        if (index < 0 || metaIsNull[index] || metaTexts[index].isEmpty()) {
+            return null;
+        }
+        return metaTexts[index];
+    }
+
+    String measurementName() {
+        int index = plan().metricIndex;
+        if (index >= 0 && !metaIsNull[index]) {
+            return metaTexts[index];
+        }
+        return typeInstance;
+    }
+
+    Map<String, String> tags() {
+        Map<String, String> ret = new HashMap<>();
+        ret.put("fqdn", host);
+        MetaTagPlan plan = plan();
+        for (int i = 0; i < metaCount; i++) {
+            switch (plan.actions[i]) {
+                case MetaTagPlan.PLUGIN:
+                    addTagIfTagExists(ret, i, plugin);
+                    break;
+                case MetaTagPlan.PLUGIN_INSTANCE:
+                    addTagIfTagExists(ret, i, pluginInstance);
+                    break;
+                case MetaTagPlan.TYPE:
+                    addTagIfTagExists(ret, i, type);
+                    break;
+                case MetaTagPlan.TYPE_INSTANCE:
+                    addTagIfTagExists(ret, i, typeInstance);
+                    break;
+                case MetaTagPlan.ADD:
+                    if (metaIsString[i]) {
+                        ret.put(plan.addedTags[i], metaTexts[i]);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return ret;
+    }
+
+    private void addTagIfTagExists(Map<String, String> tags, int index, String value) {
+        if (!metaIsString[index] || metaTexts[index].isEmpty()) {
+            return;
+        }
+        tags.put(metaTexts[index], value);
+    }
+}
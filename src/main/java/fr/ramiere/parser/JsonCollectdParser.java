@@ -1,37 +1,79 @@
 package fr.ramiere.parser;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.JsonNodeType;
 import fr.ramiere.Measurement;
 import fr.ramiere.MearsurementParser;
+import fr.ramiere.MeasurementBatch;
+import fr.ramiere.MeasurementDictionary;
+import fr.ramiere.MeasurementSink;
+import fr.ramiere.MutableMeasurement;
+import fr.ramiere.ParseResult;
+import fr.ramiere.RejectReason;
+import fr.ramiere.Rejection;
+import fr.ramiere.TagSetCache;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class JsonCollectdParser implements MearsurementParser {
 
     private final ObjectMapper mapper = new ObjectMapper();
-    private final String FIELD_VALUES = "values";
-    private final String FIELD_DSTYPES = "dstypes";
-    private final String FIELD_DSNAMES = "dsnames";
-    private final String FIELD_INTERVAL = "interval";
-    private final String FIELD_TIME = "time";
-    private final String FIELD_HOST = "host";
-    private final String FIELD_PLUGIN = "plugin";
-    private final String FIELD_PLUGIN_INSTANCE = "plugin_instance";
-    private final String FIELD_TYPE = "type";
-    private final String FIELD_TYPE_INSTANCE = "type_instance";
-    private final String FIELD_META = "meta";
-    private final String FIELD_META_TSDB_TAG_ADD = "tsdb_tag_add_";
-    private final String FIELD_META_TSDB_TAG_ADD_COLLECTOR = FIELD_META_TSDB_TAG_ADD + "collector";
-    private final String FIELD_META_TSDB_TAG_ADD_COLLECTOR_COLLECTED = "collectd";
-    private final String FIELD_META_TSDB_METRIC = "tsdb_metric";
-    private final String FIELD_META_TSDB_TAG_PLUGIN = "tsdb_tag_plugin";
-    private final String FIELD_META_TSDB_TAG_PLUGIN_INSTANCE = "tsdb_tag_pluginInstance";
-    private final String FIELD_META_TSDB_TAG_TYPE = "tsdb_tag_type";
-    private final String FIELD_META_TSDB_TAG_TYPE_INSTANCE = "tsdb_tag_typeInstance";
-    private final String FIELD_META_TSDB_TAG_DSNAME = "tsdb_tag_dsname";
+    private final JsonFactory factory = mapper.getFactory().disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+    private final JsonRecords.RecordReader<List<Measurement>> treeReader = new JsonRecords.RecordReader<List<Measurement>>() {
+        @Override
+        public void read(JsonParser parser, List<Measurement> measurements) throws IOException {
+            measurements.addAll(toValues(mapper.<JsonNode>readTree(parser)));
+        }
+    };
+    private final JsonRecords.CheckedRecordReader<List<Measurement>> checkedTreeReader = new JsonRecords.CheckedRecordReader<List<Measurement>>() {
+        @Override
+        public Rejection read(JsonParser parser, List<Measurement> measurements) throws IOException {
+            JsonNode node = mapper.readTree(parser);
+            Rejection rejection = rejection(node);
+            if (rejection == null) {
+                measurements.addAll(measurements(node));
+            }
+            return rejection;
+        }
+    };
+    private final TagSetCache tagSets;
+    private final MetaTagPlans plans = new MetaTagPlans();
+    static final String NOT_A_VALID_COLLECTD_METRIC = "Not a valid collectd metric";
+    static final String FIELD_VALUES = "values";
+    static final String FIELD_DSTYPES = "dstypes";
+    static final String FIELD_DSNAMES = "dsnames";
+    static final String FIELD_INTERVAL = "interval";
+    static final String FIELD_TIME = "time";
+    static final String FIELD_HOST = "host";
+    static final String FIELD_PLUGIN = "plugin";
+    static final String FIELD_PLUGIN_INSTANCE = "plugin_instance";
+    static final String FIELD_TYPE = "type";
+    static final String FIELD_TYPE_INSTANCE = "type_instance";
+    static final String FIELD_META = "meta";
+    static final String FIELD_META_TSDB_TAG_ADD = "tsdb_tag_add_";
+    static final String FIELD_META_TSDB_TAG_ADD_COLLECTOR = FIELD_META_TSDB_TAG_ADD + "collector";
+    static final String FIELD_META_TSDB_TAG_ADD_COLLECTOR_COLLECTED = "collectd";
+    static final String FIELD_META_TSDB_METRIC = "tsdb_metric";
+    static final String FIELD_META_TSDB_TAG_PLUGIN = "tsdb_tag_plugin";
+    static final String FIELD_META_TSDB_TAG_PLUGIN_INSTANCE = "tsdb_tag_pluginInstance";
+    static final String FIELD_META_TSDB_TAG_TYPE = "tsdb_tag_type";
+    static final String FIELD_META_TSDB_TAG_TYPE_INSTANCE = "tsdb_tag_typeInstance";
+    static final String FIELD_META_TSDB_TAG_DSNAME = "tsdb_tag_dsname";
+
+    public JsonCollectdParser() {
+        this(null);
+    }
+
+    public JsonCollectdParser(TagSetCache tagSets) {
+        this.tagSets = tagSets;
+    }
 
     @Override
     public boolean accept(String json) throws IOException {
@@ -63,6 +105,58 @@ public class JsonCollectdParser implements MearsurementParser {
         return tsdb_tag_add_collector != null && tsdb_tag_add_collector.isTextual() && FIELD_META_TSDB_TAG_ADD_COLLECTOR_COLLECTED.equals(tsdb_tag_add_collector.asText());
     }
 
+    /**
+     * @return why the node cannot be turned into measurements, null when it can; unlike {@link #accept(JsonNode)} this
+     * also checks that every value has a dsname and that added tags are strings
+     */
+    private Rejection rejection(JsonNode node) {
+        if (!node.isObject()) {
+            return CollectdValueList.NOT_AN_OBJECT;
+        }
+        String field = null;
+        if (!isArray(node, FIELD_VALUES)) {
+            field = FIELD_VALUES;
+        } else if (!isArray(node, FIELD_DSTYPES)) {
+            field = FIELD_DSTYPES;
+        } else if (!isArray(node, FIELD_DSNAMES)) {
+            field = FIELD_DSNAMES;
+        } else if (!isTextual(node, FIELD_HOST)) {
+            field = FIELD_HOST;
+        } else if (!isTextual(node, FIELD_PLUGIN)) {
+            field = FIELD_PLUGIN;
+        } else if (!isTextual(node, FIELD_PLUGIN_INSTANCE)) {
+            field = FIELD_PLUGIN_INSTANCE;
+        } else if (!isTextual(node, FIELD_TYPE)) {
+            field = FIELD_TYPE;
+        } else if (!isTextual(node, FIELD_TYPE_INSTANCE)) {
+            field = FIELD_TYPE_INSTANCE;
+        } else if (!isNumeric(node, FIELD_INTERVAL)) {
+            field = FIELD_INTERVAL;
+        } else if (!isNumeric(node, FIELD_TIME)) {
+            field = FIELD_TIME;
+        } else if (node.get(FIELD_META) == null || !node.get(FIELD_META).isObject()) {
+            field = FIELD_META;
+        }
+        if (field != null) {
+            return Rejection.of(RejectReason.INVALID_FIELD, field);
+        }
+        JsonNode meta = node.get(FIELD_META);
+        if (!isValidMeta(node, FIELD_META)) {
+            return CollectdValueList.NOT_COLLECTD;
+        }
+        if (node.get(FIELD_VALUES).size() > node.get(FIELD_DSNAMES).size()) {
+            return CollectdValueList.MISSING_DSNAME;
+        }
+        Iterator<Map.Entry<String, JsonNode>> fields = meta.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> entry = fields.next();
+            if (entry.getKey().startsWith(FIELD_META_TSDB_TAG_ADD) && entry.getValue().getNodeType() != JsonNodeType.STRING) {
+                return CollectdValueList.INVALID_TAG;
+            }
+        }
+        return null;
+    }
+
     private boolean isArray(JsonNode node, String field) {
         JsonNode value = node.get(field);
         return value != null && value.isArray();
@@ -85,34 +179,173 @@ public class JsonCollectdParser implements MearsurementParser {
 
     @Override
     public List<Measurement> toValues(JsonNode node) {
-        if (!accept(node)) {
-            throw new IllegalArgumentException("Not a valid collectd metric");
+        return measurements(checked(node));
+    }
+
+    private List<Measurement> measurements(JsonNode node) {
+        final List<Measurement> ret = new ArrayList<>();
+        try {
+            walk(node, new ValueEmitter() {
+                @Override
+                public void emit(String name, double time, long intervalMillis, double value, Map<String, String> tags, String dsTag, String dsName) {
+                    ret.add(new Measurement(name, time, value, valueTags(tags, dsTag, dsName)));
+                }
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException("adding to a list cannot fail", e);
         }
+        return ret;
+    }
 
+    /**
+     * Receives every value of a value list together with its interval and shared tags, each target builds the value
+     * tags it needs.
+     */
+    private interface ValueEmitter {
+        void emit(String name, double time, long intervalMillis, double value, Map<String, String> tags, String dsTag, String dsName) throws IOException;
+    }
+
+    /**
+     * @return the number of values of the value list
+     */
+    private int walk(JsonNode node, ValueEmitter emitter) throws IOException {
         JsonNode meta = node.get(FIELD_META);
         double time = node.get(FIELD_TIME).asDouble() * 1000;
+        long intervalMillis = Math.round(node.get(FIELD_INTERVAL).asDouble() * 1000);
         Map<String, String> tags = tags(node, meta);
 
         String metaDsName = metaDsName(meta);
         String measurementName = getMeasurementName(node, meta);
 
-        List<Measurement> ret = new ArrayList<>();
         JsonNode values = node.get(FIELD_VALUES);
         JsonNode names = node.get(FIELD_DSNAMES);
         for (int i = 0; i < values.size(); i++) {
-            Double v = values.get(i).asDouble();
+            double v = values.get(i).asDouble();
             String dsName = names.get(i).asText();
 
-            Map<String, String> valueTags = new HashMap<>(tags);
+            String dsTag = null;
             if (metaDsName != null) {
-                valueTags.put(metaDsName, dsName);
+                dsTag = metaDsName;
             } else if (dsName != null && !dsName.equals("value")) {
-                valueTags.put("dsname", dsName);
+                dsTag = "dsname";
             }
-            ret.add(new Measurement(measurementName, time, v, valueTags));
+            emitter.emit(measurementName, time, intervalMillis, v, tags, dsTag, dsName);
         }
+        return values.size();
+    }
 
-        return ret;
+    private Map<String, String> valueTags(Map<String, String> tags, String dsTag, String dsName) {
+        if (tagSets != null) {
+            return tagSets.intern(tags, dsTag, dsName);
+        }
+        Map<String, String> valueTags = new HashMap<>(tags);
+        if (dsTag != null) {
+            valueTags.put(dsTag, dsName);
+        }
+        return valueTags;
+    }
+
+    @Override
+    public List<Measurement> toValues(byte[] data, int offset, int length) throws IOException {
+        try (JsonParser parser = factory.createParser(data, offset, length)) {
+            return JsonRecords.readAll(parser, treeReader);
+        }
+    }
+
+    @Override
+    public List<Measurement> toValues(ByteBuffer buffer) throws IOException {
+        try (JsonParser parser = JsonRecords.createParser(factory, buffer)) {
+            return JsonRecords.readAll(parser, treeReader);
+        }
+    }
+
+    @Override
+    public List<Measurement> toValues(InputStream in) throws IOException {
+        try (JsonParser parser = factory.createParser(in)) {
+            return JsonRecords.readAll(parser, treeReader);
+        }
+    }
+
+    @Override
+    public ParseResult parse(String json) throws IOException {
+        try {
+            return parse(mapper.readTree(json));
+        } catch (JsonProcessingException e) {
+            return Rejection.of(RejectReason.MALFORMED_JSON).result();
+        }
+    }
+
+    @Override
+    public ParseResult parse(JsonNode node) {
+        Rejection rejection = rejection(node);
+        return rejection == null ? ParseResult.of(measurements(node)) : rejection.result();
+    }
+
+    @Override
+    public ParseResult parse(byte[] data, int offset, int length) throws IOException {
+        try (JsonParser parser = factory.createParser(data, offset, length)) {
+            return JsonRecords.parseAll(parser, checkedTreeReader);
+        }
+    }
+
+    /**
+     * Walks every value list as soon as its record is read, values of the records before an invalid one have already
+     * been pushed when it throws.
+     */
+    @Override
+    public int push(byte[] data, int offset, int length, MeasurementSink sink) throws IOException {
+        try (JsonParser parser = factory.createParser(data, offset, length)) {
+            SinkReader reader = new SinkReader();
+            JsonRecords.readAll(parser, sink, reader);
+            return reader.pushed;
+        }
+    }
+
+    private class SinkReader implements JsonRecords.RecordReader<MeasurementSink>, ValueEmitter {
+        private final MutableMeasurement flyweight = new MutableMeasurement();
+        private MeasurementSink sink;
+        int pushed;
+
+        @Override
+        public void read(JsonParser parser, MeasurementSink sink) throws IOException {
+            this.sink = sink;
+            pushed += walk(checked(mapper.<JsonNode>readTree(parser)), this);
+        }
+
+        @Override
+        public void emit(String name, double time, long intervalMillis, double value, Map<String, String> tags, String dsTag, String dsName) throws IOException {
+            sink.accept(flyweight.set(name, time, value, valueTags(tags, dsTag, dsName)));
+        }
+    }
+
+    @Override
+    public void toBatch(byte[] data, int offset, int length, MeasurementBatch batch) throws IOException {
+        int size = batch.size();
+        try (JsonParser parser = factory.createParser(data, offset, length)) {
+            JsonRecords.readAll(parser, batch, new JsonRecords.RecordReader<MeasurementBatch>() {
+                @Override
+                public void read(JsonParser parser, final MeasurementBatch batch) throws IOException {
+                    final MeasurementDictionary dictionary = batch.dictionary();
+                    walk(checked(mapper.<JsonNode>readTree(parser)), new ValueEmitter() {
+                        @Override
+                        public void emit(String name, double time, long intervalMillis, double value, Map<String, String> tags, String dsTag, String dsName) {
+                            batch.add(dictionary.nameId(name), Math.round(time), value, dictionary.tagSets().intern(tags, dsTag, dsName), intervalMillis);
+                        }
+                    });
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            batch.truncate(size);
+            throw e;
+        }
+    }
+
+    private JsonNode checked(JsonNode node) {
+        Rejection rejection = rejection(node);
+        if (rejection != null) {
+            throw rejection.exception(NOT_A_VALID_COLLECTD_METRIC);
+        }
+        return node;
     }
 
     private String metaDsName(JsonNode meta) {
@@ -126,40 +359,42 @@ public class JsonCollectdParser implements MearsurementParser {
     private Map<String, String> tags(JsonNode node, JsonNode meta) {
         Map<String, String> ret = new HashMap<>();
         ret.put("fqdn", node.get(FIELD_HOST).asText());
+        String[] keys = new String[meta.size()];
         Iterator<String> fieldNames = meta.fieldNames();
-        while (fieldNames.hasNext()) {
-            String fieldName = fieldNames.next();
-            switch (fieldName) {
-                case FIELD_META_TSDB_TAG_PLUGIN:
-                    addTagIfTagExists(ret, meta, node, FIELD_META_TSDB_TAG_PLUGIN, FIELD_PLUGIN);
+        for (int i = 0; fieldNames.hasNext(); i++) {
+            keys[i] = fieldNames.next();
+        }
+        MetaTagPlan plan = plans.plan(keys, keys.length);
+        Iterator<JsonNode> elements = meta.elements();
+        for (int i = 0; elements.hasNext(); i++) {
+            JsonNode metaValue = elements.next();
+            switch (plan.actions[i]) {
+                case MetaTagPlan.PLUGIN:
+                    addTagIfTagExists(ret, metaValue, node, FIELD_PLUGIN);
                     break;
-                case FIELD_META_TSDB_TAG_PLUGIN_INSTANCE:
-                    addTagIfTagExists(ret, meta, node, FIELD_META_TSDB_TAG_PLUGIN_INSTANCE, FIELD_PLUGIN_INSTANCE);
+                case MetaTagPlan.PLUGIN_INSTANCE:
+                    addTagIfTagExists(ret, metaValue, node, FIELD_PLUGIN_INSTANCE);
                     break;
-                case FIELD_META_TSDB_TAG_TYPE:
-                    addTagIfTagExists(ret, meta, node, FIELD_META_TSDB_TAG_TYPE, FIELD_TYPE);
+                case MetaTagPlan.TYPE:
+                    addTagIfTagExists(ret, metaValue, node, FIELD_TYPE);
                     break;
-                case FIELD_META_TSDB_TAG_TYPE_INSTANCE:
-                    addTagIfTagExists(ret, meta, node, FIELD_META_TSDB_TAG_TYPE_INSTANCE, FIELD_TYPE_INSTANCE);
+                case MetaTagPlan.TYPE_INSTANCE:
+                    addTagIfTagExists(ret, metaValue, node, FIELD_TYPE_INSTANCE);
                     break;
-                default:
-                    if (fieldName.startsWith(FIELD_META_TSDB_TAG_ADD)) {
-                        String tagName = fieldName.substring(FIELD_META_TSDB_TAG_ADD.length());
-                        JsonNode tagValue = meta.get(fieldName);
-                        if (tagValue.getNodeType() != JsonNodeType.STRING) {
-                            return null;
-                        }
-                        ret.put(tagName, tagValue.asText());
+                case MetaTagPlan.ADD:
+                    if (metaValue.getNodeType() == JsonNodeType.STRING) {
+                        ret.put(plan.addedTags[i], metaValue.asText());
                     }
                     break;
+                default:
+                    break;
             }
         }
         return ret;
     }
 
-    private void addTagIfTagExists(Map<String, String> tags, JsonNode meta, JsonNode node, String tagField, String valueField) {
-        JsonNode tag = meta.get(tagField);
-        if (tag == null || tag.isNull() || tag.getNodeType() != JsonNodeType.STRING) {
+    private void addTagIfTagExists(Map<String, String> tags, JsonNode tag, JsonNode node, String valueField) {
+        if (tag.getNodeType() != JsonNodeType.STRING) {
             return;
         }
         String tagValue = tag.asText();
@@ -1,12 +1,27 @@
 package fr.ramiere.parser;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.JsonNodeType;
 import fr.ramiere.Measurement;
 import fr.ramiere.MearsurementParser;
+import fr.ramiere.MeasurementBatch;
+import fr.ramiere.MeasurementDictionary;
+import fr.ramiere.MeasurementSink;
+import fr.ramiere.MutableMeasurement;
+import fr.ramiere.ParseResult;
+import fr.ramiere.RejectReason;
+import fr.ramiere.Rejection;
+import fr.ramiere.TagSet;
+import fr.ramiere.TagSetCache;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class JsonMeasurementParser implements MearsurementParser {
@@ -14,8 +29,26 @@ public class JsonMeasurementParser implements MearsurementParser {
     public static final String FIELD_TIME = "time";
     public static final String FIELD_VALUE = "value";
     public static final String FIELD_TAGS = "tags";
+    static final String NOT_A_VALID_SIMPLE_METRIC = "Not a valid simple metric";
+    private static final Rejection NOT_AN_OBJECT = Rejection.of(RejectReason.NOT_AN_OBJECT);
 
     private final ObjectMapper mapper = new ObjectMapper();
+    private final JsonFactory factory = mapper.getFactory().disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+    private final JsonRecords.RecordReader<List<Measurement>> streamReader = new JsonRecords.RecordReader<List<Measurement>>() {
+        @Override
+        public void read(JsonParser parser, List<Measurement> measurements) throws IOException {
+            measurements.add(toValue(parser));
+        }
+    };
+    private final TagSetCache tagSets;
+
+    public JsonMeasurementParser() {
+        this(null);
+    }
+
+    public JsonMeasurementParser(TagSetCache tagSets) {
+        this.tagSets = tagSets;
+    }
 
     @Override
     public boolean accept(String json) throws IOException {
@@ -24,23 +57,27 @@ public class JsonMeasurementParser implements MearsurementParser {
 
     @Override
     public boolean accept(JsonNode node) {
+        return invalidField(node) == null;
+    }
+
+    private String invalidField(JsonNode node) {
         JsonNode measurement = node.get(FIELD_MEASUREMENT);
         if (measurement == null || measurement.isNull() || !measurement.isTextual()) {
-            return false;
+            return FIELD_MEASUREMENT;
         }
         JsonNode time = node.get(FIELD_TIME);
         if (time == null || time.isNull() || !time.isLong()) {
-            return false;
+            return FIELD_TIME;
         }
         JsonNode value = node.get(FIELD_VALUE);
         if (value == null || value.isNull() || !value.isNumber()) {
-            return false;
+            return FIELD_VALUE;
         }
         JsonNode tags = node.get(FIELD_TAGS);
         if (tags != null && !tags.isNull() && !tags.isObject()) {
-            return false;
+            return FIELD_TAGS;
         }
-        return true;
+        return null;
     }
 
     Map<String, String> tags(JsonNode node) {
@@ -71,14 +108,225 @@ public class JsonMeasurementParser implements MearsurementParser {
         return ret;
     }
 
+    @Override
+    public List<Measurement> toValues(byte[] data, int offset, int length) throws IOException {
+        try (JsonParser parser = factory.createParser(data, offset, length)) {
+            return JsonRecords.readAll(parser, streamReader);
+        }
+    }
+
+    @Override
+    public List<Measurement> toValues(ByteBuffer buffer) throws IOException {
+        try (JsonParser parser = JsonRecords.createParser(factory, buffer)) {
+            return JsonRecords.readAll(parser, streamReader);
+        }
+    }
+
+    @Override
+    public List<Measurement> toValues(InputStream in) throws IOException {
+        try (JsonParser parser = factory.createParser(in)) {
+            return JsonRecords.readAll(parser, streamReader);
+        }
+    }
+
+    @Override
+    public ParseResult parse(String json) throws IOException {
+        try {
+            return parse(mapper.readTree(json));
+        } catch (JsonProcessingException e) {
+            return Rejection.of(RejectReason.MALFORMED_JSON).result();
+        }
+    }
+
+    @Override
+    public ParseResult parse(JsonNode jsonNode) {
+        List<Measurement> ret = new ArrayList<>();
+        Iterator<JsonNode> iterator = jsonNode.iterator();
+        while (iterator.hasNext()) {
+            JsonNode node = iterator.next();
+            Rejection rejection = rejection(node);
+            if (rejection != null) {
+                return rejection.result();
+            }
+            ret.add(measurement(node));
+        }
+        return ParseResult.of(ret);
+    }
+
+    @Override
+    public ParseResult parse(byte[] data, int offset, int length) throws IOException {
+        try (JsonParser parser = factory.createParser(data, offset, length)) {
+            return JsonRecords.parseAll(parser, new JsonRecords.CheckedRecordReader<List<Measurement>>() {
+                private final Record record = new Record();
+
+                @Override
+                public Rejection read(JsonParser parser, List<Measurement> measurements) throws IOException {
+                    Rejection rejection = record.read(parser);
+                    if (rejection == null) {
+                        measurements.add(record.toMeasurement());
+                    }
+                    return rejection;
+                }
+            });
+        }
+    }
+
+    @Override
+    public int push(byte[] data, int offset, int length, MeasurementSink sink) throws IOException {
+        try (JsonParser parser = factory.createParser(data, offset, length)) {
+            SinkReader reader = new SinkReader();
+            JsonRecords.readAll(parser, sink, reader);
+            return reader.pushed;
+        }
+    }
+
+    private class SinkReader implements JsonRecords.RecordReader<MeasurementSink> {
+        private final Record record = new Record();
+        private final MutableMeasurement flyweight = new MutableMeasurement();
+        int pushed;
+
+        @Override
+        public void read(JsonParser parser, MeasurementSink sink) throws IOException {
+            Rejection rejection = record.read(parser);
+            if (rejection != null) {
+                throw rejection.exception(NOT_A_VALID_SIMPLE_METRIC);
+            }
+            Map<String, String> tags = record.tags;
+            if (tags == null) {
+                tags = Collections.emptyMap();
+            } else if (tagSets != null) {
+                tags = tagSets.intern(tags);
+            }
+            sink.accept(flyweight.set(record.measurement, record.time, record.value, tags));
+            pushed++;
+        }
+    }
+
+    @Override
+    public void toBatch(byte[] data, int offset, int length, MeasurementBatch batch) throws IOException {
+        int size = batch.size();
+        try (JsonParser parser = factory.createParser(data, offset, length)) {
+            JsonRecords.readAll(parser, batch, new JsonRecords.RecordReader<MeasurementBatch>() {
+                private final Record record = new Record();
+
+                @Override
+                public void read(JsonParser parser, MeasurementBatch batch) throws IOException {
+                    Rejection rejection = record.read(parser);
+                    if (rejection != null) {
+                        throw rejection.exception(NOT_A_VALID_SIMPLE_METRIC);
+                    }
+                    MeasurementDictionary dictionary = batch.dictionary();
+                    Map<String, String> tags = record.tags == null ? TagSet.EMPTY : record.tags;
+                    batch.add(dictionary.nameId(record.measurement), record.time, record.value, dictionary.tagSetId(tags));
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            batch.truncate(size);
+            throw e;
+        }
+    }
+
+    Measurement toValue(JsonParser parser) throws IOException {
+        Record record = new Record();
+        Rejection rejection = record.read(parser);
+        if (rejection != null) {
+            throw rejection.exception(NOT_A_VALID_SIMPLE_METRIC);
+        }
+        return record.toMeasurement();
+    }
+
+    private class Record {
+        String measurement;
+        long time;
+        double value;
+        Map<String, String> tags;
+
+        Measurement toMeasurement() {
+            if (tags == null) {
+                return new Measurement(measurement, time, value);
+            }
+            return new Measurement(measurement, time, value, tagSets == null ? tags : tagSets.intern(tags));
+        }
+
+        /**
+         * @return why the record was rejected, null when it was read
+         */
+        Rejection read(JsonParser parser) throws IOException {
+            if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                return NOT_AN_OBJECT;
+            }
+            measurement = null;
+            tags = null;
+            boolean hasTime = false;
+            boolean hasValue = false;
+            boolean validTags = true;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                switch (field) {
+                    case FIELD_MEASUREMENT:
+                        measurement = token == JsonToken.VALUE_STRING ? parser.getText() : null;
+                        break;
+                    case FIELD_TIME:
+                        hasTime = token == JsonToken.VALUE_NUMBER_INT && parser.getNumberType() == JsonParser.NumberType.LONG;
+                        time = hasTime ? parser.getLongValue() : 0;
+                        break;
+                    case FIELD_VALUE:
+                        hasValue = token.isNumeric();
+                        value = hasValue ? parser.getDoubleValue() : 0;
+                        break;
+                    case FIELD_TAGS:
+                        validTags = token == JsonToken.START_OBJECT || token == JsonToken.VALUE_NULL;
+                        tags = token == JsonToken.START_OBJECT ? tags(parser) : validTags ? new HashMap<String, String>() : null;
+                        break;
+                }
+                parser.skipChildren();
+            }
+            String invalidField = measurement == null ? FIELD_MEASUREMENT
+                    : !hasTime ? FIELD_TIME
+                    : !hasValue ? FIELD_VALUE
+                    : !validTags ? FIELD_TAGS
+                    : null;
+            return invalidField == null ? null : Rejection.of(RejectReason.INVALID_FIELD, invalidField);
+        }
+    }
+
+    private Map<String, String> tags(JsonParser parser) throws IOException {
+        Map<String, String> tags = new HashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            if (parser.nextToken() == JsonToken.VALUE_STRING) {
+                tags.put(fieldName, parser.getText());
+            } else {
+                tags.remove(fieldName);
+                parser.skipChildren();
+            }
+        }
+        return tags;
+    }
+
     Measurement toValue(String json) throws IOException {
         return toValue(mapper.readTree(json));
     }
 
     Measurement toValue(JsonNode node) {
-        if (!accept(node)) {
-            throw new IllegalArgumentException("Not a valid simple metric");
+        Rejection rejection = rejection(node);
+        if (rejection != null) {
+            throw rejection.exception(NOT_A_VALID_SIMPLE_METRIC);
         }
+        return measurement(node);
+    }
+
+    private Rejection rejection(JsonNode node) {
+        if (!node.isObject()) {
+            return NOT_AN_OBJECT;
+        }
+        String invalidField = invalidField(node);
+        return invalidField == null ? null : Rejection.of(RejectReason.INVALID_FIELD, invalidField);
+    }
+
+    private Measurement measurement(JsonNode node) {
         String measurement = node.get(FIELD_MEASUREMENT).asText();
         long time = node.get(FIELD_TIME).asLong();
         double value = node.get(FIELD_VALUE).asDouble();
@@ -86,6 +334,7 @@ public class JsonMeasurementParser implements MearsurementParser {
         if (tagsNode == null) {
             return new Measurement(measurement, time, value);
         }
-        return new Measurement(measurement, time, value, tags(tagsNode));
+        Map<String, String> tags = tags(tagsNode);
+        return new Measurement(measurement, time, value, tagSets == null ? tags : tagSets.intern(tags));
     }
 }
@@ -0,0 +1,89 @@
+package fr.ramiere.parser;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import fr.ramiere.Measurement;
+import fr.ramiere.ParseResult;
+import fr.ramiere.RejectReason;
+import fr.ramiere.Rejection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+final class JsonRecords {
+
+    interface RecordReader<T> {
+        void read(JsonParser parser, T target) throws IOException;
+    }
+
+    interface CheckedRecordReader<T> {
+        /**
+         * @return why the record was rejected, null when it was read into {@code target}
+         */
+        Rejection read(JsonParser parser, T target) throws IOException;
+    }
+
+    private JsonRecords() {
+    }
+
+    static JsonParser createParser(JsonFactory factory, ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            return factory.createParser(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        return factory.createParser(new ByteBufferBackedInputStream(buffer.duplicate()));
+    }
+
+    static List<Measurement> readAll(JsonParser parser, RecordReader<List<Measurement>> reader) throws IOException {
+        return readAll(parser, new ArrayList<Measurement>(), reader);
+    }
+
+    static <T> T readAll(JsonParser parser, T target, RecordReader<T> reader) throws IOException {
+        JsonToken token;
+        while ((token = parser.nextToken()) != null) {
+            if (token == JsonToken.START_ARRAY) {
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    reader.read(parser, target);
+                }
+            } else {
+                reader.read(parser, target);
+            }
+        }
+        return target;
+    }
+
+    static ParseResult parseAll(JsonParser parser, CheckedRecordReader<List<Measurement>> reader) throws IOException {
+        List<Measurement> measurements = new ArrayList<>();
+        try {
+            Rejection rejection = parseAll(parser, measurements, reader);
+            return rejection == null ? ParseResult.of(measurements) : rejection.result();
+        } catch (JsonProcessingException e) {
+            return Rejection.of(RejectReason.MALFORMED_JSON).result();
+        }
+    }
+
+    /**
+     * Same as {@link #readAll(JsonParser, Object, RecordReader)}, stops at the first rejected record.
+     */
+    static <T> Rejection parseAll(JsonParser parser, T target, CheckedRecordReader<T> reader) throws IOException {
+        JsonToken token;
+        while ((token = parser.nextToken()) != null) {
+            Rejection rejection = null;
+            if (token == JsonToken.START_ARRAY) {
+                while (rejection == null && parser.nextToken() != JsonToken.END_ARRAY) {
+                    rejection = reader.read(parser, target);
+                }
+            } else {
+                rejection = reader.read(parser, target);
+            }
+            if (rejection != null) {
+                return rejection;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,252 @@
+package fr.ramiere.parser;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import fr.ramiere.Measurement;
+import fr.ramiere.MearsurementParser;
+import fr.ramiere.MeasurementBatch;
+import fr.ramiere.MeasurementSink;
+import fr.ramiere.ParseResult;
+import fr.ramiere.RejectReason;
+import fr.ramiere.Rejection;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dispatches each payload to the parser registered for the first discriminating field of its first record, e.g.
+ * {@code dsnames} for collectd or {@code measurement} for simple measurements. Detection only reads field names up to the
+ * first match, so its cost does not depend on how many formats are registered, and the chosen parser validates the
+ * payload once. A payload holding several records is assumed to hold a single format.
+ */
+public class MeasurementParserRegistry implements MearsurementParser {
+    private static final Rejection UNKNOWN_FORMAT = Rejection.of(RejectReason.UNKNOWN_FORMAT);
+
+    private final JsonFactory factory = new JsonFactory().disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+    private final Map<String, MearsurementParser> discriminators = new HashMap<>();
+
+    public static MeasurementParserRegistry defaultRegistry() {
+        MearsurementParser collectd = new StreamingJsonCollectdParser();
+        return new MeasurementParserRegistry()
+                .register(JsonCollectdParser.FIELD_DSNAMES, collectd)
+                .register(JsonCollectdParser.FIELD_DSTYPES, collectd)
+                .register(JsonMeasurementParser.FIELD_MEASUREMENT, new JsonMeasurementParser());
+    }
+
+    public MeasurementParserRegistry register(String discriminatorField, MearsurementParser parser) {
+        MearsurementParser previous = discriminators.get(discriminatorField);
+        if (previous != null && previous != parser) {
+            throw new IllegalArgumentException(discriminatorField + " is already registered");
+        }
+        discriminators.put(discriminatorField, parser);
+        return this;
+    }
+
+    public MearsurementParser parserFor(String json) throws IOException {
+        try (JsonParser parser = factory.createParser(json)) {
+            return detect(parser);
+        }
+    }
+
+    public MearsurementParser parserFor(JsonNode node) {
+        if (node.isArray()) {
+            node = node.path(0);
+        }
+        Iterator<String> fieldNames = node.fieldNames();
+        while (fieldNames.hasNext()) {
+            MearsurementParser parser = discriminators.get(fieldNames.next());
+            if (parser != null) {
+                return parser;
+            }
+        }
+        return null;
+    }
+
+    public MearsurementParser parserFor(byte[] data, int offset, int length) throws IOException {
+        try (JsonParser parser = factory.createParser(data, offset, length)) {
+            return detect(parser);
+        }
+    }
+
+    public MearsurementParser parserFor(ByteBuffer buffer) throws IOException {
+        try (JsonParser parser = JsonRecords.createParser(factory, buffer)) {
+            return detect(parser);
+        }
+    }
+
+    private MearsurementParser detect(JsonParser parser) throws IOException {
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.START_ARRAY) {
+            token = parser.nextToken();
+        }
+        if (token != JsonToken.START_OBJECT) {
+            return null;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            MearsurementParser candidate = discriminators.get(parser.getCurrentName());
+            if (candidate != null) {
+                return candidate;
+            }
+            parser.nextToken();
+            parser.skipChildren();
+        }
+        return null;
+    }
+
+    @Override
+    public boolean accept(String json) throws IOException {
+        MearsurementParser parser = parserFor(json);
+        return parser != null && parser.accept(json);
+    }
+
+    @Override
+    public boolean accept(JsonNode node) {
+        MearsurementParser parser = parserFor(node);
+        return parser != null && parser.accept(node);
+    }
+
+    @Override
+    public List<Measurement> toValues(String json) throws IOException {
+        return required(parserFor(json)).toValues(json);
+    }
+
+    @Override
+    public List<Measurement> toValues(JsonNode node) {
+        return required(parserFor(node)).toValues(node);
+    }
+
+    @Override
+    public List<Measurement> toValues(byte[] data, int offset, int length) throws IOException {
+        return required(parserFor(data, offset, length)).toValues(data, offset, length);
+    }
+
+    @Override
+    public List<Measurement> toValues(ByteBuffer buffer) throws IOException {
+        return required(parserFor(buffer)).toValues(buffer);
+    }
+
+    /**
+     * Detection reads the stream up to the discriminating field, however far it is, and the bytes it consumed are
+     * replayed to the chosen parser ahead of the rest of the stream.
+     */
+    @Override
+    public List<Measurement> toValues(InputStream in) throws IOException {
+        RecordingInputStream recording = new RecordingInputStream(in);
+        MearsurementParser detected;
+        try (JsonParser parser = factory.createParser(recording)) {
+            detected = detect(parser);
+        }
+        return required(detected).toValues(recording.replay());
+    }
+
+    @Override
+    public ParseResult parse(String json) throws IOException {
+        MearsurementParser parser;
+        try {
+            parser = parserFor(json);
+        } catch (JsonProcessingException e) {
+            return Rejection.of(RejectReason.MALFORMED_JSON).result();
+        }
+        return parser == null ? UNKNOWN_FORMAT.result() : parser.parse(json);
+    }
+
+    @Override
+    public ParseResult parse(JsonNode node) {
+        MearsurementParser parser = parserFor(node);
+        return parser == null ? UNKNOWN_FORMAT.result() : parser.parse(node);
+    }
+
+    @Override
+    public ParseResult parse(byte[] data, int offset, int length) throws IOException {
+        MearsurementParser parser;
+        try {
+            parser = parserFor(data, offset, length);
+        } catch (JsonProcessingException e) {
+            return Rejection.of(RejectReason.MALFORMED_JSON).result();
+        }
+        return parser == null ? UNKNOWN_FORMAT.result() : parser.parse(data, offset, length);
+    }
+
+    @Override
+    public int push(byte[] data, int offset, int length, MeasurementSink sink) throws IOException {
+        return required(parserFor(data, offset, length)).push(data, offset, length, sink);
+    }
+
+    @Override
+    public void toBatch(byte[] data, int offset, int length, MeasurementBatch batch) throws IOException {
+        required(parserFor(data, offset, length)).toBatch(data, offset, length, batch);
+    }
+
+    private MearsurementParser required(MearsurementParser parser) {
+        if (parser == null) {
+            throw UNKNOWN_FORMAT.exception("No registered parser for payload");
+        }
+        return parser;
+    }
+
+    /**
+     * Keeps a copy of every byte read through it, unlike {@code mark}/{@code reset} it has no read-ahead limit.
+     */
+    private static final class RecordingInputStream extends FilterInputStream {
+        private byte[] recorded = new byte[8192];
+        private int count;
+
+        RecordingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                record(new byte[]{(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                record(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] skipped = new byte[(int) Math.min(n, 8192)];
+            int read = read(skipped, 0, skipped.length);
+            return Math.max(read, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void record(byte[] b, int off, int len) {
+            if (count + len > recorded.length) {
+                recorded = Arrays.copyOf(recorded, Math.max(count + len, recorded.length * 2));
+            }
+            System.arraycopy(b, off, recorded, count, len);
+            count += len;
+        }
+
+        InputStream replay() {
+            return new SequenceInputStream(new ByteArrayInputStream(recorded, 0, count), in);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package fr.ramiere.parser;
+
+import java.util.Arrays;
+
+import static fr.ramiere.parser.JsonCollectdParser.*;
+
+/**
+ * What to do with each key of one collectd {@code meta} layout, i.e. one ordered set of meta keys, worked out once so
+ * that messages sharing the layout skip the key matching and the {@code tsdb_tag_add_} prefix stripping. Immutable.
+ */
+final class MetaTagPlan {
+    static final byte SKIP = 0;
+    static final byte PLUGIN = 1;
+    static final byte PLUGIN_INSTANCE = 2;
+    static final byte TYPE = 3;
+    static final byte TYPE_INSTANCE = 4;
+    static final byte ADD = 5;
+
+    final String[] keys;
+    final int hash;
+    final byte[] actions;
+    final String[] addedTags;
+    final int metricIndex;
+    final int dsNameIndex;
+    final int collectorIndex;
+
+    private MetaTagPlan(String[] keys, int hash) {
+        this.keys = keys;
+        this.hash = hash;
+        this.actions = new byte[keys.length];
+        this.addedTags = new String[keys.length];
+        int metric = -1;
+        int dsName = -1;
+        int collector = -1;
+        for (int i = 0; i < keys.length; i++) {
+            String key = keys[i];
+            switch (key) {
+                case FIELD_META_TSDB_TAG_PLUGIN:
+                    actions[i] = PLUGIN;
+                    break;
+                case FIELD_META_TSDB_TAG_PLUGIN_INSTANCE:
+                    actions[i] = PLUGIN_INSTANCE;
+                    break;
+                case FIELD_META_TSDB_TAG_TYPE:
+                    actions[i] = TYPE;
+                    break;
+                case FIELD_META_TSDB_TAG_TYPE_INSTANCE:
+                    actions[i] = TYPE_INSTANCE;
+                    break;
+                case FIELD_META_TSDB_METRIC:
+                    metric = i;
+                    break;
+                case FIELD_META_TSDB_TAG_DSNAME:
+                    dsName = i;
+                    break;
+                default:
+                    if (key.startsWith(FIELD_META_TSDB_TAG_ADD)) {
+                        actions[i] = ADD;
+                        addedTags[i] = key.substring(FIELD_META_TSDB_TAG_ADD.length());
+                    }
+                    break;
+            }
+            if (key.equals(FIELD_META_TSDB_TAG_ADD_COLLECTOR)) {
+                collector = i;
+            }
+        }
+        this.metricIndex = metric;
+        this.dsNameIndex = dsName;
+        this.collectorIndex = collector;
+    }
+
+    static MetaTagPlan compile(String[] keys, int count) {
+        return new MetaTagPlan(Arrays.copyOf(keys, count), hash(keys, count));
+    }
+
+    static int hash(String[] keys, int count) {
+        int hash = 1;
+        for (int i = 0; i < count; i++) {
+            hash = 31 * hash + keys[i].hashCode();
+        }
+        return hash;
+    }
+
+    boolean matches(String[] keys, int count) {
+        if (count != this.keys.length) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            String key = this.keys[i];
+            if (key != keys[i] && !key.equals(keys[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof MetaTagPlan && Arrays.equals(keys, ((MetaTagPlan) o).keys);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
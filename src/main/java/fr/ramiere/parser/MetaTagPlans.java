@@ -0,0 +1,100 @@
+package fr.ramiere.parser;
+
+import org.apache.commons.collections4.map.AbstractLinkedMap;
+import org.apache.commons.collections4.map.LRUMap;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, thread-safe cache of {@link MetaTagPlan}s keyed by meta layout. Least recently used plans are evicted once
+ * the cache is full; an evicted plan stays usable by whoever still holds it and is compiled again on its next miss.
+ */
+final class MetaTagPlans {
+    static final int DEFAULT_MAX_SIZE = 1024;
+    private static final int SEGMENTS = 4;
+
+    private final LRUMap<Object, MetaTagPlan>[] segments;
+    private final AtomicLong compilations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    MetaTagPlans() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    @SuppressWarnings("unchecked")
+    MetaTagPlans(int maxSize) {
+        if (maxSize < SEGMENTS) {
+            throw new IllegalArgumentException("maxSize must be at least " + SEGMENTS);
+        }
+        segments = new LRUMap[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new LRUMap<Object, MetaTagPlan>(maxSize / SEGMENTS) {
+                @Override
+                protected boolean removeLRU(AbstractLinkedMap.LinkEntry<Object, MetaTagPlan> entry) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+            };
+        }
+    }
+
+    /**
+     * @return the plan of the layout made of the first {@code count} {@code keys}, compiled on the first sight
+     */
+    MetaTagPlan plan(String[] keys, int count) {
+        Layout layout = new Layout(keys, count);
+        LRUMap<Object, MetaTagPlan> segment = segments[(layout.hash ^ (layout.hash >>> 16)) & (SEGMENTS - 1)];
+        synchronized (segment) {
+            MetaTagPlan plan = segment.get(layout);
+            if (plan == null) {
+                plan = MetaTagPlan.compile(keys, count);
+                segment.put(plan, plan);
+                compilations.incrementAndGet();
+            }
+            return plan;
+        }
+    }
+
+    long compilations() {
+        return compilations.get();
+    }
+
+    long evictions() {
+        return evictions.get();
+    }
+
+    int size() {
+        int size = 0;
+        for (LRUMap<Object, MetaTagPlan> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Lookup key over the caller's array, so that a hit copies nothing.
+     */
+    private static final class Layout {
+        final String[] keys;
+        final int count;
+        final int hash;
+
+        Layout(String[] keys, int count) {
+            this.keys = keys;
+            this.count = count;
+            this.hash = MetaTagPlan.hash(keys, count);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof MetaTagPlan && ((MetaTagPlan) o).matches(keys, count);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,458 @@
+package fr.ramiere.parser;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.NumberInput;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import fr.ramiere.DsType;
+import fr.ramiere.Measurement;
+import fr.ramiere.MearsurementParser;
+import fr.ramiere.MeasurementBatch;
+import fr.ramiere.MeasurementDictionary;
+import fr.ramiere.MeasurementSink;
+import fr.ramiere.MutableMeasurement;
+import fr.ramiere.ParseResult;
+import fr.ramiere.RejectReason;
+import fr.ramiere.Rejection;
+import fr.ramiere.TagSetCache;
+import fr.ramiere.stage.LoadShedder;
+import fr.ramiere.stage.RateEngine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static fr.ramiere.parser.JsonCollectdParser.*;
+
+public class StreamingJsonCollectdParser implements MearsurementParser {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final JsonFactory factory = mapper.getFactory().disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+    private final TagSetCache tagSets;
+    private final MeasurementDictionary dictionary;
+    private final RateEngine rates;
+    private final MetaTagPlans plans = new MetaTagPlans();
+    private final CollectdFilter filter;
+    private final LoadShedder shedder;
+
+    public StreamingJsonCollectdParser() {
+        this((TagSetCache) null);
+    }
+
+    public StreamingJsonCollectdParser(TagSetCache tagSets) {
+        this(tagSets, null);
+    }
+
+    /**
+     * @param filter rules dropping value lists while they are read, null to keep them all
+     */
+    public StreamingJsonCollectdParser(TagSetCache tagSets, CollectdFilter filter) {
+        this(tagSets, filter, null);
+    }
+
+    /**
+     * @param shedder tells which value lists must not have their meta tags expanded, null to always expand them
+     */
+    public StreamingJsonCollectdParser(TagSetCache tagSets, CollectdFilter filter, LoadShedder shedder) {
+        this.tagSets = tagSets;
+        this.dictionary = null;
+        this.rates = null;
+        this.filter = filter;
+        this.shedder = shedder;
+    }
+
+    /**
+     * Turns counter, derive and absolute values into per-second rates, series are keyed by ids of {@code dictionary}.
+     * The engine is not thread-safe, so neither is this parser.
+     */
+    public StreamingJsonCollectdParser(MeasurementDictionary dictionary, RateEngine rates) {
+        this(dictionary, rates, null);
+    }
+
+    public StreamingJsonCollectdParser(MeasurementDictionary dictionary, RateEngine rates, CollectdFilter filter) {
+        this(dictionary, rates, filter, null);
+    }
+
+    public StreamingJsonCollectdParser(MeasurementDictionary dictionary, RateEngine rates, CollectdFilter filter, LoadShedder shedder) {
+        this.tagSets = dictionary.tagSets();
+        this.dictionary = dictionary;
+        this.rates = rates;
+        this.filter = filter;
+        this.shedder = shedder;
+    }
+
+    private CollectdValueList newValueList() {
+        return new CollectdValueList(tagSets, dictionary, rates, plans);
+    }
+
+    @Override
+    public boolean accept(String json) throws IOException {
+        try (JsonParser parser = factory.createParser(json)) {
+            return read(parser, null).isValid();
+        }
+    }
+
+    @Override
+    public boolean accept(JsonNode node) {
+        try (JsonParser parser = mapper.treeAsTokens(node)) {
+            return read(parser, null).isValid();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public List<Measurement> toValues(String json) throws IOException {
+        try (JsonParser parser = factory.createParser(json)) {
+            return read(parser).toMeasurements();
+        }
+    }
+
+    @Override
+    public List<Measurement> toValues(JsonNode node) {
+        try (JsonParser parser = mapper.treeAsTokens(node)) {
+            return read(parser).toMeasurements();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(NOT_A_VALID_COLLECTD_METRIC, e);
+        }
+    }
+
+    @Override
+    public List<Measurement> toValues(byte[] data, int offset, int length) throws IOException {
+        try (JsonParser parser = factory.createParser(data, offset, length)) {
+            return JsonRecords.readAll(parser, new ValueListReader());
+        }
+    }
+
+    @Override
+    public List<Measurement> toValues(ByteBuffer buffer) throws IOException {
+        try (JsonParser parser = JsonRecords.createParser(factory, buffer)) {
+            return JsonRecords.readAll(parser, new ValueListReader());
+        }
+    }
+
+    @Override
+    public List<Measurement> toValues(InputStream in) throws IOException {
+        try (JsonParser parser = factory.createParser(in)) {
+            return JsonRecords.readAll(parser, new ValueListReader());
+        }
+    }
+
+    @Override
+    public void toBatch(byte[] data, int offset, int length, MeasurementBatch batch) throws IOException {
+        int size = batch.size();
+        try (JsonParser parser = factory.createParser(data, offset, length)) {
+            JsonRecords.readAll(parser, batch, new BatchReader());
+        } catch (IOException | RuntimeException e) {
+            batch.truncate(size);
+            throw e;
+        }
+    }
+
+    @Override
+    public ParseResult parse(String json) throws IOException {
+        try (JsonParser parser = factory.createParser(json)) {
+            return parseSingle(parser);
+        }
+    }
+
+    @Override
+    public ParseResult parse(JsonNode node) {
+        try (JsonParser parser = mapper.treeAsTokens(node)) {
+            return parseSingle(parser);
+        } catch (IOException e) {
+            return Rejection.of(RejectReason.MALFORMED_JSON).result();
+        }
+    }
+
+    private ParseResult parseSingle(JsonParser parser) throws IOException {
+        List<Measurement> measurements = new ArrayList<>();
+        try {
+            Rejection rejection = read(parser).tryMeasurements(measurements);
+            return rejection == null ? ParseResult.of(measurements) : rejection.result();
+        } catch (JsonProcessingException e) {
+            return Rejection.of(RejectReason.MALFORMED_JSON).result();
+        }
+    }
+
+    @Override
+    public ParseResult parse(byte[] data, int offset, int length) throws IOException {
+        try (JsonParser parser = factory.createParser(data, offset, length)) {
+            return JsonRecords.parseAll(parser, new CheckedValueListReader());
+        }
+    }
+
+    private class CheckedValueListReader implements JsonRecords.CheckedRecordReader<List<Measurement>> {
+        private final CollectdValueList valueList = newValueList();
+
+        @Override
+        public Rejection read(JsonParser parser, List<Measurement> measurements) throws IOException {
+            valueList.reset();
+            if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                return CollectdValueList.NOT_AN_OBJECT;
+            }
+            readObject(parser, valueList);
+            return valueList.tryMeasurements(measurements);
+        }
+    }
+
+    @Override
+    public int push(byte[] data, int offset, int length, MeasurementSink sink) throws IOException {
+        try (JsonParser parser = factory.createParser(data, offset, length)) {
+            SinkReader reader = new SinkReader();
+            JsonRecords.readAll(parser, sink, reader);
+            return reader.pushed;
+        }
+    }
+
+    private class SinkReader implements JsonRecords.RecordReader<MeasurementSink> {
+        private final CollectdValueList valueList = newValueList();
+        private final MutableMeasurement flyweight = new MutableMeasurement();
+        int pushed;
+
+        @Override
+        public void read(JsonParser parser, MeasurementSink sink) throws IOException {
+            valueList.reset();
+            readRecord(parser, valueList);
+            pushed += valueList.push(sink, flyweight);
+        }
+    }
+
+    private class BatchReader implements JsonRecords.RecordReader<MeasurementBatch> {
+        private final CollectdValueList valueList = newValueList();
+
+        @Override
+        public void read(JsonParser parser, MeasurementBatch batch) throws IOException {
+            valueList.reset();
+            readRecord(parser, valueList);
+            valueList.toBatch(batch);
+        }
+    }
+
+    private class ValueListReader implements JsonRecords.RecordReader<List<Measurement>> {
+        private final CollectdValueList valueList = newValueList();
+
+        @Override
+        public void read(JsonParser parser, List<Measurement> measurements) throws IOException {
+            valueList.reset();
+            readRecord(parser, valueList);
+            valueList.toMeasurements(measurements);
+        }
+    }
+
+    private void readRecord(JsonParser parser, CollectdValueList valueList) throws IOException {
+        if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            throw CollectdValueList.NOT_AN_OBJECT.exception(NOT_A_VALID_COLLECTD_METRIC);
+        }
+        readObject(parser, valueList);
+    }
+
+    CollectdValueList read(JsonParser parser) throws IOException {
+        return read(parser, filter);
+    }
+
+    /**
+     * @param filter null to read the value list whatever the filter says, to check it is valid
+     */
+    private CollectdValueList read(JsonParser parser, CollectdFilter filter) throws IOException {
+        CollectdValueList valueList = newValueList();
+        if (parser.nextToken() == JsonToken.START_OBJECT) {
+            readObject(parser, valueList, filter);
+        }
+        return valueList;
+    }
+
+    void readObject(JsonParser parser, CollectdValueList valueList) throws IOException {
+        readObject(parser, valueList, filter);
+    }
+
+    private void readObject(JsonParser parser, CollectdValueList valueList, CollectdFilter filter) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            switch (field) {
+                case FIELD_VALUES:
+                    valueList.valueCount = -1;
+                    if (token == JsonToken.START_ARRAY) {
+                        valueList.valueCount = 0;
+                        while (parser.nextToken() != JsonToken.END_ARRAY) {
+                            valueList.addValue(asDouble(parser));
+                        }
+                    }
+                    break;
+                case FIELD_DSTYPES:
+                    valueList.dstypes = token == JsonToken.START_ARRAY;
+                    valueList.dsTypeCount = 0;
+                    if (valueList.dstypes) {
+                        while (parser.nextToken() != JsonToken.END_ARRAY) {
+                            valueList.addDsType(parser.getCurrentToken() == JsonToken.VALUE_STRING ? DsType.of(parser.getText()) : DsType.GAUGE);
+                            parser.skipChildren();
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                    break;
+                case FIELD_DSNAMES:
+                    valueList.dsnameCount = -1;
+                    if (token == JsonToken.START_ARRAY) {
+                        valueList.dsnameCount = 0;
+                        while (parser.nextToken() != JsonToken.END_ARRAY) {
+                            valueList.addDsname(asText(parser));
+                        }
+                    }
+                    break;
+                case FIELD_INTERVAL:
+                    valueList.interval = token.isNumeric();
+                    valueList.intervalSeconds = token.isNumeric() ? parser.getDoubleValue() : 0;
+                    parser.skipChildren();
+                    break;
+                case FIELD_TIME:
+                    valueList.timeIsNumeric = token.isNumeric();
+                    valueList.time = token.isNumeric() ? parser.getDoubleValue() : 0;
+                    parser.skipChildren();
+                    break;
+                case FIELD_HOST:
+                    if (filtered(parser, token, filter, CollectdFilter.Field.HOST)) {
+                        skipFiltered(parser, valueList);
+                        return;
+                    }
+                    valueList.host = textual(parser, token);
+                    break;
+                case FIELD_PLUGIN:
+                    if (filtered(parser, token, filter, CollectdFilter.Field.PLUGIN)) {
+                        skipFiltered(parser, valueList);
+                        return;
+                    }
+                    valueList.plugin = textual(parser, token);
+                    break;
+                case FIELD_PLUGIN_INSTANCE:
+                    valueList.pluginInstance = textual(parser, token);
+                    break;
+                case FIELD_TYPE:
+                    if (filtered(parser, token, filter, CollectdFilter.Field.TYPE)) {
+                        skipFiltered(parser, valueList);
+                        return;
+                    }
+                    valueList.type = textual(parser, token);
+                    break;
+                case FIELD_TYPE_INSTANCE:
+                    if (filtered(parser, token, filter, CollectdFilter.Field.TYPE_INSTANCE)) {
+                        skipFiltered(parser, valueList);
+                        return;
+                    }
+                    valueList.typeInstance = textual(parser, token);
+                    break;
+                case FIELD_META:
+                    valueList.meta = token == JsonToken.START_OBJECT;
+                    valueList.metaCount = 0;
+                    if (valueList.meta && !readMeta(parser, valueList, filter)) {
+                        skipFiltered(parser, valueList);
+                        return;
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+        valueList.filtered = filter != null && filter.dropsMissing(valueList);
+        if (shedder != null && !valueList.filtered) {
+            valueList.shedMeta(shedder);
+        }
+    }
+
+    /**
+     * @return false when the value list was dropped by the filter, the meta object is then skipped
+     */
+    private boolean readMeta(JsonParser parser, CollectdValueList valueList, CollectdFilter filter) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String key = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (filter != null && token == JsonToken.VALUE_STRING
+                    && filter.dropsMeta(key, parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength())) {
+                skipObject(parser);
+                return false;
+            }
+            valueList.putMeta(key, asText(parser), token == JsonToken.VALUE_STRING, token == JsonToken.VALUE_NULL);
+        }
+        return true;
+    }
+
+    private static boolean filtered(JsonParser parser, JsonToken token, CollectdFilter filter, CollectdFilter.Field field) throws IOException {
+        return filter != null && token == JsonToken.VALUE_STRING
+                && filter.drops(field, parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+    }
+
+    private static void skipFiltered(JsonParser parser, CollectdValueList valueList) throws IOException {
+        valueList.filtered = true;
+        skipObject(parser);
+    }
+
+    /**
+     * Skips the fields left in the current object, from a scalar value up to the end of the object.
+     */
+    private static void skipObject(JsonParser parser) throws IOException {
+        JsonToken token = parser.nextToken();
+        while (token != JsonToken.END_OBJECT && token != null) {
+            parser.skipChildren();
+            token = parser.nextToken();
+        }
+    }
+
+    private String textual(JsonParser parser, JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_STRING) {
+            return parser.getText();
+        }
+        parser.skipChildren();
+        return null;
+    }
+
+    static String asText(JsonParser parser) throws IOException {
+        switch (parser.getCurrentToken()) {
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+                switch (parser.getNumberType()) {
+                    case INT:
+                        return String.valueOf(parser.getIntValue());
+                    case LONG:
+                        return String.valueOf(parser.getLongValue());
+                    default:
+                        return parser.getBigIntegerValue().toString();
+                }
+            case VALUE_NUMBER_FLOAT:
+                return String.valueOf(parser.getDoubleValue());
+            case VALUE_TRUE:
+                return "true";
+            case VALUE_FALSE:
+                return "false";
+            case VALUE_NULL:
+                return "null";
+            default:
+                parser.skipChildren();
+                return "";
+        }
+    }
+
+    static double asDouble(JsonParser parser) throws IOException {
+        switch (parser.getCurrentToken()) {
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parser.getDoubleValue();
+            case VALUE_STRING:
+                return NumberInput.parseAsDouble(parser.getText(), 0.0);
+            case VALUE_TRUE:
+                return 1.0;
+            default:
+                parser.skipChildren();
+                return 0.0;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package fr.ramiere.replay;
+
+import fr.ramiere.MearsurementParser;
+import fr.ramiere.Measurement;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays newline-delimited JSON files, e.g. archived Kafka dumps, through a parser on every core: files are memory
+ * mapped chunk by chunk, chunks end on a newline and are parsed in parallel on a fork/join pool, straight from the
+ * mapping through {@link MearsurementParser#toValues(ByteBuffer)}. A chunk is parsed in one go; when a line of it is
+ * rejected the chunk is parsed again line by line, so that the rejected lines are counted and skipped without losing
+ * the others.
+ * <p>
+ * An ordered replay hands chunks to the sink in file order from the calling thread, an unordered one hands them over
+ * from the workers as soon as they are parsed. In both cases at most two chunks per worker are in flight, so memory
+ * does not grow with the size of the files. The parser is shared by the workers and must be thread-safe, which every
+ * parser is unless given a rate engine.
+ */
+public class ReplayEngine implements Closeable {
+    static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int SCAN_SIZE = 8192;
+
+    private final MearsurementParser parser;
+    private final ForkJoinPool pool;
+    private final boolean ownsPool;
+    private final int chunkSize;
+    private final boolean ordered;
+    private final Object sinkLock = new Object();
+
+    private final AtomicLong chunks = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong measurements = new AtomicLong();
+    private final AtomicLong rejectedLines = new AtomicLong();
+    private volatile long startNanos;
+
+    public ReplayEngine(MearsurementParser parser, boolean ordered) {
+        this(parser, new ForkJoinPool(), true, DEFAULT_CHUNK_SIZE, ordered);
+    }
+
+    /**
+     * @param pool pool of the workers, left running by {@link #close()}
+     */
+    public ReplayEngine(MearsurementParser parser, ForkJoinPool pool, int chunkSize, boolean ordered) {
+        this(parser, pool, false, chunkSize, ordered);
+    }
+
+    private ReplayEngine(MearsurementParser parser, ForkJoinPool pool, boolean ownsPool, int chunkSize, boolean ordered) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        this.parser = parser;
+        this.pool = pool;
+        this.ownsPool = ownsPool;
+        this.chunkSize = chunkSize;
+        this.ordered = ordered;
+    }
+
+    /**
+     * Replays {@code files} one after the other, returning once every chunk was handed to the sink.
+     *
+     * @return the final report
+     */
+    public ReplayReport replay(List<Path> files, ReplaySink sink) throws IOException {
+        chunks.set(0);
+        bytes.set(0);
+        measurements.set(0);
+        rejectedLines.set(0);
+        startNanos = System.nanoTime();
+
+        int maxInFlight = pool.getParallelism() * 2;
+        Deque<ChunkTask> inFlight = new ArrayDeque<>(maxInFlight);
+        try {
+            for (Path file : files) {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    long size = channel.size();
+                    long from = 0;
+                    while (from < size) {
+                        long to = chunkEnd(channel, from, size);
+                        ChunkTask task = new ChunkTask(file, from, channel.map(FileChannel.MapMode.READ_ONLY, from, to - from), sink);
+                        pool.execute(task);
+                        inFlight.add(task);
+                        while (inFlight.size() >= maxInFlight) {
+                            complete(inFlight.poll(), sink);
+                        }
+                        from = to;
+                    }
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                complete(inFlight.poll(), sink);
+            }
+        } finally {
+            for (ChunkTask task : inFlight) {
+                task.cancel(false);
+            }
+        }
+        return progress();
+    }
+
+    /**
+     * @return what the current or last replay did so far, safe to call from any thread
+     */
+    public ReplayReport progress() {
+        return new ReplayReport(chunks.get(), bytes.get(), measurements.get(), rejectedLines.get(), System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public void close() {
+        if (ownsPool) {
+            pool.shutdown();
+        }
+    }
+
+    private void complete(ChunkTask task, ReplaySink sink) throws IOException {
+        task.join();
+        if (task.failure != null) {
+            throw task.failure;
+        }
+        if (ordered) {
+            sink.write(task.file, task.offset, task.measurements);
+        }
+    }
+
+    /**
+     * @return the position just after the first newline found from {@code from + chunkSize - 1}, the file size when
+     * there is none
+     */
+    private long chunkEnd(FileChannel channel, long from, long size) throws IOException {
+        long position = from + chunkSize - 1;
+        ByteBuffer scan = ByteBuffer.allocate(SCAN_SIZE);
+        while (position < size) {
+            scan.clear();
+            int read = channel.read(scan, position);
+            for (int i = 0; i < read; i++) {
+                if (scan.get(i) == '\n') {
+                    return checkChunk(from, position + i + 1);
+                }
+            }
+            position += Math.max(read, 0);
+        }
+        return checkChunk(from, size);
+    }
+
+    private static long checkChunk(long from, long to) throws IOException {
+        if (to - from > Integer.MAX_VALUE) {
+            throw new IOException("Line at " + from + " does not fit in a chunk");
+        }
+        return to;
+    }
+
+    private class ChunkTask extends RecursiveAction {
+        final Path file;
+        final long offset;
+        private final MappedByteBuffer chunk;
+        private final ReplaySink sink;
+        List<Measurement> measurements;
+        IOException failure;
+
+        ChunkTask(Path file, long offset, MappedByteBuffer chunk, ReplaySink sink) {
+            this.file = file;
+            this.offset = offset;
+            this.chunk = chunk;
+            this.sink = sink;
+        }
+
+        @Override
+        protected void compute() {
+            int length = chunk.remaining();
+            measurements = parse();
+
+            chunks.incrementAndGet();
+            bytes.addAndGet(length);
+            ReplayEngine.this.measurements.addAndGet(measurements.size());
+            if (!ordered) {
+                try {
+                    synchronized (sinkLock) {
+                        sink.write(file, offset, measurements);
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                }
+                measurements = null;
+            }
+        }
+
+        private List<Measurement> parse() {
+            try {
+                return parser.toValues(chunk.duplicate());
+            } catch (Exception e) {
+                // parsed again line by line below
+            }
+            List<Measurement> ret = new ArrayList<>();
+            int start = chunk.position();
+            int limit = chunk.limit();
+            for (int i = start; i <= limit; i++) {
+                if (i == limit || chunk.get(i) == '\n') {
+                    if (!isBlank(chunk, start, i)) {
+                        parseLine(start, i, ret);
+                    }
+                    start = i + 1;
+                }
+            }
+            return ret.isEmpty() ? Collections.<Measurement>emptyList() : ret;
+        }
+
+        private void parseLine(int from, int to, List<Measurement> ret) {
+            ByteBuffer line = chunk.duplicate();
+            line.limit(to).position(from);
+            try {
+                ret.addAll(parser.toValues(line));
+            } catch (Exception e) {
+                rejectedLines.incrementAndGet();
+            }
+        }
+    }
+
+    private static boolean isBlank(ByteBuffer data, int from, int to) {
+        for (int i = from; i < to; i++) {
+            byte b = data.get(i);
+            if (b != ' ' && b != '\t' && b != '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,60 @@
+package fr.ramiere.replay;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Progress of a replay: what was read and parsed so far, and how fast.
+ */
+public final class ReplayReport {
+    private final long chunks;
+    private final long bytes;
+    private final long measurements;
+    private final long rejectedLines;
+    private final long elapsedNanos;
+
+    ReplayReport(long chunks, long bytes, long measurements, long rejectedLines, long elapsedNanos) {
+        this.chunks = chunks;
+        this.bytes = bytes;
+        this.measurements = measurements;
+        this.rejectedLines = rejectedLines;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public long getChunks() {
+        return chunks;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getMeasurements() {
+        return measurements;
+    }
+
+    public long getRejectedLines() {
+        return rejectedLines;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public double getBytesPerSecond() {
+        return perSecond(bytes);
+    }
+
+    public double getMeasurementsPerSecond() {
+        return perSecond(measurements);
+    }
+
+    private double perSecond(long count) {
+        return elapsedNanos <= 0 ? 0 : count * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d bytes in %d chunks, %d measurements, %d rejected lines in %.3f s (%.1f MB/s, %.0f measurements/s)",
+                bytes, chunks, measurements, rejectedLines, elapsedNanos / 1e9, getBytesPerSecond() / (1024 * 1024), getMeasurementsPerSecond());
+    }
+}
@@ -0,0 +1,18 @@
+package fr.ramiere.replay;
+
+import fr.ramiere.Measurement;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Receives the measurements parsed from one chunk of a replayed file. Never called concurrently; when the replay is
+ * ordered, chunks come in file order, otherwise as soon as they are parsed. Throwing stops the replay.
+ */
+public interface ReplaySink {
+    /**
+     * @param offset position of the chunk in {@code file}
+     */
+    void write(Path file, long offset, List<Measurement> measurements) throws IOException;
+}
@@ -0,0 +1,105 @@
+package fr.ramiere.stage;
+
+import fr.ramiere.Measurement;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drains a {@link MeasurementRingBuffer} into batches handed to a {@link BatchHandler}: a batch is flushed once it
+ * holds {@code batchSize} points, or once its first point waited {@code lingerMillis}. Several consumers may drain
+ * the same ring, each point then goes to one of them. Run it on its own thread; {@link #stop()} makes it flush what is
+ * left in the ring and return.
+ */
+public class BatchingConsumer implements Runnable {
+
+    public interface BatchHandler {
+        /**
+         * Called from the consumer thread; the list is reused once the call returns. A batch whose handling throws
+         * is dropped and counted by {@link #failedBatches()}.
+         */
+        void onBatch(List<Measurement> batch) throws Exception;
+    }
+
+    private final MeasurementRingBuffer ring;
+    private final int batchSize;
+    private final long lingerNanos;
+    private final BatchHandler handler;
+    private final WaitStrategy waitStrategy;
+    private final List<Measurement> batch;
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+    private volatile boolean running = true;
+
+    public BatchingConsumer(MeasurementRingBuffer ring, int batchSize, long lingerMillis, BatchHandler handler) {
+        if (batchSize < 1 || lingerMillis < 0) {
+            throw new IllegalArgumentException("batchSize must be positive and linger not negative");
+        }
+        this.ring = ring;
+        this.batchSize = batchSize;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.handler = handler;
+        this.waitStrategy = ring.waitStrategy();
+        this.batch = new ArrayList<>(batchSize);
+    }
+
+    @Override
+    public void run() {
+        long firstNanos = 0;
+        int attempt = 0;
+        try {
+            while (running || !ring.isEmpty()) {
+                boolean wasEmpty = batch.isEmpty();
+                int drained = ring.drainTo(batch, batchSize - batch.size());
+                long now = System.nanoTime();
+                if (drained > 0) {
+                    attempt = 0;
+                    if (wasEmpty) {
+                        firstNanos = now;
+                    }
+                }
+                long lingered = now - firstNanos;
+                if (batch.size() >= batchSize || !batch.isEmpty() && (lingered >= lingerNanos || !running)) {
+                    flush();
+                } else if (drained == 0) {
+                    waitStrategy.idle(attempt++, batch.isEmpty() ? WaitStrategy.MAX_BLOCK_NANOS : lingerNanos - lingered);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!batch.isEmpty()) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Asks the consumer to flush what is left in the ring and return, producers should have stopped.
+     */
+    public void stop() {
+        running = false;
+        waitStrategy.signal();
+    }
+
+    public long batches() {
+        return batches.get();
+    }
+
+    public long failedBatches() {
+        return failedBatches.get();
+    }
+
+    private void flush() {
+        try {
+            handler.onBatch(batch);
+            batches.incrementAndGet();
+        } catch (Exception e) {
+            failedBatches.incrementAndGet();
+        } finally {
+            batch.clear();
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package fr.ramiere.stage;
+
+import fr.ramiere.Measurement;
+import fr.ramiere.MeasurementBatch;
+import fr.ramiere.MeasurementDictionary;
+import fr.ramiere.TagSet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caps the number of series per measurement name and overall, so that a plugin minting a new {@code type_instance} or
+ * added tag per process cannot flood the TSDB. Series are admitted on first sight until the limit of their name or
+ * the global one is reached, points of later series are then dropped, or aggregated: their values are summed and
+ * counted per name and window, and {@code flush} emits the sum and the count as two series of the name tagged
+ * {@code cardinality_limited=true} and {@code aggregate=sum} or {@code aggregate=count}.
+ * <p>
+ * Series are keyed on their name id and tag content, never on tag set ids which the dictionary recycles, in a primitive
+ * open-addressing table, so checking a known series is one probe. Admitted series idle for longer than
+ * {@code idleMillis} of point time are forgotten and free their place, the sweep runs at most once per
+ * {@code idleMillis / 16} while a limit is reached.
+ * <p>
+ * Every name also gets a {@link HyperLogLog} sketch of all its series, admitted or not, from which
+ * {@link #topOffenders(int)} reports the names with the most series. Not thread-safe: give the guard to the single
+ * stage seeing every series it should count.
+ */
+public class CardinalityGuard {
+    static final String OVERFLOW_TAG = "cardinality_limited";
+    static final String AGGREGATE_TAG = "aggregate";
+    static final TagSet OVERFLOW_SUM = overflowTags("sum");
+    static final TagSet OVERFLOW_COUNT = overflowTags("count");
+    private static final int UNRESOLVED = -1;
+
+    public enum Overflow {
+        DROP, AGGREGATE
+    }
+
+    private final MeasurementDictionary dictionary;
+    private final int perMetricLimit;
+    private final int globalLimit;
+    private final Overflow overflow;
+    private final int precision;
+    private final long idleMillis;
+    private final long sweepIntervalMillis;
+    private final long windowMillis;
+    private final Map<String, Integer> limitsByName = new HashMap<>();
+    private final HyperLogLog global;
+    private final Downsampler overflowWindows;
+    private final LongKeyTable table = new LongKeyTable(1024);
+
+    private HyperLogLog[] sketches = new HyperLogLog[64];
+    private int[] limits = filled(64, UNRESOLVED);
+    private int[] admittedByName = new int[64];
+    private long[] limitedByName = new long[64];
+    private int[] nameIds = new int[table.capacity()];
+    private long[] seenTimes = new long[table.capacity()];
+    private long newestTime = Long.MIN_VALUE;
+    private long lastSweep = Long.MIN_VALUE;
+    private long dropped;
+    private long aggregated;
+
+    public CardinalityGuard(MeasurementDictionary dictionary, int perMetricLimit, int globalLimit, Overflow overflow) {
+        this(dictionary, perMetricLimit, globalLimit, overflow, 10);
+    }
+
+    /**
+     * @param precision precision of the sketch of every name, which takes {@code 2^precision} bytes
+     */
+    public CardinalityGuard(MeasurementDictionary dictionary, int perMetricLimit, int globalLimit, Overflow overflow, int precision) {
+        this(dictionary, perMetricLimit, globalLimit, overflow, precision, 60 * 60 * 1000L, 60 * 1000L);
+    }
+
+    /**
+     * @param idleMillis   time without points after which an admitted series gives its place back
+     * @param windowMillis length of the windows aggregated series are summed and counted over
+     */
+    public CardinalityGuard(MeasurementDictionary dictionary, int perMetricLimit, int globalLimit, Overflow overflow, int precision,
+                            long idleMillis, long windowMillis) {
+        if (perMetricLimit < 1 || globalLimit < 1) {
+            throw new IllegalArgumentException("limits must be positive");
+        }
+        this.dictionary = dictionary;
+        this.perMetricLimit = perMetricLimit;
+        this.globalLimit = globalLimit;
+        this.overflow = overflow;
+        this.precision = precision;
+        this.idleMillis = idleMillis;
+        this.sweepIntervalMillis = Math.max(1, idleMillis / 16);
+        this.windowMillis = windowMillis;
+        this.global = new HyperLogLog(Math.min(precision + 4, 18));
+        this.overflowWindows = new Downsampler(windowMillis, windowMillis, 64);
+    }
+
+    /**
+     * Overrides the per-metric limit of {@code name}; series already admitted stay admitted.
+     */
+    public void setLimit(String name, int limit) {
+        limitsByName.put(name, limit);
+        int nameId = dictionary.nameId(name);
+        if (nameId < limits.length) {
+            limits[nameId] = limit;
+        }
+    }
+
+    /**
+     * @return true when the point belongs to an admitted series and must be emitted as is, false when it was dropped
+     * or folded into the overflow aggregates of its name
+     */
+    public boolean accept(int nameId, TagSet tags, long timeMillis, double value) {
+        if (timeMillis > newestTime) {
+            newestTime = timeMillis;
+        }
+        long key = RateEngine.seriesKey(nameId, tags);
+        int entry = table.find(key);
+        if (entry >= 0) {
+            if (timeMillis > seenTimes[entry]) {
+                seenTimes[entry] = timeMillis;
+            }
+            return true;
+        }
+        ensureName(nameId);
+        sketch(nameId).add(key);
+        global.add(key);
+        if (!hasRoom(nameId)) {
+            sweepIfDue();
+        }
+        if (hasRoom(nameId)) {
+            insert(key, nameId, timeMillis);
+            return true;
+        }
+        limitedByName[nameId]++;
+        if (overflow == Overflow.DROP) {
+            dropped++;
+        } else {
+            aggregated++;
+            overflowWindows.add(nameId, OVERFLOW_SUM, timeMillis, value, 0);
+        }
+        return false;
+    }
+
+    /**
+     * Removes the rows of limited series from {@code batch}, keeping the order of the others. Rows whose tag set has
+     * already been evicted from the dictionary cannot be keyed and are kept.
+     *
+     * @return the number of rows removed
+     */
+    public int filter(MeasurementBatch batch) {
+        int kept = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            TagSet tags = batch.tags(i);
+            if (tags == null || accept(batch.nameId(i), tags, batch.time(i), batch.value(i))) {
+                if (kept != i) {
+                    batch.copyRow(i, kept);
+                }
+                kept++;
+            }
+        }
+        int removed = batch.size() - kept;
+        batch.truncate(kept);
+        return removed;
+    }
+
+    /**
+     * Same as {@link #filter(MeasurementBatch)}, names are keyed by ids of the dictionary of the guard.
+     */
+    public int filter(List<Measurement> measurements) {
+        int kept = 0;
+        int size = measurements.size();
+        for (int i = 0; i < size; i++) {
+            Measurement measurement = measurements.get(i);
+            if (accept(dictionary.nameId(measurement.getName()), TagSet.of(measurement.getTags()),
+                    Math.round(measurement.getTime()), measurement.getValue())) {
+                measurements.set(kept++, measurement);
+            }
+        }
+        measurements.subList(kept, size).clear();
+        return size - kept;
+    }
+
+    /**
+     * Writes the sum and the count of every finished overflow window to {@code out}, stamped with the window start.
+     * A window is finished one window length after its end, points arriving later for it are dropped.
+     *
+     * @return the number of windows emitted
+     */
+    public int flush(MeasurementBatch out) {
+        return overflowWindows.flush(rollups(out));
+    }
+
+    /**
+     * Same as {@link #flush(MeasurementBatch)} for every open overflow window, typically on shutdown.
+     */
+    public int flushAll(MeasurementBatch out) {
+        return overflowWindows.flushAll(rollups(out));
+    }
+
+    private Downsampler.RollupListener rollups(final MeasurementBatch out) {
+        final MeasurementDictionary dictionary = out.dictionary();
+        return new Downsampler.RollupListener() {
+            @Override
+            public void rollup(int nameId, TagSet tags, long windowStart, double min, double max, double sum, long count, double last) {
+                out.add(nameId, windowStart, sum, dictionary.tagSets().intern(OVERFLOW_SUM), windowMillis);
+                out.add(nameId, windowStart, count, dictionary.tagSets().intern(OVERFLOW_COUNT), windowMillis);
+            }
+        };
+    }
+
+    /**
+     * @return the estimated number of distinct series of {@code name} seen so far, admitted or not
+     */
+    public double estimate(String name) {
+        int nameId = dictionary.nameId(name);
+        return nameId < sketches.length && sketches[nameId] != null ? sketches[nameId].estimate() : 0;
+    }
+
+    /**
+     * @return the estimated number of distinct series seen so far, admitted or not
+     */
+    public double globalEstimate() {
+        return global.estimate();
+    }
+
+    /**
+     * @return the {@code count} names with the most estimated series, most first
+     */
+    public List<Offender> topOffenders(int count) {
+        List<Offender> offenders = new ArrayList<>();
+        for (int nameId = 0; nameId < sketches.length; nameId++) {
+            if (sketches[nameId] != null) {
+                offenders.add(new Offender(dictionary.name(nameId), sketches[nameId].estimate(), admittedByName[nameId], limitedByName[nameId]));
+            }
+        }
+        Collections.sort(offenders, new Comparator<Offender>() {
+            @Override
+            public int compare(Offender a, Offender b) {
+                return Double.compare(b.estimate, a.estimate);
+            }
+        });
+        return offenders.subList(0, Math.min(count, offenders.size()));
+    }
+
+    public int admitted() {
+        return table.size();
+    }
+
+    public long dropped() {
+        return dropped;
+    }
+
+    public long aggregated() {
+        return aggregated;
+    }
+
+    public static final class Offender {
+        private final String name;
+        private final double estimate;
+        private final int admitted;
+        private final long limited;
+
+        Offender(String name, double estimate, int admitted, long limited) {
+            this.name = name;
+            this.estimate = estimate;
+            this.admitted = admitted;
+            this.limited = limited;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the estimated number of distinct series, admitted or not
+         */
+        public double getEstimate() {
+            return estimate;
+        }
+
+        public int getAdmitted() {
+            return admitted;
+        }
+
+        /**
+         * @return the number of points dropped or aggregated
+         */
+        public long getLimited() {
+            return limited;
+        }
+
+        @Override
+        public String toString() {
+            return name + " ~" + Math.round(estimate) + " series, " + admitted + " admitted, " + limited + " points limited";
+        }
+    }
+
+    private int limit(int nameId) {
+        if (limits[nameId] == UNRESOLVED) {
+            Integer limit = limitsByName.get(dictionary.name(nameId));
+            limits[nameId] = limit != null ? limit : perMetricLimit;
+        }
+        return limits[nameId];
+    }
+
+    private boolean hasRoom(int nameId) {
+        return admittedByName[nameId] < limit(nameId) && table.size() < globalLimit;
+    }
+
+    private HyperLogLog sketch(int nameId) {
+        if (sketches[nameId] == null) {
+            sketches[nameId] = new HyperLogLog(precision);
+        }
+        return sketches[nameId];
+    }
+
+    private static TagSet overflowTags(String aggregate) {
+        Map<String, String> tags = new HashMap<>();
+        tags.put(OVERFLOW_TAG, "true");
+        tags.put(AGGREGATE_TAG, aggregate);
+        return TagSet.of(tags);
+    }
+
+    private void ensureName(int nameId) {
+        if (nameId < sketches.length) {
+            return;
+        }
+        int size = Integer.highestOneBit(nameId) * 2;
+        int resolved = limits.length;
+        sketches = Arrays.copyOf(sketches, size);
+        limits = Arrays.copyOf(limits, size);
+        Arrays.fill(limits, resolved, size, UNRESOLVED);
+        admittedByName = Arrays.copyOf(admittedByName, size);
+        limitedByName = Arrays.copyOf(limitedByName, size);
+    }
+
+    private static int[] filled(int size, int value) {
+        int[] array = new int[size];
+        Arrays.fill(array, value);
+        return array;
+    }
+
+    private void insert(long key, int nameId, long timeMillis) {
+        int entry = table.insert(key);
+        if (entry >= seenTimes.length) {
+            nameIds = Arrays.copyOf(nameIds, table.capacity());
+            seenTimes = Arrays.copyOf(seenTimes, table.capacity());
+        }
+        nameIds[entry] = nameId;
+        seenTimes[entry] = timeMillis;
+        admittedByName[nameId]++;
+    }
+
+    /**
+     * Forgets the admitted series without points since {@code nowMillis - idleMillis}.
+     */
+    public void evictIdle(long nowMillis) {
+        long oldest = nowMillis - idleMillis;
+        for (int entry = 0; entry < table.limit(); entry++) {
+            if (table.key(entry) != LongKeyTable.EMPTY && seenTimes[entry] < oldest) {
+                admittedByName[nameIds[entry]]--;
+                table.remove(entry);
+            }
+        }
+    }
+
+    private void sweepIfDue() {
+        if (lastSweep == Long.MIN_VALUE || newestTime - lastSweep >= sweepIntervalMillis) {
+            lastSweep = newestTime;
+            evictIdle(newestTime);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package fr.ramiere.stage;
+
+import fr.ramiere.Measurement;
+import fr.ramiere.MeasurementBatch;
+import fr.ramiere.MeasurementDictionary;
+import fr.ramiere.TagSet;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Drops points repeating the last emitted value of their series, keeping the last emitted (time, value bits) of every
+ * series in a primitive open-addressing table. An unchanged value is still emitted as a heartbeat once
+ * {@code heartbeatIntervals} reporting intervals have passed since the last emitted point, so that a steady series is
+ * not mistaken for a dead one. Values are compared bit for bit: NaN repeats NaN, 0.0 and -0.0 differ.
+ * <p>
+ * The interval is the collectd one carried by {@link MeasurementBatch}, {@code defaultIntervalMillis} when unknown.
+ * Series are keyed on {@link RateEngine#seriesKey(int, TagSet)}, series idle for longer than {@code idleMillis} are
+ * evicted, at most once per {@code idleMillis / 16} of point time. Not thread-safe: give each worker its own
+ * deduplicator.
+ */
+public class Deduplicator {
+    private final int heartbeatIntervals;
+    private final long defaultIntervalMillis;
+    private final long idleMillis;
+    private final long sweepIntervalMillis;
+    private final LongKeyTable table = new LongKeyTable(1024);
+    private long[] emittedTimes = new long[table.capacity()];
+    private long[] emittedBits = new long[table.capacity()];
+    private long[] seenTimes = new long[table.capacity()];
+    private long newestTime = Long.MIN_VALUE;
+    private long lastSweep = Long.MIN_VALUE;
+    private long suppressed;
+
+    public Deduplicator(int heartbeatIntervals, long defaultIntervalMillis) {
+        this(heartbeatIntervals, defaultIntervalMillis, 60 * 60 * 1000L);
+    }
+
+    public Deduplicator(int heartbeatIntervals, long defaultIntervalMillis, long idleMillis) {
+        if (heartbeatIntervals < 1 || defaultIntervalMillis <= 0) {
+            throw new IllegalArgumentException("heartbeat and default interval must be positive");
+        }
+        this.heartbeatIntervals = heartbeatIntervals;
+        this.defaultIntervalMillis = defaultIntervalMillis;
+        this.idleMillis = idleMillis;
+        this.sweepIntervalMillis = Math.max(1, idleMillis / 16);
+    }
+
+    /**
+     * @param intervalMillis reporting interval of the series, 0 when unknown
+     * @return true when the point must be emitted
+     */
+    public boolean accept(long key, long timeMillis, double value, long intervalMillis) {
+        if (timeMillis > newestTime) {
+            newestTime = timeMillis;
+        }
+        long bits = Double.doubleToLongBits(value);
+        int entry = table.find(key);
+        if (entry < 0) {
+            insert(key, timeMillis, bits);
+            return true;
+        }
+        if (timeMillis > seenTimes[entry]) {
+            seenTimes[entry] = timeMillis;
+        }
+        long heartbeat = heartbeatIntervals * (intervalMillis > 0 ? intervalMillis : defaultIntervalMillis);
+        if (bits == emittedBits[entry] && timeMillis - emittedTimes[entry] < heartbeat) {
+            suppressed++;
+            return false;
+        }
+        emittedBits[entry] = bits;
+        if (timeMillis > emittedTimes[entry]) {
+            emittedTimes[entry] = timeMillis;
+        }
+        return true;
+    }
+
+    /**
+     * Removes suppressed rows from {@code batch}, keeping the order of the others. Rows whose tag set has already been
+     * evicted from the dictionary cannot be keyed and are kept.
+     *
+     * @return the number of rows removed
+     */
+    public int filter(MeasurementBatch batch) {
+        int kept = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            TagSet tags = batch.tags(i);
+            if (tags == null || accept(RateEngine.seriesKey(batch.nameId(i), tags), batch.time(i), batch.value(i), batch.interval(i))) {
+                if (kept != i) {
+                    batch.copyRow(i, kept);
+                }
+                kept++;
+            }
+        }
+        int removed = batch.size() - kept;
+        batch.truncate(kept);
+        return removed;
+    }
+
+    /**
+     * Removes suppressed measurements from {@code measurements}, names are keyed by ids of {@code dictionary}.
+     *
+     * @return the number of measurements removed
+     */
+    public int filter(List<Measurement> measurements, MeasurementDictionary dictionary) {
+        int kept = 0;
+        int size = measurements.size();
+        for (int i = 0; i < size; i++) {
+            Measurement measurement = measurements.get(i);
+            long key = RateEngine.seriesKey(dictionary.nameId(measurement.getName()), TagSet.of(measurement.getTags()));
+            if (accept(key, Math.round(measurement.getTime()), measurement.getValue(), 0)) {
+                if (kept != i) {
+                    measurements.set(kept, measurement);
+                }
+                kept++;
+            }
+        }
+        measurements.subList(kept, size).clear();
+        return size - kept;
+    }
+
+    public int size() {
+        return table.size();
+    }
+
+    public long suppressed() {
+        return suppressed;
+    }
+
+    public void evictIdle(long nowMillis) {
+        long oldest = nowMillis - idleMillis;
+        for (int entry = 0; entry < table.limit(); entry++) {
+            if (table.key(entry) != LongKeyTable.EMPTY && seenTimes[entry] < oldest) {
+                table.remove(entry);
+            }
+        }
+    }
+
+    private void insert(long key, long timeMillis, long bits) {
+        if (table.isFull() && (lastSweep == Long.MIN_VALUE || newestTime - lastSweep >= sweepIntervalMillis)) {
+            lastSweep = newestTime;
+            evictIdle(newestTime);
+        }
+        int entry = table.insert(key);
+        if (entry >= seenTimes.length) {
+            emittedTimes = Arrays.copyOf(emittedTimes, table.capacity());
+            emittedBits = Arrays.copyOf(emittedBits, table.capacity());
+            seenTimes = Arrays.copyOf(seenTimes, table.capacity());
+        }
+        emittedTimes[entry] = timeMillis;
+        emittedBits[entry] = bits;
+        seenTimes[entry] = timeMillis;
+    }
+}
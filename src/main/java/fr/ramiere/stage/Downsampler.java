@@ -0,0 +1,232 @@
+package fr.ramiere.stage;
+
+import fr.ramiere.MeasurementBatch;
+import fr.ramiere.TagSet;
+
+import java.util.Arrays;
+
+/**
+ * Rolls points up into fixed, epoch aligned windows, keeping min, max, sum, count and last of every (series, window)
+ * in a primitive open-addressing table: only growing the table allocates. Series are keyed on their name id and tag
+ * content, never on tag set ids, which the dictionary recycles.
+ * <p>
+ * The watermark is the newest point time minus {@code allowedLatenessMillis}; a window is finished once its end is
+ * not after the watermark and is emitted by the next {@code flush}. Points of a window already flushed are counted
+ * by {@link #lateDrops()} and dropped. Series reporting at an interval not shorter than the window gain nothing from
+ * the rollup: {@link #add} refuses them so that the caller forwards them untouched. Not thread-safe: give each worker
+ * its own downsampler.
+ */
+public class Downsampler {
+    public enum Aggregate {
+        MIN, MAX, SUM, COUNT, AVG, LAST
+    }
+
+    public interface RollupListener {
+        void rollup(int nameId, TagSet tags, long windowStart, double min, double max, double sum, long count, double last);
+    }
+
+    private final long windowMillis;
+    private final long allowedLatenessMillis;
+    private final LongKeyTable table;
+    private int[] nameIds;
+    private TagSet[] tagSets;
+    private long[] windows;
+    private double[] mins;
+    private double[] maxs;
+    private double[] sums;
+    private long[] counts;
+    private double[] lasts;
+    private long[] lastTimes;
+    private long newestTime = Long.MIN_VALUE;
+    private long flushedUpTo = Long.MIN_VALUE;
+    private long lateDrops;
+
+    public Downsampler(long windowMillis, long allowedLatenessMillis) {
+        this(windowMillis, allowedLatenessMillis, 1024);
+    }
+
+    /**
+     * @param expectedWindows number of (series, window) pairs expected to be open at once, slots are preallocated
+     */
+    public Downsampler(long windowMillis, long allowedLatenessMillis, int expectedWindows) {
+        if (windowMillis <= 0 || allowedLatenessMillis < 0) {
+            throw new IllegalArgumentException("window must be positive and lateness not negative");
+        }
+        this.windowMillis = windowMillis;
+        this.allowedLatenessMillis = allowedLatenessMillis;
+        this.table = new LongKeyTable(expectedWindows);
+        allocate(table.capacity());
+    }
+
+    /**
+     * @param intervalMillis reporting interval of the series, 0 when unknown
+     * @return false when the series reports at least once per window and the point should be forwarded untouched
+     */
+    public boolean add(int nameId, TagSet tags, long timeMillis, double value, long intervalMillis) {
+        if (intervalMillis >= windowMillis) {
+            return false;
+        }
+        if (timeMillis > newestTime) {
+            newestTime = timeMillis;
+        }
+        long window = windowStart(timeMillis);
+        if (window + windowMillis <= flushedUpTo) {
+            lateDrops++;
+            return true;
+        }
+        long key = HyperLogLog.hash(RateEngine.seriesKey(nameId, tags) ^ (window * 0xC2B2AE3D27D4EB4FL));
+        if (key == LongKeyTable.EMPTY) {
+            key = 0;
+        }
+        int entry = table.find(key);
+        if (entry < 0) {
+            entry = table.insert(key);
+            if (entry >= windows.length) {
+                grow(table.capacity());
+            }
+            nameIds[entry] = nameId;
+            tagSets[entry] = tags;
+            windows[entry] = window;
+            mins[entry] = value;
+            maxs[entry] = value;
+            sums[entry] = value;
+            counts[entry] = 1;
+            lasts[entry] = value;
+            lastTimes[entry] = timeMillis;
+            return true;
+        }
+        if (value < mins[entry]) {
+            mins[entry] = value;
+        }
+        if (value > maxs[entry]) {
+            maxs[entry] = value;
+        }
+        sums[entry] += value;
+        counts[entry]++;
+        if (timeMillis >= lastTimes[entry]) {
+            lasts[entry] = value;
+            lastTimes[entry] = timeMillis;
+        }
+        return true;
+    }
+
+    /**
+     * Adds every row of {@code in}, rows refused by {@link #add} are copied to {@code passThrough}, as are rows whose
+     * tag set has already been evicted from the dictionary.
+     */
+    public void add(MeasurementBatch in, MeasurementBatch passThrough) {
+        for (int i = 0; i < in.size(); i++) {
+            TagSet tags = in.tags(i);
+            if (tags == null || !add(in.nameId(i), tags, in.time(i), in.value(i), in.interval(i))) {
+                passThrough.addRow(in, i);
+            }
+        }
+    }
+
+    public long watermark() {
+        return newestTime == Long.MIN_VALUE ? Long.MIN_VALUE : newestTime - allowedLatenessMillis;
+    }
+
+    /**
+     * Emits and forgets every window finished according to the watermark.
+     *
+     * @return the number of windows emitted
+     */
+    public int flush(RollupListener listener) {
+        long watermark = watermark();
+        if (watermark > flushedUpTo) {
+            flushedUpTo = watermark;
+        }
+        return flush(listener, watermark);
+    }
+
+    /**
+     * Emits and forgets every open window, finished or not, typically on shutdown.
+     */
+    public int flushAll(RollupListener listener) {
+        return flush(listener, Long.MAX_VALUE);
+    }
+
+    /**
+     * Writes one row per finished window to {@code out}, stamped with the window start and valued with
+     * {@code aggregate}. The rows keep the window length as interval, their tag sets are interned again in the
+     * dictionary of {@code out} when evicted meanwhile.
+     */
+    public int flush(final MeasurementBatch out, final Aggregate aggregate) {
+        return flush(new RollupListener() {
+            @Override
+            public void rollup(int nameId, TagSet tags, long windowStart, double min, double max, double sum, long count, double last) {
+                int tagSetId = out.dictionary().tagSets().intern(tags).id();
+                out.add(nameId, windowStart, aggregate(aggregate, min, max, sum, count, last), tagSetId, windowMillis);
+            }
+        });
+    }
+
+    static double aggregate(Aggregate aggregate, double min, double max, double sum, long count, double last) {
+        switch (aggregate) {
+            case MIN:
+                return min;
+            case MAX:
+                return max;
+            case SUM:
+                return sum;
+            case COUNT:
+                return count;
+            case AVG:
+                return sum / count;
+            default:
+                return last;
+        }
+    }
+
+    private int flush(RollupListener listener, long watermark) {
+        int flushed = 0;
+        for (int entry = 0; entry < table.limit(); entry++) {
+            if (table.key(entry) != LongKeyTable.EMPTY && (watermark == Long.MAX_VALUE || windows[entry] + windowMillis <= watermark)) {
+                listener.rollup(nameIds[entry], tagSets[entry], windows[entry],
+                        mins[entry], maxs[entry], sums[entry], counts[entry], lasts[entry]);
+                tagSets[entry] = null;
+                table.remove(entry);
+                flushed++;
+            }
+        }
+        return flushed;
+    }
+
+    public int openWindows() {
+        return table.size();
+    }
+
+    public long lateDrops() {
+        return lateDrops;
+    }
+
+    long windowStart(long timeMillis) {
+        long start = timeMillis - timeMillis % windowMillis;
+        return timeMillis < 0 && start != timeMillis ? start - windowMillis : start;
+    }
+
+    private void allocate(int capacity) {
+        nameIds = new int[capacity];
+        tagSets = new TagSet[capacity];
+        windows = new long[capacity];
+        mins = new double[capacity];
+        maxs = new double[capacity];
+        sums = new double[capacity];
+        counts = new long[capacity];
+        lasts = new double[capacity];
+        lastTimes = new long[capacity];
+    }
+
+    private void grow(int capacity) {
+        nameIds = Arrays.copyOf(nameIds, capacity);
+        tagSets = Arrays.copyOf(tagSets, capacity);
+        windows = Arrays.copyOf(windows, capacity);
+        mins = Arrays.copyOf(mins, capacity);
+        maxs = Arrays.copyOf(maxs, capacity);
+        sums = Arrays.copyOf(sums, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        lasts = Arrays.copyOf(lasts, capacity);
+        lastTimes = Arrays.copyOf(lastTimes, capacity);
+    }
+}
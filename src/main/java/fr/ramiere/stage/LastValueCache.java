@@ -0,0 +1,353 @@
+package fr.ramiere.stage;
+
+import fr.ramiere.Measurement;
+import fr.ramiere.MeasurementBatch;
+import fr.ramiere.MeasurementDictionary;
+import fr.ramiere.MeasurementSink;
+import fr.ramiere.MutableMeasurement;
+import fr.ramiere.TagSet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Latest time and value of every series seen, fed by parser output, so that "current value of X on host Y" is answered
+ * from memory: {@code query("sys.network", {fqdn=*})} walks the series of the name only, their tags matched against
+ * the query, exact values or {@code *} for any.
+ * <p>
+ * Series are keyed by {@link RateEngine#seriesKey(int, TagSet)}, from the name id and the content of the tags, in a
+ * lock-free open-addressing table of primitive arrays, times and values next to their key, and chained per name. The
+ * key does not depend on tag set ids, so a series stays where it is when its tag set is evicted from the dictionary
+ * and interned again under another id. A key hit is confirmed against the name id and tags of the slot, so two series
+ * whose keys collide each get their own slot. An update is a probe, a compare-and-set of the sequence number of the
+ * series and two stores, readers retry instead of blocking; only two writers of the same series wait for each other.
+ * An older point than the cached one is ignored. Tags that are not a tag set yet are wrapped with
+ * {@link TagSet#of(Map)}, never interned, so that updates take no lock of the dictionary nor evict its live tag sets.
+ * <p>
+ * At most {@code maxSeries} series are kept, points of new series are counted and ignored past that. {@link #expire()}
+ * evicts the series whose latest point is older than {@code maxAgeMillis} by rebuilding the table; an update racing the
+ * rebuild may be lost, the next point of its series brings it back.
+ */
+public class LastValueCache implements MeasurementSink {
+    private static final long EMPTY = LongKeyTable.EMPTY;
+    private static final int END = -1;
+    private static final String ANY = "*";
+
+    private final MeasurementDictionary dictionary;
+    private final int maxSeries;
+    private final long maxAgeMillis;
+    private final AtomicLong rejectedPoints = new AtomicLong();
+    private volatile Table table;
+
+    public LastValueCache(MeasurementDictionary dictionary, int maxSeries, long maxAgeMillis) {
+        if (maxSeries < 1 || maxAgeMillis <= 0) {
+            throw new IllegalArgumentException("maxSeries and maxAgeMillis must be positive");
+        }
+        this.dictionary = dictionary;
+        this.maxSeries = maxSeries;
+        this.maxAgeMillis = maxAgeMillis;
+        this.table = new Table(Integer.highestOneBit(Math.max(maxSeries, 8) * 2 - 1) * 2);
+    }
+
+    @Override
+    public void accept(MutableMeasurement measurement) {
+        update(measurement.getName(), measurement.getTags(), measurement.getTime(), measurement.getValue());
+    }
+
+    public void update(Measurement measurement) {
+        update(measurement.getName(), measurement.getTags(), measurement.getTime(), measurement.getValue());
+    }
+
+    public void update(String name, Map<String, String> tags, double time, double value) {
+        update(dictionary.nameId(name), TagSet.of(tags), time, value);
+    }
+
+    /**
+     * Updates from every row of a batch built on the dictionary of the cache; rows whose tag set was evicted from the
+     * dictionary are ignored.
+     */
+    public void update(MeasurementBatch batch) {
+        if (batch.dictionary() != dictionary) {
+            throw new IllegalArgumentException("batch must share the dictionary of the cache");
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            TagSet tags = batch.tags(i);
+            if (tags != null) {
+                update(batch.nameId(i), tags, batch.time(i), batch.value(i));
+            } else {
+                rejectedPoints.incrementAndGet();
+            }
+        }
+    }
+
+    private void update(int nameId, TagSet tags, double time, double value) {
+        Table table = this.table;
+        int slot = table.slot(nameId, tags);
+        if (slot < 0) {
+            rejectedPoints.incrementAndGet();
+        } else {
+            table.write(slot, time, value);
+        }
+    }
+
+    /**
+     * Looks the series up in one probe; tags that are not a tag set are wrapped, never interned, so that lookups do not
+     * evict live tag sets from the dictionary.
+     *
+     * @return the latest point of the series, null when it is not cached
+     */
+    public Measurement get(String name, Map<String, String> tags) {
+        int nameId = dictionary.findNameId(name);
+        if (nameId < 0) {
+            return null;
+        }
+        Table table = this.table;
+        int slot = table.find(nameId, TagSet.of(tags));
+        return slot < 0 ? null : table.read(slot, name);
+    }
+
+    /**
+     * @param name        name of the series, {@code *} for every name
+     * @param tagPatterns tags the series must have, with their value or {@code *} for any value
+     * @return the latest point of every matching series
+     */
+    public List<Measurement> query(String name, Map<String, String> tagPatterns) {
+        List<Measurement> ret = new ArrayList<>();
+        Table table = this.table;
+        if (ANY.equals(name)) {
+            for (int slot = 0; slot < table.capacity; slot++) {
+                if (table.tags.get(slot) != null) {
+                    collect(table, slot, dictionary.name(table.nameIds.get(slot)), tagPatterns, ret);
+                }
+            }
+            return ret;
+        }
+        int nameId = dictionary.findNameId(name);
+        AtomicInteger head = nameId < 0 ? null : table.heads.get(nameId);
+        for (int slot = head == null ? END : head.get(); slot != END; slot = table.next.get(slot)) {
+            collect(table, slot, name, tagPatterns, ret);
+        }
+        return ret;
+    }
+
+    private static void collect(Table table, int slot, String name, Map<String, String> tagPatterns, List<Measurement> ret) {
+        TagSet tags = table.tags.get(slot);
+        if (tags == null || !matches(tags, tagPatterns)) {
+            return;
+        }
+        Measurement measurement = table.read(slot, name);
+        if (measurement != null) {
+            ret.add(measurement);
+        }
+    }
+
+    private static boolean matches(TagSet tags, Map<String, String> tagPatterns) {
+        for (Map.Entry<String, String> pattern : tagPatterns.entrySet()) {
+            String value = tags.get(pattern.getKey());
+            if (value == null || !ANY.equals(pattern.getValue()) && !pattern.getValue().equals(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Evicts the series whose latest point is older than {@code maxAgeMillis} before now.
+     *
+     * @return the number of series evicted
+     */
+    public int expire() {
+        return expire(System.currentTimeMillis() - maxAgeMillis);
+    }
+
+    /**
+     * @return the number of series evicted, those whose latest point is older than {@code cutoffMillis}
+     */
+    public synchronized int expire(double cutoffMillis) {
+        Table old = table;
+        Table fresh = new Table(old.capacity);
+        int evicted = 0;
+        for (int slot = 0; slot < old.capacity; slot++) {
+            TagSet tags = old.tags.get(slot);
+            if (tags == null) {
+                continue;
+            }
+            int nameId = old.nameIds.get(slot);
+            Measurement latest = old.read(slot, dictionary.name(nameId));
+            if (latest == null || latest.getTime() < cutoffMillis) {
+                evicted++;
+            } else {
+                fresh.write(fresh.slot(nameId, tags), latest.getTime(), latest.getValue());
+            }
+        }
+        table = fresh;
+        return evicted;
+    }
+
+    public int size() {
+        return table.size.get();
+    }
+
+    /**
+     * @return the number of points of new series ignored because the cache was full
+     */
+    public long rejectedPoints() {
+        return rejectedPoints.get();
+    }
+
+    private final class Table {
+        final int capacity;
+        final int mask;
+        final AtomicLongArray keys;
+        /**
+         * Name id of the series, set before its tags so that it is known once they are.
+         */
+        final AtomicIntegerArray nameIds;
+        final AtomicReferenceArray<TagSet> tags;
+        /**
+         * Odd while a writer updates the time and value of the series, 0 until the first update.
+         */
+        final AtomicLongArray versions;
+        final AtomicLongArray times;
+        final AtomicLongArray values;
+        final AtomicIntegerArray next;
+        final ConcurrentHashMap<Integer, AtomicInteger> heads = new ConcurrentHashMap<>();
+        final AtomicInteger size = new AtomicInteger();
+
+        Table(int capacity) {
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            this.keys = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                keys.set(i, EMPTY);
+            }
+            this.nameIds = new AtomicIntegerArray(capacity);
+            this.tags = new AtomicReferenceArray<>(capacity);
+            this.versions = new AtomicLongArray(capacity);
+            this.times = new AtomicLongArray(capacity);
+            this.values = new AtomicLongArray(capacity);
+            this.next = new AtomicIntegerArray(capacity);
+        }
+
+        int find(int nameId, TagSet tagSet) {
+            long key = RateEngine.seriesKey(nameId, tagSet);
+            int slot = LongKeyTable.index(key, mask);
+            for (int probes = 0; probes < capacity; probes++) {
+                long current = keys.get(slot);
+                if (current == key && holds(slot, nameId, tagSet)) {
+                    return slot;
+                } else if (current == EMPTY) {
+                    return -1;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        /**
+         * @return the slot of the series, inserted on first sight, -1 when the cache is full
+         */
+        int slot(int nameId, TagSet tagSet) {
+            long key = RateEngine.seriesKey(nameId, tagSet);
+            int slot = LongKeyTable.index(key, mask);
+            for (int probes = 0; probes < capacity; probes++) {
+                long current = keys.get(slot);
+                if (current == key && holds(slot, nameId, tagSet)) {
+                    return slot;
+                }
+                if (current == EMPTY) {
+                    if (size.get() >= maxSeries) {
+                        return -1;
+                    }
+                    if (keys.compareAndSet(slot, EMPTY, key)) {
+                        size.incrementAndGet();
+                        nameIds.set(slot, nameId);
+                        tags.set(slot, tagSet);
+                        link(nameId, slot);
+                        return slot;
+                    }
+                    if (keys.get(slot) == key && holds(slot, nameId, tagSet)) {
+                        return slot;
+                    }
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        /**
+         * Whether the slot, whose key matched, holds the series rather than another one colliding on its key; waits for
+         * the tags of an insertion in flight, the name id being set before them.
+         */
+        private boolean holds(int slot, int nameId, TagSet tagSet) {
+            TagSet current;
+            while ((current = tags.get(slot)) == null) {
+                Thread.yield();
+            }
+            return nameIds.get(slot) == nameId && current.equals(tagSet);
+        }
+
+        private void link(int nameId, int slot) {
+            AtomicInteger head = heads.get(nameId);
+            if (head == null) {
+                AtomicInteger created = new AtomicInteger(END);
+                head = heads.putIfAbsent(nameId, created);
+                if (head == null) {
+                    head = created;
+                }
+            }
+            int first;
+            do {
+                first = head.get();
+                next.set(slot, first);
+            } while (!head.compareAndSet(first, slot));
+        }
+
+        void write(int slot, double time, double value) {
+            while (true) {
+                long version = versions.get(slot);
+                if ((version & 1) != 0) {
+                    continue;
+                }
+                if (version != 0 && Double.longBitsToDouble(times.get(slot)) > time) {
+                    return;
+                }
+                if (versions.compareAndSet(slot, version, version + 1)) {
+                    if (version == 0 || !(Double.longBitsToDouble(times.get(slot)) > time)) {
+                        times.set(slot, Double.doubleToRawLongBits(time));
+                        values.set(slot, Double.doubleToRawLongBits(value));
+                    }
+                    versions.set(slot, version + 2);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return the latest point of the slot, null when it was never updated
+         */
+        Measurement read(int slot, String name) {
+            while (true) {
+                long version = versions.get(slot);
+                if (version == 0) {
+                    return null;
+                }
+                if ((version & 1) != 0) {
+                    continue;
+                }
+                long time = times.get(slot);
+                long value = values.get(slot);
+                if (versions.get(slot) == version) {
+                    return new Measurement(name, Double.longBitsToDouble(time), Double.longBitsToDouble(value), tags.get(slot));
+                }
+            }
+        }
+    }
+}
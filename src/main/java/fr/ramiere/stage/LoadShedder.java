@@ -0,0 +1,341 @@
+package fr.ramiere.stage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Degrades ingestion in stages while the consumer is overloaded, e.g. replaying a backlog after an outage, so that it
+ * catches up in minutes instead of parsing every point at full cost for hours. Each {@link #observe(long, long)} of
+ * the parse latency and queue depth sets the stage from the load, the larger of both ratios to their budget:
+ * <ol>
+ * <li>{@link Stage#SAMPLE_LOW_PRIORITY} from a load of 1: one low-priority payload out of {@code sampleRate} is kept;</li>
+ * <li>{@link Stage#NEWEST_PER_SERIES} from 2: in addition, only the newest payload of every series of a poll is kept;</li>
+ * <li>{@link Stage#SKIP_LOW_PRIORITY_META} from 4: in addition, the {@code tsdb_tag_add_*} meta tags of low-priority
+ * value lists are not expanded by a parser given the shedder.</li>
+ * </ol>
+ * The stage rises as soon as the load does and falls one stage at a time, once the load stayed below the threshold of
+ * the current stage for {@code recoveryObservations} observations. Payloads are low priority when their collectd
+ * plugin or their {@code tsdb_metric} meta is listed, which is read from the raw bytes of their first value list.
+ * <p>
+ * Shedding is deterministic: sampling keeps a payload from a hash of its bytes, so a replay of the same data sheds the
+ * same points whatever the order or the consumer, and superseded payloads are picked by {@link SeriesKeyHash}, tags of
+ * simple measurements included, among the payloads holding a single record: a payload of several value lists is never
+ * superseded, its other series could be newer than anything else in the poll. What was shed is counted per stage.
+ * Observe and shed from the consumer thread; parsers may check meta shedding from any thread.
+ */
+public class LoadShedder {
+    static final double[] STAGE_LOADS = {1, 2, 4};
+    private static final byte[] PLUGIN = bytes("plugin");
+    private static final byte[] META = bytes("meta");
+    private static final byte[] TSDB_METRIC = bytes("tsdb_metric");
+
+    public enum Stage {
+        NONE, SAMPLE_LOW_PRIORITY, NEWEST_PER_SERIES, SKIP_LOW_PRIORITY_META
+    }
+
+    private final long latencyBudgetNanos;
+    private final long depthBudget;
+    private final int sampleRate;
+    private final int recoveryObservations;
+    private final Set<String> lowPriorityPlugins = new HashSet<>();
+    private final Set<String> lowPriorityMetrics = new HashSet<>();
+    private byte[][] pluginBytes = new byte[0][];
+    private byte[][] metricBytes = new byte[0][];
+
+    private volatile Stage stage = Stage.NONE;
+    private int calmObservations;
+    private final AtomicLong escalations = new AtomicLong();
+    private final AtomicLong sampled = new AtomicLong();
+    private final AtomicLong superseded = new AtomicLong();
+    private final AtomicLong metaSkipped = new AtomicLong();
+
+    /**
+     * @param latencyBudgetNanos parse latency from which shedding starts
+     * @param depthBudget        queue depth, or consumer lag, from which shedding starts
+     */
+    public LoadShedder(long latencyBudgetNanos, long depthBudget, int sampleRate, int recoveryObservations) {
+        if (latencyBudgetNanos <= 0 || depthBudget <= 0 || sampleRate < 1 || recoveryObservations < 1) {
+            throw new IllegalArgumentException("budgets, sample rate and recovery observations must be positive");
+        }
+        this.latencyBudgetNanos = latencyBudgetNanos;
+        this.depthBudget = depthBudget;
+        this.sampleRate = sampleRate;
+        this.recoveryObservations = recoveryObservations;
+    }
+
+    public LoadShedder lowPriorityPlugins(String... plugins) {
+        lowPriorityPlugins.addAll(Arrays.asList(plugins));
+        pluginBytes = bytes(lowPriorityPlugins);
+        return this;
+    }
+
+    /**
+     * @param metrics measurement names given by the {@code tsdb_metric} meta
+     */
+    public LoadShedder lowPriorityMetrics(String... metrics) {
+        lowPriorityMetrics.addAll(Arrays.asList(metrics));
+        metricBytes = bytes(lowPriorityMetrics);
+        return this;
+    }
+
+    /**
+     * @return the stage set from the latest parse latency and queue depth
+     */
+    public Stage observe(long parseLatencyNanos, long queueDepth) {
+        double load = Math.max((double) parseLatencyNanos / latencyBudgetNanos, (double) queueDepth / depthBudget);
+        int loadStage = 0;
+        while (loadStage < STAGE_LOADS.length && load >= STAGE_LOADS[loadStage]) {
+            loadStage++;
+        }
+        int current = stage.ordinal();
+        if (loadStage > current) {
+            escalations.incrementAndGet();
+            stage = Stage.values()[loadStage];
+            calmObservations = 0;
+        } else if (loadStage < current && ++calmObservations >= recoveryObservations) {
+            stage = Stage.values()[current - 1];
+            calmObservations = 0;
+        } else if (loadStage == current) {
+            calmObservations = 0;
+        }
+        return stage;
+    }
+
+    public Stage stage() {
+        return stage;
+    }
+
+    /**
+     * Removes from {@code payloads}, one poll of raw records in arrival order, the ones the current stage sheds,
+     * keeping the order of the others.
+     *
+     * @return the number of payloads removed
+     */
+    public int shed(List<byte[]> payloads) {
+        Stage stage = this.stage;
+        int size = payloads.size();
+        if (stage == Stage.NONE || size == 0) {
+            return 0;
+        }
+        int[] newest = stage.compareTo(Stage.NEWEST_PER_SERIES) >= 0 ? newestPerSeries(payloads) : null;
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            byte[] payload = payloads.get(i);
+            if (newest != null && newest[i] != i) {
+                superseded.incrementAndGet();
+            } else if (!keepSample(payload)) {
+                sampled.incrementAndGet();
+            } else {
+                payloads.set(kept++, payload);
+            }
+        }
+        payloads.subList(kept, size).clear();
+        return size - kept;
+    }
+
+    /**
+     * @param metric measurement name given by the {@code tsdb_metric} meta, null when there is none
+     * @return whether the meta tags of the value list must not be expanded, counted when so
+     */
+    public boolean shedsMeta(String plugin, String metric) {
+        if (stage != Stage.SKIP_LOW_PRIORITY_META || !(lowPriorityPlugins.contains(plugin) || lowPriorityMetrics.contains(metric))) {
+            return false;
+        }
+        metaSkipped.incrementAndGet();
+        return true;
+    }
+
+    public boolean isLowPriority(byte[] data, int offset, int length) {
+        if (pluginBytes.length == 0 && metricBytes.length == 0) {
+            return false;
+        }
+        int end = offset + length;
+        int recordDepth = 1;
+        int depth = 0;
+        boolean value = false;
+        boolean inMeta = false;
+        byte[] key = null;
+        for (int i = offset; i < end; i++) {
+            switch (data[i]) {
+                case '"':
+                    int start = i + 1;
+                    i = SeriesKeyHash.closingQuote(data, start, end);
+                    if (depth == recordDepth || inMeta && depth == recordDepth + 1) {
+                        if (!value) {
+                            key = depth == recordDepth ? (equals(PLUGIN, data, start, i) ? PLUGIN : equals(META, data, start, i) ? META : null)
+                                    : equals(TSDB_METRIC, data, start, i) ? TSDB_METRIC : null;
+                        } else if (key == PLUGIN && contains(pluginBytes, data, start, i) || key == TSDB_METRIC && contains(metricBytes, data, start, i)) {
+                            return true;
+                        }
+                    }
+                    break;
+                case '[':
+                    if (depth == 0) {
+                        recordDepth = 2;
+                    }
+                    depth++;
+                    break;
+                case '{':
+                    inMeta |= depth == recordDepth && value && key == META;
+                    depth++;
+                    value = false;
+                    break;
+                case '}':
+                case ']':
+                    if (--depth < recordDepth) {
+                        return false;
+                    }
+                    inMeta &= depth > recordDepth;
+                    value = true;
+                    break;
+                case ':':
+                    value = true;
+                    break;
+                case ',':
+                    value = false;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of times the stage rose
+     */
+    public long escalations() {
+        return escalations.get();
+    }
+
+    /**
+     * @return the number of low-priority payloads dropped by sampling
+     */
+    public long sampled() {
+        return sampled.get();
+    }
+
+    /**
+     * @return the number of payloads dropped for a newer one of their series in the same poll
+     */
+    public long superseded() {
+        return superseded.get();
+    }
+
+    /**
+     * @return the number of value lists whose meta tags were not expanded
+     */
+    public long metaSkipped() {
+        return metaSkipped.get();
+    }
+
+    @Override
+    public String toString() {
+        return stage + ": " + sampled() + " sampled out, " + superseded() + " superseded, " + metaSkipped() + " without meta tags, "
+                + escalations() + " escalations";
+    }
+
+    private boolean keepSample(byte[] payload) {
+        if (!isLowPriority(payload, 0, payload.length)) {
+            return true;
+        }
+        return (HyperLogLog.hash(SeriesKeyHash.fnv(payload, 0, payload.length)) >>> 1) % sampleRate == 0;
+    }
+
+    /**
+     * @return for every payload, the index of the newest payload of its series; payloads without a series, or holding
+     * several records that may be of different series, are their own
+     */
+    private int[] newestPerSeries(List<byte[]> payloads) {
+        int size = payloads.size();
+        LongKeyTable table = new LongKeyTable(size);
+        int[] newestOfEntry = new int[table.capacity()];
+        long[] hashes = new long[size];
+        int[] newest = new int[size];
+        for (int i = 0; i < size; i++) {
+            byte[] payload = payloads.get(i);
+            long hash = singleRecord(payload) ? SeriesKeyHash.hash(payload, 0, payload.length) : 0;
+            hashes[i] = hash;
+            newest[i] = i;
+            if (hash == 0 || hash == LongKeyTable.EMPTY) {
+                continue;
+            }
+            int entry = table.find(hash);
+            if (entry < 0) {
+                entry = table.insert(hash);
+                if (entry >= newestOfEntry.length) {
+                    newestOfEntry = Arrays.copyOf(newestOfEntry, table.capacity());
+                }
+            }
+            newestOfEntry[entry] = i;
+        }
+        for (int i = 0; i < size; i++) {
+            long hash = hashes[i];
+            if (hash != 0 && hash != LongKeyTable.EMPTY) {
+                newest[i] = newestOfEntry[table.find(hash)];
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * @return whether {@code payload} is one record, alone or in a top-level array
+     */
+    private static boolean singleRecord(byte[] payload) {
+        int end = payload.length;
+        int i = skipWhitespace(payload, 0, end);
+        boolean array = i < end && payload[i] == '[';
+        if (array) {
+            i = skipWhitespace(payload, i + 1, end);
+        }
+        if (i == end || payload[i] != '{') {
+            return false;
+        }
+        i = skipWhitespace(payload, SeriesKeyHash.recordEnd(payload, i, end), end);
+        if (array) {
+            if (i == end || payload[i] != ']') {
+                return false;
+            }
+            i = skipWhitespace(payload, i + 1, end);
+        }
+        return i == end;
+    }
+
+    private static int skipWhitespace(byte[] data, int from, int end) {
+        int i = from;
+        while (i < end && (data[i] == ' ' || data[i] == '\n' || data[i] == '\r' || data[i] == '\t')) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean contains(byte[][] names, byte[] data, int from, int to) {
+        for (byte[] name : names) {
+            if (equals(name, data, from, to)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean equals(byte[] name, byte[] data, int from, int to) {
+        return name.length == to - from && SeriesKeyHash.regionMatches(name, data, from);
+    }
+
+    private static byte[][] bytes(Set<String> names) {
+        byte[][] ret = new byte[names.size()][];
+        int i = 0;
+        for (String name : names) {
+            ret[i++] = name.getBytes(StandardCharsets.UTF_8);
+        }
+        return ret;
+    }
+
+    private static byte[] bytes(String field) {
+        return field.getBytes(StandardCharsets.US_ASCII);
+    }
+}
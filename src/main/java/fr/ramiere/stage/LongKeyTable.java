@@ -0,0 +1,158 @@
+package fr.ramiere.stage;
+
+import java.util.Arrays;
+
+/**
+ * Primitive open-addressing index from a long key to a dense entry number, behind the per-series state of the stages.
+ * Values live in the caller's own column arrays indexed by entry: an entry keeps its number until it is removed, so
+ * removing and growing never move values, the caller only grows its columns to {@link #capacity()}. Linear probing in
+ * a table at most half full, removal by backward shift so that there are no tombstones; removed entries are reused.
+ * {@link #EMPTY} cannot be used as a key. Not thread-safe.
+ */
+final class LongKeyTable {
+    static final long EMPTY = Long.MIN_VALUE;
+
+    private long[] entryKeys;
+    private int[] freeEntries;
+    private int freeCount;
+    private int limit;
+    private int size;
+    private int[] slots;
+    private int mask;
+
+    /**
+     * @param expectedEntries number of entries expected to be live at once, the table grows past it
+     */
+    LongKeyTable(int expectedEntries) {
+        allocate(Integer.highestOneBit(Math.max(expectedEntries, 8) * 2 - 1));
+    }
+
+    /**
+     * Slot of {@code key} in a power of two sized table, spread with the golden ratio so that sequential keys do not
+     * cluster.
+     */
+    static int index(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * @return the entry of {@code key}, -1 when absent
+     */
+    int find(long key) {
+        int slot = index(key, mask);
+        int entry;
+        while ((entry = slots[slot]) != 0) {
+            if (entryKeys[entry - 1] == key) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Adds {@code key}, which must be absent, growing the table when full.
+     *
+     * @return the entry of {@code key}, below {@link #capacity()}
+     */
+    int insert(long key) {
+        if (size == entryKeys.length) {
+            grow();
+        }
+        int entry = freeCount > 0 ? freeEntries[--freeCount] : limit++;
+        entryKeys[entry] = key;
+        place(entry);
+        size++;
+        return entry;
+    }
+
+    void remove(int entry) {
+        int slot = index(entryKeys[entry], mask);
+        while (slots[slot] != entry + 1) {
+            slot = (slot + 1) & mask;
+        }
+        int hole = slot;
+        int next = (slot + 1) & mask;
+        while (slots[next] != 0) {
+            int ideal = index(entryKeys[slots[next] - 1], mask);
+            if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+                slots[hole] = slots[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        slots[hole] = 0;
+        entryKeys[entry] = EMPTY;
+        freeEntries[freeCount++] = entry;
+        size--;
+    }
+
+    /**
+     * @return the key of {@code entry}, {@link #EMPTY} when the entry is free
+     */
+    long key(int entry) {
+        return entryKeys[entry];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isFull() {
+        return size == entryKeys.length;
+    }
+
+    /**
+     * Upper bound of the entries handed out so far, iterate up to it and skip the {@link #EMPTY} ones.
+     */
+    int limit() {
+        return limit;
+    }
+
+    /**
+     * Entries the table holds before growing, the length the caller's columns must have.
+     */
+    int capacity() {
+        return entryKeys.length;
+    }
+
+    void clear() {
+        Arrays.fill(entryKeys, EMPTY);
+        Arrays.fill(slots, 0);
+        freeCount = 0;
+        limit = 0;
+        size = 0;
+    }
+
+    private void place(int entry) {
+        int slot = index(entryKeys[entry], mask);
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = entry + 1;
+    }
+
+    private void grow() {
+        int capacity = entryKeys.length * 2;
+        int oldLength = entryKeys.length;
+        entryKeys = Arrays.copyOf(entryKeys, capacity);
+        Arrays.fill(entryKeys, oldLength, capacity, EMPTY);
+        freeEntries = Arrays.copyOf(freeEntries, capacity);
+        slots = new int[capacity * 2];
+        mask = slots.length - 1;
+        for (int entry = 0; entry < limit; entry++) {
+            if (entryKeys[entry] != EMPTY) {
+                place(entry);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        entryKeys = new long[capacity];
+        Arrays.fill(entryKeys, EMPTY);
+        freeEntries = new int[capacity];
+        slots = new int[capacity * 2];
+        mask = slots.length - 1;
+    }
+}
@@ -0,0 +1,251 @@
+package fr.ramiere.stage;
+
+import fr.ramiere.Measurement;
+import fr.ramiere.MutableMeasurement;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded hand-off from parser threads to output threads, in place of a {@code LinkedBlockingQueue}: a preallocated
+ * ring of slots, each with a sequence number telling whether it is free for the producer of a given turn or filled
+ * for the consumer of that turn, so that any number of producers and consumers go through without locks, claiming
+ * slots by compare-and-set on the two positions.
+ * <p>
+ * Slots are {@link MutableMeasurement}s allocated with the ring: producers copy their point into a slot and consumers
+ * copy it out, so publishing allocates nothing, a parser flyweight can be published as is, and the ring never holds a
+ * reference to a producer's object. {@link #poll(MutableMeasurement)} copies out without allocating, {@link #poll()}
+ * and {@link #drainTo(List, int)} build one {@link Measurement} per point.
+ * <p>
+ * When the ring is full a producer waits for room ({@link Backpressure#BLOCK}), makes room by dropping the oldest
+ * point ({@link Backpressure#DROP_OLDEST}) or drops its own point ({@link Backpressure#DROP_NEWEST}). Threads wait
+ * according to the {@link WaitStrategy}. Consumers usually drain the ring through a {@link BatchingConsumer}.
+ */
+public class MeasurementRingBuffer {
+    private static final int PADDING = 8;
+    private static final int ENQUEUE = PADDING;
+    private static final int DEQUEUE = 2 * PADDING;
+
+    public enum Backpressure {
+        BLOCK, DROP_OLDEST, DROP_NEWEST
+    }
+
+    private final MutableMeasurement[] slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLongArray positions = new AtomicLongArray(3 * PADDING);
+    private final int mask;
+    private final Backpressure backpressure;
+    private final WaitStrategy waitStrategy;
+    private final AtomicLong droppedOldest = new AtomicLong();
+    private final AtomicLong droppedNewest = new AtomicLong();
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two
+     */
+    public MeasurementRingBuffer(int capacity, Backpressure backpressure, WaitStrategy waitStrategy) {
+        if (capacity < 2 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("capacity must be between 2 and 2^30");
+        }
+        int size = Integer.highestOneBit(capacity * 2 - 1);
+        this.slots = new MutableMeasurement[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = new MutableMeasurement();
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.backpressure = backpressure;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * @return false when the point was dropped, which only happens with {@link Backpressure#DROP_NEWEST}
+     */
+    public boolean publish(Measurement measurement) throws InterruptedException {
+        return publish(measurement.getName(), measurement.getTime(), measurement.getValue(), measurement.getTags());
+    }
+
+    /**
+     * Copies the point of {@code measurement}, which the caller may refill as soon as the call returns.
+     *
+     * @return false when the point was dropped, which only happens with {@link Backpressure#DROP_NEWEST}
+     */
+    public boolean publish(MutableMeasurement measurement) throws InterruptedException {
+        return publish(measurement.getName(), measurement.getTime(), measurement.getValue(), measurement.getTags());
+    }
+
+    private boolean publish(String name, double time, double value, Map<String, String> tags) throws InterruptedException {
+        int attempt = 0;
+        while (!offer(name, time, value, tags)) {
+            switch (backpressure) {
+                case DROP_NEWEST:
+                    droppedNewest.incrementAndGet();
+                    return false;
+                case DROP_OLDEST:
+                    if (skip()) {
+                        droppedOldest.incrementAndGet();
+                    }
+                    break;
+                default:
+                    waitStrategy.idle(attempt++, WaitStrategy.MAX_BLOCK_NANOS);
+                    break;
+            }
+        }
+        waitStrategy.signal();
+        return true;
+    }
+
+    /**
+     * @return the number of points published, the others were dropped
+     */
+    public int publishAll(List<Measurement> measurements) throws InterruptedException {
+        int published = 0;
+        for (Measurement measurement : measurements) {
+            if (publish(measurement)) {
+                published++;
+            }
+        }
+        return published;
+    }
+
+    /**
+     * @return false when the ring is full
+     */
+    public boolean offer(Measurement measurement) {
+        return offer(measurement.getName(), measurement.getTime(), measurement.getValue(), measurement.getTags());
+    }
+
+    private boolean offer(String name, double time, double value, Map<String, String> tags) {
+        while (true) {
+            long position = positions.get(ENQUEUE);
+            int slot = (int) position & mask;
+            long difference = sequences.get(slot) - position;
+            if (difference == 0) {
+                if (positions.compareAndSet(ENQUEUE, position, position + 1)) {
+                    slots[slot].set(name, time, value, tags);
+                    sequences.lazySet(slot, position + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return the oldest point, null when the ring is empty
+     */
+    public Measurement poll() {
+        long position = claim();
+        if (position < 0) {
+            return null;
+        }
+        Measurement measurement = slots[(int) position & mask].toMeasurement();
+        release(position);
+        return measurement;
+    }
+
+    /**
+     * Copies the oldest point into {@code into} without allocating.
+     *
+     * @return false when the ring is empty
+     */
+    public boolean poll(MutableMeasurement into) {
+        long position = claim();
+        if (position < 0) {
+            return false;
+        }
+        MutableMeasurement slot = slots[(int) position & mask];
+        into.set(slot.getName(), slot.getTime(), slot.getValue(), slot.getTags());
+        release(position);
+        return true;
+    }
+
+    private boolean skip() {
+        long position = claim();
+        if (position < 0) {
+            return false;
+        }
+        release(position);
+        return true;
+    }
+
+    /**
+     * @return the dequeue position of the oldest filled slot, now owned by the caller, -1 when the ring is empty
+     */
+    private long claim() {
+        while (true) {
+            long position = positions.get(DEQUEUE);
+            int slot = (int) position & mask;
+            long difference = sequences.get(slot) - (position + 1);
+            if (difference == 0) {
+                if (positions.compareAndSet(DEQUEUE, position, position + 1)) {
+                    return position;
+                }
+            } else if (difference < 0) {
+                return -1;
+            }
+        }
+    }
+
+    private void release(long position) {
+        int slot = (int) position & mask;
+        slots[slot].set(null, 0, 0, null);
+        sequences.lazySet(slot, position + slots.length);
+    }
+
+    /**
+     * Moves up to {@code max} of the oldest points to {@code out}, signalling blocked producers when there were some.
+     *
+     * @return the number of points moved
+     */
+    public int drainTo(List<Measurement> out, int max) {
+        int drained = 0;
+        Measurement measurement;
+        while (drained < max && (measurement = poll()) != null) {
+            out.add(measurement);
+            drained++;
+        }
+        if (drained > 0) {
+            waitStrategy.signal();
+        }
+        return drained;
+    }
+
+    /**
+     * @return the number of points waiting, exact when no thread is publishing or consuming
+     */
+    public int depth() {
+        long depth = positions.get(ENQUEUE) - positions.get(DEQUEUE);
+        return (int) Math.max(0, Math.min(depth, slots.length));
+    }
+
+    public boolean isEmpty() {
+        return depth() == 0;
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * @return the number of points published so far, including the ones later dropped to make room
+     */
+    public long published() {
+        return positions.get(ENQUEUE);
+    }
+
+    public long droppedOldest() {
+        return droppedOldest.get();
+    }
+
+    public long droppedNewest() {
+        return droppedNewest.get();
+    }
+
+    WaitStrategy waitStrategy() {
+        return waitStrategy;
+    }
+}
@@ -0,0 +1,142 @@
+package fr.ramiere.stage;
+
+import fr.ramiere.DsType;
+import fr.ramiere.TagSet;
+
+import java.util.Arrays;
+
+/**
+ * Turns collectd counter, derive and absolute values into per-second rates, keeping the last (time, value) of every
+ * series in a primitive open-addressing table: lookups are O(1) and only growing the table allocates.
+ * <ul>
+ * <li>gauge values are returned untouched and keep no state</li>
+ * <li>counter: a decrease right below the 32 or 64 bit limit is a wrap, any other decrease is a reset to 0</li>
+ * <li>derive: a decrease is a reset and gives no rate</li>
+ * <li>absolute: the value is divided by the time elapsed since the previous value</li>
+ * </ul>
+ * The first value of a series, a derive reset and a value not newer than the previous one give {@link Double#NaN},
+ * meaning "no rate, drop the point"; a counter reset gives the new value over the elapsed time. Series idle for longer
+ * than {@code idleMillis} are evicted; the sweep scans the whole table, so a full engine runs it at most once per
+ * {@code idleMillis / 16} of point time and rejects new series in between. Not thread-safe: give each worker its own
+ * engine.
+ */
+public class RateEngine {
+    static final double WRAP_32 = 4294967296d;
+    static final double WRAP_64 = 18446744073709551616d;
+
+    private final long idleMillis;
+    private final long sweepIntervalMillis;
+    private final int maxSeries;
+    private final LongKeyTable table = new LongKeyTable(1024);
+    private long[] times = new long[table.capacity()];
+    private double[] values = new double[table.capacity()];
+    private long newestTime = Long.MIN_VALUE;
+    private long lastSweep = Long.MIN_VALUE;
+    private long rejectedSeries;
+
+    public RateEngine() {
+        this(60 * 60 * 1000L, 1 << 20);
+    }
+
+    public RateEngine(long idleMillis, int maxSeries) {
+        this.idleMillis = idleMillis;
+        this.sweepIntervalMillis = Math.max(1, idleMillis / 16);
+        this.maxSeries = maxSeries;
+    }
+
+    /**
+     * Key of a series built from its content, unlike tag set ids it survives the eviction of the tag set. Two series
+     * share a key only with the odds given by {@link TagSet#contentHash()}; stages keeping only the key accept them.
+     */
+    public static long seriesKey(int nameId, TagSet tags) {
+        long key = HyperLogLog.hash(tags.contentHash() + nameId * 0x9E3779B97F4A7C15L);
+        return key == LongKeyTable.EMPTY ? 0 : key;
+    }
+
+    public double rate(long key, DsType type, long timeMillis, double value) {
+        if (type == DsType.GAUGE) {
+            return value;
+        }
+        if (timeMillis > newestTime) {
+            newestTime = timeMillis;
+        }
+        int entry = table.find(key);
+        if (entry < 0) {
+            insert(key, timeMillis, value);
+            return Double.NaN;
+        }
+        long lastTime = times[entry];
+        double lastValue = values[entry];
+        if (timeMillis <= lastTime) {
+            return Double.NaN;
+        }
+        times[entry] = timeMillis;
+        values[entry] = value;
+        double seconds = (timeMillis - lastTime) / 1000d;
+        switch (type) {
+            case ABSOLUTE:
+                return value / seconds;
+            case DERIVE:
+                return value < lastValue ? Double.NaN : (value - lastValue) / seconds;
+            default:
+                return counterDelta(lastValue, value) / seconds;
+        }
+    }
+
+    static double counterDelta(double lastValue, double value) {
+        if (value >= lastValue) {
+            return value - lastValue;
+        }
+        if (lastValue < WRAP_32 && lastValue >= WRAP_32 / 2) {
+            return WRAP_32 - lastValue + value;
+        }
+        if (lastValue >= WRAP_64 / 2) {
+            return WRAP_64 - lastValue + value;
+        }
+        return value;
+    }
+
+    public int size() {
+        return table.size();
+    }
+
+    public long rejectedSeries() {
+        return rejectedSeries;
+    }
+
+    public void evictIdle(long nowMillis) {
+        long oldest = nowMillis - idleMillis;
+        for (int entry = 0; entry < table.limit(); entry++) {
+            if (table.key(entry) != LongKeyTable.EMPTY && times[entry] < oldest) {
+                table.remove(entry);
+            }
+        }
+    }
+
+    private void insert(long key, long timeMillis, double value) {
+        if (table.size() >= maxSeries) {
+            sweepIfDue();
+            if (table.size() >= maxSeries) {
+                rejectedSeries++;
+                return;
+            }
+        }
+        if (table.isFull()) {
+            sweepIfDue();
+        }
+        int entry = table.insert(key);
+        if (entry >= times.length) {
+            times = Arrays.copyOf(times, table.capacity());
+            values = Arrays.copyOf(values, table.capacity());
+        }
+        times[entry] = timeMillis;
+        values[entry] = value;
+    }
+
+    private void sweepIfDue() {
+        if (lastSweep == Long.MIN_VALUE || newestTime - lastSweep >= sweepIntervalMillis) {
+            lastSweep = newestTime;
+            evictIdle(newestTime);
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package fr.ramiere.stage;
+
+import fr.ramiere.MearsurementParser;
+import fr.ramiere.Measurement;
+import fr.ramiere.ParseResult;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parses payloads on several threads while keeping the order of every series: each payload is routed by the
+ * {@link SeriesKeyHash} of its raw bytes to one of many shards, and a shard is parsed by one worker at a time, in
+ * submission order, with a parser of its own. Per-series state such as a {@link RateEngine} therefore lives in the
+ * parser of the shard and needs no lock.
+ * <p>
+ * Every shard has a home worker. A shard with pending payloads is queued on its home worker, which runs its queue
+ * first in first out; an idle worker steals the last queued shard of another one and runs it, a whole shard at a
+ * time, so that order is kept whichever worker runs it and a skewed host does not hold back the other shards of its
+ * worker. Many shards per worker give stealing room to balance.
+ * <p>
+ * A payload holding several records, a top-level array or newline-delimited records, is split before routing and
+ * each record routed on its own series, so that the series after the first one keep their order too; the ranges point
+ * into the submitted bytes, nothing is copied. Bytes that are not records, such as a scalar, go to a shard as they are
+ * and its parser rejects them. {@link #payloads()} counts routed records.
+ * <p>
+ * The handler is called from the workers, concurrently for different shards and in order within a shard.
+ */
+public class SeriesAffinityPool implements Closeable {
+    static final int DEFAULT_SHARDS_PER_WORKER = 16;
+    static final int PAYLOADS_PER_RUN = 64;
+
+    public interface ParserFactory {
+        /**
+         * @return the parser of {@code shard}, only ever used by one thread at a time
+         */
+        MearsurementParser create(int shard);
+    }
+
+    public interface ShardHandler {
+        /**
+         * Called from a worker with the measurements of one payload. A handler that throws is counted by
+         * {@link #handlerFailures()}, the payload is not retried.
+         */
+        void onMeasurements(int shard, List<Measurement> measurements) throws Exception;
+    }
+
+    private final Worker[] workers;
+    private final Shard[] shards;
+    private final ParserFactory parsers;
+    private final ShardHandler handler;
+    private final WaitStrategy waitStrategy;
+    private final Semaphore capacity;
+    private final int maxPending;
+
+    private final AtomicLong payloads = new AtomicLong();
+    private final AtomicLong measurements = new AtomicLong();
+    private final AtomicLong rejectedPayloads = new AtomicLong();
+    private final AtomicLong handlerFailures = new AtomicLong();
+    private final AtomicLong steals = new AtomicLong();
+    private volatile boolean running;
+
+    public SeriesAffinityPool(int workers, ParserFactory parsers, ShardHandler handler) {
+        this(workers, workers * DEFAULT_SHARDS_PER_WORKER, 64 * 1024, parsers, handler, WaitStrategy.blocking());
+    }
+
+    /**
+     * @param maxPending number of submitted payloads not parsed yet past which {@link #submit} blocks
+     */
+    public SeriesAffinityPool(int workers, int shards, int maxPending, ParserFactory parsers, ShardHandler handler, WaitStrategy waitStrategy) {
+        if (workers < 1 || shards < workers || maxPending < 1) {
+            throw new IllegalArgumentException("workers and maxPending must be positive, with at least one shard per worker");
+        }
+        this.parsers = parsers;
+        this.handler = handler;
+        this.waitStrategy = waitStrategy;
+        this.maxPending = maxPending;
+        this.capacity = new Semaphore(maxPending);
+        this.workers = new Worker[workers];
+        for (int i = 0; i < workers; i++) {
+            this.workers[i] = new Worker(i);
+        }
+        this.shards = new Shard[shards];
+        for (int i = 0; i < shards; i++) {
+            this.shards[i] = new Shard(i, this.workers[i % workers]);
+        }
+    }
+
+    public synchronized void start() {
+        if (running) {
+            throw new IllegalStateException("Pool already started");
+        }
+        running = true;
+        for (Worker worker : workers) {
+            worker.thread.start();
+        }
+    }
+
+    /**
+     * @return the shard {@code data} is routed to
+     */
+    public int shardOf(byte[] data, int offset, int length) {
+        long hash = SeriesKeyHash.hash(data, offset, length);
+        return (int) ((hash >>> 1) % shards.length);
+    }
+
+    /**
+     * Queues every record of the payload on its shard, blocking while {@code maxPending} records wait. The bytes are
+     * read later from a worker and must not be modified until then.
+     */
+    public void submit(byte[] data, int offset, int length) throws InterruptedException {
+        if (!running) {
+            throw new IllegalStateException("Pool is not running");
+        }
+        int end = offset + length;
+        int i = skipSeparators(data, offset, end);
+        boolean array = i < end && data[i] == '[';
+        if (array) {
+            i++;
+        } else if (i == end) {
+            route(data, offset, length);
+            return;
+        }
+        while ((i = skipSeparators(data, i, end)) < end) {
+            if (data[i] == '{') {
+                int recordEnd = SeriesKeyHash.recordEnd(data, i, end);
+                route(data, i, recordEnd - i);
+                i = recordEnd;
+            } else if (array && data[i] == ']' && skipSeparators(data, i + 1, end) == end) {
+                return;
+            } else {
+                route(data, i, end - i);
+                return;
+            }
+        }
+    }
+
+    private static int skipSeparators(byte[] data, int from, int end) {
+        int i = from;
+        while (i < end && (data[i] == ' ' || data[i] == '\n' || data[i] == '\r' || data[i] == '\t' || data[i] == ',')) {
+            i++;
+        }
+        return i;
+    }
+
+    private void route(byte[] data, int offset, int length) throws InterruptedException {
+        capacity.acquire();
+        Shard shard = shards[shardOf(data, offset, length)];
+        shard.pending.add(new Payload(data, offset, length));
+        shard.schedule(shard.home);
+    }
+
+    /**
+     * Waits until every payload submitted so far was handled.
+     *
+     * @return false when the timeout elapsed first
+     */
+    public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!capacity.tryAcquire(maxPending, timeout, unit)) {
+            return false;
+        }
+        capacity.release(maxPending);
+        return true;
+    }
+
+    /**
+     * Handles the payloads already submitted, then stops the workers.
+     */
+    @Override
+    public synchronized void close() {
+        try {
+            awaitIdle(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        running = false;
+        waitStrategy.signal();
+        for (Worker worker : workers) {
+            try {
+                worker.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public long payloads() {
+        return payloads.get();
+    }
+
+    public long measurements() {
+        return measurements.get();
+    }
+
+    public long rejectedPayloads() {
+        return rejectedPayloads.get();
+    }
+
+    public long handlerFailures() {
+        return handlerFailures.get();
+    }
+
+    /**
+     * @return the number of shard runs taken by another worker than their home one
+     */
+    public long steals() {
+        return steals.get();
+    }
+
+    private static final class Payload {
+        final byte[] data;
+        final int offset;
+        final int length;
+
+        Payload(byte[] data, int offset, int length) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final class Shard {
+        final int id;
+        final Worker home;
+        final Queue<Payload> pending = new ConcurrentLinkedQueue<>();
+        /**
+         * Set while the shard is queued on a worker or running, so that it is never run by two workers at once.
+         */
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        private MearsurementParser parser;
+
+        Shard(int id, Worker home) {
+            this.id = id;
+            this.home = home;
+        }
+
+        void schedule(Worker worker) {
+            if (!pending.isEmpty() && scheduled.compareAndSet(false, true)) {
+                worker.runnable.add(this);
+                waitStrategy.signal();
+            }
+        }
+
+        /**
+         * Handles up to {@link #PAYLOADS_PER_RUN} payloads, then hands the shard back to {@code worker} when more
+         * are pending.
+         */
+        void run(Worker worker) {
+            if (parser == null) {
+                parser = parsers.create(id);
+            }
+            Payload payload;
+            for (int i = 0; i < PAYLOADS_PER_RUN && (payload = pending.poll()) != null; i++) {
+                try {
+                    handle(payload);
+                } finally {
+                    capacity.release();
+                }
+            }
+            scheduled.set(false);
+            schedule(worker);
+        }
+
+        private void handle(Payload payload) {
+            payloads.incrementAndGet();
+            List<Measurement> values;
+            try {
+                ParseResult result = parser.parse(payload.data, payload.offset, payload.length);
+                if (!result.isValid()) {
+                    rejectedPayloads.incrementAndGet();
+                    return;
+                }
+                values = result.getMeasurements();
+            } catch (Exception e) {
+                rejectedPayloads.incrementAndGet();
+                return;
+            }
+            try {
+                handler.onMeasurements(id, values);
+                measurements.addAndGet(values.size());
+            } catch (Exception e) {
+                handlerFailures.incrementAndGet();
+            }
+        }
+    }
+
+    private final class Worker implements Runnable {
+        final ConcurrentLinkedDeque<Shard> runnable = new ConcurrentLinkedDeque<>();
+        final Thread thread;
+        private final int index;
+
+        Worker(int index) {
+            this.index = index;
+            this.thread = new Thread(this, "series-affinity-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            int attempt = 0;
+            try {
+                while (running) {
+                    Shard shard = runnable.pollFirst();
+                    if (shard == null) {
+                        shard = steal();
+                    }
+                    if (shard != null) {
+                        attempt = 0;
+                        shard.run(this);
+                    } else {
+                        waitStrategy.idle(attempt++, WaitStrategy.MAX_BLOCK_NANOS);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private Shard steal() {
+            for (int i = 1; i < workers.length; i++) {
+                Shard shard = workers[(index + i) % workers.length].runnable.pollLast();
+                if (shard != null) {
+                    steals.incrementAndGet();
+                    return shard;
+                }
+            }
+            return null;
+        }
+    }
+}
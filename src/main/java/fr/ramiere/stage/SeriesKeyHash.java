@@ -0,0 +1,172 @@
+package fr.ramiere.stage;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Hashes the series identity of a JSON record straight from its bytes, without parsing it: the string values of the
+ * top-level {@code host}, {@code plugin}, {@code plugin_instance}, {@code type} and {@code type_instance} fields of a
+ * collectd value list, or {@code measurement} and the string entries of {@code tags} for simple measurements. Only
+ * the first record of a payload is read, {@link #recordEnd} lets callers split a payload holding several records
+ * first. Field and tag order do not matter and escapes are hashed as written, so a series must always be sent the
+ * same way to hash the same.
+ */
+public final class SeriesKeyHash {
+    private static final byte[][] FIELDS = {
+            bytes("host"), bytes("plugin"), bytes("plugin_instance"), bytes("type"), bytes("type_instance"), bytes("measurement"), bytes("tags")
+    };
+    private static final int COLLECTD_FIELDS = 5;
+    private static final int TAGS = 6;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private SeriesKeyHash() {
+    }
+
+    public static long hash(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int recordDepth = 1;
+        int depth = 0;
+        boolean value = false;
+        int field = -1;
+        int found = 0;
+        int tagsDepth = -1;
+        boolean tagValue = false;
+        long tagKey = 0;
+        long hash = 0;
+        for (int i = offset; i < end; i++) {
+            byte b = data[i];
+            switch (b) {
+                case '"':
+                    int start = i + 1;
+                    i = closingQuote(data, start, end);
+                    if (depth == recordDepth) {
+                        if (!value) {
+                            field = field(data, start, i);
+                        } else if (field >= 0) {
+                            hash += HyperLogLog.hash(fnv(data, start, i) + field);
+                            if (field < COLLECTD_FIELDS && ++found == COLLECTD_FIELDS) {
+                                return hash;
+                            }
+                            field = -1;
+                        }
+                    } else if (depth == tagsDepth) {
+                        if (!tagValue) {
+                            tagKey = fnv(data, start, i);
+                        } else {
+                            hash += HyperLogLog.hash(tagKey * FNV_PRIME + fnv(data, start, i) + TAGS);
+                        }
+                    }
+                    break;
+                case '[':
+                    if (depth == 0) {
+                        recordDepth = 2;
+                    }
+                    depth++;
+                    break;
+                case '{':
+                    if (depth == recordDepth && value && field == TAGS) {
+                        tagsDepth = depth + 1;
+                    }
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    if (depth == tagsDepth) {
+                        tagsDepth = -1;
+                    }
+                    if (--depth < recordDepth) {
+                        return hash;
+                    }
+                    break;
+                case ':':
+                    value |= depth == recordDepth;
+                    tagValue |= depth == tagsDepth;
+                    break;
+                case ',':
+                    if (depth == recordDepth) {
+                        value = false;
+                        field = -1;
+                    } else if (depth == tagsDepth) {
+                        tagValue = false;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @return the index past the end of the object or array opening at {@code from}, {@code end} when it is not
+     * closed
+     */
+    public static int recordEnd(byte[] data, int from, int end) {
+        int depth = 0;
+        for (int i = from; i < end; i++) {
+            switch (data[i]) {
+                case '"':
+                    i = closingQuote(data, i + 1, end);
+                    break;
+                case '{':
+                case '[':
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    if (--depth == 0) {
+                        return i + 1;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * @return the index of the quote closing the string starting at {@code from}, {@code end} when there is none
+     */
+    static int closingQuote(byte[] data, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (data[i] == '\\') {
+                i++;
+            } else if (data[i] == '"') {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static int field(byte[] data, int from, int to) {
+        for (int f = 0; f < FIELDS.length; f++) {
+            byte[] name = FIELDS[f];
+            if (name.length == to - from && regionMatches(name, data, from)) {
+                return f;
+            }
+        }
+        return -1;
+    }
+
+    static boolean regionMatches(byte[] name, byte[] data, int from) {
+        for (int i = 0; i < name.length; i++) {
+            if (name[i] != data[from + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static long fnv(byte[] data, int from, int to) {
+        long hash = FNV_OFFSET;
+        for (int i = from; i < to; i++) {
+            hash = (hash ^ (data[i] & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static byte[] bytes(String field) {
+        return field.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,114 @@
+package fr.ramiere.stage;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * How a thread of a {@link MeasurementRingBuffer} waits when it cannot go on: a consumer finding the ring empty, a
+ * blocked producer finding it full. Spinning gives the lowest latency and burns a core per waiting thread, blocking
+ * is the other way round.
+ */
+public abstract class WaitStrategy {
+    static final long MAX_BLOCK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int SPINS = 100;
+    private static final int YIELDS = 100;
+
+    /**
+     * Waits a little.
+     *
+     * @param attempt  number of calls since the thread last made progress
+     * @param maxNanos longest wait, e.g. until a linger deadline
+     */
+    public abstract void idle(int attempt, long maxNanos) throws InterruptedException;
+
+    /**
+     * Called after a thread made progress that may let waiting threads go on.
+     */
+    public void signal() {
+    }
+
+    /**
+     * Retries at once: lowest latency, one busy core per waiting thread.
+     */
+    public static WaitStrategy busySpin() {
+        return new WaitStrategy() {
+            @Override
+            public void idle(int attempt, long maxNanos) {
+            }
+        };
+    }
+
+    /**
+     * Spins a little, then yields the core to other threads between retries.
+     */
+    public static WaitStrategy yielding() {
+        return new WaitStrategy() {
+            @Override
+            public void idle(int attempt, long maxNanos) {
+                if (attempt >= SPINS) {
+                    Thread.yield();
+                }
+            }
+        };
+    }
+
+    /**
+     * Spins, yields, then parks for {@code sleepNanos} between retries: idle threads cost close to nothing, at the
+     * price of up to {@code sleepNanos} of latency.
+     */
+    public static WaitStrategy sleeping(final long sleepNanos) {
+        return new WaitStrategy() {
+            @Override
+            public void idle(int attempt, long maxNanos) throws InterruptedException {
+                if (attempt >= SPINS + YIELDS) {
+                    LockSupport.parkNanos(Math.min(sleepNanos, maxNanos));
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                } else if (attempt >= SPINS) {
+                    Thread.yield();
+                }
+            }
+        };
+    }
+
+    /**
+     * Waits on a condition signalled by the other side. A signal sent between the failed attempt and the wait is
+     * missed, so waits are bounded to a millisecond.
+     */
+    public static WaitStrategy blocking() {
+        return new BlockingWaitStrategy();
+    }
+
+    private static class BlockingWaitStrategy extends WaitStrategy {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition progress = lock.newCondition();
+        private volatile int waiters;
+
+        @Override
+        public void idle(int attempt, long maxNanos) throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                waiters++;
+                progress.awaitNanos(Math.min(maxNanos, MAX_BLOCK_NANOS));
+            } finally {
+                waiters--;
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void signal() {
+            if (waiters > 0) {
+                lock.lock();
+                try {
+                    progress.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+}
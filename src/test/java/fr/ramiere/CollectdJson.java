@@ -0,0 +1,104 @@
+package fr.ramiere;
+
+/**
+ * JSON of a collectd value list as {@code write_http} posts it, shared by the tests: a single gauge {@code value} of 1
+ * from host {@code h}, plugin {@code p} and type {@code t}, every field overridable, always ending its meta with the
+ * {@code tsdb_tag_add_collector} that marks it as collectd.
+ */
+public final class CollectdJson {
+    private String values = "1";
+    private String dstypes = "\"gauge\"";
+    private String dsnames = "\"value\"";
+    private String time = "1457435801.786";
+    private String host = "h";
+    private String plugin = "p";
+    private String pluginInstance = "";
+    private String type = "t";
+    private String typeInstance = "";
+    private final StringBuilder meta = new StringBuilder();
+
+    private CollectdJson() {
+    }
+
+    public static CollectdJson valueList() {
+        return new CollectdJson();
+    }
+
+    /**
+     * Values of a single data source type, name them with {@link #dsnames(String...)} when there is more than one.
+     */
+    public CollectdJson values(String dstype, long... values) {
+        StringBuilder joinedValues = new StringBuilder();
+        StringBuilder joinedTypes = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                joinedValues.append(',');
+                joinedTypes.append(',');
+            }
+            joinedValues.append(values[i]);
+            joinedTypes.append('"').append(dstype).append('"');
+        }
+        this.values = joinedValues.toString();
+        this.dstypes = joinedTypes.toString();
+        return this;
+    }
+
+    public CollectdJson dsnames(String... dsnames) {
+        StringBuilder joined = new StringBuilder();
+        for (int i = 0; i < dsnames.length; i++) {
+            joined.append(i > 0 ? "," : "").append('"').append(dsnames[i]).append('"');
+        }
+        this.dsnames = joined.toString();
+        return this;
+    }
+
+    public CollectdJson time(long time) {
+        this.time = Long.toString(time);
+        return this;
+    }
+
+    public CollectdJson host(String host) {
+        this.host = host;
+        return this;
+    }
+
+    public CollectdJson plugin(String plugin) {
+        this.plugin = plugin;
+        return this;
+    }
+
+    public CollectdJson pluginInstance(String pluginInstance) {
+        this.pluginInstance = pluginInstance;
+        return this;
+    }
+
+    public CollectdJson type(String type) {
+        this.type = type;
+        return this;
+    }
+
+    public CollectdJson typeInstance(String typeInstance) {
+        this.typeInstance = typeInstance;
+        return this;
+    }
+
+    /**
+     * Adds a string meta entry, before the collector one.
+     */
+    public CollectdJson meta(String key, String value) {
+        meta.append('"').append(key).append("\":\"").append(value).append("\",");
+        return this;
+    }
+
+    public String toJson() {
+        return "{\"values\":[" + values + "],\"dstypes\":[" + dstypes + "],\"dsnames\":[" + dsnames + "],\"time\":" + time
+                + ",\"interval\":10,\"host\":\"" + host + "\",\"plugin\":\"" + plugin + "\",\"plugin_instance\":\"" + pluginInstance
+                + "\",\"type\":\"" + type + "\",\"type_instance\":\"" + typeInstance
+                + "\",\"meta\":{" + meta + "\"tsdb_tag_add_collector\":\"collectd\"}}";
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+}
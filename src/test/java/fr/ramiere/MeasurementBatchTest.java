@@ -0,0 +1,105 @@
+package fr.ramiere;
+
+import fr.ramiere.parser.JsonMeasurementParser;
+import fr.ramiere.parser.MeasurementParserRegistry;
+import fr.ramiere.parser.StreamingJsonCollectdParser;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class MeasurementBatchTest {
+
+    private static final String IF_OCTETS = "{\"values\":[1520235,2239128],\"dstypes\":[\"derive\",\"derive\"],\"dsnames\":[\"rx\",\"tx\"],\"time\":1457350114.593,\"interval\":10,\"host\":\"h\",\"plugin\":\"interface\",\"plugin_instance\":\"eth0\",\"type\":\"if_octets\",\"type_instance\":\"\",\"meta\":{\"tsdb_metric\":\"sys.network\",\"tsdb_tag_pluginInstance\":\"interface\",\"tsdb_tag_dsname\":\"direction\",\"tsdb_tag_add_collector\":\"collectd\"}}";
+    private static final String MEASUREMENTS = "[{\"measurement\":\"badge\",\"tags\":{\"color\":\"GREEN\"},\"time\":1457432331641,\"value\":100},{\"measurement\":\"badge\",\"time\":1457432331642,\"value\":50}]";
+
+    private final MeasurementDictionary dictionary = new MeasurementDictionary();
+
+    @Test
+    public void rowsOfEvictedTagSetsResolveToNullEvenOnceTheirIdIsReused() {
+        MeasurementDictionary small = new MeasurementDictionary(new TagSetCache(16));
+        MeasurementBatch batch = new MeasurementBatch(small);
+        batch.add(new Measurement("cpu", 1, 1, Collections.singletonMap("fqdn", "h0")));
+        int id = batch.tagSetId(0);
+        MeasurementBatch copy = new MeasurementBatch(small);
+        copy.addRow(batch, 0);
+        assertThat(copy.tags(0)).isSameAs(batch.tags(0));
+
+        for (int i = 1; small.tagSet(id) == null || small.tagSet(id).get("fqdn").equals("h0"); i++) {
+            small.tagSetId(Collections.singletonMap("fqdn", "h" + i));
+        }
+
+        assertThat(small.tagSet(id)).isNotNull();
+        assertThat(batch.tags(0)).isNull();
+        assertThat(copy.tags(0)).isNull();
+    }
+
+    @Test
+    public void collectdValueListsAppendAsColumns() throws IOException {
+        MeasurementBatch batch = new MeasurementBatch(dictionary, 1);
+        byte[] payload = bytes("[" + IF_OCTETS + "," + IF_OCTETS + "]");
+        new StreamingJsonCollectdParser().toBatch(payload, 0, payload.length, batch);
+
+        List<Measurement> expected = new StreamingJsonCollectdParser().toValues(IF_OCTETS);
+        assertThat(batch.size()).isEqualTo(4);
+        for (int i = 0; i < batch.size(); i++) {
+            Measurement measurement = expected.get(i % 2);
+            assertThat(batch.name(i)).isEqualTo(measurement.getName());
+            assertThat(batch.time(i)).isEqualTo(1457350114593L);
+            assertThat(batch.value(i)).isEqualTo(measurement.getValue());
+            assertThat(batch.tags(i)).isEqualTo(measurement.getTags());
+        }
+        assertThat(batch.nameId(0)).isEqualTo(batch.nameId(3));
+        assertThat(batch.tagSetId(0)).isEqualTo(batch.tagSetId(2)).isNotEqualTo(batch.tagSetId(1));
+    }
+
+    @Test
+    public void simpleMeasurementsAppendAsColumns() throws IOException {
+        MeasurementBatch batch = new MeasurementBatch(dictionary);
+        byte[] payload = bytes(MEASUREMENTS);
+        new JsonMeasurementParser().toBatch(payload, 0, payload.length, batch);
+
+        assertThat(batch.size()).isEqualTo(2);
+        assertThat(batch.toMeasurement(0)).isEqualTo(new JsonMeasurementParser().toValues(MEASUREMENTS).get(0));
+        assertThat(batch.toMeasurement(1)).isEqualTo(new Measurement("badge", 1457432331642L, 50));
+        assertThat(batch.nameIds()[0]).isEqualTo(batch.nameIds()[1]);
+    }
+
+    @Test
+    public void failedPayloadLeavesBatchUntouched() throws IOException {
+        MeasurementBatch batch = new MeasurementBatch(dictionary);
+        byte[] valid = bytes(IF_OCTETS);
+        MeasurementParserRegistry registry = MeasurementParserRegistry.defaultRegistry();
+        registry.toBatch(valid, 0, valid.length, batch);
+
+        byte[] invalid = bytes("[" + IF_OCTETS + ",{\"dsnames\":[]}]");
+        try {
+            registry.toBatch(invalid, 0, invalid.length, batch);
+            fail("invalid value list accepted");
+        } catch (IllegalArgumentException expected) {
+            assertThat(batch.size()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    public void clearedBatchIsReused() throws IOException {
+        MeasurementBatch batch = new MeasurementBatch(dictionary);
+        byte[] payload = bytes(IF_OCTETS);
+        StreamingJsonCollectdParser parser = new StreamingJsonCollectdParser();
+        parser.toBatch(payload, 0, payload.length, batch);
+        double[] values = batch.values();
+        batch.clear();
+        parser.toBatch(payload, 0, payload.length, batch);
+        assertThat(batch.size()).isEqualTo(2);
+        assertThat(batch.values()).isSameAs(values);
+    }
+
+    private static byte[] bytes(String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,97 @@
+package fr.ramiere;
+
+import fr.ramiere.parser.StreamingJsonCollectdParser;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TagSetCacheTest {
+
+    private final TagSetCache cache = new TagSetCache();
+
+    @Test
+    public void equalTagsResolveToSameInstance() {
+        TagSet first = cache.intern(tags("fqdn", "a", "plugin", "cpu"));
+        TagSet second = cache.intern(tags("plugin", "cpu", "fqdn", "a"));
+        assertThat(second).isSameAs(first);
+        assertThat(first.id()).isNotEqualTo(TagSet.NO_ID);
+        assertThat(cache.intern(tags("fqdn", "b", "plugin", "cpu")).id()).isNotEqualTo(first.id());
+    }
+
+    @Test
+    public void behavesLikeAMap() {
+        Map<String, String> tags = tags("fqdn", "a", "plugin", "cpu");
+        TagSet tagSet = cache.intern(tags);
+        assertThat(tagSet).isEqualTo(tags);
+        assertThat(tags).isEqualTo(tagSet);
+        assertThat(tagSet.hashCode()).isEqualTo(tags.hashCode());
+        assertThat(tagSet.get("plugin")).isEqualTo("cpu");
+        assertThat(tagSet.get("missing")).isNull();
+        assertThat(tagSet).containsOnlyKeys("fqdn", "plugin");
+    }
+
+    @Test
+    public void extraTagReplacesExistingKey() {
+        TagSet tagSet = cache.intern(tags("fqdn", "a", "dsname", "old"), "dsname", "rx");
+        assertThat(tagSet).isEqualTo(tags("fqdn", "a", "dsname", "rx"));
+        assertThat(cache.intern(tags("fqdn", "a"), "dsname", "rx")).isSameAs(tagSet);
+    }
+
+    @Test
+    public void cacheIsBounded() {
+        TagSetCache small = new TagSetCache(16);
+        for (int i = 0; i < 1000; i++) {
+            small.intern(tags("fqdn", "host" + i));
+        }
+        assertThat(small.size()).isLessThanOrEqualTo(16);
+    }
+
+    @Test
+    public void evictedIdsAreRecycled() {
+        TagSetCache small = new TagSetCache(16);
+        TagSet first = small.intern(tags("fqdn", "host0"));
+        for (int i = 1; i < 1000; i++) {
+            TagSet tagSet = small.intern(tags("fqdn", "host" + i));
+            assertThat(tagSet.id()).isBetween(0, 31);
+            assertThat(small.get(tagSet.id())).isSameAs(tagSet);
+        }
+        TagSet again = small.intern(first);
+        assertThat(again).isNotSameAs(first).isEqualTo(first);
+        assertThat(small.get(again.id())).isSameAs(again);
+    }
+
+    @Test
+    public void contentHashIgnoresOrderAndInterning() {
+        TagSet interned = cache.intern(tags("fqdn", "a", "plugin", "cpu"));
+        assertThat(TagSet.of(tags("plugin", "cpu", "fqdn", "a")).contentHash()).isEqualTo(interned.contentHash());
+        assertThat(new TagSetCache().intern(tags("fqdn", "a", "plugin", "cpu")).contentHash()).isEqualTo(interned.contentHash());
+        assertThat(cache.intern(tags("fqdn", "b", "plugin", "cpu")).contentHash()).isNotEqualTo(interned.contentHash());
+        assertThat("Aa".hashCode()).isEqualTo("BB".hashCode());
+        assertThat(TagSet.of(tags("host", "Aa")).contentHash()).isNotEqualTo(TagSet.of(tags("host", "BB")).contentHash());
+        assertThat(TagSet.of(tags("Aa", "x")).contentHash()).isNotEqualTo(TagSet.of(tags("BB", "x")).contentHash());
+    }
+
+    @Test
+    public void parserSharesTagSetsAcrossIntervals() throws IOException {
+        StreamingJsonCollectdParser parser = new StreamingJsonCollectdParser(cache);
+        String json = "{\"values\":[1,2],\"dstypes\":[\"derive\",\"derive\"],\"dsnames\":[\"rx\",\"tx\"],\"time\":%s,\"interval\":10,\"host\":\"h\",\"plugin\":\"interface\",\"plugin_instance\":\"eth0\",\"type\":\"if_octets\",\"type_instance\":\"\",\"meta\":{\"tsdb_tag_add_collector\":\"collectd\"}}";
+        List<Measurement> first = parser.toValues(String.format(json, "1457350114"));
+        List<Measurement> second = parser.toValues(String.format(json, "1457350124"));
+        assertThat(second.get(0).getTags()).isSameAs(first.get(0).getTags());
+        assertThat(second.get(1).getTagSetId()).isEqualTo(first.get(1).getTagSetId());
+        assertThat(first.get(0).getTagSetId()).isNotEqualTo(first.get(1).getTagSetId());
+    }
+
+    private static Map<String, String> tags(String... keyValues) {
+        Map<String, String> tags = new HashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            tags.put(keyValues[i], keyValues[i + 1]);
+        }
+        return tags;
+    }
+}
@@ -0,0 +1,132 @@
+package fr.ramiere.encoder;
+
+import fr.ramiere.Measurement;
+import fr.ramiere.MeasurementSink;
+import fr.ramiere.MutableMeasurement;
+import fr.ramiere.parser.JsonCollectdParser;
+import fr.ramiere.parser.JsonMeasurementParser;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BinaryBatchCodecTest {
+
+    private final BinaryBatchEncoder encoder = new BinaryBatchEncoder();
+
+    @Test
+    public void roundTripsCollectdMeasurements() throws IOException {
+        for (String fixture : Arrays.asList("packet-hr.json", "packet-lowres.json")) {
+            byte[] json = fixture(fixture);
+            List<Measurement> measurements = new JsonCollectdParser().toValues(json, 0, json.length);
+
+            assertThat(measurements).isNotEmpty();
+            assertThat(BinaryBatchReader.decode(ByteBuffer.wrap(encoder.encode(measurements)))).isEqualTo(measurements);
+        }
+    }
+
+    @Test
+    public void roundTripsMeasurementsSmallerThanJson() throws IOException {
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 600; i++) {
+            json.append("{\"measurement\":\"cpu\",\"tags\":{\"fqdn\":\"host").append(i % 3)
+                    .append(".xmp.net.intra\",\"collector\":\"vrops\"},\"time\":").append(1457432331641L + (i / 3) * 10000 + (i == 301 ? 7 : 0))
+                    .append(",\"value\":").append(i % 3 == 0 ? "100" : String.valueOf(0.25 * (i % 17))).append("}\n");
+        }
+        byte[] data = json.toString().getBytes(StandardCharsets.UTF_8);
+        List<Measurement> measurements = new JsonMeasurementParser().toValues(data, 0, data.length);
+
+        byte[] encoded = encoder.encode(measurements);
+
+        assertThat(BinaryBatchReader.decode(ByteBuffer.wrap(encoded))).isEqualTo(measurements);
+        assertThat(encoded.length).isLessThan(data.length / 20);
+    }
+
+    @Test
+    public void roundTripsSpecialValuesFromDirectBuffer() throws IOException {
+        List<Measurement> measurements = Arrays.asList(
+                new Measurement("a", 1000.5, Double.NaN, tags("k", "v")),
+                new Measurement("a", -3, -0.0, tags("k", "v")),
+                new Measurement("b", Double.MAX_VALUE, Double.NEGATIVE_INFINITY),
+                new Measurement("a", 1e-3, Double.MIN_VALUE, tags("k", "v")),
+                new Measurement("ünïcode 😀", 0, 42, tags("", "")));
+        byte[] encoded = encoder.encode(measurements);
+        ByteBuffer direct = ByteBuffer.allocateDirect(encoded.length + 3);
+        direct.position(3);
+        direct.put(encoded);
+        direct.position(3);
+
+        assertThat(BinaryBatchReader.decode(direct)).isEqualTo(measurements);
+        assertThat(direct.position()).isEqualTo(3);
+
+        final List<Measurement> pushed = new ArrayList<>();
+        assertThat(BinaryBatchReader.decode(direct, new MeasurementSink() {
+            @Override
+            public void accept(MutableMeasurement measurement) {
+                pushed.add(measurement.toMeasurement());
+            }
+        })).isEqualTo(5);
+        assertThat(pushed).isEqualTo(measurements);
+        assertThat(BinaryBatchReader.decode(ByteBuffer.wrap(encoder.encode(new ArrayList<Measurement>())))).isEmpty();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsForeignBytes() {
+        BinaryBatchReader.decode(ByteBuffer.wrap("{\"measurement\":\"cpu\"}".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void partitionsBySeries() {
+        Map<String, String> tags = new HashMap<>();
+        tags.put("fqdn", "web-1");
+        tags.put("collector", "collectd");
+        Map<String, String> reordered = new HashMap<>(4, 0.99f);
+        reordered.put("collector", "collectd");
+        reordered.put("fqdn", "web-1");
+        Measurement first = new Measurement("cpu", 1000, 1, tags);
+        Measurement later = new Measurement("cpu", 2000, 2, reordered);
+
+        assertThat(SeriesPartitioner.partition(later, 12)).isEqualTo(SeriesPartitioner.partition(first, 12));
+        assertThat(SeriesPartitioner.partitionKey(later)).isEqualTo(SeriesPartitioner.partitionKey(first));
+        assertThat(SeriesPartitioner.seriesHash("cpu", tags("fqdn", "web-2"))).isNotEqualTo(SeriesPartitioner.seriesHash("cpu", tags));
+        assertThat(SeriesPartitioner.seriesHash("cpu", tags("a", "b"))).isNotEqualTo(SeriesPartitioner.seriesHash("cpu", tags("b", "a")));
+
+        List<Measurement> measurements = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            measurements.add(new Measurement("cpu", i, i, tags("fqdn", "web-" + i % 50)));
+        }
+        List<List<Measurement>> partitions = SeriesPartitioner.split(measurements, 4);
+        for (List<Measurement> partition : partitions) {
+            assertThat(partition).isNotEmpty();
+            assertThat(BinaryBatchReader.decode(ByteBuffer.wrap(encoder.encode(partition)))).isEqualTo(partition);
+        }
+    }
+
+    private static Map<String, String> tags(String key, String value) {
+        Map<String, String> tags = new HashMap<>();
+        tags.put(key, value);
+        return tags;
+    }
+
+    private static byte[] fixture(String name) throws IOException {
+        try (InputStream in = BinaryBatchCodecTest.class.getResourceAsStream("/collectd/" + name)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+}
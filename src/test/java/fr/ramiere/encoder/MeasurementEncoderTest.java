@@ -0,0 +1,125 @@
+package fr.ramiere.encoder;
+
+import fr.ramiere.Measurement;
+import fr.ramiere.MeasurementBatch;
+import fr.ramiere.MeasurementDictionary;
+import fr.ramiere.TagSet;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class MeasurementEncoderTest {
+
+    private final Measurement measurement = new Measurement("sys.network", 1457435801786d, 0.25, TagSet.of(tags(
+            "fqdn", "macvlii00983.xmp.net.intra",
+            "category1", "tcp connections",
+            "port", "a,b=c",
+            "empty", "")));
+
+    @Test
+    public void influxLineProtocol() throws IOException {
+        assertThat(encode(new InfluxLineProtocolEncoder(), measurement))
+                .isEqualTo("sys.network,category1=tcp\\ connections,fqdn=macvlii00983.xmp.net.intra,port=a\\,b\\=c value=0.25 1457435801786000000\n");
+        assertThat(encode(new InfluxLineProtocolEncoder(TimeUnit.MILLISECONDS, "gauge"), new Measurement("cpu load", 1000, 3)))
+                .isEqualTo("cpu\\ load gauge=3 1000\n");
+        assertThat(encode(new InfluxLineProtocolEncoder(), new Measurement("nan", 1000, Double.NaN))).isEmpty();
+    }
+
+    @Test
+    public void openTsdbPut() throws IOException {
+        assertThat(encode(new OpenTsdbEncoder(), measurement))
+                .isEqualTo("put sys.network 1457435801786 0.25 category1=tcp_connections fqdn=macvlii00983.xmp.net.intra port=a_b_c\n");
+        assertThat(encode(new OpenTsdbEncoder(), new Measurement("untagged", 1000, 1))).isEmpty();
+    }
+
+    @Test
+    public void prometheusText() throws IOException {
+        Measurement quoted = new Measurement("sys.disk", 1000, Double.NEGATIVE_INFINITY, tags("dir\"ection", "r\"e\\a\nd", "2xx", "ok"));
+        assertThat(encode(new PrometheusEncoder(), measurement))
+                .isEqualTo("sys_network{category1=\"tcp connections\",empty=\"\",fqdn=\"macvlii00983.xmp.net.intra\",port=\"a,b=c\"} 0.25 1457435801786\n");
+        assertThat(encode(new PrometheusEncoder(), quoted))
+                .contains("dir_ection=\"r\\\"e\\\\a\\nd\"")
+                .contains("_xx=\"ok\"")
+                .endsWith("} -Inf 1000\n");
+        assertThat(encode(new PrometheusEncoder(), new Measurement("up", 1000, 1))).isEqualTo("up 1 1000\n");
+    }
+
+    @Test
+    public void encodesUtf8() throws IOException {
+        Measurement unicode = new Measurement("température", 1000, 1, tags("lieu", "salle 😀"));
+        assertThat(encode(new InfluxLineProtocolEncoder(TimeUnit.MILLISECONDS, "value"), unicode))
+                .isEqualTo("température,lieu=salle\\ 😀 value=1 1000\n");
+    }
+
+    @Test
+    public void doublesRoundTrip() throws IOException {
+        Random random = new Random(42);
+        PrometheusEncoder encoder = new PrometheusEncoder();
+        double[] samples = {0, -0.5, 1e-7, 123456.789, 253870080, 1e20, -3.14159, Double.MIN_VALUE, Double.MAX_VALUE};
+        for (double value : samples) {
+            assertRoundTrip(encoder, value);
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertRoundTrip(encoder, random.nextDouble() * Math.pow(10, random.nextInt(20) - 10));
+            assertRoundTrip(encoder, Math.round(random.nextDouble() * 100000) / 100.0);
+        }
+    }
+
+    @Test
+    public void writesIntoByteBufferOrFails() {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        OpenTsdbEncoder encoder = new OpenTsdbEncoder();
+        assertThat(encoder.encode(new Measurement("a", 1, 2, tags("k", "v")), buffer)).isTrue();
+        assertThat(new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8)).isEqualTo("put a 1 2 k=v\n");
+        int position = buffer.position();
+        try {
+            encoder.encode(measurement, buffer);
+            fail("buffer should be too small");
+        } catch (BufferOverflowException expected) {
+            assertThat(buffer.position()).isEqualTo(position);
+        }
+    }
+
+    @Test
+    public void encodesBatches() throws IOException {
+        MeasurementBatch batch = new MeasurementBatch(new MeasurementDictionary());
+        batch.add(measurement);
+        batch.add(new Measurement("sys.network", 1457435811786d, 0.5, measurement.getTags()));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertThat(new OpenTsdbEncoder().encode(batch, out)).isEqualTo(2);
+        assertThat(out.toString("UTF-8")).isEqualTo(
+                "put sys.network 1457435801786 0.25 category1=tcp_connections fqdn=macvlii00983.xmp.net.intra port=a_b_c\n" +
+                "put sys.network 1457435811786 0.5 category1=tcp_connections fqdn=macvlii00983.xmp.net.intra port=a_b_c\n");
+    }
+
+    private static void assertRoundTrip(PrometheusEncoder encoder, double value) throws IOException {
+        String line = encode(encoder, new Measurement("v", 0, value));
+        String text = line.substring(2, line.lastIndexOf(' '));
+        assertThat(Double.parseDouble(text)).as(text).isEqualTo(value);
+    }
+
+    private static String encode(MeasurementEncoder encoder, Measurement measurement) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.encode(measurement, out);
+        return out.toString("UTF-8");
+    }
+
+    private static Map<String, String> tags(String... keyValues) {
+        Map<String, String> tags = new HashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            tags.put(keyValues[i], keyValues[i + 1]);
+        }
+        return tags;
+    }
+}
@@ -0,0 +1,187 @@
+package fr.ramiere.http;
+
+import fr.ramiere.Measurement;
+import fr.ramiere.parser.MeasurementParserRegistry;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HttpIngestionEndpointTest {
+    private static final String COLLECTD = "[{\"values\":[1901474177],\"dstypes\":[\"gauge\"],\"dsnames\":[\"value\"],\"time\":1280959128,\"interval\":10,"
+            + "\"host\":\"leeloo.octo.it\",\"plugin\":\"cpu\",\"plugin_instance\":\"0\",\"type\":\"cpu\",\"type_instance\":\"idle\","
+            + "\"meta\":{\"tsdb_tag_add_collector\":\"collectd\"}},"
+            + "{\"values\":[10,20],\"dstypes\":[\"gauge\",\"gauge\"],\"dsnames\":[\"rx\",\"tx\"],\"time\":1280959128,\"interval\":10,"
+            + "\"host\":\"leeloo.octo.it\",\"plugin\":\"interface\",\"plugin_instance\":\"eth0\",\"type\":\"if_octets\",\"type_instance\":\"\","
+            + "\"meta\":{\"tsdb_tag_add_collector\":\"collectd\"}}]";
+    private static final String MEASUREMENT = "{\"measurement\":\"badge\",\"tags\":{\"fqdn\":\"web-1\"},\"time\":1457432331641,\"value\":100}";
+
+    private final List<Measurement> received = Collections.synchronizedList(new ArrayList<Measurement>());
+    private HttpIngestionEndpoint endpoint;
+
+    @After
+    public void close() {
+        if (endpoint != null) {
+            endpoint.close();
+        }
+    }
+
+    @Test
+    public void ingestsCollectdAndMeasurementPosts() throws IOException {
+        endpoint = start(collecting(), HttpIngestionEndpoint.DEFAULT_MAX_REQUEST_BYTES, 4);
+
+        assertThat(post(COLLECTD, false)).isEqualTo(204);
+        assertThat(post(MEASUREMENT, true)).isEqualTo(204);
+
+        assertThat(received).hasSize(4);
+        assertThat(received.get(3).getName()).isEqualTo("badge");
+        assertThat(endpoint.measurements()).isEqualTo(4);
+        assertThat(endpoint.requests()).isEqualTo(2);
+    }
+
+    @Test
+    public void rejectsInvalidRequests() throws IOException {
+        endpoint = start(collecting(), HttpIngestionEndpoint.DEFAULT_MAX_REQUEST_BYTES, 4);
+
+        assertThat(post("{\"values\":[1", false)).isEqualTo(400);
+        assertThat(post("{\"unknown\":1}", false)).isEqualTo(400);
+        HttpURLConnection get = (HttpURLConnection) url().openConnection();
+        assertThat(get.getResponseCode()).isEqualTo(405);
+
+        assertThat(received).isEmpty();
+        assertThat(endpoint.rejectedRequests()).isEqualTo(2);
+    }
+
+    @Test
+    public void answersBadRequestWhenParserThrowsAnyRuntimeException() throws IOException {
+        endpoint = start(new MeasurementParserRegistry() {
+            @Override
+            public List<Measurement> toValues(InputStream in) {
+                throw new NullPointerException("missing field");
+            }
+        }, collecting(), HttpIngestionEndpoint.DEFAULT_MAX_REQUEST_BYTES, 4);
+
+        assertThat(post(MEASUREMENT, false)).isEqualTo(400);
+        assertThat(post(MEASUREMENT, true)).isEqualTo(400);
+
+        assertThat(endpoint.rejectedRequests()).isEqualTo(2);
+        assertThat(received).isEmpty();
+    }
+
+    @Test
+    public void limitsRequestSize() throws IOException {
+        endpoint = start(collecting(), COLLECTD.length() - 1, 4);
+
+        assertThat(post(COLLECTD, false)).isEqualTo(413);
+        assertThat(post(COLLECTD, true)).isEqualTo(413);
+        assertThat(post(MEASUREMENT, true)).isEqualTo(204);
+
+        assertThat(endpoint.oversizedRequests()).isEqualTo(2);
+        assertThat(received).hasSize(1);
+    }
+
+    @Test
+    public void answersTooManyRequestsWhenOverloaded() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        endpoint = start(new HttpIngestionSink() {
+            @Override
+            public void write(InetSocketAddress remote, List<Measurement> measurements) throws Exception {
+                entered.countDown();
+                release.await();
+            }
+        }, HttpIngestionEndpoint.DEFAULT_MAX_REQUEST_BYTES, 1);
+        ExecutorService client = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> blocked = client.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws IOException {
+                    return post(MEASUREMENT, false);
+                }
+            });
+            assertThat(entered.await(10, TimeUnit.SECONDS)).isTrue();
+
+            assertThat(post(MEASUREMENT, false)).isEqualTo(429);
+
+            release.countDown();
+            assertThat(blocked.get(10, TimeUnit.SECONDS)).isEqualTo(204);
+            assertThat(post(MEASUREMENT, false)).isEqualTo(204);
+            assertThat(endpoint.throttledRequests()).isEqualTo(1);
+        } finally {
+            client.shutdownNow();
+        }
+    }
+
+    @Test
+    public void answersUnavailableWhenSinkFails() throws IOException {
+        endpoint = start(new HttpIngestionSink() {
+            @Override
+            public void write(InetSocketAddress remote, List<Measurement> measurements) {
+                throw new IllegalStateException("down");
+            }
+        }, HttpIngestionEndpoint.DEFAULT_MAX_REQUEST_BYTES, 4);
+
+        assertThat(post(MEASUREMENT, false)).isEqualTo(503);
+        assertThat(endpoint.sinkFailures()).isEqualTo(1);
+        assertThat(endpoint.measurements()).isZero();
+    }
+
+    private HttpIngestionSink collecting() {
+        return new HttpIngestionSink() {
+            @Override
+            public void write(InetSocketAddress remote, List<Measurement> measurements) {
+                received.addAll(measurements);
+            }
+        };
+    }
+
+    private static HttpIngestionEndpoint start(HttpIngestionSink sink, int maxRequestBytes, int maxConcurrentRequests) throws IOException {
+        return start(MeasurementParserRegistry.defaultRegistry(), sink, maxRequestBytes, maxConcurrentRequests);
+    }
+
+    private static HttpIngestionEndpoint start(MeasurementParserRegistry parser, HttpIngestionSink sink, int maxRequestBytes,
+                                               int maxConcurrentRequests) throws IOException {
+        HttpIngestionEndpoint endpoint = new HttpIngestionEndpoint(new InetSocketAddress("127.0.0.1", 0), "/collectd",
+                parser, sink, maxRequestBytes, maxConcurrentRequests);
+        endpoint.start();
+        return endpoint;
+    }
+
+    private URL url() throws IOException {
+        return new URL("http://127.0.0.1:" + endpoint.address().getPort() + "/collectd");
+    }
+
+    private int post(String body, boolean chunked) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        HttpURLConnection connection = (HttpURLConnection) url().openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json");
+        if (chunked) {
+            connection.setChunkedStreamingMode(16);
+        } else {
+            connection.setFixedLengthStreamingMode(bytes.length);
+        }
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(bytes);
+        }
+        return connection.getResponseCode();
+    }
+}
@@ -0,0 +1,178 @@
+package fr.ramiere.kafka;
+
+import fr.ramiere.MearsurementParser;
+import fr.ramiere.Measurement;
+import fr.ramiere.ParseResult;
+import fr.ramiere.parser.MeasurementParserRegistry;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class KafkaIngestionPipelineTest {
+
+    private static final String TOPIC = "collectd";
+    private static final String COLLECTD = "[{\"values\":[1,2],\"dstypes\":[\"derive\",\"derive\"],\"dsnames\":[\"rx\",\"tx\"],\"time\":1457350114.593,\"interval\":10,\"host\":\"%s\",\"plugin\":\"interface\",\"plugin_instance\":\"eth0\",\"type\":\"if_octets\",\"type_instance\":\"\",\"meta\":{\"tsdb_tag_add_collector\":\"collectd\"}}]";
+
+    private final Map<TopicPartition, MockConsumer<byte[], byte[]>> consumers = new ConcurrentHashMap<>();
+
+    @Test
+    public void parsesEveryPartitionAndCommitsAfterSink() throws Exception {
+        List<TopicPartition> partitions = Arrays.asList(new TopicPartition(TOPIC, 0), new TopicPartition(TOPIC, 1), new TopicPartition(TOPIC, 2));
+        final ConcurrentLinkedQueue<Measurement> written = new ConcurrentLinkedQueue<>();
+        MeasurementBatchSink sink = new MeasurementBatchSink() {
+            @Override
+            public void write(TopicPartition partition, List<Measurement> measurements) {
+                written.addAll(measurements);
+            }
+        };
+
+        try (KafkaIngestionPipeline pipeline = new KafkaIngestionPipeline(factory(200), partitions, MeasurementParserRegistry.defaultRegistry(), sink, 4, 16)) {
+            pipeline.start();
+            awaitCommitted(partitions, 201);
+
+            assertThat(pipeline.records()).isEqualTo(603);
+            assertThat(pipeline.rejectedRecords()).isEqualTo(3);
+            assertThat(pipeline.measurements()).isEqualTo(1200);
+        }
+        assertThat(written).hasSize(1200);
+    }
+
+    @Test
+    public void failedSinkReplaysBatchBeforeCommitting() throws Exception {
+        List<TopicPartition> partitions = Collections.singletonList(new TopicPartition(TOPIC, 0));
+        final AtomicInteger calls = new AtomicInteger();
+        final ConcurrentLinkedQueue<Measurement> written = new ConcurrentLinkedQueue<>();
+        MeasurementBatchSink sink = new MeasurementBatchSink() {
+            @Override
+            public void write(TopicPartition partition, List<Measurement> measurements) {
+                if (calls.getAndIncrement() == 0) {
+                    assertThat(consumers.get(partition).committed(partition)).isNull();
+                    throw new IllegalStateException("broker down");
+                }
+                written.addAll(measurements);
+            }
+        };
+
+        try (KafkaIngestionPipeline pipeline = new KafkaIngestionPipeline(factory(10), partitions, MeasurementParserRegistry.defaultRegistry(), sink, 2, 4)) {
+            pipeline.start();
+            awaitCommitted(partitions, 11);
+            assertThat(pipeline.sinkFailures()).isEqualTo(1);
+        }
+        assertThat(written).hasSize(20);
+    }
+
+    @Test
+    public void crashedWorkerIsCountedAndBatchParsedAgain() throws Exception {
+        List<TopicPartition> partitions = Collections.singletonList(new TopicPartition(TOPIC, 0));
+        final MeasurementParserRegistry registry = MeasurementParserRegistry.defaultRegistry();
+        final AtomicInteger calls = new AtomicInteger();
+        MearsurementParser crashingOnce = new MeasurementParserRegistry() {
+            @Override
+            public ParseResult parse(byte[] data, int offset, int length) throws IOException {
+                if (calls.getAndIncrement() == 0) {
+                    throw new AssertionError("parser bug");
+                }
+                return registry.parse(data, offset, length);
+            }
+        };
+        final ConcurrentLinkedQueue<Measurement> written = new ConcurrentLinkedQueue<>();
+        MeasurementBatchSink sink = new MeasurementBatchSink() {
+            @Override
+            public void write(TopicPartition partition, List<Measurement> measurements) {
+                written.addAll(measurements);
+            }
+        };
+
+        try (KafkaIngestionPipeline pipeline = new KafkaIngestionPipeline(factory(10), partitions, crashingOnce, sink, 2, 4)) {
+            pipeline.start();
+            awaitCommitted(partitions, 11);
+            assertThat(pipeline.workerFailures()).isEqualTo(1);
+            assertThat(pipeline.failedPartitions()).isZero();
+            assertThat(pipeline.lastFailure()).isInstanceOf(AssertionError.class).hasMessage("parser bug");
+        }
+        assertThat(written).hasSize(20);
+    }
+
+    @Test
+    public void recordCrashingEveryParseIsRejectedOnceOnIsolatedRetry() throws Exception {
+        List<TopicPartition> partitions = Collections.singletonList(new TopicPartition(TOPIC, 0));
+        final MeasurementParserRegistry registry = MeasurementParserRegistry.defaultRegistry();
+        MearsurementParser poisoned = new MeasurementParserRegistry() {
+            @Override
+            public ParseResult parse(byte[] data, int offset, int length) throws IOException {
+                if (new String(data, offset, length, StandardCharsets.UTF_8).contains("\"host3\"")) {
+                    throw new StackOverflowError();
+                }
+                return registry.parse(data, offset, length);
+            }
+        };
+        final ConcurrentLinkedQueue<Measurement> written = new ConcurrentLinkedQueue<>();
+        MeasurementBatchSink sink = new MeasurementBatchSink() {
+            @Override
+            public void write(TopicPartition partition, List<Measurement> measurements) {
+                written.addAll(measurements);
+            }
+        };
+
+        try (KafkaIngestionPipeline pipeline = new KafkaIngestionPipeline(factory(10), partitions, poisoned, sink, 2, 4)) {
+            pipeline.start();
+            awaitCommitted(partitions, 11);
+            assertThat(pipeline.workerFailures()).isEqualTo(1);
+            assertThat(pipeline.failedPartitions()).isZero();
+            assertThat(pipeline.rejectedRecords()).isEqualTo(2);
+            assertThat(pipeline.lastFailure()).isInstanceOf(StackOverflowError.class);
+        }
+        assertThat(written).hasSize(18);
+    }
+
+    private ConsumerFactory factory(final int recordsPerPartition) {
+        return new ConsumerFactory() {
+            @Override
+            public Consumer<byte[], byte[]> create(final TopicPartition partition) {
+                final MockConsumer<byte[], byte[]> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+                consumer.updateBeginningOffsets(Collections.singletonMap(partition, 0L));
+                consumer.schedulePollTask(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < recordsPerPartition; i++) {
+                            byte[] value = String.format(COLLECTD, "host" + i).getBytes(StandardCharsets.UTF_8);
+                            consumer.addRecord(new ConsumerRecord<byte[], byte[]>(partition.topic(), partition.partition(), i, null, value));
+                        }
+                        byte[] invalid = "{\"not\":\"collectd\"}".getBytes(StandardCharsets.UTF_8);
+                        consumer.addRecord(new ConsumerRecord<byte[], byte[]>(partition.topic(), partition.partition(), recordsPerPartition, null, invalid));
+                    }
+                });
+                consumers.put(partition, consumer);
+                return consumer;
+            }
+        };
+    }
+
+    private void awaitCommitted(List<TopicPartition> partitions, long offset) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        for (TopicPartition partition : partitions) {
+            while (true) {
+                MockConsumer<byte[], byte[]> consumer = consumers.get(partition);
+                OffsetAndMetadata committed = consumer == null ? null : consumer.committed(partition);
+                if (committed != null && committed.offset() == offset) {
+                    break;
+                }
+                assertThat(System.currentTimeMillis()).isLessThan(deadline);
+                Thread.sleep(10);
+            }
+        }
+    }
+}
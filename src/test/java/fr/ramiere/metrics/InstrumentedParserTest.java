@@ -0,0 +1,98 @@
+package fr.ramiere.metrics;
+
+import fr.ramiere.MeasurementBatch;
+import fr.ramiere.MeasurementDictionary;
+import fr.ramiere.parser.MeasurementParserRegistry;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+import static org.junit.Assert.fail;
+
+public class InstrumentedParserTest {
+
+    private static final String GAUGE = "{\"values\":[0],\"dstypes\":[\"gauge\"],\"dsnames\":[\"value\"],\"time\":1457435801.786,\"interval\":60.000,\"host\":\"web1\",\"plugin\":\"tcpconns\",\"plugin_instance\":\"all\",\"type\":\"tcp_connections\",\"type_instance\":\"SYN_RECV\",\"meta\":{\"tsdb_tag_add_collector\":\"collectd\"}}";
+
+    private final ParserMetrics metrics = new ParserMetrics();
+    private final InstrumentedParser parser = new InstrumentedParser(MeasurementParserRegistry.defaultRegistry(), metrics);
+
+    @Test
+    public void countsParsedMessages() throws IOException {
+        byte[] payload = ("[" + GAUGE + "," + GAUGE + "]").getBytes(StandardCharsets.UTF_8);
+        assertThat(parser.toValues(payload, 0, payload.length)).hasSize(2);
+        parser.toBatch(payload, 0, payload.length, new MeasurementBatch(new MeasurementDictionary()));
+
+        ParserMetrics.Snapshot snapshot = metrics.snapshot();
+        assertThat(snapshot.getMessages()).isEqualTo(2);
+        assertThat(snapshot.getBytes()).isEqualTo(payload.length * 2);
+        assertThat(snapshot.getMeasurements()).isEqualTo(4);
+        assertThat(snapshot.getMeasurementsPerMessage().getMean()).isEqualTo(2);
+        assertThat(snapshot.getLatencyNanos().getCount()).isEqualTo(2);
+        assertThat(snapshot.getLatencyNanos().getMax()).isPositive();
+        assertThat(snapshot.getRejected()).isZero();
+    }
+
+    @Test
+    public void stringPayloadsAreCountedInUtf8Bytes() throws IOException {
+        String json = GAUGE.replace("web1", "wéb-\u6771\uD83D\uDE80");
+        assertThat(parser.toValues(json)).hasSize(1);
+        assertThat(metrics.snapshot().getBytes()).isEqualTo(json.getBytes(StandardCharsets.UTF_8).length);
+        assertThat(InstrumentedParser.utf8Length(json)).isEqualTo(json.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    @Test
+    public void countsRejectsByReasonAndField() throws IOException {
+        reject(GAUGE.replace("1457435801.786", "\"now\""));
+        reject(GAUGE.replace("collectd", "telegraf"));
+        reject(GAUGE.replace("collectd", "telegraf"));
+        reject("{\"values\":");
+        reject("{\"foo\":1}");
+        assertThat(parser.accept(GAUGE.replace("collectd", "telegraf"))).isFalse();
+
+        ParserMetrics.Snapshot snapshot = metrics.snapshot();
+        assertThat(snapshot.getRejected()).isEqualTo(6);
+        assertThat(snapshot.getRejects()).containsOnly(
+                entry("MALFORMED_JSON", 1L), entry("UNKNOWN_FORMAT", 1L), entry("INVALID_FIELD", 1L),
+                entry("NOT_COLLECTD", 2L), entry("UNKNOWN", 1L));
+        assertThat(snapshot.getRejectsByField()).containsOnly(
+                entry("INVALID_FIELD/time", 1L), entry("NOT_COLLECTD/tsdb_tag_add_collector", 2L));
+    }
+
+    @Test
+    public void ratesAreComputedBetweenSnapshots() throws IOException, InterruptedException {
+        ParserMetrics.Snapshot before = metrics.snapshot();
+        for (int i = 0; i < 10; i++) {
+            parser.toValues(GAUGE);
+        }
+        Thread.sleep(20);
+        ParserMetrics.Snapshot after = metrics.snapshot();
+        assertThat(after.measurementsPerSecond(before)).isPositive().isLessThan(10 / 0.02);
+        assertThat(after.bytesPerSecond(null)).isZero();
+    }
+
+    @Test
+    public void exposedThroughJmx() throws Exception {
+        parser.toValues(GAUGE);
+        ObjectName name = metrics.register("collectd");
+        try {
+            assertThat(ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Measurements")).isEqualTo(1L);
+            assertThat(ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Rejected")).isEqualTo(0L);
+        } finally {
+            metrics.unregister();
+        }
+        assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(name)).isFalse();
+    }
+
+    private void reject(String json) throws IOException {
+        try {
+            parser.toValues(json);
+            fail("rejection expected");
+        } catch (IllegalArgumentException | IOException expected) {
+        }
+    }
+}
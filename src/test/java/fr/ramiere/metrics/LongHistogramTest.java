@@ -0,0 +1,69 @@
+package fr.ramiere.metrics;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class LongHistogramTest {
+
+    @Test
+    public void bucketsAreContiguousAndPrecise() {
+        int previous = -1;
+        for (long value = 0; value < 1 << 20; value++) {
+            int index = LongHistogram.index(value);
+            assertThat(index).isBetween(previous, previous + 1);
+            assertThat(LongHistogram.highestValue(index)).isGreaterThanOrEqualTo(value).isLessThanOrEqualTo(value + value / 32);
+            previous = index;
+        }
+        assertThat(LongHistogram.index(Long.MAX_VALUE)).isEqualTo(LongHistogram.BUCKETS - 1);
+    }
+
+    @Test
+    public void percentilesMeanAndMax() {
+        LongHistogram histogram = new LongHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        LongHistogram.Snapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.getCount()).isEqualTo(1000);
+        assertThat(snapshot.getMax()).isEqualTo(1000000);
+        assertThat(snapshot.getMean()).isEqualTo(500500);
+        assertThat((double) snapshot.valueAt(50)).isCloseTo(500000, within(500000 * 0.04));
+        assertThat((double) snapshot.valueAt(99)).isCloseTo(990000, within(990000 * 0.04));
+        assertThat(snapshot.valueAt(100)).isEqualTo(1000000);
+    }
+
+    @Test
+    public void stripesAddUpConcurrentRecords() throws InterruptedException {
+        final LongHistogram histogram = new LongHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long offset = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        histogram.record(i % 10 + offset);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        LongHistogram.Snapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.getCount()).isEqualTo(400000);
+        assertThat(snapshot.getMax()).isEqualTo(12);
+        assertThat(snapshot.getMean()).isEqualTo(6);
+    }
+
+    @Test
+    public void stripesArePowersOfTwoCappedByMax() {
+        assertThat(LongHistogram.stripes(0)).isEqualTo(1);
+        assertThat(LongHistogram.stripes(3)).isEqualTo(4);
+        assertThat(LongHistogram.stripes(4)).isEqualTo(4);
+        assertThat(LongHistogram.stripes(96)).isEqualTo(LongHistogram.MAX_STRIPES);
+    }
+}
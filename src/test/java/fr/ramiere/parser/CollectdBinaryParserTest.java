@@ -0,0 +1,140 @@
+package fr.ramiere.parser;
+
+import fr.ramiere.InvalidMeasurementException;
+import fr.ramiere.Measurement;
+import fr.ramiere.MeasurementBatch;
+import fr.ramiere.MeasurementDictionary;
+import fr.ramiere.MeasurementSink;
+import fr.ramiere.MutableMeasurement;
+import fr.ramiere.ParseResult;
+import fr.ramiere.RejectReason;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class CollectdBinaryParserTest {
+
+    private final CollectdBinaryParser parser;
+    private final JsonCollectdParser json = new JsonCollectdParser();
+
+    public CollectdBinaryParserTest() throws IOException {
+        Map<String, String> meta = new LinkedHashMap<>();
+        meta.put("tsdb_tag_pluginInstance", "instance");
+        meta.put("tsdb_tag_add_collector", "collectd");
+        try (InputStream in = getClass().getResourceAsStream("/collectd/types.db")) {
+            parser = new CollectdBinaryParser(CollectdTypesDb.read(new InputStreamReader(in, StandardCharsets.UTF_8)), meta);
+        }
+    }
+
+    @Test
+    public void highResolutionPacketGivesSameMeasurementsAsJson() throws IOException {
+        List<Measurement> measurements = parser.toValues(ByteBuffer.wrap(fixture("packet-hr.bin")));
+        assertThat(measurements).isEqualTo(json.toValues(fixture("packet-hr.json"), 0, fixture("packet-hr.json").length));
+        assertThat(measurements).hasSize(6);
+        assertThat(measurements.get(0).getTime()).isEqualTo(1457350114593.0);
+        assertThat(measurements.get(0).getTags()).containsEntry("instance", "eth0").containsEntry("dsname", "rx");
+        assertThat(measurements.get(5).getValue()).isEqualTo(18446744073709551615.0);
+    }
+
+    @Test
+    public void stateCarriesOverFromOneValueListToTheNext() throws IOException {
+        byte[] packet = fixture("packet-lowres.bin");
+        List<Measurement> measurements = parser.toValues(packet, 0, packet.length);
+        assertThat(measurements).isEqualTo(json.toValues(fixture("packet-lowres.json"), 0, fixture("packet-lowres.json").length));
+        assertThat(measurements.get(1).getTags()).containsEntry("fqdn", "db-2").containsEntry("instance", "root");
+        assertThat(measurements.get(1).getName()).isEqualTo("used");
+    }
+
+    @Test
+    public void everyEntryPointGivesTheSamePoints() throws IOException {
+        byte[] packet = fixture("packet-hr.bin");
+        List<Measurement> expected = parser.toValues(packet, 0, packet.length);
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(packet.length + 3);
+        direct.put(new byte[3]).put(packet).position(3);
+        assertThat(parser.toValues(direct)).isEqualTo(expected);
+        assertThat(direct.position()).isEqualTo(3);
+
+        ByteBuffer littleEndian = ByteBuffer.wrap(packet).order(ByteOrder.LITTLE_ENDIAN);
+        assertThat(parser.toValues(littleEndian)).isEqualTo(expected);
+        assertThat(littleEndian.order()).isEqualTo(ByteOrder.LITTLE_ENDIAN);
+
+        ParseResult result = parser.parse(packet, 0, packet.length);
+        assertThat(result.isValid()).isTrue();
+        assertThat(result.getMeasurements()).isEqualTo(expected);
+
+        final List<Measurement> pushed = new ArrayList<>();
+        assertThat(parser.push(packet, 0, packet.length, new MeasurementSink() {
+            @Override
+            public void accept(MutableMeasurement measurement) {
+                pushed.add(measurement.toMeasurement());
+            }
+        })).isEqualTo(6);
+        assertThat(pushed).isEqualTo(expected);
+
+        MeasurementBatch batch = new MeasurementBatch(new MeasurementDictionary());
+        parser.toBatch(packet, 0, packet.length, batch);
+        assertThat(batch.size()).isEqualTo(6);
+        assertThat(batch.interval(0)).isEqualTo(10000);
+        assertThat(batch.tags(2)).isEqualTo(expected.get(2).getTags());
+    }
+
+    @Test
+    public void truncatedPacketIsRejected() throws IOException {
+        byte[] packet = fixture("packet-lowres.bin");
+        ParseResult result = parser.parse(packet, 0, packet.length - 3);
+        assertThat(result.isValid()).isFalse();
+        assertThat(result.getRejection().getReason()).isEqualTo(RejectReason.MALFORMED_PACKET);
+
+        MeasurementBatch batch = new MeasurementBatch(new MeasurementDictionary());
+        try {
+            parser.toBatch(packet, 0, packet.length - 3, batch);
+            fail("truncated packet accepted");
+        } catch (InvalidMeasurementException e) {
+            assertThat(e.getReason()).isEqualTo(RejectReason.MALFORMED_PACKET);
+        }
+        assertThat(batch.size()).isZero();
+    }
+
+    @Test
+    public void valuesWithoutKnownNamesAreRejected() throws IOException {
+        CollectdBinaryParser withoutTypes = new CollectdBinaryParser(CollectdTypesDb.empty());
+        byte[] packet = fixture("packet-hr.bin");
+        ParseResult result = withoutTypes.parse(packet, 0, packet.length);
+        assertThat(result.getRejection().getReason()).isEqualTo(RejectReason.MISSING_DSNAME);
+
+        byte[] lowres = fixture("packet-lowres.bin");
+        assertThat(withoutTypes.toValues(lowres, 0, lowres.length)).hasSize(2);
+    }
+
+    @Test
+    public void jsonIsNotBinary() throws IOException {
+        assertThat(parser.accept("{}")).isFalse();
+        assertThat(parser.parse("{}").getRejection().getReason()).isEqualTo(RejectReason.UNKNOWN_FORMAT);
+    }
+
+    private static byte[] fixture(String name) throws IOException {
+        try (InputStream in = CollectdBinaryParserTest.class.getResourceAsStream("/collectd/" + name)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[1024];
+            int read;
+            while ((read = in.read(chunk)) >= 0) {
+                out.write(chunk, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+}
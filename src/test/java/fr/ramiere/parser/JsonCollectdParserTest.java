@@ -1,18 +1,55 @@
 package fr.ramiere.parser;
 
+import fr.ramiere.InvalidMeasurementException;
 import fr.ramiere.MearsurementParser;
 import fr.ramiere.Measurement;
+import fr.ramiere.MeasurementBatch;
+import fr.ramiere.MeasurementDictionary;
+import fr.ramiere.MeasurementSink;
+import fr.ramiere.MutableMeasurement;
+import fr.ramiere.ParseResult;
+import fr.ramiere.RejectReason;
+import fr.ramiere.TagSetCache;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
 
+@RunWith(Parameterized.class)
 public class JsonCollectdParserTest {
 
     public static final String META = "\"meta\":{\"tsdb_tag_plugin\":\"\",\"tsdb_tag_pluginInstance\":\"\",\"tsdb_tag_type\":\"\",\"tsdb_tag_typeInstance\":\"category2\",\"tsdb_tag_add_category1\":\"tcp_connections\",\"tsdb_prefix\":\"sys.network\",\"tsdb_metric\":\"sys.network\",\"tsdb_tag_add_port\":\"_all\",\"tsdb_tag_add_collector\":\"collectd\"}";
-    private final MearsurementParser parser = new JsonCollectdParser();
+    private final MearsurementParser parser;
+
+    public JsonCollectdParserTest(String name, MearsurementParser parser) {
+        this.parser = parser;
+    }
+
+    @Parameters(name = "{0}")
+    public static Collection<Object[]> parsers() {
+        return Arrays.asList(new Object[][]{
+                {"tree", new JsonCollectdParser()},
+                {"streaming", new StreamingJsonCollectdParser()},
+                {"tree interned", new JsonCollectdParser(new TagSetCache())},
+                {"streaming interned", new StreamingJsonCollectdParser(new TagSetCache())}
+        });
+    }
 
     @Test
     public void measurementWithMetaIsValid() throws IOException {
@@ -203,4 +240,135 @@ public class JsonCollectdParserTest {
                             put("unit", "bytes");
                         }}));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void writeHttpArrayFromBytes() throws IOException {
+        String gauge = "{\"values\":[0],\"dstypes\":[\"gauge\"],\"dsnames\":[\"value\"],\"time\":1457435801.786,\"interval\":60.000,\"host\":\"macvlii00983.xmp.net.intra\",\"plugin\":\"tcpconns\",\"plugin_instance\":\"all\",\"type\":\"tcp_connections\",\"type_instance\":\"SYN_RECV\"," + META + "}";
+        String load = "{\"values\":[0.5,0.25,0.1],\"dstypes\":[\"gauge\",\"gauge\",\"gauge\"],\"dsnames\":[\"shortterm\",\"midterm\",\"longterm\"],\"time\":1457435801,\"interval\":60,\"host\":\"h\",\"plugin\":\"load\",\"plugin_instance\":\"\",\"type\":\"load\",\"type_instance\":\"\",\"meta\":{\"tsdb_tag_add_collector\":\"collectd\"}}";
+        byte[] payload = ("xx[" + gauge + "," + load + "]yy").getBytes(StandardCharsets.UTF_8);
+
+        assertThat(parser.toValues(payload, 2, payload.length - 4))
+                .hasSize(4)
+                .startsWith(parser.toValues(gauge).get(0))
+                .endsWith(parser.toValues(load).get(2));
+    }
+
+    @Test
+    public void newlineDelimitedFromBufferAndStream() throws IOException {
+        String gauge = "{\"values\":[0],\"dstypes\":[\"gauge\"],\"dsnames\":[\"value\"],\"time\":1457435801.786,\"interval\":60.000,\"host\":\"macvlii00983.xmp.net.intra\",\"plugin\":\"tcpconns\",\"plugin_instance\":\"all\",\"type\":\"tcp_connections\",\"type_instance\":\"SYN_RECV\"," + META + "}";
+        byte[] payload = (gauge + "\n" + gauge + "\n").getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(payload.length);
+        direct.put(payload).flip();
+        assertThat(parser.toValues(direct)).containsExactly(parser.toValues(gauge).get(0), parser.toValues(gauge).get(0));
+        assertThat(direct.remaining()).isEqualTo(payload.length);
+        assertThat(parser.toValues(ByteBuffer.wrap(payload))).hasSize(2);
+        assertThat(parser.toValues(new ByteArrayInputStream(payload))).hasSize(2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidRecordInBatchIsRejected() throws IOException {
+        byte[] payload = "[{\"values\":[0]}]".getBytes(StandardCharsets.UTF_8);
+        parser.toValues(payload, 0, payload.length);
+    }
+
+    @Test
+    public void rejectionsTellTheReasonAndField() throws IOException {
+        String noMeta = "{\"values\":[0],\"dstypes\":[\"gauge\"],\"dsnames\":[\"value\"],\"time\":1457435801.786,\"interval\":60.000,\"host\":\"macvlii00983.xmp.net.intra\",\"plugin\":\"tcpconns\",\"plugin_instance\":\"all\",\"type\":\"tcp_connections\",\"type_instance\":\"SYN_RECV\"}";
+        assertRejected(noMeta, RejectReason.INVALID_FIELD, "meta");
+        assertRejected(noMeta.replace("1457435801.786", "\"now\""), RejectReason.INVALID_FIELD, "time");
+        assertRejected(noMeta.replace("}", ",\"meta\":{\"tsdb_tag_add_collector\":\"telegraf\"}}"), RejectReason.NOT_COLLECTD, "tsdb_tag_add_collector");
+        assertRejected(noMeta.replace("\"dsnames\":[\"value\"]", "\"dsnames\":[]").replace("}", "," + META + "}"), RejectReason.MISSING_DSNAME, "dsnames");
+        assertRejected("[1]", RejectReason.NOT_AN_OBJECT, null);
+    }
+
+    private void assertRejected(String json, RejectReason reason, String field) throws IOException {
+        byte[] payload = json.getBytes(StandardCharsets.UTF_8);
+        try {
+            parser.toValues(payload, 0, payload.length);
+            fail("rejection expected");
+        } catch (InvalidMeasurementException e) {
+            assertThat(e.getReason()).isEqualTo(reason);
+            assertThat(e.getField()).isEqualTo(field);
+        }
+    }
+
+    @Test
+    public void parseReturnsMeasurementsOrSharedRejections() throws IOException {
+        String gauge = "{\"values\":[0],\"dstypes\":[\"gauge\"],\"dsnames\":[\"value\"],\"time\":1457435801.786,\"interval\":60.000,\"host\":\"macvlii00983.xmp.net.intra\",\"plugin\":\"tcpconns\",\"plugin_instance\":\"all\",\"type\":\"tcp_connections\",\"type_instance\":\"SYN_RECV\"," + META + "}";
+        ParseResult valid = parser.parse(gauge);
+        assertThat(valid.isValid()).isTrue();
+        assertThat(valid.getMeasurements()).isEqualTo(parser.toValues(gauge));
+
+        String badTime = gauge.replace("1457435801.786", "\"now\"");
+        ParseResult rejected = parser.parse(badTime);
+        assertThat(rejected.isValid()).isFalse();
+        assertThat(rejected.getRejection().getReason()).isEqualTo(RejectReason.INVALID_FIELD);
+        assertThat(rejected.getRejection().getField()).isEqualTo("time");
+        assertThat(parser.parse(badTime)).isSameAs(rejected);
+
+        byte[] payload = ("[" + gauge + "," + badTime + "]").getBytes(StandardCharsets.UTF_8);
+        assertThat(parser.parse(payload, 0, payload.length)).isSameAs(rejected);
+        payload = (gauge + "\n" + gauge).getBytes(StandardCharsets.UTF_8);
+        assertThat(parser.parse(payload, 0, payload.length).getMeasurements()).hasSize(2);
+        payload = "{\"values\":".getBytes(StandardCharsets.UTF_8);
+        assertThat(parser.parse(payload, 0, payload.length).getRejection().getReason()).isEqualTo(RejectReason.MALFORMED_JSON);
+        assertThat(parser.parse("{\"values\":").getRejection().getReason()).isEqualTo(RejectReason.MALFORMED_JSON);
+    }
+
+    @Test
+    public void nonStringAddedTagIsRejected() throws IOException {
+        String json = "{\"values\":[0],\"dstypes\":[\"gauge\"],\"dsnames\":[\"value\"],\"time\":1457435801.786,\"interval\":60.000,\"host\":\"macvlii00983.xmp.net.intra\",\"plugin\":\"tcpconns\",\"plugin_instance\":\"all\",\"type\":\"tcp_connections\",\"type_instance\":\"SYN_RECV\",\"meta\":{\"tsdb_tag_add_port\":80,\"tsdb_tag_add_collector\":\"collectd\"}}";
+        assertThat(parser.parse(json).getRejection().getReason()).isEqualTo(RejectReason.INVALID_TAG);
+        assertRejected(json, RejectReason.INVALID_TAG, "meta");
+    }
+
+    @Test
+    public void pushReusesOneFlyweightPerPayload() throws IOException {
+        String load = "{\"values\":[0.1,0.2,0.3],\"dstypes\":[\"gauge\",\"gauge\",\"gauge\"],\"dsnames\":[\"shortterm\",\"midterm\",\"longterm\"],\"time\":1457435801.786,\"interval\":10.000,\"host\":\"macvlii00983.xmp.net.intra\",\"plugin\":\"load\",\"plugin_instance\":\"\",\"type\":\"load\",\"type_instance\":\"\",\"meta\":{\"tsdb_tag_add_collector\":\"collectd\"}}";
+        byte[] payload = ("[" + load + "," + load + "]").getBytes(StandardCharsets.UTF_8);
+        final List<Measurement> copies = new ArrayList<>();
+        final Set<MutableMeasurement> flyweights = Collections.newSetFromMap(new IdentityHashMap<MutableMeasurement, Boolean>());
+        int pushed = parser.push(payload, 0, payload.length, new MeasurementSink() {
+            @Override
+            public void accept(MutableMeasurement measurement) {
+                flyweights.add(measurement);
+                copies.add(measurement.toMeasurement());
+            }
+        });
+        assertThat(pushed).isEqualTo(6);
+        assertThat(copies).isEqualTo(parser.toValues(payload, 0, payload.length));
+        assertThat(flyweights).hasSize(1);
+    }
+
+    @Test
+    public void toBatchMatchesToValuesAndRollsBackInvalidPayloads() throws IOException {
+        String load = "{\"values\":[0.1,0.2],\"dstypes\":[\"gauge\",\"gauge\"],\"dsnames\":[\"shortterm\",\"midterm\"],\"time\":1457435801,\"interval\":10.000,\"host\":\"h\",\"plugin\":\"load\",\"plugin_instance\":\"\",\"type\":\"load\",\"type_instance\":\"\",\"meta\":{\"tsdb_tag_add_collector\":\"collectd\"}}";
+        byte[] payload = ("[" + load + "," + load.replace("\"h\"", "\"g\"") + "]").getBytes(StandardCharsets.UTF_8);
+        MeasurementBatch batch = new MeasurementBatch(new MeasurementDictionary());
+        parser.toBatch(payload, 0, payload.length, batch);
+        List<Measurement> values = parser.toValues(payload, 0, payload.length);
+        assertThat(batch.size()).isEqualTo(4);
+        for (int i = 0; i < values.size(); i++) {
+            assertThat(batch.toMeasurement(i)).isEqualTo(values.get(i));
+        }
+
+        MeasurementBatch streamed = new MeasurementBatch(batch.dictionary());
+        byte[] intervals = ("[" + load + "," + load.replace("\"interval\":10.000", "\"interval\":0.5") + "]").getBytes(StandardCharsets.UTF_8);
+        MeasurementBatch tree = new MeasurementBatch(batch.dictionary());
+        parser.toBatch(intervals, 0, intervals.length, tree);
+        new StreamingJsonCollectdParser().toBatch(intervals, 0, intervals.length, streamed);
+        assertThat(tree.size()).isEqualTo(streamed.size()).isEqualTo(4);
+        for (int i = 0; i < tree.size(); i++) {
+            assertThat(tree.interval(i)).isEqualTo(streamed.interval(i)).isEqualTo(i < 2 ? 10000 : 500);
+        }
+
+        byte[] invalid = ("[" + load + ",{\"values\":[1]}]").getBytes(StandardCharsets.UTF_8);
+        try {
+            parser.toBatch(invalid, 0, invalid.length, batch);
+            fail("invalid payload accepted");
+        } catch (InvalidMeasurementException e) {
+            assertThat(batch.size()).isEqualTo(4);
+        }
+    }
+}
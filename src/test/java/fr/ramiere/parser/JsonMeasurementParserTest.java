@@ -2,13 +2,24 @@ package fr.ramiere.parser;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import fr.ramiere.InvalidMeasurementException;
 import fr.ramiere.Measurement;
+import fr.ramiere.MeasurementSink;
+import fr.ramiere.MutableMeasurement;
+import fr.ramiere.ParseResult;
+import fr.ramiere.RejectReason;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
 
 public class JsonMeasurementParserTest {
 
@@ -121,4 +132,78 @@ public class JsonMeasurementParserTest {
                         }}),
                 new Measurement("badge2", 1457432331555l, 200d));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void measurementsFromBytesMatchTree() throws IOException {
+        String json = "[" +
+                "{\"measurement\":\"badge1\",\"tags\":{\"numericTag\":1,\"stringTag\":\"GREEN\"}, \"time\":1457432331641,\"value\":100}," +
+                "{\"measurement\":\"badge2\",\"time\":1457432331555,\"value\":200,\"extra\":[1,{\"a\":2}]}" +
+                "]";
+        byte[] payload = json.getBytes(StandardCharsets.UTF_8);
+        assertThat(parser.toValues(payload, 0, payload.length)).isEqualTo(parser.toValues(json));
+        assertThat(parser.toValues(ByteBuffer.wrap(payload))).isEqualTo(parser.toValues(json));
+    }
+
+    @Test
+    public void newlineDelimitedMeasurementsFromStream() throws IOException {
+        String json = "{\"measurement\":\"badge1\",\"time\":1457432331641,\"value\":100}\n" +
+                "{\"measurement\":\"badge2\",\"time\":1457432331555,\"value\":200}\n";
+        assertThat(parser.toValues(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)))).containsExactly(
+                new Measurement("badge1", 1457432331641l, 100d),
+                new Measurement("badge2", 1457432331555l, 200d));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidMeasurementInBatchIsRejected() throws IOException {
+        byte[] payload = "[{\"measurement\":\"badge1\",\"time\":\"now\",\"value\":100}]".getBytes(StandardCharsets.UTF_8);
+        parser.toValues(payload, 0, payload.length);
+    }
+
+    @Test
+    public void rejectionTellsTheInvalidField() throws IOException {
+        String json = "{\"measurement\":\"badge1\",\"time\":\"now\",\"value\":100}";
+        byte[] payload = json.getBytes(StandardCharsets.UTF_8);
+        try {
+            parser.toValues(payload, 0, payload.length);
+            fail("rejection expected");
+        } catch (InvalidMeasurementException e) {
+            assertThat(e.getReason()).isEqualTo(RejectReason.INVALID_FIELD);
+            assertThat(e.getField()).isEqualTo("time");
+        }
+        try {
+            parser.toValue(json);
+            fail("rejection expected");
+        } catch (InvalidMeasurementException e) {
+            assertThat(e.getField()).isEqualTo("time");
+        }
+    }
+
+    @Test
+    public void parseReturnsMeasurementsOrSharedRejections() throws IOException {
+        String json = "[{\"measurement\":\"badge1\",\"time\":1457432331641,\"value\":100},{\"measurement\":\"badge2\",\"time\":1457432331555,\"value\":200}]";
+        assertThat(parser.parse(json).getMeasurements()).isEqualTo(parser.toValues(json));
+        byte[] payload = json.getBytes(StandardCharsets.UTF_8);
+        assertThat(parser.parse(payload, 0, payload.length).getMeasurements()).isEqualTo(parser.toValues(json));
+
+        String invalid = "[{\"measurement\":\"badge1\",\"time\":1457432331641,\"value\":\"high\"}]";
+        ParseResult rejected = parser.parse(invalid);
+        assertThat(rejected.getRejection().getReason()).isEqualTo(RejectReason.INVALID_FIELD);
+        assertThat(rejected.getRejection().getField()).isEqualTo("value");
+        payload = invalid.getBytes(StandardCharsets.UTF_8);
+        assertThat(parser.parse(payload, 0, payload.length)).isSameAs(rejected);
+    }
+
+    @Test
+    public void pushMatchesToValues() throws IOException {
+        String json = "[{\"measurement\":\"badge1\",\"time\":1457432331641,\"value\":100,\"tags\":{\"color\":\"GREEN\"}},{\"measurement\":\"badge2\",\"time\":1457432331555,\"value\":200}]";
+        byte[] payload = json.getBytes(StandardCharsets.UTF_8);
+        final List<Measurement> copies = new ArrayList<>();
+        assertThat(parser.push(payload, 0, payload.length, new MeasurementSink() {
+            @Override
+            public void accept(MutableMeasurement measurement) {
+                copies.add(measurement.toMeasurement());
+            }
+        })).isEqualTo(2);
+        assertThat(copies).isEqualTo(parser.toValues(json));
+    }
+}
@@ -0,0 +1,86 @@
+package fr.ramiere.parser;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import fr.ramiere.Measurement;
+import fr.ramiere.RejectReason;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import static fr.ramiere.parser.JsonCollectdParserTest.META;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MeasurementParserRegistryTest {
+
+    private static final String COLLECTD = "{\"values\":[0],\"dstypes\":[\"gauge\"],\"dsnames\":[\"value\"],\"time\":1457435801.786,\"interval\":60.000,\"host\":\"macvlii00983.xmp.net.intra\",\"plugin\":\"tcpconns\",\"plugin_instance\":\"all\",\"type\":\"tcp_connections\",\"type_instance\":\"SYN_RECV\"," + META + "}";
+    private static final String MEASUREMENTS = "[{\"tags\":{\"color\":\"GREEN\"},\"measurement\":\"badge1\",\"time\":1457432331641,\"value\":100}]";
+
+    private final MeasurementParserRegistry registry = MeasurementParserRegistry.defaultRegistry();
+
+    @Test
+    public void detectsFormatFromFirstDiscriminatingField() throws IOException {
+        assertThat(registry.parserFor(COLLECTD)).isInstanceOf(StreamingJsonCollectdParser.class);
+        assertThat(registry.parserFor(MEASUREMENTS)).isInstanceOf(JsonMeasurementParser.class);
+        assertThat(registry.parserFor(new ObjectMapper().readTree(MEASUREMENTS))).isInstanceOf(JsonMeasurementParser.class);
+        assertThat(registry.parserFor("{\"foo\":{\"dsnames\":[]}}")).isNull();
+        assertThat(registry.parserFor("42")).isNull();
+    }
+
+    @Test
+    public void parsesWithDetectedParser() throws IOException {
+        assertThat(registry.toValues(COLLECTD)).isEqualTo(new JsonCollectdParser().toValues(COLLECTD));
+        assertThat(registry.toValues(MEASUREMENTS)).containsExactly(
+                new Measurement("badge1", 1457432331641L, 100d, new HashMap<String, String>() {{
+                    put("color", "GREEN");
+                }}));
+    }
+
+    @Test
+    public void parsesBytesBuffersAndStreams() throws IOException {
+        byte[] collectd = ("[" + COLLECTD + "," + COLLECTD + "]").getBytes(StandardCharsets.UTF_8);
+        byte[] measurements = MEASUREMENTS.getBytes(StandardCharsets.UTF_8);
+        assertThat(registry.toValues(collectd, 0, collectd.length)).hasSize(2);
+        assertThat(registry.toValues(ByteBuffer.wrap(measurements))).hasSize(1);
+        assertThat(registry.toValues(new ByteArrayInputStream(collectd))).hasSize(2);
+    }
+
+    @Test
+    public void streamsDetectFieldsPastLargeLeadingValues() throws IOException {
+        char[] padding = new char[200 * 1024];
+        Arrays.fill(padding, 'x');
+        byte[] json = ("[{\"tags\":{\"note\":\"" + new String(padding) + "\"},\"measurement\":\"badge1\",\"time\":1457432331641,\"value\":100}]")
+                .getBytes(StandardCharsets.UTF_8);
+        InputStream unmarkable = Channels.newInputStream(Channels.newChannel(new ByteArrayInputStream(json)));
+        List<Measurement> measurements = registry.toValues(unmarkable);
+        assertThat(measurements).hasSize(1);
+        assertThat(measurements.get(0).getTags().get("note")).hasSize(padding.length);
+    }
+
+    @Test
+    public void acceptDelegatesToDetectedParser() throws IOException {
+        assertThat(registry.accept(COLLECTD)).isTrue();
+        assertThat(registry.accept("{\"dsnames\":[\"value\"]}")).isFalse();
+        assertThat(registry.accept("{\"other\":1}")).isFalse();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownFormatIsRejected() throws IOException {
+        registry.toValues("{\"other\":1}");
+    }
+
+    @Test
+    public void parseRejectsUnknownFormatWithoutThrowing() throws IOException {
+        assertThat(registry.parse(COLLECTD).getMeasurements()).isEqualTo(new JsonCollectdParser().toValues(COLLECTD));
+        assertThat(registry.parse("{\"other\":1}").getRejection().getReason()).isEqualTo(RejectReason.UNKNOWN_FORMAT);
+        byte[] garbage = "{\"other\"".getBytes(StandardCharsets.UTF_8);
+        assertThat(registry.parse(garbage, 0, garbage.length).getRejection().getReason()).isEqualTo(RejectReason.MALFORMED_JSON);
+    }
+}
@@ -0,0 +1,59 @@
+package fr.ramiere.parser;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MetaTagPlansTest {
+
+    private final MetaTagPlans plans = new MetaTagPlans();
+
+    @Test
+    public void compilesEachLayoutOnce() {
+        String[] keys = {"tsdb_tag_plugin", "tsdb_tag_add_collector", "tsdb_metric", "other", "unused"};
+        MetaTagPlan plan = plans.plan(keys, 4);
+        assertThat(plan.actions).containsExactly(MetaTagPlan.PLUGIN, MetaTagPlan.ADD, MetaTagPlan.SKIP, MetaTagPlan.SKIP);
+        assertThat(plan.addedTags[1]).isEqualTo("collector");
+        assertThat(plan.collectorIndex).isEqualTo(1);
+        assertThat(plan.metricIndex).isEqualTo(2);
+        assertThat(plan.dsNameIndex).isEqualTo(-1);
+
+        String[] sameLayout = {new String("tsdb_tag_plugin"), "tsdb_tag_add_collector", "tsdb_metric", "other"};
+        assertThat(plans.plan(sameLayout, 4)).isSameAs(plan);
+        assertThat(plans.plan(keys, 3)).isNotSameAs(plan);
+        assertThat(plans.compilations()).isEqualTo(2);
+    }
+
+    @Test
+    public void cacheIsBoundedAndEvictedPlansStayUsable() {
+        MetaTagPlans small = new MetaTagPlans(8);
+        MetaTagPlan first = small.plan(new String[]{"tsdb_tag_add_layout0"}, 1);
+        for (int i = 1; i < 100; i++) {
+            small.plan(new String[]{"tsdb_tag_add_layout" + i}, 1);
+        }
+        assertThat(small.size()).isLessThanOrEqualTo(8);
+        assertThat(small.evictions()).isEqualTo(100 - small.size());
+        assertThat(first.addedTags[0]).isEqualTo("layout0");
+        assertThat(first.matches(new String[]{"tsdb_tag_add_layout0"}, 1)).isTrue();
+    }
+
+    @Test
+    public void parsersReuseThePlanOfARepeatedLayout() throws IOException {
+        StreamingJsonCollectdParser parser = new StreamingJsonCollectdParser();
+        String json = "{\"values\":[1],\"dstypes\":[\"gauge\"],\"dsnames\":[\"value\"],\"time\":1,\"interval\":10,\"host\":\"h\","
+                + "\"plugin\":\"cpu\",\"plugin_instance\":\"0\",\"type\":\"cpu\",\"type_instance\":\"idle\","
+                + "\"meta\":{\"tsdb_tag_pluginInstance\":\"cpu\",\"tsdb_tag_add_collector\":\"collectd\",\"tsdb_tag_add_dc\":\"%s\"}}\n";
+        StringBuilder payload = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            payload.append(String.format(json, "dc" + i));
+        }
+        byte[] data = payload.toString().getBytes("UTF-8");
+
+        assertThat(parser.toValues(data, 0, data.length)).hasSize(10);
+        assertThat(new JsonCollectdParser().toValues(data, 0, data.length)).isEqualTo(parser.toValues(data, 0, data.length));
+        assertThat(parser.toValues(data, 0, data.length).get(9).getTags())
+                .containsEntry("cpu", "0").containsEntry("dc", "dc9").containsEntry("collector", "collectd").hasSize(4);
+    }
+}
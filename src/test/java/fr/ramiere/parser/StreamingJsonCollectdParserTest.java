@@ -0,0 +1,95 @@
+package fr.ramiere.parser;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import fr.ramiere.CollectdJson;
+import fr.ramiere.Measurement;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StreamingJsonCollectdParserTest {
+
+    private final JsonCollectdParser tree = new JsonCollectdParser();
+    private final StreamingJsonCollectdParser streaming = new StreamingJsonCollectdParser();
+
+    @Test
+    public void metaBeforeFieldsGivesSameMeasurements() throws IOException {
+        String json = "{\"meta\":{\"tsdb_tag_plugin\":\"p\",\"tsdb_tag_type\":\"t\",\"tsdb_tag_add_collector\":\"collectd\"},\"values\":[1.5,2],\"dstypes\":[\"derive\",\"derive\"],\"dsnames\":[\"rx\",\"tx\"],\"time\":1457350114.593,\"interval\":10,\"host\":\"h\",\"plugin\":\"interface\",\"plugin_instance\":\"eth0\",\"type\":\"if_octets\",\"type_instance\":\"\"}";
+        assertThat(streaming.toValues(json)).isEqualTo(tree.toValues(json));
+    }
+
+    @Test
+    public void nonTextualMetaGivesSameMeasurements() throws IOException {
+        String json = "{\"values\":[\"3\",true],\"dstypes\":[\"gauge\",\"gauge\"],\"dsnames\":[1,\"value\"],\"time\":1457350114,\"interval\":10,\"host\":\"h\",\"plugin\":\"load\",\"plugin_instance\":\"\",\"type\":\"load\",\"type_instance\":\"\",\"unknown\":{\"a\":[1,2]},\"meta\":{\"tsdb_metric\":12.5,\"tsdb_tag_dsname\":null,\"tsdb_tag_type\":{\"x\":1},\"tsdb_tag_add_collector\":\"collectd\"}}";
+        assertThat(streaming.toValues(json)).isEqualTo(tree.toValues(json));
+    }
+
+    @Test
+    public void duplicateFieldsKeepLastValue() throws IOException {
+        String json = "{\"values\":[1],\"values\":[2],\"dstypes\":[\"gauge\"],\"dsnames\":[\"value\"],\"time\":1,\"interval\":10,\"host\":\"a\",\"host\":\"b\",\"plugin\":\"p\",\"plugin_instance\":\"\",\"type\":\"t\",\"type_instance\":\"ti\",\"meta\":{\"tsdb_tag_add_x\":\"1\",\"tsdb_tag_add_collector\":\"collectd\",\"tsdb_tag_add_x\":\"2\"}}";
+        assertThat(streaming.toValues(json)).isEqualTo(tree.toValues(json));
+    }
+
+    @Test
+    public void acceptsTreeInput() throws IOException {
+        String json = "{\"values\":[0],\"dstypes\":[\"gauge\"],\"dsnames\":[\"value\"],\"time\":1457435801.786,\"interval\":60.000,\"host\":\"h\",\"plugin\":\"tcpconns\",\"plugin_instance\":\"all\",\"type\":\"tcp_connections\",\"type_instance\":\"SYN_RECV\",\"meta\":{\"tsdb_tag_add_collector\":\"collectd\"}}";
+        ObjectMapper mapper = new ObjectMapper();
+        assertThat(streaming.accept(mapper.readTree(json))).isTrue();
+        assertThat(streaming.toValues(mapper.readTree(json))).isEqualTo(tree.toValues(json));
+    }
+
+    @Test
+    public void nonObjectIsInvalid() throws IOException {
+        assertThat(streaming.accept("[{\"values\":[0]}]")).isFalse();
+        assertThat(streaming.accept("42")).isFalse();
+    }
+
+    @Test
+    public void filterDropsValueListsWhileReading() throws IOException {
+        CollectdFilter filter = new CollectdFilter()
+                .exclude(CollectdFilter.Field.PLUGIN, "cpu")
+                .exclude(CollectdFilter.Field.TYPE_INSTANCE, "SYN_*", "TIME_WAIT")
+                .include(CollectdFilter.Field.HOST, "web-*", "db-1")
+                .excludeMeta("env", "test");
+        StreamingJsonCollectdParser filtered = new StreamingJsonCollectdParser(null, filter);
+        String payload = valueList("web-1", "cpu", "idle", "prod") + "\n"
+                + valueList("web-1", "tcpconns", "SYN_RECV", "prod") + "\n"
+                + valueList("mail-1", "tcpconns", "LISTEN", "prod") + "\n"
+                + valueList("db-1", "tcpconns", "LISTEN", "test") + "\n"
+                + valueList("db-1", "tcpconns", "LISTEN", "prod") + "\n"
+                + valueList("web-22", "tcpconns", "ESTABLISHED", "prod").replace("\"host\":\"web-22\",", "");
+        byte[] data = payload.getBytes(StandardCharsets.UTF_8);
+
+        List<Measurement> measurements = filtered.toValues(data, 0, data.length);
+
+        assertThat(measurements).hasSize(1);
+        assertThat(measurements.get(0).getTags()).containsEntry("fqdn", "db-1");
+        assertThat(filter.rules()).extracting("dropped").containsExactly(1L, 1L, 2L, 1L);
+        assertThat(filter.dropped()).isEqualTo(5);
+        assertThat(filtered.parse(data, 0, data.length).getMeasurements()).isEqualTo(measurements);
+        assertThat(filtered.accept(valueList("web-1", "cpu", "idle", "prod"))).isTrue();
+        assertThat(filtered.accept(valueList("web-1", "cpu", "idle", "prod").replace("\"values\":[1],", ""))).isFalse();
+        assertThat(filter.dropped()).isEqualTo(10);
+        assertThat(filtered.toValues(valueList("web-1", "cpu", "idle", "prod"))).isEmpty();
+        assertThat(filtered.toValues(valueList("web-1", "memory", "used", "prod"))).isEqualTo(tree.toValues(valueList("web-1", "memory", "used", "prod")));
+    }
+
+    @Test
+    public void prefixPatternMatchesItsOwnLiteral() throws IOException {
+        CollectdFilter filter = new CollectdFilter().exclude(CollectdFilter.Field.PLUGIN, "cpu*");
+        StreamingJsonCollectdParser filtered = new StreamingJsonCollectdParser(null, filter);
+
+        assertThat(filtered.toValues(valueList("web-1", "cpu", "idle", "prod"))).isEmpty();
+        assertThat(filtered.toValues(valueList("web-1", "cpufreq", "0", "prod"))).isEmpty();
+        assertThat(filtered.toValues(valueList("web-1", "cp", "idle", "prod"))).hasSize(1);
+        assertThat(filter.dropped()).isEqualTo(2);
+    }
+
+    private static String valueList(String host, String plugin, String typeInstance, String env) {
+        return CollectdJson.valueList().host(host).plugin(plugin).typeInstance(typeInstance).meta("env", env).toJson();
+    }
+}
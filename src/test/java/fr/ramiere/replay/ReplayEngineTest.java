@@ -0,0 +1,124 @@
+package fr.ramiere.replay;
+
+import fr.ramiere.Measurement;
+import fr.ramiere.parser.StreamingJsonCollectdParser;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class ReplayEngineTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final StreamingJsonCollectdParser parser = new StreamingJsonCollectdParser();
+    private final ForkJoinPool pool = new ForkJoinPool(4);
+
+    @After
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void orderedReplayGivesTheMeasurementsInFileOrder() throws IOException {
+        Path first = write("first.json", lines(0, 300));
+        Path second = write("second.json", lines(300, 200));
+        RecordingSink sink = new RecordingSink();
+
+        ReplayReport report = new ReplayEngine(parser, pool, 512, true).replay(Arrays.asList(first, second), sink);
+
+        assertThat(sink.measurements).isEqualTo(expected(0, 500));
+        assertThat(report.getMeasurements()).isEqualTo(500);
+        assertThat(report.getBytes()).isEqualTo(Files.size(first) + Files.size(second));
+        assertThat(report.getChunks()).isGreaterThan(100);
+        assertThat(report.getRejectedLines()).isZero();
+        assertThat(report.getBytesPerSecond()).isPositive();
+    }
+
+    @Test
+    public void unorderedReplayGivesTheSameMeasurements() throws IOException {
+        Path file = write("dump.json", lines(0, 1000));
+        RecordingSink sink = new RecordingSink();
+
+        new ReplayEngine(parser, pool, 300, false).replay(Arrays.asList(file), sink);
+
+        assertThat(sink.measurements).containsOnlyElementsOf(expected(0, 1000)).hasSize(1000);
+    }
+
+    @Test
+    public void rejectedLinesAreCountedAndSkipped() throws IOException {
+        String lines = lines(0, 2) + "{\"values\":\n" + "\n" + "[1,2]\n" + lines(2, 2);
+        Path file = write("broken.json", lines);
+        RecordingSink sink = new RecordingSink();
+
+        ReplayReport report = new ReplayEngine(parser, pool, 1 << 20, true).replay(Arrays.asList(file), sink);
+
+        assertThat(report.getChunks()).isEqualTo(1);
+        assertThat(report.getRejectedLines()).isEqualTo(2);
+        assertThat(sink.measurements).isEqualTo(expected(0, 4));
+    }
+
+    @Test
+    public void sinkFailureStopsTheReplay() throws IOException {
+        Path file = write("dump.json", lines(0, 100));
+        try {
+            new ReplayEngine(parser, pool, 256, false).replay(Arrays.asList(file), new ReplaySink() {
+                @Override
+                public void write(Path file, long offset, List<Measurement> measurements) throws IOException {
+                    throw new IOException("down");
+                }
+            });
+            fail("sink failure ignored");
+        } catch (IOException e) {
+            assertThat(e).hasMessage("down");
+        }
+    }
+
+    private Path write(String name, String content) throws IOException {
+        return Files.write(folder.newFile(name).toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String lines(int from, int count) {
+        StringBuilder lines = new StringBuilder();
+        for (int i = from; i < from + count; i++) {
+            lines.append(line(i)).append('\n');
+        }
+        return lines.toString();
+    }
+
+    private List<Measurement> expected(int from, int count) throws IOException {
+        List<Measurement> expected = new ArrayList<>();
+        for (int i = from; i < from + count; i++) {
+            expected.addAll(parser.toValues(line(i)));
+        }
+        return expected;
+    }
+
+    private static String line(int i) {
+        return "{\"values\":[" + i + "],\"dstypes\":[\"gauge\"],\"dsnames\":[\"value\"],\"time\":" + (1457350114 + i)
+                + ",\"interval\":10,\"host\":\"host-" + (i % 7) + "\",\"plugin\":\"load\",\"plugin_instance\":\"\","
+                + "\"type\":\"load\",\"type_instance\":\"load\",\"meta\":{\"tsdb_tag_add_collector\":\"collectd\"}}";
+    }
+
+    private static class RecordingSink implements ReplaySink {
+        final List<Measurement> measurements = new ArrayList<>();
+
+        @Override
+        public void write(Path file, long offset, List<Measurement> chunk) {
+            measurements.addAll(chunk);
+        }
+    }
+}
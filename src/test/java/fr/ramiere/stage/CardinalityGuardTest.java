@@ -0,0 +1,151 @@
+package fr.ramiere.stage;
+
+import fr.ramiere.Measurement;
+import fr.ramiere.MeasurementBatch;
+import fr.ramiere.MeasurementDictionary;
+import fr.ramiere.TagSet;
+import fr.ramiere.TagSetCache;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.offset;
+
+public class CardinalityGuardTest {
+
+    private final MeasurementDictionary dictionary = new MeasurementDictionary();
+
+    @Test
+    public void hyperLogLogEstimatesWithinItsError() {
+        HyperLogLog sketch = new HyperLogLog(12);
+        for (long i = 0; i < 100000; i++) {
+            sketch.add(HyperLogLog.hash(i));
+            sketch.add(HyperLogLog.hash(i));
+        }
+        assertThat(sketch.estimate()).isCloseTo(100000, offset(100000 * 0.05));
+
+        HyperLogLog small = new HyperLogLog(12);
+        for (long i = 0; i < 100; i++) {
+            small.add(HyperLogLog.hash(i));
+        }
+        assertThat(small.estimate()).isCloseTo(100, offset(3.0));
+    }
+
+    @Test
+    public void newSeriesAreDroppedOncePerMetricLimitIsReached() {
+        CardinalityGuard guard = new CardinalityGuard(dictionary, 10, 1000, CardinalityGuard.Overflow.DROP);
+        int cpu = dictionary.nameId("cpu");
+        for (int series = 0; series < 100; series++) {
+            assertThat(guard.accept(cpu, series(series), 0, 1)).isEqualTo(series < 10);
+        }
+        assertThat(guard.accept(cpu, series(3), 0, 1)).isTrue();
+        assertThat(guard.accept(dictionary.nameId("load"), series(50), 0, 1)).isTrue();
+        assertThat(guard.admitted()).isEqualTo(11);
+        assertThat(guard.dropped()).isEqualTo(90);
+    }
+
+    @Test
+    public void globalLimitAndOverridesApply() {
+        CardinalityGuard guard = new CardinalityGuard(dictionary, 10, 15, CardinalityGuard.Overflow.DROP);
+        guard.setLimit("load", 2);
+        for (int series = 0; series < 5; series++) {
+            guard.accept(dictionary.nameId("load"), series(series), 0, 1);
+        }
+        for (int series = 0; series < 20; series++) {
+            guard.accept(dictionary.nameId("cpu" + series % 3), series(series), 0, 1);
+        }
+        assertThat(guard.admitted()).isEqualTo(15);
+        assertThat(guard.dropped()).isEqualTo(10);
+    }
+
+    @Test
+    public void admittedSeriesSurviveTagSetEviction() {
+        MeasurementDictionary churning = new MeasurementDictionary(new TagSetCache(64));
+        CardinalityGuard guard = new CardinalityGuard(churning, 300, 300, CardinalityGuard.Overflow.DROP);
+        for (int round = 0; round < 3; round++) {
+            List<Measurement> measurements = new ArrayList<>();
+            for (int series = 0; series < 200; series++) {
+                measurements.add(new Measurement("cpu", round * 10000, series, churning.tagSets().intern(series(series))));
+            }
+            assertThat(guard.filter(measurements)).isZero();
+        }
+        assertThat(guard.admitted()).isEqualTo(200);
+        assertThat(guard.estimate("cpu")).isCloseTo(200, offset(10.0));
+    }
+
+    @Test
+    public void idleSeriesGiveTheirPlaceBack() {
+        CardinalityGuard guard = new CardinalityGuard(dictionary, 2, 1000, CardinalityGuard.Overflow.DROP, 10, 60000, 60000);
+        int cpu = dictionary.nameId("cpu");
+        assertThat(guard.accept(cpu, series(0), 0, 1)).isTrue();
+        assertThat(guard.accept(cpu, series(1), 0, 1)).isTrue();
+        assertThat(guard.accept(cpu, series(2), 30000, 1)).isFalse();
+        assertThat(guard.accept(cpu, series(1), 50000, 1)).isTrue();
+        assertThat(guard.accept(cpu, series(2), 70000, 1)).isTrue();
+        assertThat(guard.accept(cpu, series(0), 70000, 1)).isFalse();
+        assertThat(guard.admitted()).isEqualTo(2);
+    }
+
+    @Test
+    public void aggregatedSeriesAreSummedAndCountedPerWindow() {
+        CardinalityGuard guard = new CardinalityGuard(dictionary, 1, 1000, CardinalityGuard.Overflow.AGGREGATE, 10, 3600000, 60000);
+        List<Measurement> measurements = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            measurements.add(new Measurement("requests", 1000 + i, i, Collections.singletonMap("request_id", "r" + i)));
+        }
+        assertThat(guard.filter(measurements)).isEqualTo(3);
+        assertThat(measurements).hasSize(1);
+        assertThat(measurements.get(0).getTags()).containsEntry("request_id", "r0");
+        assertThat(guard.aggregated()).isEqualTo(3);
+
+        MeasurementBatch batch = new MeasurementBatch(dictionary);
+        batch.add(new Measurement("requests", 61000, 5, Collections.singletonMap("request_id", "r9")));
+        batch.add(new Measurement("requests", 61000, 6, Collections.singletonMap("request_id", "r0")));
+        assertThat(guard.filter(batch)).isEqualTo(1);
+        assertThat(batch.tags(0)).containsEntry("request_id", "r0");
+
+        MeasurementBatch out = new MeasurementBatch(dictionary);
+        assertThat(guard.flush(out)).isZero();
+        assertThat(guard.flushAll(out)).isEqualTo(2);
+        assertThat(out.size()).isEqualTo(4);
+        assertThat(out.name(0)).isEqualTo("requests");
+        assertThat(out.time(0)).isZero();
+        assertThat(out.tags(0)).containsEntry(CardinalityGuard.OVERFLOW_TAG, "true").containsEntry(CardinalityGuard.AGGREGATE_TAG, "sum");
+        assertThat(out.value(0)).isEqualTo(1 + 2 + 3);
+        assertThat(out.tags(1)).containsEntry(CardinalityGuard.AGGREGATE_TAG, "count");
+        assertThat(out.value(1)).isEqualTo(3);
+        assertThat(out.time(2)).isEqualTo(60000);
+        assertThat(out.value(2)).isEqualTo(5);
+        assertThat(out.value(3)).isEqualTo(1);
+    }
+
+    @Test
+    public void topOffendersAreTheNamesWithTheMostSeries() {
+        CardinalityGuard guard = new CardinalityGuard(dictionary, 100, 100000, CardinalityGuard.Overflow.DROP);
+        MeasurementBatch batch = new MeasurementBatch(dictionary);
+        for (int i = 0; i < 5000; i++) {
+            batch.add(dictionary.nameId("exploding"), i, 1, dictionary.tagSetId(series(i)));
+            batch.add(dictionary.nameId("steady"), i, 1, dictionary.tagSetId(series(i % 20)));
+            batch.add(dictionary.nameId("growing"), i, 1, dictionary.tagSetId(series(i % 500)));
+        }
+        assertThat(guard.filter(batch)).isEqualTo(4900 + 4000);
+        assertThat(batch.size()).isEqualTo(5000 + 100 + 1000);
+
+        List<CardinalityGuard.Offender> top = guard.topOffenders(2);
+        assertThat(top).hasSize(2);
+        assertThat(top.get(0).getName()).isEqualTo("exploding");
+        assertThat(top.get(0).getEstimate()).isCloseTo(5000, offset(5000 * 0.1));
+        assertThat(top.get(0).getAdmitted()).isEqualTo(100);
+        assertThat(top.get(0).getLimited()).isEqualTo(4900);
+        assertThat(top.get(1).getName()).isEqualTo("growing");
+        assertThat(guard.estimate("steady")).isCloseTo(20, offset(2.0));
+        assertThat(guard.globalEstimate()).isCloseTo(5520, offset(5520 * 0.05));
+    }
+
+    private static TagSet series(int series) {
+        return TagSet.of(Collections.singletonMap("series", "s" + series));
+    }
+}
@@ -0,0 +1,94 @@
+package fr.ramiere.stage;
+
+import fr.ramiere.Measurement;
+import fr.ramiere.MeasurementBatch;
+import fr.ramiere.MeasurementDictionary;
+import fr.ramiere.parser.StreamingJsonCollectdParser;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DeduplicatorTest {
+
+    private final Deduplicator deduplicator = new Deduplicator(3, 10000);
+
+    @Test
+    public void unchangedValuesAreSuppressedUntilTheHeartbeat() {
+        assertThat(deduplicator.accept(1, 0, 0, 10000)).isTrue();
+        assertThat(deduplicator.accept(1, 10000, 0, 10000)).isFalse();
+        assertThat(deduplicator.accept(1, 20000, 0, 10000)).isFalse();
+        assertThat(deduplicator.accept(1, 30000, 0, 10000)).isTrue();
+        assertThat(deduplicator.accept(1, 40000, 0, 10000)).isFalse();
+        assertThat(deduplicator.suppressed()).isEqualTo(3);
+    }
+
+    @Test
+    public void changedValuesAreEmitted() {
+        assertThat(deduplicator.accept(1, 0, 1, 10000)).isTrue();
+        assertThat(deduplicator.accept(1, 10000, 2, 10000)).isTrue();
+        assertThat(deduplicator.accept(1, 20000, 2, 10000)).isFalse();
+        assertThat(deduplicator.accept(1, 30000, 1, 10000)).isTrue();
+        assertThat(deduplicator.accept(2, 30000, 1, 10000)).isTrue();
+    }
+
+    @Test
+    public void unknownIntervalUsesTheDefault() {
+        deduplicator.accept(1, 0, 5, 0);
+        assertThat(deduplicator.accept(1, 29999, 5, 0)).isFalse();
+        assertThat(deduplicator.accept(1, 30000, 5, 0)).isTrue();
+        deduplicator.accept(2, 0, 5, 60000);
+        assertThat(deduplicator.accept(2, 120000, 5, 60000)).isFalse();
+    }
+
+    @Test
+    public void idleSeriesAreEvicted() {
+        Deduplicator idle = new Deduplicator(3, 10000, 60000);
+        for (int i = 0; i < 5000; i++) {
+            idle.accept(i, i < 2500 ? 0 : 30000, 1, 10000);
+        }
+        idle.evictIdle(70000);
+        assertThat(idle.size()).isEqualTo(2500);
+        assertThat(idle.accept(0, 70000, 1, 10000)).isTrue();
+        assertThat(idle.accept(4999, 40000, 1, 10000)).isFalse();
+    }
+
+    @Test
+    public void filtersBatchesInPlace() throws IOException {
+        MeasurementDictionary dictionary = new MeasurementDictionary();
+        StreamingJsonCollectdParser parser = new StreamingJsonCollectdParser();
+        MeasurementBatch batch = new MeasurementBatch(dictionary);
+        for (int i = 0; i < 4; i++) {
+            byte[] json = tcpconns(i * 10, 7).getBytes("UTF-8");
+            parser.toBatch(json, 0, json.length, batch);
+        }
+        assertThat(deduplicator.filter(batch)).isEqualTo(2);
+        assertThat(batch.size()).isEqualTo(2);
+        assertThat(batch.time(0)).isEqualTo(0);
+        assertThat(batch.time(1)).isEqualTo(30000);
+        assertThat(batch.name(1)).isEqualTo("SYN_RECV");
+    }
+
+    @Test
+    public void filtersMeasurementLists() throws IOException {
+        MeasurementDictionary dictionary = new MeasurementDictionary();
+        StreamingJsonCollectdParser parser = new StreamingJsonCollectdParser();
+        List<Measurement> measurements = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            measurements.addAll(parser.toValues(tcpconns(i * 10, i < 2 ? 7 : 8)));
+        }
+        assertThat(deduplicator.filter(measurements, dictionary)).isEqualTo(2);
+        assertThat(measurements).hasSize(2);
+        assertThat(measurements.get(1).getTime()).isEqualTo(20000);
+        assertThat(measurements.get(1).getValue()).isEqualTo(8);
+    }
+
+    private static String tcpconns(int time, double value) {
+        return "{\"values\":[" + value + "],\"dstypes\":[\"gauge\"],\"dsnames\":[\"value\"],\"time\":" + time
+                + ",\"interval\":10,\"host\":\"web1\",\"plugin\":\"tcpconns\",\"plugin_instance\":\"80-local\","
+                + "\"type\":\"tcp_connections\",\"type_instance\":\"SYN_RECV\",\"meta\":{\"tsdb_tag_add_collector\":\"collectd\"}}";
+    }
+}
@@ -0,0 +1,116 @@
+package fr.ramiere.stage;
+
+import fr.ramiere.MeasurementBatch;
+import fr.ramiere.MeasurementDictionary;
+import fr.ramiere.TagSet;
+import fr.ramiere.parser.StreamingJsonCollectdParser;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DownsamplerTest {
+
+    private static final TagSet HOST = TagSet.of(Collections.singletonMap("fqdn", "h"));
+
+    private final Downsampler downsampler = new Downsampler(60000, 10000, 16);
+    private final List<String> rollups = new ArrayList<>();
+    private final Downsampler.RollupListener listener = new Downsampler.RollupListener() {
+        @Override
+        public void rollup(int nameId, TagSet tags, long windowStart, double min, double max, double sum, long count, double last) {
+            rollups.add(nameId + "/" + tags.get("fqdn") + "@" + windowStart + " min=" + min + " max=" + max + " sum=" + sum + " count=" + count + " last=" + last);
+        }
+    };
+
+    @Test
+    public void keepsMinMaxSumCountAndLastPerWindow() {
+        for (int i = 0; i < 6; i++) {
+            assertThat(downsampler.add(1, HOST, i * 10000, i, 10000)).isTrue();
+        }
+        downsampler.add(1, HOST, 60000, 100, 10000);
+        assertThat(downsampler.flush(listener)).isZero();
+
+        downsampler.add(1, HOST, 70000, 100, 10000);
+        assertThat(downsampler.flush(listener)).isEqualTo(1);
+        assertThat(rollups).containsExactly("1/h@0 min=0.0 max=5.0 sum=15.0 count=6 last=5.0");
+        assertThat(downsampler.openWindows()).isEqualTo(1);
+    }
+
+    @Test
+    public void lateDataIsAcceptedUntilTheWindowIsFlushed() {
+        downsampler.add(1, HOST, 50000, 1, 10000);
+        downsampler.add(1, HOST, 65000, 2, 10000);
+        downsampler.add(1, HOST, 40000, 3, 10000);
+        downsampler.flush(listener);
+        assertThat(rollups).isEmpty();
+
+        downsampler.add(1, HOST, 75000, 4, 10000);
+        downsampler.flush(listener);
+        assertThat(rollups).containsExactly("1/h@0 min=1.0 max=3.0 sum=4.0 count=2 last=1.0");
+
+        downsampler.add(1, HOST, 55000, 5, 10000);
+        assertThat(downsampler.lateDrops()).isEqualTo(1);
+        assertThat(downsampler.openWindows()).isEqualTo(1);
+    }
+
+    @Test
+    public void coarseSeriesAreRefused() {
+        assertThat(downsampler.add(1, HOST, 0, 1, 60000)).isFalse();
+        assertThat(downsampler.add(1, HOST, 0, 1, 0)).isTrue();
+        assertThat(downsampler.openWindows()).isEqualTo(1);
+    }
+
+    @Test
+    public void growsAndFlushesManySeries() {
+        for (int series = 0; series < 5000; series++) {
+            TagSet tags = TagSet.of(Collections.singletonMap("fqdn", "h" + series));
+            downsampler.add(series, tags, 1000, series, 10000);
+            downsampler.add(series, tags, 2000, series + 1, 10000);
+        }
+        assertThat(downsampler.openWindows()).isEqualTo(5000);
+        assertThat(downsampler.flushAll(listener)).isEqualTo(5000);
+        assertThat(rollups).contains("4999/h4999@0 min=4999.0 max=5000.0 sum=9999.0 count=2 last=5000.0");
+        assertThat(downsampler.openWindows()).isZero();
+    }
+
+    @Test
+    public void rollsUpParsedBatchesUsingTheCollectdInterval() throws IOException {
+        MeasurementDictionary dictionary = new MeasurementDictionary();
+        StreamingJsonCollectdParser parser = new StreamingJsonCollectdParser();
+        MeasurementBatch in = new MeasurementBatch(dictionary);
+        for (int i = 0; i < 8; i++) {
+            parse(parser, load("fast", 10, i * 10, i), in);
+        }
+        parse(parser, load("slow", 60, 0, 42), in);
+        assertThat(in.interval(0)).isEqualTo(10000);
+
+        MeasurementBatch passThrough = new MeasurementBatch(dictionary);
+        downsampler.add(in, passThrough);
+        assertThat(passThrough.size()).isEqualTo(1);
+        assertThat(passThrough.tags(0)).containsEntry("fqdn", "slow");
+
+        MeasurementBatch out = new MeasurementBatch(dictionary);
+        assertThat(downsampler.flush(out, Downsampler.Aggregate.AVG)).isEqualTo(1);
+        assertThat(out.name(0)).isEqualTo("load");
+        assertThat(out.tags(0)).containsEntry("fqdn", "fast");
+        assertThat(out.time(0)).isZero();
+        assertThat(out.value(0)).isEqualTo(2.5);
+        assertThat(out.interval(0)).isEqualTo(60000);
+    }
+
+    private static void parse(StreamingJsonCollectdParser parser, String json, MeasurementBatch batch) throws IOException {
+        byte[] data = json.getBytes(StandardCharsets.UTF_8);
+        parser.toBatch(data, 0, data.length, batch);
+    }
+
+    private static String load(String host, int interval, int time, double value) {
+        return "{\"values\":[" + value + "],\"dstypes\":[\"gauge\"],\"dsnames\":[\"value\"],\"time\":" + time
+                + ",\"interval\":" + interval + ",\"host\":\"" + host + "\",\"plugin\":\"load\",\"plugin_instance\":\"\","
+                + "\"type\":\"load\",\"type_instance\":\"load\",\"meta\":{\"tsdb_tag_add_collector\":\"collectd\"}}";
+    }
+}
@@ -0,0 +1,184 @@
+package fr.ramiere.stage;
+
+import fr.ramiere.CollectdJson;
+import fr.ramiere.Measurement;
+import fr.ramiere.MeasurementBatch;
+import fr.ramiere.MeasurementDictionary;
+import fr.ramiere.TagSetCache;
+import fr.ramiere.parser.StreamingJsonCollectdParser;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LastValueCacheTest {
+
+    private final MeasurementDictionary dictionary = new MeasurementDictionary();
+    private final LastValueCache cache = new LastValueCache(dictionary, 100, 60000);
+
+    @Test
+    public void keepsLatestPointFedByParser() throws IOException {
+        StreamingJsonCollectdParser parser = new StreamingJsonCollectdParser(dictionary.tagSets());
+        StringBuilder payload = new StringBuilder();
+        for (int host = 0; host < 3; host++) {
+            for (int time : new int[]{1457350110, 1457350130, 1457350120}) {
+                payload.append(valueList("web-" + host, time, time + host)).append('\n');
+            }
+        }
+        byte[] data = payload.toString().getBytes(StandardCharsets.UTF_8);
+
+        parser.push(data, 0, data.length, cache);
+
+        assertThat(cache.size()).isEqualTo(6);
+        List<Measurement> rx = cache.query("if_octets", tags("fqdn", "*", "dsname", "rx"));
+        assertThat(rx).hasSize(3);
+        for (Measurement measurement : rx) {
+            assertThat(measurement.getTime()).isEqualTo(1457350130000d);
+            assertThat(measurement.getValue()).isEqualTo(1457350130 + Integer.parseInt(measurement.getTags().get("fqdn").substring(4)));
+        }
+        assertThat(cache.query("if_octets", tags("fqdn", "web-1"))).hasSize(2);
+        assertThat(cache.query("if_octets", tags("fqdn", "web-9"))).isEmpty();
+        assertThat(cache.query("if_octets", tags("missing", "*"))).isEmpty();
+        assertThat(cache.query("*", Collections.<String, String>emptyMap())).hasSize(6);
+        assertThat(cache.query("unknown", Collections.<String, String>emptyMap())).isEmpty();
+
+        Measurement latest = cache.get("if_octets", rx.get(0).getTags());
+        assertThat(latest).isEqualTo(rx.get(0));
+        assertThat(cache.get("if_octets", new HashMap<>(rx.get(0).getTags()))).isEqualTo(latest);
+        assertThat(cache.get("if_octets", tags("fqdn", "web-1"))).isNull();
+        assertThat(cache.get("unknown", tags("fqdn", "web-1"))).isNull();
+        assertThat(dictionary.findNameId("unknown")).isEqualTo(-1);
+    }
+
+    @Test
+    public void boundsAndExpiresSeries() {
+        LastValueCache small = new LastValueCache(dictionary, 3, 60000);
+        for (int i = 0; i < 5; i++) {
+            small.update(new Measurement("load", 1000 * (i + 1), i, tags("fqdn", "h" + i)));
+        }
+        assertThat(small.size()).isEqualTo(3);
+        assertThat(small.rejectedPoints()).isEqualTo(2);
+
+        assertThat(small.expire(2500)).isEqualTo(2);
+        assertThat(small.size()).isEqualTo(1);
+        assertThat(small.query("load", tags("fqdn", "*"))).containsExactly(new Measurement("load", 3000, 2, tags("fqdn", "h2")));
+
+        small.update(new Measurement("load", 9000, 9, tags("fqdn", "h4")));
+        assertThat(small.query("load", tags("fqdn", "*"))).hasSize(2);
+        assertThat(small.expire()).isEqualTo(2);
+    }
+
+    @Test
+    public void seriesSurviveTagSetEviction() {
+        LastValueCache churned = new LastValueCache(new MeasurementDictionary(new TagSetCache(64)), 1000, 60000);
+        for (int round = 0; round < 5; round++) {
+            for (int host = 0; host < 200; host++) {
+                churned.update(new Measurement("cpu", 1000 * (round + 1), round, tags("fqdn", "h" + host)));
+            }
+        }
+
+        assertThat(churned.size()).isEqualTo(200);
+        assertThat(churned.query("cpu", tags("fqdn", "h1"))).containsExactly(new Measurement("cpu", 5000, 4, tags("fqdn", "h1")));
+        assertThat(churned.get("cpu", tags("fqdn", "h199")).getValue()).isEqualTo(4);
+        assertThat(churned.query("*", tags("fqdn", "*"))).hasSize(200);
+        assertThat(churned.expire(5000)).isZero();
+        assertThat(churned.size()).isEqualTo(200);
+    }
+
+    @Test
+    public void updatesNeverInternTags() {
+        for (int host = 0; host < 10; host++) {
+            cache.update(new Measurement("cpu", 1000, host, tags("fqdn", "h" + host)));
+        }
+
+        assertThat(cache.size()).isEqualTo(10);
+        assertThat(cache.get("cpu", tags("fqdn", "h3")).getValue()).isEqualTo(3);
+        assertThat(dictionary.tagSets().size()).isZero();
+    }
+
+    @Test
+    public void updatesFromBatch() {
+        MeasurementBatch batch = new MeasurementBatch(dictionary);
+        batch.add(new Measurement("cpu", 2000, 2, tags("fqdn", "a")));
+        batch.add(new Measurement("cpu", 1000, 1, tags("fqdn", "a")));
+        batch.add(new Measurement("cpu", 1000, 5, tags("fqdn", "b")));
+
+        cache.update(batch);
+
+        assertThat(cache.get("cpu", tags("fqdn", "a")).getValue()).isEqualTo(2);
+        assertThat(cache.get("cpu", tags("fqdn", "b")).getValue()).isEqualTo(5);
+    }
+
+    @Test
+    public void readersNeverSeeTornUpdates() throws InterruptedException {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong torn = new AtomicLong();
+        final AtomicLong reads = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < 4; w++) {
+            final int writer = w;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 1; i <= 50000; i++) {
+                        cache.update("counter", tags("fqdn", "h" + i % 8), i * 4 + writer, (i * 4 + writer) * 2.0);
+                    }
+                }
+            }));
+        }
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running.get()) {
+                    for (Measurement measurement : cache.query("counter", tags("fqdn", "*"))) {
+                        reads.incrementAndGet();
+                        if (measurement.getValue() != measurement.getTime() * 2) {
+                            torn.incrementAndGet();
+                        }
+                    }
+                }
+            }
+        });
+        reader.start();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        running.set(false);
+        reader.join();
+
+        assertThat(torn.get()).isZero();
+        assertThat(reads.get()).isPositive();
+        List<Measurement> latest = cache.query("counter", tags("fqdn", "*"));
+        assertThat(latest).hasSize(8);
+        double newest = 0;
+        for (Measurement measurement : latest) {
+            newest = Math.max(newest, measurement.getTime());
+        }
+        assertThat(newest).isEqualTo(50000 * 4 + 3);
+    }
+
+    private static Map<String, String> tags(String... keyValues) {
+        Map<String, String> tags = new HashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            tags.put(keyValues[i], keyValues[i + 1]);
+        }
+        return tags;
+    }
+
+    private static String valueList(String host, long time, long value) {
+        return CollectdJson.valueList().values("gauge", value, value).dsnames("rx", "tx").time(time).host(host)
+                .plugin("interface").pluginInstance("eth0").type("if_octets").meta("tsdb_metric", "if_octets").toJson();
+    }
+}
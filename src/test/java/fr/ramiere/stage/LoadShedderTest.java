@@ -0,0 +1,147 @@
+package fr.ramiere.stage;
+
+import fr.ramiere.CollectdJson;
+import fr.ramiere.Measurement;
+import fr.ramiere.parser.StreamingJsonCollectdParser;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static fr.ramiere.stage.LoadShedder.Stage.*;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LoadShedderTest {
+    private static final long MS = 1000000;
+
+    private final LoadShedder shedder = new LoadShedder(10 * MS, 1000, 4, 3)
+            .lowPriorityPlugins("cpu", "irq")
+            .lowPriorityMetrics("sys.debug");
+
+    @Test
+    public void risesAtOnceAndRecoversStageByStage() {
+        assertThat(shedder.observe(5 * MS, 100)).isEqualTo(NONE);
+        assertThat(shedder.observe(12 * MS, 100)).isEqualTo(SAMPLE_LOW_PRIORITY);
+        assertThat(shedder.observe(5 * MS, 4500)).isEqualTo(SKIP_LOW_PRIORITY_META);
+
+        assertThat(shedder.observe(MS, 0)).isEqualTo(SKIP_LOW_PRIORITY_META);
+        assertThat(shedder.observe(MS, 0)).isEqualTo(SKIP_LOW_PRIORITY_META);
+        assertThat(shedder.observe(MS, 0)).isEqualTo(NEWEST_PER_SERIES);
+        assertThat(shedder.observe(25 * MS, 0)).isEqualTo(NEWEST_PER_SERIES);
+        assertThat(shedder.observe(MS, 0)).isEqualTo(NEWEST_PER_SERIES);
+        assertThat(shedder.observe(MS, 0)).isEqualTo(NEWEST_PER_SERIES);
+        assertThat(shedder.observe(MS, 0)).isEqualTo(SAMPLE_LOW_PRIORITY);
+        for (int i = 0; i < 3; i++) {
+            shedder.observe(MS, 0);
+        }
+        assertThat(shedder.stage()).isEqualTo(NONE);
+        assertThat(shedder.escalations()).isEqualTo(2);
+    }
+
+    @Test
+    public void classifiesFromRawBytes() {
+        assertThat(isLowPriority(valueList("web-1", "cpu", "idle", 1).toJson())).isTrue();
+        assertThat(isLowPriority("[" + valueList("web-1", "irq", "7", 1).toJson() + "]")).isTrue();
+        assertThat(isLowPriority(valueList("web-1", "memory", "used", 1).meta("tsdb_metric", "sys.debug").toJson())).isTrue();
+        assertThat(isLowPriority(valueList("web-1", "memory", "used", 1).meta("tsdb_metric", "sys.mem").toJson())).isFalse();
+        assertThat(isLowPriority("{\"tsdb_metric\":\"sys.debug\",\"plugin\":\"memory\",\"meta\":{\"x\":{\"plugin\":\"cpu\"},\"tsdb_tag_plugin\":\"cpu\"}}")).isFalse();
+        assertThat(new LoadShedder(MS, 1, 2, 1).isLowPriority(bytes(valueList("web-1", "cpu", "idle", 1).toJson()), 0, 10)).isFalse();
+    }
+
+    @Test
+    public void samplesLowPriorityPayloadsDeterministically() {
+        shedder.observe(10 * MS, 0);
+        List<byte[]> payloads = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            payloads.add(bytes(valueList("web-" + i % 10, i % 2 == 0 ? "cpu" : "memory", "x", 1457350110 + i).toJson()));
+        }
+        List<byte[]> reversed = new ArrayList<>(payloads);
+        Collections.reverse(reversed);
+        LoadShedder other = new LoadShedder(10 * MS, 1000, 4, 3).lowPriorityPlugins("cpu");
+        other.observe(10 * MS, 0);
+
+        int removed = shedder.shed(payloads);
+        other.shed(reversed);
+        Collections.reverse(reversed);
+
+        assertThat(payloads).containsExactlyElementsOf(reversed);
+        assertThat(removed).isBetween(120, 180);
+        assertThat(shedder.sampled()).isEqualTo(removed);
+        int memory = 0;
+        for (byte[] payload : payloads) {
+            memory += new String(payload, StandardCharsets.UTF_8).contains("\"memory\"") ? 1 : 0;
+        }
+        assertThat(memory).isEqualTo(200);
+    }
+
+    @Test
+    public void keepsNewestPayloadPerSeries() {
+        shedder.observe(25 * MS, 0);
+        List<byte[]> payloads = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            payloads.add(bytes(valueList("web-1", "memory", "used", 1457350110 + i).toJson()));
+            payloads.add(bytes(valueList("web-2", "memory", "used", 1457350110 + i).toJson()));
+        }
+        payloads.add(bytes("{\"unknown\":1}"));
+        payloads.add(bytes("{\"unknown\":2}"));
+
+        assertThat(shedder.shed(payloads)).isEqualTo(8);
+
+        assertThat(payloads).hasSize(4);
+        assertThat(new String(payloads.get(0), StandardCharsets.UTF_8)).contains("web-1").contains("1457350114");
+        assertThat(new String(payloads.get(1), StandardCharsets.UTF_8)).contains("web-2").contains("1457350114");
+        assertThat(shedder.superseded()).isEqualTo(8);
+        assertThat(shedder.toString()).startsWith("NEWEST_PER_SERIES: 0 sampled out, 8 superseded");
+    }
+
+    @Test
+    public void supersedesOnlySingleRecordsOfTheSameTags() {
+        shedder.observe(25 * MS, 0);
+        List<byte[]> payloads = new ArrayList<>();
+        payloads.add(bytes("[" + valueList("web-1", "memory", "used", 1457350110).toJson() + "," + valueList("web-3", "memory", "used", 1457350110).toJson() + "]"));
+        payloads.add(bytes(valueList("web-1", "memory", "used", 1457350111).toJson()));
+        payloads.add(bytes("[ " + valueList("web-1", "memory", "used", 1457350112).toJson() + " ]\n"));
+        payloads.add(bytes("{\"measurement\":\"cpu\",\"tags\":{\"fqdn\":\"a\"},\"time\":1,\"value\":1}"));
+        payloads.add(bytes("{\"measurement\":\"cpu\",\"tags\":{\"fqdn\":\"b\"},\"time\":1,\"value\":1}"));
+        payloads.add(bytes("{\"measurement\":\"cpu\",\"tags\":{\"fqdn\":\"a\"},\"time\":2,\"value\":1}"));
+        List<byte[]> kept = new ArrayList<>(payloads);
+        kept.remove(3);
+        kept.remove(1);
+
+        assertThat(shedder.shed(payloads)).isEqualTo(2);
+
+        assertThat(payloads).containsExactlyElementsOf(kept);
+    }
+
+    @Test
+    public void skipsMetaTagsOfLowPriorityValueLists() throws IOException {
+        StreamingJsonCollectdParser parser = new StreamingJsonCollectdParser(null, null, shedder);
+        String cpu = valueList("web-1", "cpu", "idle", 1457350110).meta("tsdb_tag_add_env", "prod").meta("tsdb_tag_plugin", "plugin").toJson();
+        String memory = valueList("web-1", "memory", "used", 1457350110).meta("tsdb_tag_add_env", "prod").meta("tsdb_tag_plugin", "plugin").toJson();
+        List<Measurement> expanded = parser.toValues(cpu);
+
+        shedder.observe(50 * MS, 0);
+
+        assertThat(parser.toValues(memory).get(0).getTags()).containsEntry("env", "prod").containsEntry("plugin", "memory");
+        assertThat(parser.toValues(cpu).get(0).getTags()).containsOnlyKeys("fqdn", "collector", "plugin").containsEntry("plugin", "cpu");
+        assertThat(parser.toValues(cpu).get(0).getName()).isEqualTo(expanded.get(0).getName());
+        assertThat(expanded.get(0).getTags()).containsKeys("env", "plugin");
+        assertThat(shedder.metaSkipped()).isEqualTo(2);
+    }
+
+    private boolean isLowPriority(String json) {
+        byte[] data = bytes(json);
+        return shedder.isLowPriority(data, 0, data.length);
+    }
+
+    private static byte[] bytes(String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static CollectdJson valueList(String host, String plugin, String typeInstance, long time) {
+        return CollectdJson.valueList().host(host).plugin(plugin).typeInstance(typeInstance).time(time);
+    }
+}
@@ -0,0 +1,54 @@
+package fr.ramiere.stage;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LongKeyTableTest {
+
+    private final LongKeyTable table = new LongKeyTable(8);
+
+    @Test
+    public void entriesKeepTheirNumberWhileTheTableGrows() {
+        int[] entries = new int[10000];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = table.insert(i * 1024L);
+        }
+        assertThat(table.size()).isEqualTo(10000);
+        assertThat(table.capacity()).isGreaterThanOrEqualTo(10000);
+        for (int i = 0; i < entries.length; i++) {
+            assertThat(table.find(i * 1024L)).isEqualTo(entries[i]);
+            assertThat(table.key(entries[i])).isEqualTo(i * 1024L);
+        }
+        assertThat(table.find(1)).isEqualTo(-1);
+    }
+
+    @Test
+    public void removedEntriesAreFreedAndReused() {
+        for (long key = 0; key < 1000; key++) {
+            table.insert(key);
+        }
+        int capacity = table.capacity();
+        for (long key = 0; key < 1000; key += 2) {
+            table.remove(table.find(key));
+        }
+        assertThat(table.size()).isEqualTo(500);
+        for (long key = 0; key < 1000; key++) {
+            assertThat(table.find(key) >= 0).isEqualTo(key % 2 == 1);
+        }
+        for (long key = 1000; key < 1500; key++) {
+            assertThat(table.insert(key)).isLessThan(1000);
+        }
+        assertThat(table.capacity()).isEqualTo(capacity);
+        assertThat(table.limit()).isEqualTo(1000);
+    }
+
+    @Test
+    public void clearEmptiesTheTable() {
+        table.insert(42);
+        table.clear();
+        assertThat(table.size()).isZero();
+        assertThat(table.find(42)).isEqualTo(-1);
+        assertThat(table.insert(42)).isZero();
+    }
+}
@@ -0,0 +1,174 @@
+package fr.ramiere.stage;
+
+import fr.ramiere.Measurement;
+import fr.ramiere.MutableMeasurement;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MeasurementRingBufferTest {
+
+    @Test
+    public void fullRingDropsNewestOrOldest() throws InterruptedException {
+        MeasurementRingBuffer newest = new MeasurementRingBuffer(4, MeasurementRingBuffer.Backpressure.DROP_NEWEST, WaitStrategy.busySpin());
+        MeasurementRingBuffer oldest = new MeasurementRingBuffer(4, MeasurementRingBuffer.Backpressure.DROP_OLDEST, WaitStrategy.busySpin());
+        for (int i = 0; i < 6; i++) {
+            assertThat(newest.publish(point(i))).isEqualTo(i < 4);
+            assertThat(oldest.publish(point(i))).isTrue();
+        }
+        assertThat(newest.depth()).isEqualTo(4);
+        assertThat(newest.droppedNewest()).isEqualTo(2);
+        assertThat(oldest.droppedOldest()).isEqualTo(2);
+        assertThat(oldest.published()).isEqualTo(6);
+
+        List<Measurement> drained = new ArrayList<>();
+        assertThat(newest.drainTo(drained, 10)).isEqualTo(4);
+        assertThat(drained.get(0).getValue()).isEqualTo(0);
+        drained.clear();
+        oldest.drainTo(drained, 10);
+        assertThat(drained.get(0).getValue()).isEqualTo(2);
+        assertThat(drained.get(3).getValue()).isEqualTo(5);
+        assertThat(oldest.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void batchesAreFlushedBySize() throws InterruptedException {
+        MeasurementRingBuffer ring = new MeasurementRingBuffer(64, MeasurementRingBuffer.Backpressure.BLOCK, WaitStrategy.yielding());
+        final List<Integer> sizes = new CopyOnWriteArrayList<>();
+        BatchingConsumer consumer = new BatchingConsumer(ring, 10, 60000, new BatchingConsumer.BatchHandler() {
+            @Override
+            public void onBatch(List<Measurement> batch) {
+                sizes.add(batch.size());
+            }
+        });
+        for (int i = 0; i < 25; i++) {
+            ring.publish(point(i));
+        }
+        Thread thread = new Thread(consumer);
+        thread.start();
+        while (sizes.size() < 2) {
+            Thread.sleep(1);
+        }
+        assertThat(sizes).containsExactly(10, 10);
+        consumer.stop();
+        thread.join();
+        assertThat(sizes).containsExactly(10, 10, 5);
+        assertThat(consumer.batches()).isEqualTo(3);
+    }
+
+    @Test
+    public void partialBatchIsFlushedAfterLinger() throws InterruptedException {
+        MeasurementRingBuffer ring = new MeasurementRingBuffer(64, MeasurementRingBuffer.Backpressure.BLOCK, WaitStrategy.blocking());
+        final List<Integer> sizes = new CopyOnWriteArrayList<>();
+        BatchingConsumer consumer = new BatchingConsumer(ring, 1000, 20, new BatchingConsumer.BatchHandler() {
+            @Override
+            public void onBatch(List<Measurement> batch) {
+                sizes.add(batch.size());
+            }
+        });
+        Thread thread = new Thread(consumer);
+        thread.start();
+        ring.publish(point(1));
+        ring.publish(point(2));
+        long start = System.nanoTime();
+        while (sizes.isEmpty()) {
+            Thread.sleep(1);
+        }
+        assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(15 * 1000000L);
+        assertThat(sizes).containsExactly(2);
+        consumer.stop();
+        thread.join();
+    }
+
+    @Test
+    public void producersAndConsumersHandOverEveryPointOnce() throws InterruptedException {
+        final MeasurementRingBuffer ring = new MeasurementRingBuffer(128, MeasurementRingBuffer.Backpressure.BLOCK, WaitStrategy.sleeping(10000));
+        final List<Measurement> received = Collections.synchronizedList(new ArrayList<Measurement>());
+        BatchingConsumer.BatchHandler handler = new BatchingConsumer.BatchHandler() {
+            @Override
+            public void onBatch(List<Measurement> batch) {
+                received.addAll(batch);
+            }
+        };
+        List<BatchingConsumer> consumers = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < 2; c++) {
+            BatchingConsumer consumer = new BatchingConsumer(ring, 50, 5, handler);
+            consumers.add(consumer);
+            threads.add(new Thread(consumer));
+        }
+        List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < 4; p++) {
+            final int producer = p;
+            producers.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 20000; i++) {
+                            ring.publish(point(producer * 20000 + i));
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread producer : producers) {
+            producer.start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        for (BatchingConsumer consumer : consumers) {
+            consumer.stop();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Set<Double> values = new HashSet<>();
+        for (Measurement measurement : received) {
+            values.add(measurement.getValue());
+        }
+        assertThat(received).hasSize(80000);
+        assertThat(values).hasSize(80000);
+        assertThat(ring.depth()).isZero();
+    }
+
+    @Test
+    public void slotsAreCopiedInAndOut() throws InterruptedException {
+        MeasurementRingBuffer ring = new MeasurementRingBuffer(4, MeasurementRingBuffer.Backpressure.BLOCK, WaitStrategy.busySpin());
+        MutableMeasurement flyweight = new MutableMeasurement();
+        for (int i = 0; i < 3; i++) {
+            assertThat(ring.publish(flyweight.set("load", 1000 + i, i, Collections.singletonMap("fqdn", "h")))).isTrue();
+        }
+        flyweight.set("reused", 0, -1, null);
+
+        MutableMeasurement into = new MutableMeasurement();
+        assertThat(ring.poll(into)).isTrue();
+        assertThat(into.getName()).isEqualTo("load");
+        assertThat(into.getValue()).isEqualTo(0);
+        assertThat(into.getTags()).containsEntry("fqdn", "h");
+        Measurement second = ring.poll();
+        assertThat(second.getTime()).isEqualTo(1001);
+        assertThat(second.getValue()).isEqualTo(1);
+        assertThat(ring.poll(into)).isTrue();
+        assertThat(into.getValue()).isEqualTo(2);
+        assertThat(ring.poll(into)).isFalse();
+        assertThat(ring.poll()).isNull();
+    }
+
+    private static Measurement point(int i) {
+        return new Measurement("load", 1000, i, Collections.singletonMap("fqdn", "h"));
+    }
+}
@@ -0,0 +1,119 @@
+package fr.ramiere.stage;
+
+import fr.ramiere.DsType;
+import fr.ramiere.Measurement;
+import fr.ramiere.MeasurementDictionary;
+import fr.ramiere.parser.StreamingJsonCollectdParser;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class RateEngineTest {
+
+    private final RateEngine rates = new RateEngine();
+
+    @Test
+    public void gaugeIsUntouched() {
+        assertThat(rates.rate(1, DsType.GAUGE, 1000, 42)).isEqualTo(42);
+        assertThat(rates.size()).isZero();
+    }
+
+    @Test
+    public void counterGivesPerSecondRate() {
+        assertThat(rates.rate(1, DsType.COUNTER, 10000, 100)).isNaN();
+        assertThat(rates.rate(1, DsType.COUNTER, 20000, 600)).isEqualTo(50);
+        assertThat(rates.rate(2, DsType.COUNTER, 20000, 5)).isNaN();
+    }
+
+    @Test
+    public void counterWrapsAt32And64Bits() {
+        rates.rate(1, DsType.COUNTER, 0, RateEngine.WRAP_32 - 100);
+        assertThat(rates.rate(1, DsType.COUNTER, 10000, 900)).isEqualTo(100);
+        rates.rate(2, DsType.COUNTER, 0, RateEngine.WRAP_64 - 4096);
+        assertThat(rates.rate(2, DsType.COUNTER, 1000, 4096)).isCloseTo(8192, within(4096d));
+    }
+
+    @Test
+    public void counterResetRestartsFromZero() {
+        rates.rate(1, DsType.COUNTER, 0, 1000);
+        assertThat(rates.rate(1, DsType.COUNTER, 10000, 200)).isEqualTo(20);
+    }
+
+    @Test
+    public void deriveResetGivesNoRate() {
+        rates.rate(1, DsType.DERIVE, 0, 1000);
+        assertThat(rates.rate(1, DsType.DERIVE, 10000, 200)).isNaN();
+        assertThat(rates.rate(1, DsType.DERIVE, 20000, 300)).isEqualTo(10);
+    }
+
+    @Test
+    public void absoluteIsDividedByElapsedTime() {
+        rates.rate(1, DsType.ABSOLUTE, 0, 7);
+        assertThat(rates.rate(1, DsType.ABSOLUTE, 5000, 50)).isEqualTo(10);
+    }
+
+    @Test
+    public void staleValueGivesNoRate() {
+        rates.rate(1, DsType.DERIVE, 10000, 100);
+        assertThat(rates.rate(1, DsType.DERIVE, 10000, 200)).isNaN();
+        assertThat(rates.rate(1, DsType.DERIVE, 5000, 200)).isNaN();
+    }
+
+    @Test
+    public void idleSeriesAreEvicted() {
+        RateEngine engine = new RateEngine(60000, 1 << 20);
+        for (int i = 0; i < 5000; i++) {
+            engine.rate(i, DsType.DERIVE, i < 2500 ? 0 : 30000, i);
+        }
+        assertThat(engine.size()).isEqualTo(5000);
+        engine.evictIdle(70000);
+        assertThat(engine.size()).isEqualTo(2500);
+        for (int i = 2500; i < 5000; i++) {
+            assertThat(engine.rate(i, DsType.DERIVE, 40000, i + 10)).isEqualTo(1);
+        }
+        assertThat(engine.rate(0, DsType.DERIVE, 40000, 10)).isNaN();
+    }
+
+    @Test
+    public void seriesBeyondLimitAreRejected() {
+        RateEngine engine = new RateEngine(60000, 2);
+        engine.rate(1, DsType.DERIVE, 0, 0);
+        engine.rate(2, DsType.DERIVE, 0, 0);
+        engine.rate(3, DsType.DERIVE, 0, 0);
+        assertThat(engine.size()).isEqualTo(2);
+        assertThat(engine.rejectedSeries()).isEqualTo(1);
+    }
+
+    @Test
+    public void fullEngineSweepsIdleSeriesOncePerSweepInterval() {
+        RateEngine engine = new RateEngine(60000, 2);
+        engine.rate(1, DsType.DERIVE, 0, 0);
+        engine.rate(2, DsType.DERIVE, 2000, 0);
+        engine.rate(3, DsType.DERIVE, 61500, 0);
+        assertThat(engine.rejectedSeries()).isZero();
+        engine.rate(4, DsType.DERIVE, 62500, 0);
+        assertThat(engine.rejectedSeries()).isEqualTo(1);
+        engine.rate(5, DsType.DERIVE, 65500, 0);
+        assertThat(engine.rejectedSeries()).isEqualTo(1);
+        assertThat(engine.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void parserEmitsRatesFromSecondInterval() throws IOException {
+        StreamingJsonCollectdParser parser = new StreamingJsonCollectdParser(new MeasurementDictionary(), rates);
+        String json = "{\"values\":[%d,%d],\"dstypes\":[\"derive\",\"gauge\"],\"dsnames\":[\"rx\",\"tx\"],\"time\":%d,\"interval\":10,\"host\":\"h\",\"plugin\":\"interface\",\"plugin_instance\":\"eth0\",\"type\":\"if_octets\",\"type_instance\":\"\",\"meta\":{\"tsdb_tag_add_collector\":\"collectd\"}}";
+
+        List<Measurement> first = parser.toValues(String.format(json, 1000, 7, 1457350110));
+        assertThat(first).hasSize(1);
+        assertThat(first.get(0).getValue()).isEqualTo(7);
+
+        List<Measurement> second = parser.toValues(String.format(json, 3000, 8, 1457350120));
+        assertThat(second).hasSize(2);
+        assertThat(second.get(0).getValue()).isEqualTo(200);
+        assertThat(second.get(0).getTags()).containsEntry("dsname", "rx");
+    }
+}
@@ -0,0 +1,191 @@
+package fr.ramiere.stage;
+
+import fr.ramiere.CollectdJson;
+import fr.ramiere.MearsurementParser;
+import fr.ramiere.Measurement;
+import fr.ramiere.MeasurementDictionary;
+import fr.ramiere.parser.StreamingJsonCollectdParser;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SeriesAffinityPoolTest {
+
+    private final Map<String, List<Measurement>> bySeries = new HashMap<>();
+    private final Map<String, Set<Integer>> shardsBySeries = new HashMap<>();
+    private final AtomicLong overlaps = new AtomicLong();
+
+    @Test
+    public void hashesSeriesFieldsOnly() {
+        long hash = hash(valueList("web-1", "interface", "eth0", "if_octets", "", 1, 10));
+
+        assertThat(hash(valueList("web-1", "interface", "eth0", "if_octets", "", 2, 30))).isEqualTo(hash);
+        assertThat(hash("[" + valueList("web-1", "interface", "eth0", "if_octets", "", 3, 50) + "," + valueList("web-2", "cpu", "0", "cpu", "idle", 3, 1) + "]"))
+                .isEqualTo(hash);
+        assertThat(hash("{\"type_instance\":\"\",\"meta\":{\"host\":\"other\",\"x\":[\"\\\"}\"]},\"type\":\"if_octets\",\"plugin_instance\":\"eth0\","
+                + "\"plugin\":\"interface\",\"host\":\"web-1\",\"values\":[1]}")).isEqualTo(hash);
+        assertThat(hash(valueList("web-1", "interface", "eth1", "if_octets", "", 1, 10))).isNotEqualTo(hash);
+        assertThat(hash(valueList("web-1", "interface", "", "if_octets", "eth0", 1, 10))).isNotEqualTo(hash);
+        assertThat(hash("{\"measurement\":\"cpu\",\"tags\":{\"fqdn\":\"a\",\"dc\":\"x\"},\"time\":1,\"value\":2}"))
+                .isEqualTo(hash("{\"time\":5,\"tags\":{\"dc\":\"x\", \"fqdn\":\"a\"},\"value\":3,\"measurement\":\"cpu\"}"))
+                .isNotEqualTo(hash("{\"measurement\":\"cpu\",\"tags\":{\"fqdn\":\"b\",\"dc\":\"x\"},\"time\":1,\"value\":2}"))
+                .isNotEqualTo(hash("{\"measurement\":\"cpu\",\"tags\":{\"fqdn\":\"x\",\"dc\":\"a\"},\"time\":1,\"value\":2}"))
+                .isNotEqualTo(hash("{\"measurement\":\"cpu\",\"time\":5,\"value\":3}"));
+        assertThat(hash("{\"measurement\":\"cpu\",\"time\":5,\"value\":3}")).isNotEqualTo(hash("{\"measurement\":\"mem\",\"time\":5,\"value\":3}"));
+    }
+
+    @Test
+    public void keepsSeriesOrderWithPerShardState() throws InterruptedException {
+        SeriesAffinityPool pool = new SeriesAffinityPool(4, 32, 256, rateParsers(), recording(32, 0), WaitStrategy.blocking());
+        pool.start();
+        try {
+            for (int i = 0; i < 200; i++) {
+                for (int host = 0; host < 25; host++) {
+                    submit(pool, valueList("web-" + host, "interface", "eth" + host % 2, "if_octets", "", 1457350110 + i * 10, i * 10 * (host + 1)));
+                }
+            }
+            assertThat(pool.awaitIdle(30, TimeUnit.SECONDS)).isTrue();
+        } finally {
+            pool.close();
+        }
+
+        assertThat(pool.payloads()).isEqualTo(5000);
+        assertThat(pool.rejectedPayloads()).isZero();
+        assertThat(overlaps.get()).isZero();
+        assertThat(bySeries).hasSize(25);
+        for (List<Measurement> series : bySeries.values()) {
+            assertThat(series).hasSize(199);
+            double expectedRate = series.get(0).getValue();
+            for (int i = 1; i < series.size(); i++) {
+                assertThat(series.get(i).getTime()).isGreaterThan(series.get(i - 1).getTime());
+                assertThat(series.get(i).getValue()).isEqualTo(expectedRate);
+            }
+        }
+    }
+
+    @Test
+    public void splitsMultiRecordPayloadsBeforeRouting() throws InterruptedException {
+        SeriesAffinityPool pool = new SeriesAffinityPool(4, 32, 256, rateParsers(), recording(32, 0), WaitStrategy.blocking());
+        pool.start();
+        try {
+            for (int i = 0; i < 21; i++) {
+                StringBuilder payload = new StringBuilder(i % 2 == 0 ? "[" : "");
+                for (int host = 0; host < 8; host++) {
+                    String record = valueList("web-" + host, "load", "", "load", "", 1457350110 + i * 10, i * 10);
+                    payload.append(host == 0 ? "" : i % 2 == 0 ? ", " : "\n").append(record);
+                }
+                submit(pool, payload.append(i % 2 == 0 ? "]" : "\n").toString());
+            }
+            submit(pool, "42");
+            assertThat(pool.awaitIdle(30, TimeUnit.SECONDS)).isTrue();
+        } finally {
+            pool.close();
+        }
+
+        assertThat(pool.payloads()).isEqualTo(8 * 21 + 1);
+        assertThat(pool.rejectedPayloads()).isEqualTo(1);
+        assertThat(overlaps.get()).isZero();
+        assertThat(bySeries).hasSize(8);
+        for (Map.Entry<String, List<Measurement>> series : bySeries.entrySet()) {
+            assertThat(series.getValue()).hasSize(20);
+            assertThat(shardsBySeries.get(series.getKey())).hasSize(1);
+            for (int i = 1; i < series.getValue().size(); i++) {
+                assertThat(series.getValue().get(i).getTime()).isGreaterThan(series.getValue().get(i - 1).getTime());
+            }
+        }
+    }
+
+    @Test
+    public void idleWorkersStealShardsOfBusyOnes() throws InterruptedException {
+        SeriesAffinityPool pool = new SeriesAffinityPool(2, 32, 1024, rateParsers(), recording(32, 1), WaitStrategy.blocking());
+        List<String> hosts = new ArrayList<>();
+        for (int host = 0; hosts.size() < 8; host++) {
+            byte[] data = valueList("web-" + host, "load", "", "load", "", 1, 1).getBytes(StandardCharsets.UTF_8);
+            if (pool.shardOf(data, 0, data.length) % 2 == 0) {
+                hosts.add("web-" + host);
+            }
+        }
+        pool.start();
+        try {
+            for (int i = 0; i < 20; i++) {
+                for (String host : hosts) {
+                    submit(pool, valueList(host, "load", "", "load", "", 1457350110 + i * 10, i * 10));
+                }
+            }
+            assertThat(pool.awaitIdle(30, TimeUnit.SECONDS)).isTrue();
+        } finally {
+            pool.close();
+        }
+
+        assertThat(pool.steals()).isPositive();
+        assertThat(overlaps.get()).isZero();
+        assertThat(pool.measurements()).isEqualTo(8 * 19);
+        for (List<Measurement> series : bySeries.values()) {
+            for (int i = 1; i < series.size(); i++) {
+                assertThat(series.get(i).getTime()).isGreaterThan(series.get(i - 1).getTime());
+            }
+        }
+    }
+
+    private static SeriesAffinityPool.ParserFactory rateParsers() {
+        return new SeriesAffinityPool.ParserFactory() {
+            @Override
+            public MearsurementParser create(int shard) {
+                return new StreamingJsonCollectdParser(new MeasurementDictionary(), new RateEngine());
+            }
+        };
+    }
+
+    private SeriesAffinityPool.ShardHandler recording(int shards, final long sleepMillis) {
+        final AtomicIntegerArray running = new AtomicIntegerArray(shards);
+        return new SeriesAffinityPool.ShardHandler() {
+            @Override
+            public void onMeasurements(int shard, List<Measurement> measurements) throws InterruptedException {
+                if (running.incrementAndGet(shard) != 1) {
+                    overlaps.incrementAndGet();
+                }
+                Thread.sleep(sleepMillis);
+                synchronized (bySeries) {
+                    for (Measurement measurement : measurements) {
+                        String series = measurement.getName() + measurement.getTags();
+                        if (!bySeries.containsKey(series)) {
+                            bySeries.put(series, new ArrayList<Measurement>());
+                        }
+                        bySeries.get(series).add(measurement);
+                        if (!shardsBySeries.containsKey(series)) {
+                            shardsBySeries.put(series, new HashSet<Integer>());
+                        }
+                        shardsBySeries.get(series).add(shard);
+                    }
+                }
+                running.decrementAndGet(shard);
+            }
+        };
+    }
+
+    private static void submit(SeriesAffinityPool pool, String json) throws InterruptedException {
+        byte[] data = json.getBytes(StandardCharsets.UTF_8);
+        pool.submit(data, 0, data.length);
+    }
+
+    private static long hash(String json) {
+        byte[] data = json.getBytes(StandardCharsets.UTF_8);
+        return SeriesKeyHash.hash(data, 0, data.length);
+    }
+
+    private static String valueList(String host, String plugin, String pluginInstance, String type, String typeInstance, long time, long value) {
+        return CollectdJson.valueList().values("derive", value).time(time).host(host).plugin(plugin).pluginInstance(pluginInstance)
+                .type(type).typeInstance(typeInstance).toJson();
+    }
+}